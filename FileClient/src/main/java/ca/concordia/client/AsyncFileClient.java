@@ -0,0 +1,133 @@
+package ca.concordia.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Asynchronous client of the file server's binary protocol, safe to share between threads.
+//
+// Every call returns at once with a future (unless the connection it picks already has pipelineDepth requests
+// out, then it waits for a reply first). Requests are spread over a pool of connections and pipelined on each,
+// so many can be on the way without a thread per request. Failures complete the future exceptionally, with a
+// FileServerException when the server refused the request and another IOException when the connection failed.
+//
+// Futures complete on the connection's reader thread, so callbacks should be short and never block on another
+// future of this client (join() there would stall the replies it waits for); issuing new requests is fine.
+// Stream variants move large files without holding them in memory: a written stream is copied to the socket by
+// the connection's sender thread and a read is copied to the sink by its reader thread, other requests on that
+// connection wait meanwhile.
+//
+//   try (AsyncFileClient client = new AsyncFileClient("localhost", 12345)) {
+//       client.create("notes").thenCompose(v -> client.write("notes", data)).join();
+//       byte[] back = client.read("notes").join();
+//   }
+public class AsyncFileClient implements AutoCloseable {
+
+    private final ConnectionPool pool;
+
+    public AsyncFileClient(String host, int port) throws IOException {
+        this(config(host, port));
+    }
+
+    // opens all config.getConnections() connections, fails if any can't be opened
+    public AsyncFileClient(ClientConfig config) throws IOException {
+        this.pool = new ConnectionPool(config);
+    }
+
+    public CompletableFuture<Void> create(String filename) {
+        return done(Request.of(Protocol.OP_CREATE, filename, null, null));
+    }
+
+    public CompletableFuture<Void> delete(String filename) {
+        return done(Request.of(Protocol.OP_DELETE, filename, null, null));
+    }
+
+    // replaces the file's contents
+    public CompletableFuture<Void> write(String filename, byte[] contents) {
+        return done(Request.of(Protocol.OP_WRITE, filename, null, contents));
+    }
+
+    // replaces the file's contents with the next length bytes of in
+    public CompletableFuture<Void> write(String filename, InputStream in, long length) {
+        return done(Request.streaming(Protocol.OP_WRITE, filename, null, in, length));
+    }
+
+    public CompletableFuture<Void> writeAt(String filename, long offset, byte[] data) {
+        return done(Request.of(Protocol.OP_WRITE_AT, filename, Request.numbers(offset), data));
+    }
+
+    public CompletableFuture<Void> writeAt(String filename, long offset, InputStream in, long length) {
+        return done(Request.streaming(Protocol.OP_WRITE_AT, filename, Request.numbers(offset), in, length));
+    }
+
+    public CompletableFuture<Void> append(String filename, byte[] data) {
+        return done(Request.of(Protocol.OP_APPEND, filename, null, data));
+    }
+
+    public CompletableFuture<Void> append(String filename, InputStream in, long length) {
+        return done(Request.streaming(Protocol.OP_APPEND, filename, null, in, length));
+    }
+
+    public CompletableFuture<Void> truncate(String filename, long size) {
+        return done(Request.of(Protocol.OP_TRUNCATE, filename, Request.numbers(size), null));
+    }
+
+    public CompletableFuture<byte[]> read(String filename) {
+        return bytes(Request.of(Protocol.OP_READ, filename, null, null));
+    }
+
+    // copies the file to sink as it arrives, the future has the number of bytes copied
+    public CompletableFuture<Long> read(String filename, OutputStream sink) {
+        return copied(Request.toSink(Protocol.OP_READ, filename, null, sink));
+    }
+
+    // up to length bytes from offset, fewer at the end of the file
+    public CompletableFuture<byte[]> readRange(String filename, long offset, int length) {
+        return bytes(Request.of(Protocol.OP_READ_RANGE, filename, Request.numbers(offset, length), null));
+    }
+
+    public CompletableFuture<Long> readRange(String filename, long offset, long length, OutputStream sink) {
+        return copied(Request.toSink(Protocol.OP_READ_RANGE, filename, Request.numbers(offset, length), sink));
+    }
+
+    public CompletableFuture<List<String>> list() {
+        return bytes(Request.of(Protocol.OP_LIST, null, null, null)).thenApply(payload -> {
+            if (payload.length == 0)
+                return new ArrayList<>();
+            return new ArrayList<>(Arrays.asList(new String(payload, StandardCharsets.UTF_8).split("\n")));
+        });
+    }
+
+    // Waits for the requests already made, then closes the connections. Later requests fail.
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private CompletableFuture<Void> done(Request request) {
+        pool.submit(request);
+        return request.future.thenApply(reply -> null);
+    }
+
+    private CompletableFuture<byte[]> bytes(Request request) {
+        pool.submit(request);
+        return request.future.thenApply(reply -> (byte[]) reply);
+    }
+
+    private CompletableFuture<Long> copied(Request request) {
+        pool.submit(request);
+        return request.future.thenApply(reply -> (Long) reply);
+    }
+
+    private static ClientConfig config(String host, int port) {
+        ClientConfig config = new ClientConfig();
+        config.setHost(host);
+        config.setPort(port);
+        return config;
+    }
+}
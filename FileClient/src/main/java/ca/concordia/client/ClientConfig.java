@@ -0,0 +1,61 @@
+package ca.concordia.client;
+
+// Settings of an AsyncFileClient. The defaults talk to a server on localhost:12345 over four connections.
+public class ClientConfig {
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int connections = 4;          // sockets in the pool, requests go to the least busy one
+    private int pipelineDepth = 64;       // requests sent on one connection before their replies came back
+    private int connectTimeoutMillis = 5000;
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        if (host == null || host.isEmpty())
+            throw new IllegalArgumentException("Host must not be empty.");
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        if (port < 1 || port > 65535)
+            throw new IllegalArgumentException("Port must be between 1 and 65535.");
+        this.port = port;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        if (connections < 1)
+            throw new IllegalArgumentException("Connection count must be at least 1.");
+        this.connections = connections;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1)
+            throw new IllegalArgumentException("Pipeline depth must be at least 1.");
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        if (connectTimeoutMillis < 0)
+            throw new IllegalArgumentException("Connect timeout must not be negative.");
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+}
@@ -0,0 +1,211 @@
+package ca.concordia.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// One pooled socket in binary mode. Callers queue requests, a sender thread writes them back to back and only
+// flushes once the queue is empty, so a burst goes out in few packets, and a reader thread completes them in
+// order as the replies come back. At most pipelineDepth requests are out at once: callers wait for a reply
+// beyond that, except reader threads (a request issued from a callback), which would wait for replies only
+// they can read.
+//
+// Any I/O error ends the connection and fails every request on it, the pool opens a new one for later requests.
+final class Connection {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int pipelineDepth;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final ArrayDeque<Request> pending = new ArrayDeque<>(); // sent, waiting for their reply, in order
+    private final Thread sender;
+    private final ReaderThread reader;
+    private int inFlight; // queued or pending, guarded by this
+    private int nextId;   // sender thread only
+    private volatile boolean broken;
+    private boolean quitting; // guarded by pending
+
+    Connection(ClientConfig config, int index) throws IOException {
+        this.pipelineDepth = config.getPipelineDepth();
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(config.getHost(), config.getPort()), config.getConnectTimeoutMillis());
+            BufferedInputStream input = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            BufferedOutputStream output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            Protocol.switchToBinary(input, output);
+            this.in = new DataInputStream(input);
+            this.out = new DataOutputStream(output);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        String suffix = config.getHost() + ":" + config.getPort() + "-" + index;
+        sender = new Thread(this::send, "file-client-send-" + suffix);
+        reader = new ReaderThread(this::receive, "file-client-recv-" + suffix);
+        sender.setDaemon(true);
+        reader.setDaemon(true);
+        sender.start();
+        reader.start();
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    // Queues the request, waiting while pipelineDepth requests are already out. Its future fails if the
+    // connection breaks before the reply is in.
+    void submit(Request request) {
+        if (!request.validate())
+            return;
+        synchronized (this) {
+            if (!(Thread.currentThread() instanceof ReaderThread)) {
+                while (inFlight >= pipelineDepth && !broken) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        request.future.completeExceptionally(e);
+                        return;
+                    }
+                }
+            }
+            inFlight++;
+        }
+        queue.add(request);
+        if (broken)
+            failAll(new IOException("Connection to the server is closed"));
+    }
+
+    // Sends QUIT after everything queued so far, the connection closes once its reply is in. Later requests fail.
+    void close() {
+        Request quit = Request.of(Protocol.OP_QUIT, null, null, null);
+        synchronized (this) {
+            inFlight++;
+        }
+        queue.add(quit);
+        if (broken)
+            failAll(new IOException("Connection to the server is closed"));
+    }
+
+    // waits up to millis for close() to finish, then drops whatever is still out
+    void await(long millis) throws InterruptedException {
+        reader.join(millis);
+        if (reader.isAlive())
+            failAll(new IOException("Connection closed before all replies came in"));
+    }
+
+    private void send() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                Request request = queue.take();
+                boolean refused;
+                synchronized (pending) {
+                    refused = broken || quitting;
+                    if (!refused) {
+                        request.id = nextId++;
+                        pending.add(request);
+                        quitting = request.opcode == Protocol.OP_QUIT;
+                    }
+                }
+                if (refused) {
+                    request.future.completeExceptionally(new IOException("Connection to the server is closed"));
+                    released(1);
+                    continue;
+                }
+                request.writeTo(out, buffer);
+                if (queue.isEmpty())
+                    out.flush();
+            }
+        } catch (InterruptedException e) {
+            failAll(new IOException("Client stopped"));
+        } catch (IOException e) {
+            failAll(e);
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                int status = in.read();
+                if (status < 0)
+                    throw new EOFException("Connection closed by the server");
+                int id = in.readInt();
+                long length = in.readLong();
+                Request request;
+                synchronized (pending) {
+                    request = pending.poll();
+                }
+                if (request == null || request.id != id)
+                    throw new IOException("Reply " + id + " doesn't match the oldest request sent");
+                if (status == Protocol.STATUS_OK) {
+                    request.receive(in, length, buffer);
+                } else {
+                    byte[] message = new byte[(int) Math.min(length, BUFFER_SIZE)];
+                    in.readFully(message);
+                    in.skipNBytes(length - message.length);
+                    request.future.completeExceptionally(new FileServerException(new String(message, StandardCharsets.UTF_8)));
+                }
+                released(1);
+                if (request.opcode == Protocol.OP_QUIT) {
+                    failAll(new IOException("Connection to the server is closed"));
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            failAll(e);
+        }
+    }
+
+    // Ends the connection: every queued or pending request fails with cause. Safe to call more than once.
+    private void failAll(IOException cause) {
+        List<Request> failed = new ArrayList<>();
+        synchronized (pending) {
+            broken = true;
+            failed.addAll(pending);
+            pending.clear();
+        }
+        queue.drainTo(failed);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Request request : failed)
+            request.future.completeExceptionally(cause);
+        released(failed.size());
+        if (Thread.currentThread() != sender)
+            sender.interrupt(); // only ever waits for the queue, the socket is already closed
+    }
+
+    private synchronized void released(int count) {
+        inFlight -= count;
+        notifyAll();
+    }
+
+    // callbacks of requests run on these, see submit()
+    private static final class ReaderThread extends Thread {
+        ReaderThread(Runnable task, String name) {
+            super(task, name);
+        }
+    }
+}
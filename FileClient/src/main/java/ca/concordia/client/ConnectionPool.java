@@ -0,0 +1,113 @@
+package ca.concordia.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A fixed number of connections; each request goes to the one with the fewest requests out. A connection
+// that broke is replaced by a new one on demand, at most once a second per slot while the server is away.
+final class ConnectionPool {
+
+    private static final long RETRY_MILLIS = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 30_000;
+
+    private final ClientConfig config;
+    private final AtomicReferenceArray<Connection> connections;
+    private final long[] retryAt; // guarded by this
+    private volatile boolean closed;
+
+    ConnectionPool(ClientConfig config) throws IOException {
+        this.config = config;
+        this.connections = new AtomicReferenceArray<>(config.getConnections());
+        this.retryAt = new long[config.getConnections()];
+        try {
+            for (int i = 0; i < connections.length(); i++)
+                connections.set(i, new Connection(config, i));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    void submit(Request request) {
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Client is closed"));
+            return;
+        }
+        try {
+            pick().submit(request);
+        } catch (IOException e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private Connection pick() throws IOException {
+        Connection best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        boolean anyBroken = false;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection.isBroken()) {
+                anyBroken = true;
+                continue;
+            }
+            int load = connection.getInFlight();
+            if (load < bestLoad) {
+                best = connection;
+                bestLoad = load;
+            }
+        }
+        if (anyBroken && (best == null || bestLoad > 0)) {
+            Connection replaced = reconnect(best == null);
+            if (replaced != null)
+                return replaced;
+        }
+        if (best == null)
+            throw new IOException("No connection to " + config.getHost() + ":" + config.getPort());
+        return best;
+    }
+
+    // opens a connection in the first broken slot that is due, null when none is or the server is unreachable
+    // and other connections are left (required false)
+    private synchronized Connection reconnect(boolean required) throws IOException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (!connection.isBroken())
+                continue;
+            if (now < retryAt[i] && !required)
+                continue;
+            try {
+                Connection fresh = new Connection(config, i);
+                connections.set(i, fresh);
+                return fresh;
+            } catch (IOException e) {
+                retryAt[i] = now + RETRY_MILLIS;
+                if (required)
+                    throw e;
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // lets every connection finish what was sent before
+    void close() {
+        closed = true;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection != null)
+                connection.close();
+        }
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection == null)
+                continue;
+            try {
+                connection.await(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ca.concordia.client;
+
+import java.io.IOException;
+
+// The server answered a request with an error, the message is the server's ("ERROR: file x does not exist.").
+// The connection is fine, unlike with the other IOExceptions a request can fail with.
+public class FileServerException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FileServerException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,85 @@
+package ca.concordia.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock free log-linear latency histogram, the same buckets as the server's ca.concordia.metrics.LatencyHistogram
+// (the client doesn't depend on the server): 64 linear sub-buckets below 64ns and then 32 per power of two, so
+// percentiles are within about 3% whatever their magnitude.
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;      // 64
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >>> 1;   // 32
+    private static final int BUCKETS = HALF_SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        if (nanos > max.get())
+            max.accumulateAndGet(nanos, Math::max);
+    }
+
+    long getCount() {
+        return total.sum();
+    }
+
+    // smallest recorded bucket bound that percent of the values are at or below, 0 when empty
+    long getPercentileNanos(double percent) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    // "mean=3.1us p50=2.9us p90=4.0us p99=8.2us p99.9=15.1us max=16.0us"
+    String summary() {
+        long count = total.sum();
+        return "mean=" + micros(count == 0 ? 0 : (double) sum.sum() / count)
+                + " p50=" + micros(getPercentileNanos(50))
+                + " p90=" + micros(getPercentileNanos(90))
+                + " p99=" + micros(getPercentileNanos(99))
+                + " p99.9=" + micros(getPercentileNanos(99.9))
+                + " max=" + micros(max.get());
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return HALF_SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,289 @@
+package ca.concordia.client;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives a running server through AsyncFileClient and reports throughput and latency percentiles per operation.
+// A fixed number of requests is kept outstanding (closed loop): a new one starts as soon as one completes, so the
+// rate found is what the server sustains at that concurrency.
+//   java -cp target/classes ca.concordia.client.LoadGenerator [--host=localhost] [--port=12345]
+//        [--connections=4] [--pipeline=64] [--concurrency=64] [--duration=10] [--warmup=2]
+//        [--files=64] [--file-size=4096] [--mix=read:80,write:20] [--stream=false] [--prefix=lg]
+// Operations for --mix: read (whole file), write (replace the whole file), list, and churn (create a new
+// file then delete it, timed together). --stream=true reads into a discarding stream instead of an array.
+public class LoadGenerator {
+
+    private static final String[] OPERATIONS = {"read", "write", "list", "churn"};
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int connections = 4;
+    private int pipeline = 64;
+    private int concurrency = 64;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private int files = 64;
+    private int fileSize = 4096;
+    private String mix = "read:80,write:20";
+    private boolean stream;
+    private String prefix = "lg";
+
+    private final int[] weights = new int[OPERATIONS.length];
+    private int totalWeight;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+    private final LatencyHistogram overall = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final AtomicReference<String> firstError = new AtomicReference<>();
+    private final AtomicInteger churnCounter = new AtomicInteger();
+    private volatile long measureStart = Long.MAX_VALUE; // nanoTime, requests started before aren't counted
+    private volatile long measureEnd = Long.MAX_VALUE;   // nor those that finish after
+    private volatile boolean running = true;
+    private byte[] content;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            generator.set(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        generator.run();
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "host":
+                host = value;
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "connections":
+                connections = Integer.parseInt(value);
+                break;
+            case "pipeline":
+                pipeline = Integer.parseInt(value);
+                break;
+            case "concurrency":
+                concurrency = Integer.parseInt(value);
+                break;
+            case "duration":
+                durationSeconds = Integer.parseInt(value);
+                break;
+            case "warmup":
+                warmupSeconds = Integer.parseInt(value);
+                break;
+            case "files":
+                files = Integer.parseInt(value);
+                break;
+            case "file-size":
+                fileSize = Integer.parseInt(value);
+                break;
+            case "mix":
+                mix = value;
+                break;
+            case "stream":
+                stream = Boolean.parseBoolean(value);
+                break;
+            case "prefix":
+                prefix = value;
+                break;
+            default:
+                System.err.println("Unknown option --" + name);
+        }
+    }
+
+    private void run() throws Exception {
+        parseMix();
+        // names are prefix + 5 digits, the server allows 11 bytes
+        if (prefix.isEmpty() || prefix.length() > 5)
+            throw new IllegalArgumentException("Prefix must be 1 to 5 characters.");
+        if (files < 1 || files > 89_999 || concurrency < 1 || concurrency > 9_999 || fileSize < 0)
+            throw new IllegalArgumentException("Need 1-89999 files, a concurrency of 1-9999 and a file size of 0 or more.");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+        content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+
+        ClientConfig config = new ClientConfig();
+        config.setHost(host);
+        config.setPort(port);
+        config.setConnections(connections);
+        config.setPipelineDepth(pipeline);
+        try (AsyncFileClient client = new AsyncFileClient(config)) {
+            System.out.println("Preparing " + files + " files of " + fileSize + " bytes on " + host + ":" + port);
+            prepare(client);
+            System.out.println("Running " + mix + " with " + concurrency + " requests outstanding over " + connections
+                    + " connections for " + warmupSeconds + "s warmup + " + durationSeconds + "s");
+            Thread dispatcher = new Thread(() -> dispatch(client), "load-dispatcher");
+            dispatcher.start();
+
+            long start = System.nanoTime();
+            long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+            measureStart = warmupEnd;
+            long lastCount = 0;
+            for (int second = 1; System.nanoTime() < end; second++) {
+                long next = start + TimeUnit.SECONDS.toNanos(second);
+                long sleep = Math.min(next, end) - System.nanoTime();
+                if (sleep > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                long count = completed.sum();
+                System.out.printf("%3ds %10d ops/s%s%n", second, count - lastCount, second <= warmupSeconds ? " (warmup)" : "");
+                lastCount = count;
+            }
+            measureEnd = System.nanoTime();
+            running = false;
+            dispatcher.join();
+            report(measureEnd - measureStart);
+            cleanup(client);
+        }
+    }
+
+    private void parseMix() {
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split(":");
+            int op = indexOf(pair[0].trim());
+            if (op < 0 || pair.length != 2)
+                throw new IllegalArgumentException("Bad --mix entry '" + part + "', expected op:weight with op one of "
+                        + String.join(", ", OPERATIONS));
+            weights[op] += Integer.parseInt(pair[1].trim());
+        }
+        for (int weight : weights)
+            totalWeight += weight;
+        if (totalWeight <= 0)
+            throw new IllegalArgumentException("--mix needs a positive weight");
+    }
+
+    private static int indexOf(String operation) {
+        for (int i = 0; i < OPERATIONS.length; i++)
+            if (OPERATIONS[i].equals(operation))
+                return i;
+        return -1;
+    }
+
+    // creates the files, those left over from an earlier run are reused, and gives them their content
+    private void prepare(AsyncFileClient client) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            String name = fileName(i);
+            writes.add(client.create(name)
+                    .exceptionally(e -> {
+                        if (!(unwrap(e) instanceof FileServerException))
+                            throw new CompletionException(unwrap(e));
+                        return null; // already there
+                    })
+                    .thenCompose(v -> client.write(name, content)));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void cleanup(AsyncFileClient client) {
+        List<CompletableFuture<Void>> deletes = new ArrayList<>(files);
+        for (int i = 0; i < files; i++)
+            deletes.add(client.delete(fileName(i)));
+        try {
+            CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            System.err.println("Cleanup failed: " + unwrap(e).getMessage());
+        }
+    }
+
+    // keeps concurrency requests outstanding until the run ends, then waits for the last ones
+    private void dispatch(AsyncFileClient client) {
+        Semaphore outstanding = new Semaphore(concurrency);
+        try {
+            while (running) {
+                outstanding.acquire();
+                int op = pickOperation();
+                long start = System.nanoTime();
+                issue(client, op).whenComplete((result, error) -> {
+                    long now = System.nanoTime();
+                    if (error != null) {
+                        errors[op].increment();
+                        firstError.compareAndSet(null, OPERATIONS[op] + ": " + unwrap(error).getMessage());
+                    } else if (start >= measureStart && now <= measureEnd) {
+                        histograms[op].record(now - start);
+                        overall.record(now - start);
+                    }
+                    completed.increment();
+                    outstanding.release();
+                });
+            }
+            outstanding.acquire(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int pickOperation() {
+        int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            ticket -= weights[i];
+            if (ticket < 0)
+                return i;
+        }
+        return OPERATIONS.length - 1;
+    }
+
+    private CompletableFuture<?> issue(AsyncFileClient client, int op) {
+        String name = fileName(ThreadLocalRandom.current().nextInt(files));
+        switch (OPERATIONS[op]) {
+            case "read":
+                return stream ? client.read(name, OutputStream.nullOutputStream()) : client.read(name);
+            case "write":
+                return client.write(name, content);
+            case "list":
+                return client.list();
+            default: // churn, fewer than 10000 are ever outstanding so the names don't collide
+                String fresh = prefix + String.format("%05d", 90_000 + churnCounter.getAndIncrement() % 10_000);
+                return client.create(fresh).thenCompose(v -> client.delete(fresh));
+        }
+    }
+
+    private void report(long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println();
+        System.out.printf("%-6s %10s %10s %7s  %s%n", "op", "count", "ops/s", "errors", "latency");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (weights[i] == 0)
+                continue;
+            System.out.printf("%-6s %10d %10.0f %7d  %s%n", OPERATIONS[i], histograms[i].getCount(),
+                    histograms[i].getCount() / seconds, errors[i].sum(), histograms[i].summary());
+        }
+        long errorCount = 0;
+        for (LongAdder e : errors)
+            errorCount += e.sum();
+        System.out.printf("%-6s %10d %10.0f %7d  %s%n", "total", overall.getCount(), overall.getCount() / seconds,
+                errorCount, overall.summary());
+        if (firstError.get() != null)
+            System.out.println("First error: " + firstError.get());
+    }
+
+    // the generator's files are prefix + 0..files-1, churn uses 90000 and up
+    private String fileName(int index) {
+        return prefix + String.format("%05d", index);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        return e;
+    }
+}
@@ -0,0 +1,66 @@
+package ca.concordia.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// The server's binary framing (see ca.concordia.server.BinaryProtocolHandler), which a connection switches to
+// with the text line "BINARY":
+//
+// Request:  [byte opcode][int requestId][unsigned short nameLength][name, UTF-8][long payloadLength][payload]
+// Response: [byte status][int requestId][long payloadLength][payload]
+//
+// Frames on one connection are answered in the order they were sent, so a client can send many before
+// reading any reply.
+final class Protocol {
+
+    static final byte OP_CREATE = 1;
+    static final byte OP_WRITE = 2;
+    static final byte OP_READ = 3;
+    static final byte OP_DELETE = 4;
+    static final byte OP_LIST = 5;
+    static final byte OP_QUIT = 6;
+    static final byte OP_WRITE_AT = 7;
+    static final byte OP_APPEND = 8;
+    static final byte OP_TRUNCATE = 9;
+    static final byte OP_READ_RANGE = 10;
+
+    static final byte STATUS_OK = 0;
+
+    static final int MAX_NAME_BYTES = 0xFFFF;
+
+    private static final String END = "<END>";
+
+    private Protocol() {
+    }
+
+    // sends BINARY and reads the text reply, which ends with an END line
+    static void switchToBinary(InputStream in, OutputStream out) throws IOException {
+        out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String first = null;
+        String line;
+        while ((line = readLine(in)) != null && !line.equals(END)) {
+            if (first == null)
+                first = line;
+        }
+        if (line == null)
+            throw new IOException("Connection closed during the binary handshake");
+        if (first == null || !first.startsWith("SUCCESS"))
+            throw new IOException("Server refused the binary protocol: " + first);
+    }
+
+    // one line straight off the stream, no read-ahead past it: binary frames follow
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n')
+                return line.toString();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package ca.concordia.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+// One frame and the future its reply completes. The payload is the header numbers (offset, size) followed by
+// either body bytes or bodyLength bytes of bodyStream. The reply payload is either collected into an array or,
+// with a sink, copied to it as it arrives; the future then carries the number of bytes copied.
+final class Request {
+
+    private static final byte[] NONE = new byte[0];
+
+    // array sizes the JVM allows
+    private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    final byte opcode;
+    final byte[] name;
+    private final byte[] header;
+    private final byte[] body;
+    private final InputStream bodyStream;
+    private final long bodyLength;
+    private final OutputStream sink;
+    final CompletableFuture<Object> future = new CompletableFuture<>();
+    int id; // set by the connection that sends it
+
+    private Request(byte opcode, String name, byte[] header, byte[] body, InputStream bodyStream, long bodyLength,
+                    OutputStream sink) {
+        this.opcode = opcode;
+        this.name = name == null ? NONE : name.getBytes(StandardCharsets.UTF_8);
+        this.header = header == null ? NONE : header;
+        this.body = body;
+        this.bodyStream = bodyStream;
+        this.bodyLength = body != null ? body.length : bodyLength;
+        this.sink = sink;
+    }
+
+    // a request whose reply payload is collected into a byte[]
+    static Request of(byte opcode, String name, byte[] header, byte[] body) {
+        return new Request(opcode, name, header, body, null, 0, null);
+    }
+
+    // a request whose body is read from a stream while it is sent
+    static Request streaming(byte opcode, String name, byte[] header, InputStream body, long length) {
+        return new Request(opcode, name, header, null, body, length, null);
+    }
+
+    // a request whose reply payload is copied to sink while it is received
+    static Request toSink(byte opcode, String name, byte[] header, OutputStream sink) {
+        return new Request(opcode, name, header, null, null, 0, sink);
+    }
+
+    // numbers at the front of a payload
+    static byte[] numbers(long... values) {
+        byte[] bytes = new byte[values.length * 8];
+        for (int i = 0; i < values.length; i++)
+            for (int b = 0; b < 8; b++)
+                bytes[i * 8 + b] = (byte) (values[i] >>> (56 - 8 * b));
+        return bytes;
+    }
+
+    // false when the frame can't be sent at all, the future is failed then
+    boolean validate() {
+        if (name.length > Protocol.MAX_NAME_BYTES) {
+            future.completeExceptionally(new IllegalArgumentException("File name longer than "
+                    + Protocol.MAX_NAME_BYTES + " bytes"));
+            return false;
+        }
+        if (bodyLength < 0) {
+            future.completeExceptionally(new IllegalArgumentException("Negative length " + bodyLength));
+            return false;
+        }
+        return true;
+    }
+
+    // A stream that ends early or fails leaves the frame unfinished: the IOException ends the connection.
+    void writeTo(DataOutputStream out, byte[] buffer) throws IOException {
+        out.writeByte(opcode);
+        out.writeInt(id);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeLong(header.length + bodyLength);
+        out.write(header);
+        if (body != null) {
+            out.write(body);
+            return;
+        }
+        long left = bodyLength;
+        while (left > 0) {
+            int n = bodyStream.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n < 0)
+                throw new EOFException("Stream ended " + left + " bytes before the length given for " + describe());
+            out.write(buffer, 0, n);
+            left -= n;
+        }
+    }
+
+    // Reads an OK reply's payload. Everything is always read, so the connection stays in step even when the
+    // sink fails or the payload is too large for an array; the request fails then.
+    void receive(DataInputStream in, long length, byte[] buffer) throws IOException {
+        if (sink == null && length <= MAX_ARRAY) {
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            future.complete(payload);
+            return;
+        }
+        IOException failure = sink == null
+                ? new IOException("Reply of " + length + " bytes doesn't fit in an array, read " + describe() + " into a stream")
+                : null;
+        long left = length;
+        while (left > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n < 0)
+                throw new EOFException("Connection closed in the middle of a reply");
+            left -= n;
+            if (failure != null)
+                continue;
+            try {
+                sink.write(buffer, 0, n);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            future.completeExceptionally(failure);
+        else
+            future.complete(length);
+    }
+
+    String describe() {
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,215 @@
+package ca.concordia.client;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.server.FileServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The client against a FileServer running in this JVM. The server is stopped and started again on the same
+// port and disk to break the client's connections.
+class AsyncFileClientTest {
+
+    @TempDir
+    Path dir;
+
+    private int port;
+    private FileServer server;
+    private Thread serverThread;
+    private final List<AsyncFileClient> clients = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        startServer();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        for (AsyncFileClient client : clients)
+            client.close();
+        stopServer();
+    }
+
+    @Test
+    void pipelinedRequestsCompleteInTheOrderTheyWereSent() throws Exception {
+        AsyncFileClient client = client(1, 16);
+        client.create("log").join();
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 200; i++) { // more than the pipeline depth, submit() waits for replies now and then
+            int n = i;
+            appends.add(client.append("log", (i + ",").getBytes(StandardCharsets.UTF_8))
+                    .thenRun(() -> completed.add(n)));
+            expected.append(i).append(',');
+        }
+        CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0])).join();
+
+        for (int i = 0; i < completed.size(); i++)
+            assertEquals(i, completed.get(i), "completion order");
+        assertEquals(expected.toString(), new String(client.read("log").join(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void aRefusedRequestFailsOnlyItsOwnFuture() throws Exception {
+        AsyncFileClient client = client(1, 8);
+        client.create("a").join();
+        CompletableFuture<byte[]> missing = client.read("missing");
+        CompletableFuture<Void> write = client.write("a", new byte[]{1, 2, 3});
+        CompletableFuture<Void> again = client.create("a");
+        CompletableFuture<byte[]> read = client.read("a");
+
+        FileServerException e = assertInstanceOf(FileServerException.class, cause(missing));
+        assertTrue(e.getMessage().startsWith("ERROR"), e.getMessage());
+        write.join();
+        assertInstanceOf(FileServerException.class, cause(again));
+        assertArrayEquals(new byte[]{1, 2, 3}, read.join(), "the connection went on after the errors");
+    }
+
+    @Test
+    void aBrokenConnectionFailsItsRequestsAndIsReplaced() throws Exception {
+        AsyncFileClient client = client(1, 8);
+        client.create("kept").join();
+        client.write("kept", "before".getBytes(StandardCharsets.UTF_8)).join();
+
+        // a stream write the sender is stuck in, and a request queued behind it
+        BlockingStream stuck = new BlockingStream();
+        CompletableFuture<Void> write = client.write("kept", stuck, 1000);
+        CompletableFuture<byte[]> queued = client.read("kept");
+        assertTrue(stuck.started.await(10, TimeUnit.SECONDS));
+        stopServer();
+
+        Throwable failed = cause(write);
+        assertInstanceOf(IOException.class, failed);
+        assertFalse(failed instanceof FileServerException, "the server didn't refuse it, the connection broke");
+        assertInstanceOf(IOException.class, cause(queued));
+        assertInstanceOf(IOException.class, cause(client.read("kept")), "nothing to connect to");
+
+        startServer();
+        assertArrayEquals("before".getBytes(StandardCharsets.UTF_8), client.read("kept").join(),
+                "a new connection, the half sent write never happened");
+    }
+
+    @Test
+    void closeWaitsForWhatWasSent() throws Exception {
+        AsyncFileClient client = client(3, 8);
+        client.create("f").join();
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            appends.add(client.append("f", new byte[]{(byte) i}));
+        client.close();
+
+        for (CompletableFuture<Void> append : appends)
+            assertTrue(append.isDone() && !append.isCompletedExceptionally(), "close() returned before a reply");
+        assertEquals(100, server.getFileSystem().readFile("f").length);
+        assertInstanceOf(IOException.class, cause(client.read("f")), "a request after close()");
+    }
+
+    @Test
+    void streamsMoveLargeFiles() throws Exception {
+        AsyncFileClient client = client(2, 8);
+        byte[] content = new byte[5 * 1024 * 1024 + 3];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i ^ (i >> 9));
+        client.create("big").join();
+        client.write("big", new ByteArrayInputStream(content), content.length).join();
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        assertEquals(content.length, client.read("big", sink).join());
+        assertArrayEquals(content, sink.toByteArray());
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        assertEquals(1000L, client.readRange("big", 4 * 1024 * 1024, 1000, range).join());
+        assertArrayEquals(Arrays.copyOfRange(content, 4 * 1024 * 1024, 4 * 1024 * 1024 + 1000),
+                range.toByteArray());
+        assertEquals(List.of("big"), client.list().join());
+    }
+
+    private AsyncFileClient client(int connections, int pipelineDepth) throws IOException {
+        ClientConfig config = new ClientConfig();
+        config.setPort(port);
+        config.setConnections(connections);
+        config.setPipelineDepth(pipelineDepth);
+        AsyncFileClient client = new AsyncFileClient(config);
+        clients.add(client);
+        return client;
+    }
+
+    private void startServer() throws Exception {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setMaxFiles(8);
+        server = new FileServer(port, dir.resolve("disk.dat").toString(), 32L * 1024 * 1024, config);
+        serverThread = new Thread(server::start, "file-server");
+        serverThread.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "the server didn't start");
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private void stopServer() throws Exception {
+        if (server == null)
+            return;
+        server.stop();
+        serverThread.join();
+        server = null;
+    }
+
+    private static Throwable cause(CompletableFuture<?> future) {
+        CompletionException e = assertThrows(CompletionException.class, future::join);
+        return e.getCause();
+    }
+
+    // the first read blocks until the sender thread is interrupted, which is how a broken connection stops it
+    private static final class BlockingStream extends InputStream {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        public int read() throws IOException {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return read();
+        }
+    }
+}
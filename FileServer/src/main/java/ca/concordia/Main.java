@@ -1,13 +1,156 @@
 package ca.concordia;
 
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.CachePolicy;
+import ca.concordia.filesystem.device.CacheWriteMode;
+import ca.concordia.filesystem.device.DeviceType;
+import ca.concordia.filesystem.device.SyncPolicy;
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.LogLevel;
+import ca.concordia.replication.ReplicationConfig;
+import ca.concordia.server.ExecutionModel;
 import ca.concordia.server.FileServer;
 
 public class Main {
+    // The original disk was 10 blocks of 128 bytes with its metadata in block 0. Wider FEntry records (format
+    // version 2 and up) need more metadata room, without --size the disk grows so the data blocks stay the same.
+    private static final int ORIGINAL_DATA_BLOCKS = 9;
+
     public static void main(String[] args) {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // defaults match the original server, every option can be overridden with --name=value
+        int port = 12345;
+        String diskName = "filesystem.dat";
+        Long totalSize = null; // set by --size, otherwise see ORIGINAL_DATA_BLOCKS
+        int shards = 1;
+        FileSystemConfig config = new FileSystemConfig();
+        ReplicationConfig replication = new ReplicationConfig();
+        ExecutionModel executionModel = ExecutionModel.THREAD_PER_CONNECTION;
+        Integer maxConnections = null;
+        Integer workerThreads = null;
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "disk":
+                    diskName = value;
+                    break;
+                case "size":
+                    totalSize = Long.valueOf(value);
+                    break;
+                case "shards":
+                    shards = Integer.parseInt(value);
+                    break;
+                case "block-size":
+                    config.setBlockSize(Integer.parseInt(value));
+                    break;
+                case "max-files":
+                    config.setMaxFiles(Integer.parseInt(value));
+                    break;
+                case "block-map":
+                    config.setBlockMapFormat(BlockMapFormat.valueOf(value.toUpperCase()));
+                    break;
+                case "device":
+                    config.setDeviceType(DeviceType.valueOf(value.toUpperCase()));
+                    break;
+                case "sync":
+                    config.setSyncPolicy(SyncPolicy.valueOf(value.toUpperCase()));
+                    break;
+                case "sync-interval":
+                    config.setSyncIntervalMillis(Long.parseLong(value));
+                    break;
+                case "scrub":
+                    config.setScrubFreedBlocks(Boolean.parseBoolean(value));
+                    break;
+                case "cache-blocks":
+                    config.setCacheBlocks(Integer.parseInt(value));
+                    break;
+                case "cache-policy":
+                    config.setCachePolicy(CachePolicy.valueOf(value.toUpperCase()));
+                    break;
+                case "cache-mode":
+                    config.setCacheWriteMode(CacheWriteMode.valueOf(value.toUpperCase().replace('-', '_')));
+                    break;
+                case "io-threads":
+                    config.setIoThreads(Integer.parseInt(value));
+                    break;
+                case "parallel-io-min":
+                    config.setParallelIoMinBytes(Integer.parseInt(value));
+                    break;
+                case "defrag-rate":
+                    config.setDefragBytesPerSecond(Long.parseLong(value));
+                    break;
+                case "defrag-threshold":
+                    config.setDefragThreshold(Double.parseDouble(value));
+                    break;
+                case "defrag-interval":
+                    config.setDefragIntervalMillis(Long.parseLong(value));
+                    break;
+                case "dedup":
+                    config.setDedup(Boolean.parseBoolean(value));
+                    break;
+                case "compress-chunk":
+                    config.setCompressionChunkSize(Integer.parseInt(value));
+                    break;
+                case "replication":
+                    replication.setRole(ReplicationConfig.Role.valueOf(value.toUpperCase()));
+                    break;
+                case "replication-port":
+                    replication.setReplicationPort(Integer.parseInt(value));
+                    break;
+                case "primary":
+                    replication.setPrimary(value);
+                    break;
+                case "replication-ack":
+                    replication.setAckMode(ReplicationConfig.AckMode.valueOf(value.toUpperCase()));
+                    break;
+                case "sync-replicas":
+                    replication.setSyncReplicas(Integer.parseInt(value));
+                    break;
+                case "sync-timeout":
+                    replication.setSyncTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "replication-log-bytes":
+                    replication.setLogBytes(Long.parseLong(value));
+                    break;
+                case "execution":
+                    executionModel = ExecutionModel.valueOf(value.toUpperCase());
+                    break;
+                case "max-connections":
+                    maxConnections = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    workerThreads = Integer.parseInt(value);
+                    break;
+                case "log-level":
+                    Log.setLevel(LogLevel.valueOf(value.toUpperCase()));
+                    break;
+                default:
+                    System.err.println("Ignoring unknown option --" + name);
+            }
+        }
+
+        if (totalSize == null)
+            totalSize = FileSystemManager.diskSizeFor(ORIGINAL_DATA_BLOCKS, config);
+        FileServer server = new FileServer(port, diskName, totalSize, shards, config, replication);
+        server.setExecutionModel(executionModel);
+        if (maxConnections != null)
+            server.setMaxConnections(maxConnections);
+        if (workerThreads != null)
+            server.setWorkerThreads(workerThreads);
         // Start the file server
         server.start();
     }
-}
\ No newline at end of file
+}
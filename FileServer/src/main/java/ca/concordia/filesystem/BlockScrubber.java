@@ -0,0 +1,148 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.ExtentList;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.metrics.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Background thread that zeroes the blocks of deleted files so deleteFile only has to change metadata.
+// Everything queued since the last pass is sorted and merged, so blocks freed by many deletes are zeroed
+// with a few large writes. A block stays out of the free bitmap until it is zeroed: the handler is only
+// called afterwards, and it is the one that journals the blocks as clean and gives them to the allocator.
+class BlockScrubber {
+
+    // how many bytes of zeros one device write covers at most
+    private static final int MAX_WRITE_BYTES = 1024 * 1024;
+
+    interface ScrubbedHandler {
+        void scrubbed(int[] blocks) throws IOException;
+    }
+
+    private final BlockDevice device;
+    private final int blockSize;
+    private final ScrubbedHandler handler;
+    private final LinkedBlockingQueue<int[]> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private final Object idleLock = new Object();
+    private long pendingBlocks; // guarded by idleLock
+    private volatile long scrubbedBlocks;
+    private volatile long scrubWrites;
+    private volatile boolean stopped;
+
+    BlockScrubber(BlockDevice device, int blockSize, ScrubbedHandler handler) {
+        this.device = device;
+        this.blockSize = blockSize;
+        this.handler = handler;
+        this.thread = new Thread(this::run, "fs-scrubber");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // queues freed blocks, they are zeroed and handed back to the allocator later
+    void submit(int[] blocks) {
+        if (blocks.length == 0)
+            return;
+        synchronized (idleLock) {
+            pendingBlocks += blocks.length;
+        }
+        queue.add(blocks);
+    }
+
+    long getPendingBlocks() {
+        synchronized (idleLock) {
+            return pendingBlocks;
+        }
+    }
+
+    long getScrubbedBlocks() {
+        return scrubbedBlocks;
+    }
+
+    // device writes used for zeroing, compared to scrubbedBlocks it shows how well runs were coalesced
+    long getScrubWrites() {
+        return scrubWrites;
+    }
+
+    // waits until everything submitted so far is scrubbed, used when the allocator runs short of free blocks
+    void awaitIdle() throws InterruptedException {
+        synchronized (idleLock) {
+            while (pendingBlocks > 0 && !stopped)
+                idleLock.wait();
+        }
+    }
+
+    // Stops after the pass in progress. Blocks still queued keep their scrub-pending mark on disk and are
+    // scrubbed after the next mount. The thread is not interrupted, that would close a FileChannel mid write.
+    void stop() {
+        stopped = true;
+        queue.add(new int[0]); // wakes the thread up
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+
+    private void run() {
+        byte[] zeros = new byte[Math.max(blockSize, MAX_WRITE_BYTES / blockSize * blockSize)];
+        while (!stopped) {
+            List<int[]> batches = new ArrayList<>();
+            try {
+                batches.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batches);
+            if (batches.size() == 1 && batches.get(0).length == 0)
+                continue; // only the wake up from stop()
+
+            int count = 0;
+            for (int[] batch : batches)
+                count += batch.length;
+            int[] blocks = new int[count];
+            int index = 0;
+            for (int[] batch : batches) {
+                System.arraycopy(batch, 0, blocks, index, batch.length);
+                index += batch.length;
+            }
+            Arrays.sort(blocks);
+
+            try {
+                ExtentList runs = ExtentList.fromBlocks(blocks);
+                for (int i = 0; i < runs.size(); i++) {
+                    long position = (long) runs.getStart(i) * blockSize;
+                    long remaining = (long) runs.getLength(i) * blockSize;
+                    while (remaining > 0) {
+                        int bytes = (int) Math.min(zeros.length, remaining);
+                        device.write(position, zeros, 0, bytes);
+                        scrubWrites++;
+                        position += bytes;
+                        remaining -= bytes;
+                    }
+                }
+                handler.scrubbed(blocks);
+                scrubbedBlocks += blocks.length;
+            } catch (IOException e) {
+                // the blocks keep their mark and are retried after the next mount
+                Log.error("Scrubbing " + blocks.length + " blocks failed", e);
+            }
+
+            synchronized (idleLock) {
+                pendingBlocks -= count;
+                idleLock.notifyAll();
+            }
+        }
+    }
+}
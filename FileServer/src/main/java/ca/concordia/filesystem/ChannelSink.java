@@ -0,0 +1,14 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+// A FileSink that takes the data as regions of the disk file instead of heap buffers. When the disk file
+// holds the current data (no write-back cache in front of it) FileSystemManager hands over every run of
+// contiguous blocks with one transfer() call, which can go to a socket with FileChannel.transferTo and
+// never be copied into the Java heap. Otherwise the data still arrives through write().
+// Like write(), transfer() runs while the blocks are pinned and must be done with the region when it returns.
+public interface ChannelSink extends FileSink {
+
+    void transfer(FileChannel disk, long position, long count) throws IOException;
+}
@@ -0,0 +1,131 @@
+package ca.concordia.filesystem;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Block reference counts and the content fingerprint index of dedup mode, see FileSystemConfig.setDedup.
+// A used block has one owner unless shares says otherwise: shares[b] counts the references beyond the first,
+// so a file giving up a block only frees it when nobody else (no other file, no other position of the same
+// file) still points at it. The fingerprint index maps the SHA-256 of a full block, cut to 128 bits, to a block
+// holding that content. It only knows blocks written since mount and a block leaves it before it is freed or
+// written in place, so an entry never hands out changed data; whatever it doesn't know only costs a missed dedup.
+// Not thread safe, FileSystemManager calls everything but fingerprint() under its allocator lock.
+class DedupIndex {
+
+    // 128 bits of the SHA-256 of a block's content
+    static final class Fingerprint {
+        private final long high;
+        private final long low;
+
+        Fingerprint(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint))
+                return false;
+            Fingerprint other = (Fingerprint) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high); // already uniformly distributed
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this JVM", e);
+        }
+    });
+
+    private final int[] shares;
+    private final Fingerprint[] fingerprints; // fingerprint of each indexed block, null when not fingerprinting
+    private final Map<Fingerprint, Integer> blocksByFingerprint = new HashMap<>();
+    private long sharedReferences; // sum of shares: blocks the files would take up more without dedup
+
+    // Without fingerprinting only the reference counts are kept, for a disk with shared blocks mounted
+    // without dedup: new writes aren't deduplicated but deletes still leave the shared blocks alone.
+    DedupIndex(int maxBlocks, boolean fingerprinting) {
+        this.shares = new int[maxBlocks];
+        this.fingerprints = fingerprinting ? new Fingerprint[maxBlocks] : null;
+    }
+
+    boolean isFingerprinting() {
+        return fingerprints != null;
+    }
+
+    // thread safe, runs before the allocator lock is taken
+    static Fingerprint fingerprint(byte[] data, int offset, int length) {
+        MessageDigest sha = SHA_256.get();
+        sha.update(data, offset, length);
+        ByteBuffer digest = ByteBuffer.wrap(sha.digest());
+        return new Fingerprint(digest.getLong(), digest.getLong());
+    }
+
+    // a block holding this content, with one more reference taken on it, or -1 when the content isn't indexed
+    int reuse(Fingerprint fingerprint) {
+        Integer block = blocksByFingerprint.get(fingerprint);
+        if (block == null)
+            return -1;
+        addReference(block);
+        return block;
+    }
+
+    void addReference(int block) {
+        shares[block]++;
+        sharedReferences++;
+    }
+
+    // drops one reference, true when it was the last one and the block may be freed
+    boolean dropReference(int block) {
+        if (shares[block] > 0) {
+            shares[block]--;
+            sharedReferences--;
+            return false;
+        }
+        forget(block);
+        return true;
+    }
+
+    boolean isShared(int block) {
+        return shares[block] > 0;
+    }
+
+    // records the content of a block once its owner is journaled, unless another block already has it
+    void index(int block, Fingerprint fingerprint) {
+        if (fingerprints != null && blocksByFingerprint.putIfAbsent(fingerprint, block) == null)
+            fingerprints[block] = fingerprint;
+    }
+
+    // the block is about to be written in place or freed, it must not be handed out for its old content
+    void forget(int block) {
+        if (fingerprints == null || fingerprints[block] == null)
+            return;
+        blocksByFingerprint.remove(fingerprints[block]);
+        fingerprints[block] = null;
+    }
+
+    // the block went back to the allocator, e.g. after a failed write took references on its own new blocks
+    void freed(int block) {
+        sharedReferences -= shares[block];
+        shares[block] = 0;
+        forget(block);
+    }
+
+    long getSharedReferences() {
+        return sharedReferences;
+    }
+
+    int getIndexedBlocks() {
+        return blocksByFingerprint.size();
+    }
+}
@@ -0,0 +1,117 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.metrics.Log;
+
+// Background thread that moves fragmented files into contiguous runs while the server keeps running.
+// Every interval it measures fragmentation and, when the file score is at or above the threshold, relocates
+// the worst files one after the other with FileSystemManager.defragmentFile. A file is moved a step at a time
+// and only that step holds the file's write lock, so readers wait at most for one step.
+// The copying is held to an I/O budget: before each step the thread waits until the bytes it is about to read
+// and write fit in bytesPerSecond.
+class Defragmenter {
+
+    // largest part of a file moved under one write lock
+    private static final int MAX_STEP_BYTES = 1024 * 1024;
+
+    // asked before each step, false abandons the relocation (the moved part stays where it is)
+    interface Throttle {
+        boolean spend(long bytes);
+    }
+
+    private final FileSystemManager fs;
+    private final long bytesPerSecond;
+    private final double threshold;
+    private final long intervalMillis;
+    private final Thread thread;
+
+    private final Object wakeup = new Object();
+    private long nextSlotNanos; // when the budget allows the next byte, only used by the thread
+    private volatile boolean stopped;
+
+    Defragmenter(FileSystemManager fs, long bytesPerSecond, double threshold, long intervalMillis) {
+        this.fs = fs;
+        this.bytesPerSecond = bytesPerSecond;
+        this.threshold = threshold;
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this::run, "fs-defrag");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Stops after the step in progress. The thread is not interrupted, that would close a FileChannel mid copy.
+    void stop() {
+        stopped = true;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // steps never take more than about a second of budget, so a slow budget still moves in small pieces
+    int stepBytes() {
+        return (int) Math.max(1, Math.min(MAX_STEP_BYTES, bytesPerSecond));
+    }
+
+    private void run() {
+        while (!stopped) {
+            if (!pause(intervalMillis * 1_000_000L))
+                return;
+            try {
+                FragmentationReport report = fs.getFragmentation();
+                if (report.getFragmentedFiles() == 0 || report.getFileScore() < threshold)
+                    continue;
+                if (Log.isDebugEnabled())
+                    Log.debug("Defragmenting, " + report);
+                int moved = 0;
+                for (String filename : report.getWorstFiles()) {
+                    if (stopped)
+                        return;
+                    try {
+                        if (fs.defragmentFile(filename, stepBytes(), this::spend))
+                            moved++;
+                    } catch (Exception e) {
+                        // deleted or rewritten meanwhile, or no room for a contiguous copy, the next pass retries
+                        if (Log.isDebugEnabled())
+                            Log.debug("Defragmenting " + filename + " skipped: " + e.getMessage());
+                    }
+                }
+                if (moved > 0)
+                    Log.info("Defragmented " + moved + " files, " + fs.getFragmentation());
+            } catch (Exception e) {
+                Log.error("Defragmentation pass failed", e);
+            }
+        }
+    }
+
+    private boolean spend(long bytes) {
+        long now = System.nanoTime();
+        if (nextSlotNanos < now)
+            nextSlotNanos = now; // budget not used while idle is not saved up
+        long wait = nextSlotNanos - now;
+        nextSlotNanos += bytes * 1_000_000_000L / bytesPerSecond;
+        return wait <= 0 ? !stopped : pause(wait);
+    }
+
+    // sleeps for the given time unless stop() is called, false when stopped
+    private boolean pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        synchronized (wakeup) {
+            long left;
+            while (!stopped && (left = deadline - System.nanoTime()) > 0) {
+                try {
+                    wakeup.wait(Math.max(1, left / 1_000_000));
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return !stopped;
+    }
+}
@@ -0,0 +1,13 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+
+// Receives a file's contents from FileSystemManager.readFile(String, FileSink): first its size, then the data in
+// block sized chunks, in order. The file isn't locked meanwhile, its blocks are pinned (see ReadPins).
+// Chunks point into a buffer that is reused, so they must be consumed before write() returns.
+public interface FileSink {
+
+    void begin(long size) throws IOException;
+
+    void write(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,201 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.CachePolicy;
+import ca.concordia.filesystem.device.CacheWriteMode;
+import ca.concordia.filesystem.device.DeviceType;
+import ca.concordia.filesystem.device.SyncPolicy;
+
+// Tunables of a FileSystemManager. The defaults behave like the original file system:
+// 128 byte blocks, 5 files, positional I/O on the disk file and every command durable before it returns.
+// Its 10 block disk no longer fits the wider metadata of the current format in block 0 (2 blocks, 8 left for
+// data), Main's default disk is sized with FileSystemManager.diskSizeFor to keep the original 9 data blocks.
+// Block size and file count only apply when a new disk is formatted, an existing disk keeps the
+// geometry recorded in its superblock.
+public class FileSystemConfig {
+
+    private int blockSize = 128;
+    private int maxFiles = 5;
+
+    private BlockMapFormat blockMapFormat = BlockMapFormat.CHAINED; // format used for files written from now on
+    private DeviceType deviceType = DeviceType.FILE_CHANNEL;
+    private SyncPolicy syncPolicy = SyncPolicy.PER_OP;
+    private long syncIntervalMillis = 1000; // only used by SyncPolicy.PERIODIC
+
+    private boolean scrubFreedBlocks = true; // zero the blocks of deleted files (in the background)
+
+    private int cacheBlocks = 1024; // 0 turns the block cache off
+    private CachePolicy cachePolicy = CachePolicy.CLOCK;
+    private CacheWriteMode cacheWriteMode = CacheWriteMode.WRITE_THROUGH;
+
+    private int ioThreads = 0; // threads that split up large reads and writes, 0 keeps every transfer on the caller
+    private int parallelIoMinBytes = 1024 * 1024; // smaller transfers always run on the caller
+
+    private long defragBytesPerSecond = 0; // I/O budget of the background defragmenter, 0 turns it off
+    private double defragThreshold = 20; // file fragmentation score (percent) that starts a defragmentation pass
+    private long defragIntervalMillis = 60_000; // how often the defragmenter measures fragmentation
+
+    private boolean dedup = false; // whole-file writes share blocks whose content is already on disk
+
+    private int compressionChunkSize = 16 * 1024; // original bytes per frame of a compressed file
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 64)
+            throw new IllegalArgumentException("Block size must be at least 64 bytes.");
+        this.blockSize = blockSize;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public void setMaxFiles(int maxFiles) {
+        if (maxFiles <= 0)
+            throw new IllegalArgumentException("Max files must be positive.");
+        this.maxFiles = maxFiles;
+    }
+
+    public BlockMapFormat getBlockMapFormat() {
+        return blockMapFormat;
+    }
+
+    public void setBlockMapFormat(BlockMapFormat blockMapFormat) {
+        this.blockMapFormat = blockMapFormat;
+    }
+
+    public DeviceType getDeviceType() {
+        return deviceType;
+    }
+
+    public void setDeviceType(DeviceType deviceType) {
+        this.deviceType = deviceType;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public void setSyncIntervalMillis(long syncIntervalMillis) {
+        if (syncIntervalMillis <= 0)
+            throw new IllegalArgumentException("Sync interval must be positive.");
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    public boolean isScrubFreedBlocks() {
+        return scrubFreedBlocks;
+    }
+
+    public void setScrubFreedBlocks(boolean scrubFreedBlocks) {
+        this.scrubFreedBlocks = scrubFreedBlocks;
+    }
+
+    public int getCacheBlocks() {
+        return cacheBlocks;
+    }
+
+    public void setCacheBlocks(int cacheBlocks) {
+        if (cacheBlocks < 0)
+            throw new IllegalArgumentException("Cache size can not be negative.");
+        this.cacheBlocks = cacheBlocks;
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    public CacheWriteMode getCacheWriteMode() {
+        return cacheWriteMode;
+    }
+
+    public void setCacheWriteMode(CacheWriteMode cacheWriteMode) {
+        this.cacheWriteMode = cacheWriteMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads < 0)
+            throw new IllegalArgumentException("I/O threads must not be negative.");
+        this.ioThreads = ioThreads;
+    }
+
+    public int getParallelIoMinBytes() {
+        return parallelIoMinBytes;
+    }
+
+    public void setParallelIoMinBytes(int parallelIoMinBytes) {
+        if (parallelIoMinBytes <= 0)
+            throw new IllegalArgumentException("Parallel I/O threshold must be positive.");
+        this.parallelIoMinBytes = parallelIoMinBytes;
+    }
+
+    public long getDefragBytesPerSecond() {
+        return defragBytesPerSecond;
+    }
+
+    public void setDefragBytesPerSecond(long defragBytesPerSecond) {
+        if (defragBytesPerSecond < 0)
+            throw new IllegalArgumentException("Defragmentation rate must not be negative.");
+        this.defragBytesPerSecond = defragBytesPerSecond;
+    }
+
+    public double getDefragThreshold() {
+        return defragThreshold;
+    }
+
+    public void setDefragThreshold(double defragThreshold) {
+        if (defragThreshold < 0 || defragThreshold > 100)
+            throw new IllegalArgumentException("Defragmentation threshold must be between 0 and 100.");
+        this.defragThreshold = defragThreshold;
+    }
+
+    public long getDefragIntervalMillis() {
+        return defragIntervalMillis;
+    }
+
+    public void setDefragIntervalMillis(long defragIntervalMillis) {
+        if (defragIntervalMillis <= 0)
+            throw new IllegalArgumentException("Defragmentation interval must be positive.");
+        this.defragIntervalMillis = defragIntervalMillis;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    // Content addressed dedup of whole-file writes. Deduplicated files always use the EXTENTS block map,
+    // a block can't be on two FNode chains.
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    public int getCompressionChunkSize() {
+        return compressionChunkSize;
+    }
+
+    // Files turned to compressed from now on are cut into chunks of this size, each deflated on its own.
+    // Larger chunks compress better, smaller ones make ranged reads inflate less. Existing files keep theirs.
+    public void setCompressionChunkSize(int compressionChunkSize) {
+        if (compressionChunkSize < 1024 || compressionChunkSize > 16 * 1024 * 1024)
+            throw new IllegalArgumentException("Compression chunk size must be between 1KB and 16MB.");
+        this.compressionChunkSize = compressionChunkSize;
+    }
+}
@@ -1,290 +1,2305 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.datastructures.ExtentList;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
-
+import ca.concordia.filesystem.datastructures.FrameTable;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.filesystem.device.CacheWriteMode;
+import ca.concordia.filesystem.device.CachedBlockDevice;
+import ca.concordia.filesystem.device.CountingBlockDevice;
+import ca.concordia.filesystem.device.SyncPolicy;
+import ca.concordia.metrics.Jmx;
+import ca.concordia.metrics.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import javax.management.ObjectName;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FileSystemManager {
 
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-    private final int FENTRYSIZE = 15;
-    private final int FNODESIZE = 4;
+    private static final int LEGACY_FENTRYSIZE = 15; // FEntry size of version 1 and of pre-superblock disks
+    private static final int FNODESIZE = 4;
 
-    private/*final*/  static FileSystemManager instance;
-    private /*final*/ RandomAccessFile disk;
-    private final ReentrantLock globalLock = new ReentrantLock();
+    // geometry of the original file system, still used to mount disks formatted before the superblock existed
+    private static final int LEGACY_BLOCK_SIZE = 128;
+    private static final int LEGACY_MAXBLOCKS = 10;
+    private static final int LEGACY_MAXFILES = 5;
+
+    // Geometry, read from the superblock of an existing disk or taken from the config for a new one.
+    // Metadata region at the start of the disk: superblock, maxFiles FEntry records, then one FNode per data block.
+    private int blockSize;
+    private int maxBlocks;
+    private int maxFiles;
+    private int metadataBlocks;
+    private int formatVersion; // on-disk format, see Superblock. Version 1 disks keep short sizes and pointers
+
+    // largest chunk moved per device call when streaming a file in or out
+    private static final int STREAM_CHUNK_BLOCKS = 16;
+
+    // once the journal grows past this many bytes the tables are checkpointed into the metadata region
+    private static final long CHECKPOINT_THRESHOLD = 64 * 1024;
+
+    // a streamed ranged write up to this size is read into memory instead of staged on disk, see writeStreamedRange
+    private static final int STAGE_IN_MEMORY_BYTES = 64 * 1024;
+
+    // number of striped per-file locks, files whose names hash to different stripes can be written in parallel
+    private static final int LOCK_STRIPES = 64;
 
-    private static final int BLOCK_SIZE = 128; // Example block size
+    private static final Set<String> openDisks = new HashSet<>(); // disk files mounted in this JVM, guarded by the class
+    private final String diskPath; // this manager's entry in openDisks
+    private /*final*/ RandomAccessFile disk;
+    private /*final*/ BlockDevice device; // positional or memory mapped I/O, no shared seek pointer between client threads
+    private /*final*/ CachedBlockDevice cache; // same object as device when the block cache is on, otherwise null
+    private /*final*/ MetadataJournal journal;
+    private final FileSystemConfig config;
+    private Thread syncThread; // background journal flusher for SyncPolicy.PERIODIC
+    private BlockScrubber scrubber; // zeroes the blocks of deleted files, null when scrubbing is off
+    private ParallelIo parallelIo; // splits up large transfers, null when config.getIoThreads() is 0
+    private Defragmenter defragmenter; // moves fragmented files into contiguous runs, null when it has no I/O budget
+    private DedupIndex dedup; // block reference counts and fingerprints, null unless dedup is on or blocks are shared
+    private final ReadPins pins = new ReadPins(); // blocks given up while reads into a FileSink still send them
+    private FileSystemStats stats;
+    private ObjectName mbeanName;
+    private volatile boolean closed;
+    private boolean formatting; // the disk file is new and its metadata isn't written yet
+
+    // Lock order (always taken in this order, never the other way around):
+    //   file stripe lock -> namespaceLock -> allocatorLock
+    private final ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock(); // guards inodeTable names/slots
+    private final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[LOCK_STRIPES]; // guards file contents
+    private final ReentrantLock allocatorLock = new ReentrantLock(); // guards freeBlockList, FNode ownership and dedup
 
     private FEntry[] inodeTable; // Array of inodes
-    private boolean[] freeBlockList; // Bitmap for free blocks
+    private BlockBitmap freeBlockList; // Bitmap for free blocks
     private FNode[] fnodeTable;
 
-    public FileSystemManager(String filename, int totalSize) {
-        // Initialize the file system manager with a file
-        if(instance == null) {
-            //TODO Initialize the file system
-            initializeFileSystem(filename,totalSize);
-            instance = this;
-        } else {
-            throw new IllegalStateException("FileSystemManager is already initialized.");
+    // filename -> inodeTable slot, and a stack of free slots, so create/lookup/delete don't scan the table
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    // Bytes of a new disk with dataBlocks data blocks in the current format, whatever room its metadata needs
+    public static long diskSizeFor(int dataBlocks, FileSystemConfig config) {
+        int blocks = dataBlocks + 1;
+        while (new Superblock(Superblock.CURRENT_VERSION, config.getBlockSize(), blocks, config.getMaxFiles())
+                .metadataBlocks(FNODESIZE) + dataBlocks > blocks)
+            blocks++;
+        return (long) blocks * config.getBlockSize();
+    }
+
+    public static FileSystemManager mount(String filename, long totalSize) {
+        return mount(filename, totalSize, new FileSystemConfig());
+    }
+
+    // Mounts the disk file, formatting it when it is new. The manager is fully set up before anything can
+    // see it: the background threads (journal sync, scrubber, defragmenter) and the JMX bean start last.
+    // A disk that can't be mounted throws, with whatever was opened for it closed again and no checkpoint
+    // written over it, so the same file can be mounted again once the problem is fixed.
+    public static FileSystemManager mount(String filename, long totalSize, FileSystemConfig config) {
+        FileSystemManager fs = new FileSystemManager(filename, config);
+        try {
+            fs.initializeFileSystem(filename, totalSize);
+            fs.startBackgroundWork(filename);
+        } catch (RuntimeException e) {
+            fs.closed = true;
+            fs.stopBackgroundWork();
+            try {
+                if (fs.formatting)
+                    fs.disk.setLength(0); // empty again, so the next mount formats it instead of taking it for a legacy disk
+                fs.closeFiles();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
         }
+        return fs;
+    }
 
+    private FileSystemManager(String filename, FileSystemConfig config) {
+        this.config = config;
+        // any number of managers can run side by side (see VolumeManager), but two on one disk file
+        // would overwrite each other's metadata
+        diskPath = new File(filename).getAbsoluteFile().toPath().normalize().toString();
+        synchronized (FileSystemManager.class) {
+            if (!openDisks.add(diskPath))
+                throw new IllegalStateException("ERROR: " + filename + " is already mounted.");
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            fileLocks[i] = new ReentrantReadWriteLock();
     }
 
-    private void initializeFileSystem(String filename, int totalSize){
-        try{
-            inodeTable = new FEntry[MAXFILES];
-            fnodeTable= new FNode[MAXBLOCKS];
-            freeBlockList= new boolean[MAXBLOCKS];
+    private void initializeFileSystem(String filename, long totalSize) {
+        try {
             disk = new RandomAccessFile(filename,"rw");
+            boolean newDisk = disk.length()==0;
+
+            Superblock superblock;
+            boolean legacy = false;
+            if (newDisk) {
+                superblock = new Superblock(Superblock.CURRENT_VERSION, config.getBlockSize(),
+                        (int) Math.min(totalSize / config.getBlockSize(), Integer.MAX_VALUE), config.getMaxFiles());
+            } else {
+                byte[] header = new byte[Superblock.MAX_SIZE];
+                disk.getChannel().read(ByteBuffer.wrap(header), 0);
+                superblock = Superblock.readFrom(ByteBuffer.wrap(header));
+                if (superblock == null) {
+                    superblock = new Superblock(Superblock.VERSION_1, LEGACY_BLOCK_SIZE, LEGACY_MAXBLOCKS, LEGACY_MAXFILES);
+                    legacy = true;
+                }
+            }
+            setGeometry(superblock);
+
+            if(newDisk) {
+                formatting = true;
+                disk.setLength((long) maxBlocks * blockSize); //creates new disk with specified size if new file system
+            }
+
+            CountingBlockDevice counted = new CountingBlockDevice(BlockDevice.open(config.getDeviceType(), disk.getChannel()));
+            device = counted;
+            if (config.getCacheBlocks() > 0) {
+                cache = new CachedBlockDevice(device, blockSize, config.getCacheBlocks(),
+                        config.getCachePolicy(), config.getCacheWriteMode());
+                device = cache;
+            }
+            if (config.getIoThreads() > 0)
+                parallelIo = new ParallelIo(device, blockSize, config.getIoThreads());
+            journal = new MetadataJournal(filename + ".journal", device);
+            stats = new FileSystemStats(this, counted, journal, cache);
 
-            Arrays.fill(freeBlockList,true);   //make the whole bitmap true indicating that all blocks are free
+            inodeTable = new FEntry[maxFiles];
+            fnodeTable= new FNode[maxBlocks];
+            freeBlockList= new BlockBitmap(maxBlocks);   //all blocks start free
 
-            for(int i =0; i<MAXFILES;i++)
+            for(int i =0; i<maxFiles;i++)
                 inodeTable[i]= new FEntry();
 
-            for(int i=0;i<MAXBLOCKS;i++){
+            for(int i=0;i<maxBlocks;i++){
                 fnodeTable[i]= new FNode(-i); //initalize FNode list showing all  blocks  free
             }
 
-            freeBlockList[0]=false;//first block holds FEntry and FNode
+            for(int i=0;i<metadataBlocks;i++)
+                freeBlockList.setUsed(i);//first blocks hold the superblock, FEntry and FNode
 
-            if(disk.length()==0){
+            if(newDisk){
 
-                disk.setLength(totalSize); //creates new disk with specified size if new file system
-                System.out.println("New file system created: " + filename);
+                writeMetadata();
+                journal.reset(); // a journal left over from an older disk does not belong to this one
+                formatting = false;
+                rebuildIndexes();
+                rebuildReferences();
+                Log.info("New file system created: " + filename + " (" + maxBlocks + " blocks of "
+                        + blockSize + " bytes, " + maxFiles + " files)");
 
             }
-            else{ //if already exist it just opens it again, doesnt change disk
-                System.out.println("Loaded existing file system: " + filename);
+            else{ //if already exist it loads the last checkpoint and replays the journal tail on top of it
+                if (legacy)
+                    readLegacyMetadata();
+                else
+                    readMetadata();
+                List<byte[]> records = journal.replay();
+                for (byte[] record : records)
+                    MetadataDelta.apply(record, formatVersion, inodeTable, fnodeTable);
+
+                for(int i=metadataBlocks;i<maxBlocks;i++) {
+                    if (fnodeTable[i].isUsed()) {
+                        freeBlockList.setUsed(i);
+                    } else if (fnodeTable[i].isScrubPending()) {
+                        if (config.isScrubFreedBlocks())
+                            freeBlockList.setUsed(i); // deleted before a crash or shutdown, scrubbed below
+                        else
+                            fnodeTable[i].setNext(-1);
+                    }
+                }
+                rebuildIndexes();
+                rebuildReferences();
+
+                if (!records.isEmpty())
+                    checkpoint(); // compact the replayed tail so the next start is fast again
+
+                if (formatVersion < Superblock.CURRENT_VERSION && upgradeFormat(filename)) {
+                    Log.info("Upgraded " + filename + " to format version " + formatVersion);
+                } else if (legacy) {
+                    Log.info("Upgrading " + filename + " to the superblock format");
+                    checkpoint();
+                }
+                Log.info("Loaded existing file system: " + filename + " (" + listFiles().length
+                        + " files, " + records.size() + " journal records replayed)");
 
             }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            throw new UncheckedIOException("ERROR: could not mount " + filename + ": " + e.getMessage(), e);
         }
+    }
 
-
+    // the threads working on the mounted disk in the background, and the JMX bean
+    private void startBackgroundWork(String filename) {
+        if (config.getSyncPolicy() == SyncPolicy.PERIODIC)
+            startSyncThread();
+        if (config.isScrubFreedBlocks())
+            startScrubber();
+        if (config.getDefragBytesPerSecond() > 0) {
+            defragmenter = new Defragmenter(this, config.getDefragBytesPerSecond(), config.getDefragThreshold(),
+                    config.getDefragIntervalMillis());
+            defragmenter.start();
+        }
+        mbeanName = Jmx.register("ca.concordia:type=FileSystem,name=" + ObjectName.quote(filename), stats);
     }
 
     public void createFile(String fileName) throws Exception {
-        if(fileName.length()>11)
+        long seq;
+        lock(namespaceLock.writeLock());
+        try {
+            MetadataDelta delta = newDelta();
+            createLocked(fileName, delta);
+            seq = journal.append(delta.toBytes());
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+        commit(seq);
+    }
+
+    // caller holds the namespace write lock and appends the delta before releasing it
+    private void createLocked(String fileName, MetadataDelta delta) throws Exception {
+        if(fileName.getBytes(StandardCharsets.UTF_8).length>FEntry.NAME_BYTES)
             throw new Exception("ERROR: filename too large");
         if (fileName.length()==0)
             throw new Exception("ERROR: filename cannot be empty");
 
-        for(FEntry fentry : inodeTable){
-            if( fentry!=null && fileName.equals(fentry.getFilename()))
-                throw new Exception("ERROR: filename already exists");
+        if (findEntry(fileName) != -1)
+            throw new Exception("ERROR: filename already exists");
+
+        //take a free FEntry slot
+        if (freeSlotCount == 0)
+            throw new Exception("ERROR: no free entries left.");
+        int fentryIndex = freeSlots[--freeSlotCount];
+
+        FEntry entry = inodeTable[fentryIndex];
+        entry.setFilename(fileName);
+        nameIndex.put(fileName, fentryIndex);
+        entry.setFilesize(0);
+        entry.setFirstBlock(-1);
+
+        delta.addEntry(fentryIndex, entry);
+    }
+
+    public void deleteFile(String filename) throws Exception {
+        long seq;
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.writeLock());
+        try {
+            //find the FEntry of the specified file
+            int fentryIndex = lookupEntry(filename);
+            if (fentryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+
+            FEntry delFentry = inodeTable[fentryIndex];
+
+            // metadata only, the scrubber zeroes the blocks later and only then are they free again.
+            // Blocks other files still share stay where they are.
+            int[] freedBlocks = unreference(fileBlocks(delFentry));
+
+            lock(namespaceLock.writeLock());
+            try {
+                MetadataDelta delta = newDelta();
+                removeEntryLocked(fentryIndex, filename, freedBlocks, delta);
+                seq = journal.append(delta.toBytes());
+            } finally {
+                namespaceLock.writeLock().unlock();
+            }
+
+            freeDeletedBlocks(freedBlocks);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        commit(seq);
+    }
+
+    // Frees the FEntry slot and detaches the file's blocks. Caller holds the file and namespace write locks
+    // and appends the delta before releasing the namespace lock, so a create reusing the slot is logged after us.
+    private void removeEntryLocked(int fentryIndex, String filename, int[] blocks, MetadataDelta delta) {
+        inodeTable[fentryIndex] = new FEntry();//makes FEntry free again
+        nameIndex.remove(filename);
+        detachBlocks(blocks);
+        if (scrubber != null) {
+            for (int b : blocks)
+                fnodeTable[b].setNext(FNode.SCRUB_PENDING); // journaled with the delete, so a crash can't lose it
         }
 
-        //find free FEntry slot
-        int fentryIndex = -1;
-        for(int i =0; i<MAXFILES;i++){
-            if( inodeTable[i].getFilename()==null ){
-                fentryIndex=i;
-                break;
+        delta.addEntry(fentryIndex, inodeTable[fentryIndex]);
+        delta.addNodes(blocks, fnodeTable);
+        freeSlots[freeSlotCount++] = fentryIndex;
+    }
+
+    public void writeFile(String filename, byte[] contents) throws Exception{
+        writeFile(filename, contents, null);
+    }
+
+    // Writes length bytes taken from the stream, moving them block run by block run straight into newly
+    // reserved blocks so the payload never has to be held in memory as a whole. The stream is read before
+    // the file's lock is taken: a client sending its payload slowly holds up no other writer of the stripe
+    // and no checkpoint, under the lock the file is only pointed at the blocks. A compressed file needs the
+    // whole content for its frames, the stream is read into an array for it.
+    public void writeFile(String filename, InputStream in, long length) throws Exception {
+        if (length < 0)
+            throw new Exception("ERROR: length cannot be negative.");
+        checkFileSize(length);
+        if (isCompressed(filename))
+            writeFile(filename, readFully(in, length), null);
+        else
+            writeFile(filename, null, stage(in, length, config.getBlockMapFormat()));
+    }
+
+    // whole-file write of either contents or a staged stream
+    private void writeFile(String filename, byte[] contents, StagedWrite staged) throws Exception {
+        long seq;
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.writeLock());
+        try {
+            MetadataDelta delta = newDelta();
+            List<DedupWrite> deduplicated = new ArrayList<>(1);
+            int[] oldBlocks = staged != null ? installLocked(filename, staged, delta, deduplicated)
+                    : writeLocked(filename, contents, delta, deduplicated);
+            seq = journal.append(delta.toBytes());
+
+            // Free old blocks, only after the record freeing them is in the journal
+            releaseBlocks(oldBlocks);
+            indexFingerprints(deduplicated);
+        } finally {
+            fileLock.writeLock().unlock();
+            if (staged != null && !staged.installed)
+                releaseBlocks(staged.blocks()); // the file was deleted meanwhile, or the stream went to its frames
+        }
+        commit(seq);
+
+        if (Log.isDebugEnabled())
+            Log.debug("File written: " + filename);
+    }
+
+    // A stream already moved into blocks of its own that no file points at yet, see stage()
+    private static class StagedWrite {
+        final int[] data;
+        final int[] index;   // index blocks of an EXTENTS layout, written but not chained
+        final ExtentList extents;
+        final BlockMapFormat format;
+        final long length;
+        boolean installed;   // a file owns the blocks now
+
+        StagedWrite(int[] data, int[] index, ExtentList extents, BlockMapFormat format, long length) {
+            this.data = data;
+            this.index = index;
+            this.extents = extents;
+            this.format = format;
+            this.length = length;
+        }
+
+        int[] blocks() {
+            int[] blocks = Arrays.copyOf(data, data.length + index.length);
+            System.arraycopy(index, 0, blocks, data.length, index.length);
+            return blocks;
+        }
+    }
+
+    // Reserves the blocks for length bytes and fills them from the stream, writing the index of an EXTENTS
+    // layout too. No file lock is held: the blocks belong to no file until installLocked(), they stay marked
+    // used so nothing else gets them, and are given back when the stream fails. A crash in between leaves them
+    // used with no owner, the next mount frees them (rebuildReferences).
+    private StagedWrite stage(InputStream in, long length, BlockMapFormat format) throws Exception {
+        int blockNeeded = (int) ((length + blockSize - 1) / blockSize);
+        if (blockNeeded == 0)
+            format = BlockMapFormat.CHAINED;
+        int[] data = allocateBlocks(blockNeeded);
+        ExtentList extents = ExtentList.fromBlocks(data);
+        int[] index = new int[0];
+        try {
+            if (format == BlockMapFormat.EXTENTS)
+                index = allocateBlocks(extents.indexBlocksNeeded(blockSize));
+            streamExtents(extents, in, length);
+            if (format == BlockMapFormat.EXTENTS)
+                writeIndexBlocks(extents, index);
+        } catch (Exception e) {
+            releaseBlocks(data);
+            releaseBlocks(index);
+            throw e;
+        }
+        return new StagedWrite(data, index, extents, format, length);
+    }
+
+    // Points a file at the blocks of a staged stream and returns the blocks it gave up. A file compressed since
+    // the stream was staged gets the staged bytes compressed into new blocks instead, the staged ones are then
+    // left to the caller. Caller holds the file's write lock.
+    private int[] installLocked(String filename, StagedWrite staged, MetadataDelta delta,
+                                List<DedupWrite> deduplicated) throws Exception {
+        int entryIndex = lookupEntry(filename);
+        if (entryIndex == -1)
+            throw new Exception("ERROR: File not found.");
+        FEntry target = inodeTable[entryIndex];
+        if (target.isCompressed()) {
+            if (staged.length > Integer.MAX_VALUE - 8)
+                throw new Exception("ERROR: file too large to store compressed.");
+            byte[] contents = new byte[(int) staged.length];
+            transferRange(staged.extents, 0, contents, 0, contents.length, false);
+            return writeLocked(filename, contents, delta, deduplicated);
+        }
+
+        linkChain(staged.format == BlockMapFormat.EXTENTS ? staged.index : staged.data);
+        staged.installed = true;
+        return replaceBlocksLocked(entryIndex, target, staged.format, staged.data, staged.index, staged.extents,
+                staged.length, 0, delta);
+    }
+
+    // Replaces the contents of a file and returns the blocks it gave up, which the caller releases once
+    // the delta is appended. A compressed file stores the frames of the data instead of the data.
+    // A deduplicated write is added to deduplicated, its new blocks go into the fingerprint index only
+    // after the delta is appended. Caller holds the file's write lock.
+    private int[] writeLocked(String filename, byte[] contents, MetadataDelta delta,
+                              List<DedupWrite> deduplicated) throws Exception {
+        checkFileSize(contents.length);
+
+        //find FEntry
+        int entryIndex = lookupEntry(filename);
+        if (entryIndex == -1)
+            throw new Exception("ERROR: File not found.");
+        FEntry target = inodeTable[entryIndex];
+
+        long originalSize = 0;
+        if (target.isCompressed()) {
+            originalSize = contents.length;
+            long start = System.nanoTime();
+            contents = FrameCodec.compress(contents, config.getCompressionChunkSize());
+            stats.compressed(originalSize, contents.length, System.nanoTime() - start);
+        }
+        int length = contents.length;
+
+        //Calculate blocks needed for this file.
+        int blockNeeded = (length + blockSize - 1) / blockSize;
+        BlockMapFormat format = blockNeeded == 0 ? BlockMapFormat.CHAINED : config.getBlockMapFormat();
+
+        //reserve the blocks in one short critical section, the disk writes happen outside of it
+        DedupWrite dedupWrite = null;
+        int[] allocatedBlocks;
+        int[] dataBlocks;
+        if (dedup != null && dedup.isFingerprinting() && length >= blockSize) {
+            dedupWrite = planDedupWrite(contents, blockNeeded);
+            allocatedBlocks = dedupWrite.allocated;
+            dataBlocks = dedupWrite.blocks;
+            format = BlockMapFormat.EXTENTS; // shared blocks can't sit on FNode chains
+        } else {
+            allocatedBlocks = allocateBlocks(blockNeeded);
+            dataBlocks = allocatedBlocks;
+        }
+        int[] reusedBlocks = dedupWrite == null ? new int[0] : dedupWrite.reused;
+        ExtentList extents = ExtentList.fromBlocks(dataBlocks);
+
+        int[] indexBlocks = new int[0];
+        if (format == BlockMapFormat.EXTENTS) {
+            try {
+                indexBlocks = allocateBlocks(extents.indexBlocksNeeded(blockSize));
+            } catch (Exception e) {
+                releaseBlocks(allocatedBlocks);
+                abandon(reusedBlocks);
+                throw e;
             }
         }
 
-        if (fentryIndex == -1)
-            throw new Exception("ERROR: no free entries left.");
+        try {
+            // one write per contiguous run instead of one per block
+            if (dedupWrite != null)
+                writeNewBlocks(dedupWrite, contents);
+            else
+                writeExtents(extents, contents, length);
+            if (format == BlockMapFormat.EXTENTS)
+                writeIndex(extents, indexBlocks);
+            else
+                linkChain(allocatedBlocks);
+        } catch (Exception e) {
+            releaseBlocks(allocatedBlocks);
+            releaseBlocks(indexBlocks);
+            abandon(reusedBlocks);
+            throw new RuntimeException(e);
+        }
 
-        FEntry entry = inodeTable[fentryIndex];
-        entry.setFilename(fileName);
-        entry.setFilesize((short) 0);
-        entry.setFirstBlock((short) -1);
+        int[] oldBlocks = replaceBlocksLocked(entryIndex, target, format, allocatedBlocks, indexBlocks, extents,
+                length, originalSize, delta);
+        if (dedupWrite != null) {
+            deduplicated.add(dedupWrite);
+            stats.deduplicated(dedupWrite.hashed, dedupWrite.hits, (long) dedupWrite.hits * blockSize, dedupWrite.hashNanos);
+        }
+        return oldBlocks;
+    }
 
+    // Points a file at new blocks holding length bytes (allocatedBlocks are the ones this write took from the
+    // allocator, extents all of its data blocks) and returns the blocks it gave up. The blocks are written and
+    // chained already. Caller holds the file's write lock, which also keeps readers of the file out.
+    private int[] replaceBlocksLocked(int entryIndex, FEntry target, BlockMapFormat format, int[] allocatedBlocks,
+                                      int[] indexBlocks, ExtentList extents, long length, long originalSize,
+                                      MetadataDelta delta) throws IOException {
+        int[] oldBlocks = unreference(fileBlocks(target));
+        detachBlocks(oldBlocks);
+
+        if (extents.blockCount() == 0)
+            target.setFirstBlock(-1);
+        else
+            target.setFirstBlock(format == BlockMapFormat.EXTENTS ? indexBlocks[0] : extents.getStart(0));
+        target.setFilesize(length);
+        target.setOriginalSize(originalSize);
+        target.setFrames(null);
+        target.setFormat(format);
+        target.setExtents(format == BlockMapFormat.EXTENTS ? extents : null);
+
+        delta.addEntry(entryIndex, target);
+        delta.addNodes(allocatedBlocks, fnodeTable);
+        delta.addNodes(indexBlocks, fnodeTable);
+        delta.addNodes(oldBlocks, fnodeTable);
+        return oldBlocks;
+    }
 
+    // Layout of a deduplicated whole-file write, see planDedupWrite
+    private static class DedupWrite {
+        int[] blocks;     // the file's data blocks in file order
+        int[] allocated;  // blocks taken from the allocator for this write, in file order
+        int[] logical;    // logical block of each allocated block
+        int[] reused;     // blocks that were already on disk and got one more reference
+        DedupIndex.Fingerprint[] fingerprints; // of each logical block, null for a partial last block
+        int hashed;
+        int hits;         // logical blocks that didn't need a block of their own
+        long hashNanos;
     }
 
-    public void deleteFile(String filename) throws Exception {
+    // Lays out a whole-file write in dedup mode. Every full block whose content is already on disk, or earlier in
+    // the same write, takes a reference on that block, only the others are allocated. The partial last block
+    // always gets a block of its own.
+    private DedupWrite planDedupWrite(byte[] contents, int blockNeeded) throws Exception {
+        DedupWrite write = new DedupWrite();
+        write.fingerprints = new DedupIndex.Fingerprint[blockNeeded];
+        write.hashed = contents.length / blockSize;
+        long start = System.nanoTime();
+        for (int i = 0; i < write.hashed; i++)
+            write.fingerprints[i] = DedupIndex.fingerprint(contents, i * blockSize, blockSize);
+        write.hashNanos = System.nanoTime() - start;
+
+        // logical blocks repeating an earlier block of this write point at it, -1 marks the ones needing a block
+        int[] blocks = new int[blockNeeded];
+        int[] sameAs = new int[blockNeeded];
+        int[] reused = new int[blockNeeded];
+        int reusedCount = 0;
+        int newCount = 0;
+        Map<DedupIndex.Fingerprint, Integer> firstSeen = new HashMap<>();
+        lock(allocatorLock);
+        try {
+            for (int i = 0; i < blockNeeded; i++) {
+                DedupIndex.Fingerprint fingerprint = write.fingerprints[i];
+                sameAs[i] = -1;
+                blocks[i] = fingerprint == null ? -1 : dedup.reuse(fingerprint);
+                if (blocks[i] != -1) {
+                    reused[reusedCount++] = blocks[i];
+                } else if (fingerprint != null && firstSeen.containsKey(fingerprint)) {
+                    sameAs[i] = firstSeen.get(fingerprint);
+                } else {
+                    if (fingerprint != null)
+                        firstSeen.put(fingerprint, i);
+                    newCount++;
+                }
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+        write.reused = Arrays.copyOf(reused, reusedCount);
 
-        //find the FEntry of the specified file
-        int fentryIndex = -1;
-        for(int i =0; i<MAXFILES;i++) {
-            if (inodeTable[i] != null && inodeTable[i].getFilename() != null &&
-                    inodeTable[i].getFilename().equals(filename)) {
-                {
-                    fentryIndex = i;
-                    break;
+        try {
+            write.allocated = allocateBlocks(newCount);
+        } catch (Exception e) {
+            abandon(write.reused);
+            throw e;
+        }
+        write.logical = new int[newCount];
+        int next = 0;
+        lock(allocatorLock);
+        try {
+            for (int i = 0; i < blockNeeded; i++) {
+                if (sameAs[i] != -1) {
+                    blocks[i] = blocks[sameAs[i]];
+                    dedup.addReference(blocks[i]); // dropped again by releaseBlocks if the write fails
+                } else if (blocks[i] == -1) {
+                    write.logical[next] = i;
+                    blocks[i] = write.allocated[next++];
                 }
             }
+        } finally {
+            allocatorLock.unlock();
         }
-            if (fentryIndex == -1)
+        write.blocks = blocks;
+        write.hits = blockNeeded - newCount;
+        return write;
+    }
+
+    // writes the blocks a deduplicated write allocated, one device write per run that is contiguous both in
+    // the file and on disk
+    private void writeNewBlocks(DedupWrite write, byte[] contents) throws IOException {
+        int k = 0;
+        while (k < write.allocated.length) {
+            int run = 1;
+            while (k + run < write.allocated.length && write.allocated[k + run] == write.allocated[k] + run
+                    && write.logical[k + run] == write.logical[k] + run)
+                run++;
+            int offset = write.logical[k] * blockSize;
+            writeBlock(write.allocated[k], contents, offset, Math.min(run * blockSize, contents.length - offset));
+            k += run;
+        }
+    }
+
+    // Puts the new blocks of deduplicated writes into the fingerprint index. Only once the delta making them part
+    // of their file is appended: a later write reusing a block must never be journaled before the block's owner.
+    private void indexFingerprints(List<DedupWrite> writes) {
+        if (writes.isEmpty())
+            return;
+        lock(allocatorLock);
+        try {
+            for (DedupWrite write : writes) {
+                for (int k = 0; k < write.allocated.length; k++) {
+                    DedupIndex.Fingerprint fingerprint = write.fingerprints[write.logical[k]];
+                    if (fingerprint != null)
+                        dedup.index(write.allocated[k], fingerprint);
+                }
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // Overwrites part of a file starting at offset, growing it when the range ends past the current size.
+    // A range starting past the end leaves a zero filled gap. Only the blocks the range touches are written.
+    public void writeAt(String filename, long offset, byte[] data) throws Exception {
+        writeRange(filename, offset, new ByteArrayInputStream(data), data.length, false);
+    }
+
+    public void writeAt(String filename, long offset, InputStream in, long length) throws Exception {
+        writeStreamedRange(filename, offset, in, length, false);
+    }
+
+    // adds data at the end of a file, allocating only the blocks the file grows by
+    public void append(String filename, byte[] data) throws Exception {
+        writeRange(filename, 0, new ByteArrayInputStream(data), data.length, true);
+    }
+
+    public void append(String filename, InputStream in, long length) throws Exception {
+        writeStreamedRange(filename, 0, in, length, true);
+    }
+
+    // Cuts a file down to size, freeing the blocks past the new end, or grows it with zeros.
+    public void truncate(String filename, long size) throws Exception {
+        if (size < 0)
+            throw new Exception("ERROR: size cannot be negative.");
+        writeRange(filename, size, InputStream.nullInputStream(), 0, false, true);
+    }
+
+    private void writeRange(String filename, long offset, InputStream in, long length, boolean append) throws Exception {
+        if (offset < 0)
+            throw new Exception("ERROR: offset cannot be negative.");
+        writeRange(filename, offset, in, length, append, false);
+    }
+
+    // A ranged write from a stream that may be slow (a client socket) isn't read under the file's lock: a short
+    // one is read into memory first, a longer one is staged in scratch blocks and copied from there under the
+    // lock. The scratch blocks are freed again afterwards, they only cost disk space while the write runs.
+    private void writeStreamedRange(String filename, long offset, InputStream in, long length, boolean append) throws Exception {
+        if (offset < 0)
+            throw new Exception("ERROR: offset cannot be negative.");
+        if (length < 0)
+            throw new Exception("ERROR: length cannot be negative.");
+        if (length <= STAGE_IN_MEMORY_BYTES) {
+            writeRange(filename, offset, new ByteArrayInputStream(readFully(in, length)), length, append);
+            return;
+        }
+        checkFileSize(length);
+        StagedWrite scratch = stage(in, length, BlockMapFormat.CHAINED);
+        try {
+            writeRange(filename, offset, new ExtentInputStream(scratch.extents, length), length, append);
+        } finally {
+            releaseBlocks(scratch.data);
+        }
+    }
+
+    // reads back bytes [0, length) of a set of extents, e.g. a staged stream
+    private class ExtentInputStream extends InputStream {
+        private final ExtentList extents;
+        private final long length;
+        private long position;
+
+        ExtentInputStream(ExtentList extents, long length) {
+            this.extents = extents;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (position >= length)
+                return -1;
+            int n = (int) Math.min(count, length - position);
+            transferRange(extents, position, buffer, offset, n, false);
+            position += n;
+            return n;
+        }
+    }
+
+    // Shared by writeAt, append and truncate. The new blocks are allocated and every byte is written
+    // before the block map and FEntry change, so a failed write only gives the new blocks back.
+    private void writeRange(String filename, long offset, InputStream in, long length, boolean append, boolean truncate) throws Exception {
+        long seq;
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.writeLock());
+        try {
+            int entryIndex = lookupEntry(filename);
+            if (entryIndex == -1)
                 throw new Exception("ERROR: File not found.");
+            FEntry target = inodeTable[entryIndex];
+
+            long oldSize = target.getLogicalSize();
+            long start = append ? oldSize : offset;
+            long newSize = truncate ? offset : Math.max(oldSize, start + length);
+            checkFileSize(newSize);
+
+            seq = target.isCompressed()
+                    ? rewriteCompressed(filename, target, start, newSize, in, truncate ? 0 : length)
+                    : writeRangeLocked(entryIndex, target, oldSize, start, newSize, in, length, truncate);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        commit(seq);
+    }
 
-            FEntry delFentry = inodeTable[fentryIndex];
-            int blockIndex = delFentry.getFirstBlock();
+    // Writes a range of an uncompressed file in place and returns the sequence number of the journal record.
+    // Caller holds the file's write lock.
+    private long writeRangeLocked(int entryIndex, FEntry target, long oldSize, long start, long newSize,
+                                  InputStream in, long length, boolean truncate) throws Exception {
+        int[] oldData = dataExtents(target).toBlocks();
+        int needed = (int) ((newSize + blockSize - 1) / blockSize);
+        int[] added = allocateBlocks(Math.max(0, needed - oldData.length));
+        int[] data = Arrays.copyOf(oldData, needed);
+        System.arraycopy(added, 0, data, oldData.length < needed ? oldData.length : needed, added.length);
+
+        MetadataDelta delta = newDelta();
+        int[] copies = new int[0];
+        int[] freed;
+        try {
+            long gapEnd = truncate ? newSize : start;
+            // the blocks holding bytes [touchedFrom, touchedTo) are written in place
+            long touchedFrom = Long.MAX_VALUE;
+            long touchedTo = 0;
+            if (gapEnd > oldSize) {
+                touchedFrom = oldSize;
+                touchedTo = gapEnd;
+            }
+            if (!truncate && length > 0) {
+                touchedFrom = Math.min(touchedFrom, start);
+                touchedTo = Math.max(touchedTo, start + length);
+            }
+            if (touchedTo > touchedFrom)
+                copies = copyOnWrite(data, (int) (touchedFrom / blockSize),
+                        (int) Math.min((touchedTo - 1) / blockSize, Math.min(oldData.length, needed) - 1));
+            ExtentList extents = ExtentList.fromBlocks(data);
+            if (gapEnd > oldSize)
+                zeroRange(extents, oldSize, gapEnd - oldSize);
+            if (!truncate)
+                copyIntoRange(extents, start, in, length);
+            freed = remapLocked(entryIndex, target, oldData, data, added, newSize, delta);
+        } catch (Exception e) {
+            releaseBlocks(added);
+            releaseBlocks(copies);
+            throw e;
+        }
+        long seq = journal.append(delta.toBytes());
+        releaseBlocks(freed);
+        return seq;
+    }
 
-            while (blockIndex >= 1 && blockIndex < MAXBLOCKS) {
+    // Frames can't be patched in place: a ranged write, append or truncate of a compressed file inflates it,
+    // changes it in memory and stores it again. Returns the sequence number of the journal record.
+    // Caller holds the file's write lock.
+    private long rewriteCompressed(String filename, FEntry target, long start, long newSize, InputStream in, long length)
+            throws Exception {
+        if (newSize > Integer.MAX_VALUE - 8)
+            throw new Exception("ERROR: file too large to rewrite compressed.");
+        byte[] contents = new byte[(int) newSize]; // a gap past the old end stays zero
+        readRange(target, 0, contents, 0, (int) Math.min(target.getLogicalSize(), newSize));
+        if (length > 0)
+            readFully(in, contents, (int) start, (int) length);
+        MetadataDelta delta = newDelta();
+        List<DedupWrite> deduplicated = new ArrayList<>(1);
+        int[] oldBlocks = writeLocked(filename, contents, delta, deduplicated);
+        long seq = journal.append(delta.toBytes());
+        releaseBlocks(oldBlocks);
+        indexFingerprints(deduplicated);
+        return seq;
+    }
 
-                //overwrite block with 0
-                disk.seek(blockIndex * BLOCK_SIZE);  //move to beginning of block
-                byte[] zeroBlock = new byte[BLOCK_SIZE];// default byte value is 0, we have 128 0's
-                disk.write(zeroBlock);
+    // Points a file at its new data block list after a ranged write or truncate and returns the blocks it
+    // gave up. A chained file only relinks its last block, an EXTENTS file gets a new index. Blocks replaced
+    // by copyOnWrite give up the file's reference, they are only freed when it was the last one.
+    private int[] remapLocked(int entryIndex, FEntry target, int[] oldData, int[] data, int[] added,
+                              long newSize, MetadataDelta delta) throws Exception {
+        if (Arrays.equals(data, oldData)) {
+            target.setFilesize(newSize); // same blocks, only the size moved
+            delta.addEntry(entryIndex, target);
+            return new int[0];
+        }
 
-                //mark block as free
-                freeBlockList[blockIndex] = true;
+        int[] copies = replacedBlocks(data, oldData);
+        BlockMapFormat format = data.length == 0 ? BlockMapFormat.CHAINED
+                : oldData.length == 0 ? config.getBlockMapFormat() : target.getFormat();
+        int[] oldIndex = target.getFormat() == BlockMapFormat.EXTENTS && target.getFirstBlock() >= metadataBlocks
+                ? chainBlocks(target.getFirstBlock()) : new int[0];
+        int[] newIndex = new int[0];
+        ExtentList extents = ExtentList.fromBlocks(data);
+
+        if (format == BlockMapFormat.EXTENTS) {
+            newIndex = allocateBlocks(extents.indexBlocksNeeded(blockSize));
+            try {
+                writeIndex(extents, newIndex);
+            } catch (IOException e) {
+                releaseBlocks(newIndex);
+                throw e;
+            }
+        } else if (added.length > 0) {
+            linkChain(added);
+            if (oldData.length > 0) {
+                fnodeTable[oldData[oldData.length - 1]].setNext(added[0]);
+                delta.addNode(oldData[oldData.length - 1], fnodeTable[oldData[oldData.length - 1]]);
+            }
+        } else if (data.length > 0) {
+            fnodeTable[data[data.length - 1]].setNext(-1); // the chain now ends here
+            delta.addNode(data[data.length - 1], fnodeTable[data[data.length - 1]]);
+        }
 
-                //get next block(if -1 the loop will end)
-                int nextBlockIndex = fnodeTable[blockIndex].getNext();
+        int[] givenUp = replacedBlocks(oldData, data);
+        int[] freedData = Arrays.copyOf(givenUp, givenUp.length + Math.max(0, oldData.length - data.length));
+        System.arraycopy(oldData, Math.min(data.length, oldData.length), freedData, givenUp.length,
+                freedData.length - givenUp.length);
+        freedData = unreference(freedData);
+        detachBlocks(freedData);
+        detachBlocks(oldIndex);
+
+        if (data.length == 0)
+            target.setFirstBlock(-1);
+        else
+            target.setFirstBlock(format == BlockMapFormat.EXTENTS ? newIndex[0] : data[0]);
+        target.setFilesize(newSize);
+        target.setFormat(format);
+        target.setExtents(format == BlockMapFormat.EXTENTS ? extents : null);
+
+        delta.addEntry(entryIndex, target);
+        delta.addNodes(added, fnodeTable);
+        delta.addNodes(copies, fnodeTable);
+        delta.addNodes(newIndex, fnodeTable);
+        delta.addNodes(freedData, fnodeTable);
+        delta.addNodes(oldIndex, fnodeTable);
+
+        int[] freed = Arrays.copyOf(freedData, freedData.length + oldIndex.length);
+        System.arraycopy(oldIndex, 0, freed, freedData.length, oldIndex.length);
+        return freed;
+    }
 
-                //set next as -1, and FNode block index to  negative value
-                fnodeTable[blockIndex].setNext(-1);
-                fnodeTable[blockIndex].setBlockIndex(-blockIndex);
+    // blocks of data that differ from the block at the same position of other, positions past either end left out
+    private static int[] replacedBlocks(int[] data, int[] other) {
+        int[] replaced = new int[Math.min(data.length, other.length)];
+        int count = 0;
+        for (int i = 0; i < replaced.length; i++)
+            if (data[i] != other[i])
+                replaced[count++] = data[i];
+        return Arrays.copyOf(replaced, count);
+    }
 
+    // Gives logical blocks [first, last] of a file blocks of their own before they are written in place: a block
+    // that is shared (with another file, or another position of this one) is copied to a new block, which takes
+    // its place in data. A block the file owns alone leaves the fingerprint index, its content is about to change.
+    // Returns the copies; the shared blocks keep their content and lose the file's reference in remapLocked.
+    private int[] copyOnWrite(int[] data, int first, int last) throws Exception {
+        if (dedup == null || first > last)
+            return new int[0];
+        boolean[] shared = new boolean[last - first + 1];
+        int count = 0;
+        lock(allocatorLock);
+        try {
+            for (int i = first; i <= last; i++) {
+                if (dedup.isShared(data[i])) {
+                    shared[i - first] = true;
+                    count++;
+                } else {
+                    dedup.forget(data[i]);
+                }
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+        if (count == 0)
+            return new int[0];
 
-                blockIndex = nextBlockIndex;
+        int[] copies = allocateBlocks(count);
+        byte[] block = new byte[blockSize];
+        try {
+            int next = 0;
+            for (int i = first; i <= last; i++) {
+                if (!shared[i - first])
+                    continue;
+                readBlock(data[i], block, 0, blockSize);
+                writeBlock(copies[next], block, 0, blockSize);
+                data[i] = copies[next++];
+            }
+        } catch (IOException e) {
+            releaseBlocks(copies);
+            throw e;
+        }
+        return copies;
+    }
 
+    // Applies a list of create/write/delete operations under one acquisition of the locks they need
+    // and persists all of their metadata changes with a single journal record. Operations run in order;
+    // one that fails doesn't stop the others. Returns one entry per operation: null on success,
+    // otherwise the error message.
+    public String[] executeBatch(List<BatchOperation> operations) throws Exception {
+        // stripe locks in index order, then the namespace lock, like every other path
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (BatchOperation op : operations)
+            stripes.add(stripeOf(op.getFilename()));
+        for (int stripe : stripes)
+            lock(fileLocks[stripe].writeLock());
+        lock(namespaceLock.writeLock());
+
+        String[] errors = new String[operations.size()];
+        List<int[]> released = new ArrayList<>();
+        List<int[]> deleted = new ArrayList<>();
+        List<DedupWrite> deduplicated = new ArrayList<>();
+        long seq = 0;
+        try {
+            MetadataDelta delta = newDelta();
+            for (int i = 0; i < operations.size(); i++) {
+                BatchOperation op = operations.get(i);
+                try {
+                    switch (op.getType()) {
+                        case CREATE:
+                            createLocked(op.getFilename(), delta);
+                            break;
+                        case WRITE:
+                            byte[] data = op.getData();
+                            released.add(writeLocked(op.getFilename(), data, delta, deduplicated));
+                            break;
+                        case DELETE:
+                            int fentryIndex = findEntry(op.getFilename());
+                            if (fentryIndex == -1)
+                                throw new Exception("ERROR: File not found.");
+                            int[] blocks = unreference(fileBlocks(inodeTable[fentryIndex]));
+                            removeEntryLocked(fentryIndex, op.getFilename(), blocks, delta);
+                            deleted.add(blocks);
+                            break;
+                    }
+                } catch (Exception e) {
+                    errors[i] = e.getMessage() == null ? e.toString() : e.getMessage();
+                }
             }
+            if (!delta.isEmpty())
+                seq = journal.append(delta.toBytes());
+            for (int[] blocks : released)
+                releaseBlocks(blocks);
+            for (int[] blocks : deleted)
+                freeDeletedBlocks(blocks);
+            indexFingerprints(deduplicated);
+        } finally {
+            namespaceLock.writeLock().unlock();
+            for (int stripe : stripes.descendingSet())
+                fileLocks[stripe].writeLock().unlock();
+        }
+        if (seq != 0)
+            commit(seq);
+        return errors;
+    }
+
+    // Reads up to length bytes starting at offset, fewer when the file ends first.
+    public byte[] readFile(String filename, long offset, int length) throws Exception {
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.readLock());
+        try {
+            int fentryIndex = lookupEntry(filename);
+            if (fentryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            FEntry target = inodeTable[fentryIndex];
+
+            int bytes = (int) rangeLength(target, offset, length);
+            byte[] data = new byte[bytes];
+            readRange(target, offset, data, 0, bytes);
+            return data;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
 
-            inodeTable[fentryIndex] = new FEntry();//makes FEntry free again
+    // Streams up to length bytes starting at offset into the sink, returns how many were sent.
+    public long readFile(String filename, long offset, long length, FileSink sink) throws Exception {
+        return sendFile(filename, offset, length, false, sink);
+    }
 
+    private static long rangeLength(FEntry target, long offset, long length) throws Exception {
+        if (offset < 0 || length < 0)
+            throw new Exception("ERROR: offset and length cannot be negative.");
+        if (offset > target.getLogicalSize())
+            throw new Exception("ERROR: offset is past the end of the file.");
+        return Math.min(length, target.getLogicalSize() - offset);
     }
-    public void writeFile(String filename, byte[] contents) throws Exception{
 
-        int entryIndex;
-        FEntry target = null;
-        //find FEntry
-        for(int i =0;i<MAXFILES;i++){
-            if(inodeTable[i] != null && filename.equals(inodeTable[i].getFilename())){
-                entryIndex=i;
-                target  = inodeTable[entryIndex];
+    public byte[] readFile(String filename) throws Exception{
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.readLock());
+        try {
+            //find the FEntry of the specified file
+            int fentryIndex = lookupEntry(filename);
+            if (fentryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            FEntry target = inodeTable[fentryIndex];
+
+            //create buffer that holds file data
+            if (target.getLogicalSize() > Integer.MAX_VALUE - 8)
+                throw new Exception("ERROR: file too large to read in one piece, read it in ranges.");
+            int fileSize = (int) target.getLogicalSize();
+            byte[] data = new byte[fileSize];
+
+            if (target.getFirstBlock() == -1) {
+                return new byte[0]; // empty file
             }
+
+            // one read per contiguous run of blocks
+            readRange(target, 0, data, 0, fileSize);
+
+            return data;
+        } finally {
+            fileLock.readLock().unlock();
         }
-        if (target == null)
-            throw new Exception("ERROR: File not found.");
+    }
 
-        //Calculate blocks needed for this file.
-        int blockNeeded= (int) Math.ceil((double) contents.length / BLOCK_SIZE);
+    // Streams a file into the sink in block sized chunks instead of building one array for the whole file.
+    // Returns the file size.
+    public long readFile(String filename, FileSink sink) throws Exception {
+        return sendFile(filename, 0, 0, true, sink);
+    }
 
-        //check if enough space available
-        int numFreeBlocks=0;
-        for(int i =0;i<MAXBLOCKS;i++)
-            if(freeBlockList[i]) numFreeBlocks++; //counts number  of free blocks
+    // Sends a range of a file, or all of it, to a sink without holding the file's lock while the sink works: the
+    // sink writes to a socket, which can take as long as the client likes. The block map (and frame table) are
+    // copied under the read lock and the read is pinned, so blocks the file gives up meanwhile are not reused
+    // before the transfer is done (see ReadPins). A write or delete that replaces the file still lets the read
+    // send the old contents whole, only a writeAt into the range being sent can show up in the middle of it.
+    private long sendFile(String filename, long offset, long length, boolean whole, FileSink sink) throws Exception {
+        ExtentList extents;
+        FrameTable frames = null;
+        long bytes;
+        long pin;
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.readLock());
+        try {
+            int fentryIndex = lookupEntry(filename);
+            if (fentryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            FEntry target = inodeTable[fentryIndex];
+
+            bytes = whole ? target.getLogicalSize() : rangeLength(target, offset, length);
+            extents = dataExtents(target);
+            if (target.isCompressed() && bytes > 0)
+                frames = frameTable(target, extents);
+            pin = pins.pin();
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        try {
+            sink.begin(bytes);
+            sendFileRange(extents, frames, offset, bytes, sink);
+            return bytes;
+        } finally {
+            unpin(pin);
+        }
+    }
 
-        if(numFreeBlocks<blockNeeded)
-            throw  new Exception("ERROR: Not enough free blocks.");
+    // ends a pinned read, the blocks that were only held back for it go on to the scrubber or the allocator
+    private void unpin(long pin) throws IOException {
+        for (ReadPins.Deferred deferred : pins.unpin(pin)) {
+            if (deferred.scrub)
+                scrubber.submit(deferred.blocks);
+            else
+                returnBlocks(deferred.blocks);
+        }
+    }
 
-        //to keep track of allocated blocks in the case we need to changes if error occur
-        int[] allocatedBlocks=new int[blockNeeded]; //keep hold of the blocks we will use for this file
-        int allocatedIndex =0;
+    public String[] listFiles(){
+        lock(namespaceLock.readLock());
         try {
-            int offset=0;
-            int previousBlock = -1; //for FNode
+            // count existing files
+            int count = 0;
+            for (FEntry entry : inodeTable) {
+                if (entry != null && entry.getFilename() != null)
+                    count++;
+            }
 
-            //loops until we went over all blocks or until we used all the blocks needed
-            for(int i=1;i<MAXBLOCKS && allocatedIndex<blockNeeded ;i++){
-                if(freeBlockList[i]){
-                    freeBlockList[i]=false;
-                    fnodeTable[i].setBlockIndex(i); // mark block as used by making it positive
-                    allocatedBlocks[allocatedIndex++]=i;//holds the address of block we will use and updated variable that tracks number of blocks used
+            // fill array with names
+            String[] files = new String[count];
+            int index = 0;
+            for (FEntry entry : inodeTable) {
+                if (entry != null && entry.getFilename() != null)
+                    files[index++] = entry.getFilename();
+            }
 
-                    //write file
-                    disk.seek(BLOCK_SIZE*i); //goes to start of block i
-                    int remaining = Math.min(BLOCK_SIZE, contents.length - offset);
-                    disk.write(contents, offset, remaining);
-                    offset += remaining;
+            return files;
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
 
-                    //set first block of fnode
-                    if(previousBlock!=-1)
-                        fnodeTable[previousBlock].setNext(i);
-                    previousBlock=i;//update previous block with the current one
+    public boolean exists(String filename) {
+        return lookupEntry(filename) != -1;
+    }
 
+    public boolean isCompressed(String filename) throws Exception {
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.readLock());
+        try {
+            int entryIndex = lookupEntry(filename);
+            if (entryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            return inodeTable[entryIndex].isCompressed();
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // Switches a file between stored as is and compressed, see FrameTable. The contents are rewritten in the new
+    // form right away and every later write of the file keeps it. Compression needs disk format version 3.
+    public void setCompression(String filename, boolean compressed) throws Exception {
+        if (compressed && formatVersion < Superblock.VERSION_3)
+            throw new Exception("ERROR: the disk format is too old for compression.");
+        long seq;
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.writeLock());
+        try {
+            int entryIndex = lookupEntry(filename);
+            if (entryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            FEntry target = inodeTable[entryIndex];
+            if (target.isCompressed() == compressed)
+                return;
+            if (target.getLogicalSize() > Integer.MAX_VALUE - 8)
+                throw new Exception("ERROR: file too large to rewrite compressed.");
+
+            byte[] contents = new byte[(int) target.getLogicalSize()];
+            readRange(target, 0, contents, 0, contents.length);
+            MetadataDelta delta = newDelta();
+            List<DedupWrite> deduplicated = new ArrayList<>(1);
+            int[] oldBlocks;
+            target.setCompressed(compressed);
+            try {
+                oldBlocks = writeLocked(filename, contents, delta, deduplicated);
+            } catch (Exception e) {
+                target.setCompressed(!compressed);
+                throw e;
+            }
+            seq = journal.append(delta.toBytes());
+            releaseBlocks(oldBlocks);
+            indexFingerprints(deduplicated);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        commit(seq);
+        if (Log.isDebugEnabled())
+            Log.debug("File " + (compressed ? "compressed: " : "decompressed: ") + filename);
+    }
+
+    // Switches a file between the FNode chain and the extent index format without moving its data,
+    // only the way the blocks are mapped changes.
+    public void convertFile(String filename, BlockMapFormat format) throws Exception {
+        long seq;
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        lock(fileLock.writeLock());
+        try {
+            int entryIndex = lookupEntry(filename);
+            if (entryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            FEntry target = inodeTable[entryIndex];
+            if (target.getFormat() == format || target.getFirstBlock() == -1)
+                return; // nothing to convert, empty files have no blocks to map
+
+            ExtentList extents = dataExtents(target);
+            int[] dataBlocks = extents.toBlocks();
+            int[] newIndex = new int[0];
+            int[] oldIndex = new int[0];
+
+            if (format == BlockMapFormat.EXTENTS) {
+                newIndex = allocateBlocks(extents.indexBlocksNeeded(blockSize));
+                try {
+                    writeIndex(extents, newIndex);
+                } catch (Exception e) {
+                    releaseBlocks(newIndex);
+                    throw new RuntimeException(e);
                 }
+                for (int b : dataBlocks)
+                    fnodeTable[b].setNext(-1);
+                target.setFirstBlock(newIndex[0]);
+                target.setExtents(extents);
+            } else {
+                if (hasSharedBlocks(dataBlocks))
+                    throw new Exception("ERROR: File shares blocks with deduplicated content, it has to stay in the EXTENTS format.");
+                oldIndex = chainBlocks(target.getFirstBlock());
+                detachBlocks(oldIndex);
+                linkChain(dataBlocks);
+                target.setFirstBlock(dataBlocks[0]);
+                target.setExtents(null);
             }
-            fnodeTable[previousBlock].setNext(-1);//set next block of last block as -1
+            target.setFormat(format);
+
+            MetadataDelta delta = newDelta();
+            delta.addEntry(entryIndex, target);
+            delta.addNodes(dataBlocks, fnodeTable);
+            delta.addNodes(newIndex, fnodeTable);
+            delta.addNodes(oldIndex, fnodeTable);
+            seq = journal.append(delta.toBytes());
+
+            releaseBlocks(oldIndex);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        commit(seq);
+    }
 
-            // Free old blocks
-            int oldBlock = target.getFirstBlock();
-            while (oldBlock >= 1 && oldBlock < MAXBLOCKS) {
-                freeBlockList[oldBlock] = true;
-                fnodeTable[oldBlock].setBlockIndex(-oldBlock);
-                oldBlock = fnodeTable[oldBlock].getNext();
+    // converts every file, e.g. after changing the configured block map format of an existing disk
+    public void convertAllFiles(BlockMapFormat format) throws Exception {
+        for (String filename : listFiles()) {
+            try {
+                convertFile(filename, format);
+            } catch (Exception e) {
+                // deleted since listFiles(), nothing left to convert
+            }
+        }
+    }
+
+    // Measures how fragmented the files and the free space are. Walks the block map of every file,
+    // each under its own read lock, so the figures are not one atomic snapshot.
+    public FragmentationReport getFragmentation() {
+        int files = 0;
+        int fragmented = 0;
+        long dataBlocks = 0;
+        long extentCount = 0;
+        long extra = 0;
+        long possible = 0;
+        List<String> worst = new ArrayList<>();
+        Map<String, Integer> extraByFile = new HashMap<>();
+        for (String filename : listFiles()) {
+            ReentrantReadWriteLock fileLock = lockFor(filename);
+            lock(fileLock.readLock());
+            try {
+                int entryIndex = lookupEntry(filename);
+                if (entryIndex == -1)
+                    continue; // deleted since listFiles()
+                ExtentList extents = dataExtents(inodeTable[entryIndex]);
+                files++;
+                if (extents.blockCount() == 0)
+                    continue;
+                dataBlocks += extents.blockCount();
+                extentCount += extents.size();
+                extra += extents.size() - 1;
+                possible += extents.blockCount() - 1;
+                if (extents.size() > 1) {
+                    fragmented++;
+                    worst.add(filename);
+                    extraByFile.put(filename, extents.size() - 1);
+                }
+            } catch (IOException e) {
+                Log.warn("Could not read the block map of " + filename, e);
+            } finally {
+                fileLock.readLock().unlock();
             }
+        }
+        worst.sort((a, b) -> Integer.compare(extraByFile.get(b), extraByFile.get(a)));
 
-            //  Update FEntry
-            target.setFirstBlock((short)allocatedBlocks[0]);
-            target.setFilesize((short) contents.length);
+        lock(allocatorLock);
+        try {
+            return new FragmentationReport(files, fragmented, dataBlocks, extentCount, extra, possible,
+                    freeBlockList.freeCount(), freeBlockList.freeRuns(), freeBlockList.largestFreeRun(), worst);
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
 
-            System.out.println("File written: " + filename);
+    // Moves a file's data into one contiguous run, as low on the disk as one is free. When free space is too
+    // fragmented for that, into the longest free runs if that at least halves the file's extents.
+    // Returns false when the file is already contiguous, when there is no such room, or when the file was
+    // rewritten before the move was done. The background defragmenter does the same under its I/O budget.
+    public boolean defragmentFile(String filename) throws Exception {
+        return defragmentFile(filename, 1024 * 1024, bytes -> true);
+    }
 
+    // Relocation in steps of at most stepBytes. The target run is reserved first; each step then copies the next
+    // part of the file under its write lock, points the file's block map at the copy and journals the change
+    // before the old blocks are freed, so a crash leaves the file either on its old or on its new blocks for
+    // every step. Between steps the lock is released and readers and writers of the file go on as usual.
+    boolean defragmentFile(String filename, int stepBytes, Defragmenter.Throttle throttle) throws Exception {
+        ReentrantReadWriteLock fileLock = lockFor(filename);
+        int count;
+        int extentCount;
+        int indexBlocks = 0; // an EXTENTS file gets its final index right behind its data
+        lock(fileLock.readLock());
+        try {
+            int entryIndex = lookupEntry(filename);
+            if (entryIndex == -1)
+                throw new Exception("ERROR: File not found.");
+            FEntry entry = inodeTable[entryIndex];
+            ExtentList extents = dataExtents(entry);
+            if (extents.size() <= 1 || hasSharedBlocks(extents.toBlocks()))
+                return false; // moving a shared block would give the file a private copy, undoing the dedup
+            count = extents.blockCount();
+            extentCount = extents.size();
+            if (entry.getFormat() == BlockMapFormat.EXTENTS)
+                indexBlocks = ExtentList.fromBlocks(new int[]{metadataBlocks}).indexBlocksNeeded(blockSize);
+        } finally {
+            fileLock.readLock().unlock();
+        }
 
-        } catch (Exception e) {
-            for (int b : allocatedBlocks) {
-                if (b > 0) {
-                    freeBlockList[b] = true;
-                    fnodeTable[b].setBlockIndex(-b);
+        // one run when free space allows, otherwise a move must at least halve the extents to be worth its I/O
+        int[] target = tryAllocateRuns(count + indexBlocks, Math.max(1, extentCount / 2));
+        if (target == null)
+            return false;
+        int[] finalIndex = Arrays.copyOfRange(target, count, count + indexBlocks);
+        boolean indexUsed = false;
+        int stepBlocks = Math.max(1, stepBytes / blockSize);
+        byte[] buffer = new byte[Math.min(count, stepBlocks) * blockSize];
+        int moved = 0; // logical blocks [0, moved) already live on target
+        try {
+            while (moved < count) {
+                int step = Math.min(stepBlocks, count - moved);
+                if (!throttle.spend(2L * step * blockSize)) // read and write
+                    return false;
+                long seq;
+                lock(fileLock.writeLock());
+                try {
+                    int entryIndex = lookupEntry(filename);
+                    if (entryIndex == -1)
+                        return false;
+                    FEntry entry = inodeTable[entryIndex];
+                    int[] data = dataExtents(entry).toBlocks();
+                    if (data.length != count || !Arrays.equals(data, 0, moved, target, 0, moved)
+                            || (indexBlocks > 0) != (entry.getFormat() == BlockMapFormat.EXTENTS))
+                        return false; // the file got other blocks (or was converted) since the move started
+
+                    int bytes = step * blockSize;
+                    transferRange(ExtentList.fromBlocks(Arrays.copyOfRange(data, moved, moved + step)), 0, buffer, 0, bytes, false);
+                    transferRange(ExtentList.fromBlocks(Arrays.copyOfRange(target, moved, moved + step)), 0, buffer, 0, bytes, true);
+
+                    MetadataDelta delta = newDelta();
+                    boolean last = moved + step == count;
+                    int[] freed = relocateLocked(entryIndex, entry, data, target, moved, step, last ? finalIndex : null, delta);
+                    indexUsed = last;
+                    seq = journal.append(delta.toBytes());
+                    releaseBlocks(freed);
+                } finally {
+                    fileLock.writeLock().unlock();
                 }
+                commit(seq);
+                moved += step;
+                stats.defragmented(step);
             }
-            throw new RuntimeException(e);
+            stats.defragmentedFile();
+            return true;
+        } finally {
+            if (moved < count)
+                releaseBlocks(Arrays.copyOfRange(target, moved, count));
+            if (!indexUsed)
+                releaseBlocks(finalIndex);
         }
     }
 
-    public byte[] readFile(String filename) throws Exception{
-        //find the FEntry of the specified file
+    // Points logical blocks [from, from + count) of a file at the same blocks of target, the data is already
+    // copied there. An EXTENTS file gets a new index, in the reserved index blocks when given, otherwise allocated.
+    // Returns the blocks the file gave up: the old data blocks, and the old index of an EXTENTS file.
+    private int[] relocateLocked(int entryIndex, FEntry entry, int[] data, int[] target, int from, int count,
+                                 int[] reservedIndex, MetadataDelta delta) throws Exception {
+        int[] oldBlocks = Arrays.copyOfRange(data, from, from + count);
+        int[] newBlocks = Arrays.copyOfRange(target, from, from + count);
+        int[] newData = data.clone();
+        System.arraycopy(newBlocks, 0, newData, from, count);
+        int[] oldIndex = new int[0];
+        int[] newIndex = new int[0];
+
+        if (entry.getFormat() == BlockMapFormat.EXTENTS) {
+            ExtentList extents = ExtentList.fromBlocks(newData);
+            oldIndex = chainBlocks(entry.getFirstBlock());
+            newIndex = reservedIndex != null ? reservedIndex : allocateBlocks(extents.indexBlocksNeeded(blockSize));
+            try {
+                writeIndex(extents, newIndex);
+            } catch (IOException e) {
+                if (reservedIndex == null)
+                    releaseBlocks(newIndex);
+                throw e;
+            }
+            detachBlocks(oldIndex);
+            entry.setFirstBlock(newIndex[0]);
+            entry.setExtents(extents);
+            delta.addEntry(entryIndex, entry);
+        } else {
+            for (int i = from; i < from + count; i++)
+                fnodeTable[newData[i]].setNext(i + 1 < newData.length ? newData[i + 1] : -1);
+            if (from > 0) {
+                fnodeTable[newData[from - 1]].setNext(newData[from]);
+                delta.addNode(newData[from - 1], fnodeTable[newData[from - 1]]);
+            } else {
+                entry.setFirstBlock(newData[0]);
+                delta.addEntry(entryIndex, entry);
+            }
+        }
+        oldBlocks = unreference(oldBlocks); // shared since the move started, stays with its other owners
+        detachBlocks(oldBlocks);
+
+        delta.addNodes(newBlocks, fnodeTable);
+        delta.addNodes(oldBlocks, fnodeTable);
+        delta.addNodes(newIndex, fnodeTable);
+        delta.addNodes(oldIndex, fnodeTable);
+
+        int[] freed = Arrays.copyOf(oldBlocks, oldBlocks.length + oldIndex.length);
+        System.arraycopy(oldIndex, 0, freed, oldBlocks.length, oldIndex.length);
+        return freed;
+    }
+
+    // blocks of deleted files still waiting to be zeroed, they are not free yet
+    public long getPendingScrubBlocks() {
+        return scrubber == null ? 0 : scrubber.getPendingBlocks();
+    }
+
+    // blocks given up while a read that started earlier may still send them, they are not free yet
+    public long getReadPinnedBlocks() {
+        return pins.getDeferredBlocks();
+    }
+
+    public long getScrubbedBlocks() {
+        return scrubber == null ? 0 : scrubber.getScrubbedBlocks();
+    }
+
+    // true when block reference counts are kept, because dedup is on or the disk has shared blocks
+    public boolean isDeduplicating() {
+        return dedup != null;
+    }
+
+    // extra references on shared blocks: how many more blocks the files would take up without dedup
+    public long getSharedBlockReferences() {
+        if (dedup == null)
+            return 0;
+        lock(allocatorLock);
+        try {
+            return dedup.getSharedReferences();
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // blocks whose content new writes can be deduplicated against
+    public int getIndexedBlocks() {
+        if (dedup == null)
+            return 0;
+        lock(allocatorLock);
+        try {
+            return dedup.getIndexedBlocks();
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // counters for monitoring (JMX and the STATS command)
+    public FileSystemStats getStats() {
+        return stats;
+    }
+
+    public long getTotalBlocks() {
+        return maxBlocks;
+    }
+
+    public long getFreeBlocks() {
+        allocatorLock.lock();
+        try {
+            return freeBlockList.freeCount();
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    public int getFileCount() {
+        namespaceLock.readLock().lock();
+        try {
+            return nameIndex.size();
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    // the block cache with its hit/miss/eviction counters, null when the cache is turned off
+    public CachedBlockDevice getBlockCache() {
+        return cache;
+    }
+
+    // Writes the FEntry and FNode tables into the metadata region and empties the journal.
+    // Takes every lock so the tables are a consistent snapshot.
+    public void checkpoint() throws IOException {
+        for (ReentrantReadWriteLock fileLock : fileLocks)
+            lock(fileLock.writeLock());
+        lock(namespaceLock.writeLock());
+        lock(allocatorLock);
+        try {
+            journal.flush();
+            writeMetadata();
+            device.force();
+            journal.reset();
+        } finally {
+            allocatorLock.unlock();
+            namespaceLock.writeLock().unlock();
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--)
+                fileLocks[i].writeLock().unlock();
+        }
+    }
 
-        int fentryIndex = -1;
-        FEntry target = null;
+    // Stops background syncing, checkpoints and releases the disk. The disk can be mounted again afterwards.
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        stopBackgroundWork();
+        checkpoint();
+        closeFiles();
+    }
 
+    private void stopBackgroundWork() {
+        if (syncThread != null) {
+            syncThread.interrupt();
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (defragmenter != null)
+            defragmenter.stop();
+        if (scrubber != null)
+            scrubber.stop();
+        if (parallelIo != null)
+            parallelIo.close();
+        Jmx.unregister(mbeanName);
+    }
 
-        for(int i =0; i<MAXFILES;i++){
-           if (inodeTable[i] != null && inodeTable[i].getFilename() != null &&
-                    inodeTable[i].getFilename().equals(filename)) {
-                fentryIndex=i;
-                target=inodeTable[i];
-                break;
+    // closes what is open of the journal, the device and the disk file, then lets the disk file be mounted again
+    private void closeFiles() throws IOException {
+        try {
+            if (journal != null)
+                journal.close();
+            if (device != null)
+                device.close();
+            if (disk != null)
+                disk.close();
+        } finally {
+            synchronized (FileSystemManager.class) {
+                openDisks.remove(diskPath);
             }
         }
-        if(target==null)
-            throw new Exception("ERROR: File not found.");
+    }
 
-        //create buffer that holds file data
-        int fileSize = target.getFilesize();
-        byte[] data= new byte[fileSize];
+    // ---- helpers ----
+
+    private void startSyncThread() {
+        syncThread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(config.getSyncIntervalMillis());
+                    journal.flush();
+                    if (journal.size() > CHECKPOINT_THRESHOLD)
+                        checkpoint();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.error("Periodic journal sync failed", e);
+                }
+            }
+        }, "fs-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
 
-        int blockIndex = target.getFirstBlock();
-        int offset = 0;
+    // started once mounting is done, picks up the blocks a previous run left unscrubbed
+    private void startScrubber() {
+        scrubber = new BlockScrubber(device, blockSize, this::scrubbed);
+        scrubber.start();
+        int pending = 0;
+        for (int i = metadataBlocks; i < maxBlocks; i++)
+            if (fnodeTable[i].isScrubPending())
+                pending++;
+        int[] blocks = new int[pending];
+        pending = 0;
+        for (int i = metadataBlocks; i < maxBlocks; i++)
+            if (fnodeTable[i].isScrubPending())
+                blocks[pending++] = i;
+        scrubber.submit(blocks);
+    }
+
+    // blocks of a deleted file, after the delete is journaled
+    private void freeDeletedBlocks(int[] blocks) throws IOException {
+        if (scrubber == null)
+            releaseBlocks(blocks);
+        else if (!pins.defer(blocks, true))
+            scrubber.submit(blocks);
+    }
 
-        if (target.getFirstBlock() == -1) {
-            return new byte[0]; // empty file
+    // Called by the scrubber once the blocks are zeroed on the device: the clean state is journaled
+    // before the blocks go back to the allocator, so their next owner's record always comes after ours.
+    // Only waits for the journal itself, never for a checkpoint, so it can't block behind a client holding file locks.
+    private void scrubbed(int[] blocks) throws IOException {
+        MetadataDelta delta = newDelta();
+        lock(allocatorLock);
+        try {
+            for (int b : blocks)
+                fnodeTable[b].setNext(-1);
+            delta.addNodes(blocks, fnodeTable);
+        } finally {
+            allocatorLock.unlock();
         }
+        long seq = journal.append(delta.toBytes());
+        returnBlocks(blocks); // no read can be sending them, they waited for that before the scrubber got them
+        if (config.getSyncPolicy() == SyncPolicy.PER_OP)
+            journal.commit(seq);
+    }
+
+    private MetadataDelta newDelta() {
+        return new MetadataDelta(formatVersion, FNODESIZE);
+    }
+
+    // Waits for the journal record to be durable when the sync policy asks for it,
+    // then compacts the journal if it got too long.
+    private void commit(long seq) throws IOException {
+        if (config.getSyncPolicy() == SyncPolicy.PER_OP)
+            journal.commit(seq);
+        if (journal.size() + journal.pendingSize() > CHECKPOINT_THRESHOLD)
+            checkpoint();
+    }
+
+    private void writeMetadata() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(metadataBlocks * blockSize);
+        new Superblock(formatVersion, blockSize, maxBlocks, maxFiles).writeTo(buffer);
+        for (FEntry entry : inodeTable)
+            entry.writeTo(buffer, formatVersion);
+        for (int i = metadataBlocks; i < maxBlocks; i++)
+            fnodeTable[i].writeTo(buffer);
+        writeBlock(0, buffer.array(), 0, buffer.capacity());
+    }
+
+    private void readMetadata() throws IOException {
+        byte[] region = new byte[metadataBlocks * blockSize];
+        readBlock(0, region, 0, region.length);
+        ByteBuffer buffer = ByteBuffer.wrap(region);
+        buffer.position(new Superblock(formatVersion, blockSize, maxBlocks, maxFiles).size());
+        for (int i = 0; i < maxFiles; i++)
+            inodeTable[i] = FEntry.readFrom(buffer, formatVersion);
+        for (int i = metadataBlocks; i < maxBlocks; i++)
+            fnodeTable[i].readFrom(buffer, i);
+    }
 
-        while (blockIndex >= 1 && blockIndex < MAXBLOCKS && offset < fileSize) {
-            disk.seek(blockIndex * BLOCK_SIZE);
-            int bytesToRead = Math.min(BLOCK_SIZE, fileSize - offset);
-            disk.readFully(data, offset, bytesToRead);
+    // disks from before the superblock: FEntry table at offset 0 followed by an FNode for every block
+    private void readLegacyMetadata() throws IOException {
+        byte[] region = new byte[LEGACY_MAXFILES * LEGACY_FENTRYSIZE + LEGACY_MAXBLOCKS * FNODESIZE];
+        readBlock(0, region, 0, region.length);
+        ByteBuffer buffer = ByteBuffer.wrap(region);
+        for (int i = 0; i < maxFiles; i++)
+            inodeTable[i] = FEntry.readFrom(buffer, Superblock.VERSION_1);
+        for (int i = 0; i < maxBlocks; i++)
+            fnodeTable[i].readFrom(buffer, i);
+        for (int i = 0; i < metadataBlocks; i++)
+            fnodeTable[i] = new FNode(-i);
+    }
 
-            offset += bytesToRead;
-            blockIndex = fnodeTable[blockIndex].getNext(); // move to next block
+    // Takes the lock, recording how long it had to wait. The uncontended case is a plain tryLock,
+    // so only acquisitions that actually waited pay for the clock reads.
+    private void lock(Lock lock) {
+        if (lock.tryLock())
+            return;
+        long start = System.nanoTime();
+        lock.lock();
+        stats.lockWaited(System.nanoTime() - start);
+    }
+
+    private ReentrantReadWriteLock lockFor(String filename) {
+        return fileLocks[stripeOf(filename)];
+    }
+
+    private static int stripeOf(String filename) {
+        return (filename.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    // finds the FEntry index of a file under the namespace read lock, -1 if missing
+    private int lookupEntry(String filename) {
+        lock(namespaceLock.readLock());
+        try {
+            return findEntry(filename);
+        } finally {
+            namespaceLock.readLock().unlock();
         }
+    }
 
-        return data;
+    // caller must hold namespaceLock
+    private int findEntry(String filename) {
+        Integer slot = nameIndex.get(filename);
+        return slot == null ? -1 : slot;
+    }
 
+    private void setGeometry(Superblock superblock) {
+        // the largest block index must still fit firstBlock in its EXTENTS encoding -(b + 2)
+        int addressable = superblock.getVersion() == Superblock.VERSION_1 ? Short.MAX_VALUE : Integer.MAX_VALUE - 2;
+        if (superblock.getMaxBlocks() > addressable)
+            throw new IllegalArgumentException("ERROR: at most " + addressable + " blocks are addressable, got "
+                    + superblock.getMaxBlocks());
+        formatVersion = superblock.getVersion();
+        blockSize = superblock.getBlockSize();
+        maxBlocks = superblock.getMaxBlocks();
+        maxFiles = superblock.getMaxFiles();
+        metadataBlocks = superblock.metadataBlocks(FNODESIZE);
+        if (metadataBlocks >= maxBlocks)
+            throw new IllegalArgumentException("ERROR: disk too small, the metadata alone needs " + metadataBlocks
+                    + " of " + maxBlocks + " blocks");
+    }
+
+    // Moves an older disk to the current format. The wider FEntry records may need more metadata blocks,
+    // which is only possible when the blocks right after the metadata region are free, otherwise the disk
+    // keeps its version: 32767 byte files for version 1, no compression for versions before 3.
+    // Runs while mounting, before any client is served.
+    private boolean upgradeFormat(String filename) throws IOException {
+        int needed = new Superblock(Superblock.CURRENT_VERSION, blockSize, maxBlocks, maxFiles).metadataBlocks(FNODESIZE);
+        if (needed >= maxBlocks)
+            return false;
+        for (int i = metadataBlocks; i < needed; i++) {
+            if (!freeBlockList.isFree(i)) {
+                Log.info("Keeping " + filename + " in format version " + formatVersion + ", block " + i + " is in use, "
+                        + (formatVersion == Superblock.VERSION_1 ? "files stay limited to " + Short.MAX_VALUE + " bytes"
+                        : "files can't be compressed"));
+                return false;
+            }
+        }
 
+        checkpoint(); // empties the journal while its records still use the old FEntry layout
+        for (int i = metadataBlocks; i < needed; i++) {
+            freeBlockList.setUsed(i);
+            fnodeTable[i] = new FNode(-i);
+        }
+        metadataBlocks = needed;
+        formatVersion = Superblock.CURRENT_VERSION;
+        checkpoint();
+        return true;
     }
-    public String[] listFiles(){
-        // count existing files
-        int count = 0;
-        for (FEntry entry : inodeTable) {
-            if (entry != null && entry.getFilename() != null)
-                count++;
+
+    // largest file the disk format can describe, the free space check happens when blocks are allocated
+    private void checkFileSize(long size) throws Exception {
+        long limit = formatVersion == Superblock.VERSION_1 ? Short.MAX_VALUE : (long) maxBlocks * blockSize;
+        if (size > limit)
+            throw new Exception("ERROR: file too large.");
+    }
+
+    // rebuilds the name index and free slot stack from inodeTable after mounting
+    private void rebuildIndexes() {
+        nameIndex.clear();
+        freeSlots = new int[maxFiles];
+        freeSlotCount = 0;
+        for (int i = maxFiles - 1; i >= 0; i--) { // pushed in reverse so low slots are handed out first
+            String name = inodeTable[i].getFilename();
+            if (name == null)
+                freeSlots[freeSlotCount++] = i;
+        }
+        for (int i = 0; i < maxFiles; i++) {
+            String name = inodeTable[i].getFilename();
+            if (name != null)
+                nameIndex.put(name, i);
         }
+    }
 
-        // fill array with names
-        String[] files = new String[count];
-        int index = 0;
+    // Counts the owners of every data block after mounting. Only EXTENTS files can share blocks. A disk with
+    // shared blocks keeps its reference counts even when mounted without dedup, so that deleting one file never
+    // frees blocks another one still reads. Used blocks no file points at are freed as well: blocks reserved by a
+    // staged stream or a defragmenter move are marked used in a checkpoint taken before they got their file, and
+    // in dedup mode a write that reused a block and the delete of its previous owner can be split by a crash.
+    private void rebuildReferences() throws IOException {
+        DedupIndex references = new DedupIndex(maxBlocks, config.isDedup());
+        boolean[] owned = new boolean[maxBlocks];
         for (FEntry entry : inodeTable) {
-            if (entry != null && entry.getFilename() != null)
-                files[index++] = entry.getFilename();
+            if (entry.getFilename() == null || entry.getFirstBlock() < metadataBlocks)
+                continue;
+            for (int b : fileBlocks(entry)) {
+                if (owned[b])
+                    references.addReference(b);
+                owned[b] = true;
+            }
+        }
+        int leaked = 0;
+        for (int i = metadataBlocks; i < maxBlocks; i++) {
+            if (fnodeTable[i].isUsed() && !owned[i]) {
+                fnodeTable[i].setNext(-1);
+                fnodeTable[i].setBlockIndex(-i);
+                freeBlockList.setFree(i);
+                leaked++;
+            }
+        }
+        if (leaked > 0)
+            Log.info("Freed " + leaked + " blocks that no file points at");
+        if (!config.isDedup() && references.getSharedReferences() > 0) {
+            Log.info("Keeping reference counts for " + references.getSharedReferences()
+                    + " shared block references, dedup is off for new writes");
+        }
+        dedup = config.isDedup() || references.getSharedReferences() > 0 ? references : null;
+    }
+
+    // Reserves count free blocks, contiguous when the bitmap finds a long enough run. When the disk is
+    // short only because deleted blocks are still waiting for the scrubber, waits for it and tries again.
+    private int[] allocateBlocks(int count) throws Exception {
+        int[] blocks = tryAllocateBlocks(count);
+        if (blocks == null && scrubber != null && scrubber.getPendingBlocks() > 0) {
+            scrubber.awaitIdle();
+            blocks = tryAllocateBlocks(count);
+        }
+        if (blocks == null)
+            throw new Exception("ERROR: Not enough free blocks.");
+        return blocks;
+    }
+
+    private int[] tryAllocateBlocks(int count) {
+        lock(allocatorLock);
+        try {
+            //the bitmap keeps its free count, no need to count free blocks first
+            int[] blocks = freeBlockList.allocate(count);
+            if (blocks == null)
+                return null;
+
+            for (int b : blocks) {
+                fnodeTable[b].setBlockIndex(b); // mark block as used by making it positive
+                fnodeTable[b].setNext(-1);
+            }
+            return blocks;
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // reserves count blocks in at most maxRuns runs for the defragmenter, null if they don't fit
+    private int[] tryAllocateRuns(int count, int maxRuns) {
+        lock(allocatorLock);
+        try {
+            int[] blocks = freeBlockList.allocateRuns(count, maxRuns);
+            if (blocks == null)
+                return null;
+            for (int b : blocks) {
+                fnodeTable[b].setBlockIndex(b);
+                fnodeTable[b].setNext(-1);
+            }
+            return blocks;
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // gives blocks back to the allocator, once no read that may still be sending them is running
+    private void releaseBlocks(int[] blocks) throws IOException {
+        if (!pins.defer(blocks, false))
+            returnBlocks(blocks);
+    }
+
+    private void returnBlocks(int[] blocks) throws IOException {
+        // freed blocks leave the cache so it keeps room for live data
+        if (cache != null) {
+            ExtentList runs = ExtentList.fromBlocks(blocks);
+            for (int i = 0; i < runs.size(); i++)
+                cache.invalidate((long) runs.getStart(i) * blockSize, (long) runs.getLength(i) * blockSize);
+        }
+        lock(allocatorLock);
+        try {
+            for (int b : blocks) {
+                freeBlockList.setFree(b);
+                fnodeTable[b].setNext(-1);
+                fnodeTable[b].setBlockIndex(-b);
+                if (dedup != null)
+                    dedup.freed(b);
+            }
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // Drops a file's reference on each block it gives up and returns the blocks no file references any more,
+    // only those may be detached and freed. Without shared blocks that is all of them.
+    private int[] unreference(int[] blocks) {
+        if (dedup == null)
+            return blocks;
+        int[] last = new int[blocks.length];
+        int count = 0;
+        lock(allocatorLock);
+        try {
+            for (int b : blocks)
+                if (dedup.dropReference(b))
+                    last[count++] = b;
+        } finally {
+            allocatorLock.unlock();
+        }
+        return count == blocks.length ? blocks : Arrays.copyOf(last, count);
+    }
+
+    // Gives back the references a failed write took on blocks that were already on disk. When all other owners
+    // were deleted in the meantime nobody frees a block but us, so it is detached with a record of its own.
+    private void abandon(int[] reused) throws IOException {
+        int[] orphaned = unreference(reused);
+        if (orphaned.length == 0)
+            return;
+        detachBlocks(orphaned);
+        if (scrubber != null) {
+            for (int b : orphaned)
+                fnodeTable[b].setNext(FNode.SCRUB_PENDING);
+        }
+        MetadataDelta delta = newDelta();
+        delta.addNodes(orphaned, fnodeTable);
+        journal.append(delta.toBytes());
+        freeDeletedBlocks(orphaned);
+    }
+
+    private boolean hasSharedBlocks(int[] blocks) {
+        if (dedup == null)
+            return false;
+        lock(allocatorLock);
+        try {
+            for (int b : blocks)
+                if (dedup.isShared(b))
+                    return true;
+            return false;
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
+
+    // Marks the FNodes of blocks a file gives up as free. The bitmap is left alone so the blocks
+    // can't be handed out again before releaseBlocks() runs after the change is journaled.
+    // Caller must own the blocks (hold the file's write lock).
+    private void detachBlocks(int[] blocks) {
+        for (int blockIndex : blocks) {
+            //set next as -1, and FNode block index to negative value
+            fnodeTable[blockIndex].setNext(-1);
+            fnodeTable[blockIndex].setBlockIndex(-blockIndex);
+        }
+    }
+
+    // blocks of an FNode chain in chain order
+    private int[] chainBlocks(int firstBlock) {
+        int count = 0;
+        for (int b = firstBlock; b >= metadataBlocks && b < maxBlocks; b = fnodeTable[b].getNext())
+            count++;
+
+        int[] blocks = new int[count];
+        int blockIndex = firstBlock;
+        for (int i = 0; i < count; i++) {
+            blocks[i] = blockIndex;
+            blockIndex = fnodeTable[blockIndex].getNext();
+        }
+        return blocks;
+    }
+
+    private void linkChain(int[] blocks) {
+        //link FNode chain, last block points to -1
+        for (int i = 0; i < blocks.length; i++)
+            fnodeTable[blocks[i]].setNext(i + 1 < blocks.length ? blocks[i + 1] : -1);
+    }
+
+    // Data blocks of a file in file order. For an EXTENTS file the index blocks are read once
+    // and cached on the FEntry. Caller holds the file lock.
+    private ExtentList dataExtents(FEntry entry) throws IOException {
+        if (entry.getFirstBlock() < metadataBlocks)
+            return ExtentList.empty();
+        if (entry.getFormat() == BlockMapFormat.CHAINED)
+            return ExtentList.fromBlocks(chainBlocks(entry.getFirstBlock()));
+
+        ExtentList extents = entry.getExtents();
+        if (extents == null) {
+            int[] index = chainBlocks(entry.getFirstBlock());
+            byte[][] indexData = new byte[index.length][blockSize];
+            for (int i = 0; i < index.length; i++)
+                readBlock(index[i], indexData[i], 0, blockSize);
+            extents = ExtentList.readIndexBlocks(indexData);
+            entry.setExtents(extents);
+        }
+        return extents;
+    }
+
+    // every block a file owns: its data blocks, plus the index blocks of an EXTENTS file
+    private int[] fileBlocks(FEntry entry) throws IOException {
+        if (entry.getFirstBlock() < metadataBlocks)
+            return new int[0];
+        if (entry.getFormat() == BlockMapFormat.CHAINED)
+            return chainBlocks(entry.getFirstBlock());
+
+        int[] data = dataExtents(entry).toBlocks();
+        int[] index = chainBlocks(entry.getFirstBlock());
+        int[] blocks = Arrays.copyOf(data, data.length + index.length);
+        System.arraycopy(index, 0, blocks, data.length, index.length);
+        return blocks;
+    }
+
+    // writes the extent list into the index blocks and chains them through their FNodes
+    private void writeIndex(ExtentList extents, int[] indexBlocks) throws IOException {
+        writeIndexBlocks(extents, indexBlocks);
+        linkChain(indexBlocks);
+    }
+
+    private void writeIndexBlocks(ExtentList extents, int[] indexBlocks) throws IOException {
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < indexBlocks.length; i++) {
+            extents.writeIndexBlock(i, block);
+            writeBlock(indexBlocks[i], block, 0, blockSize);
+        }
+    }
+
+    // Reads len bytes of a file starting at offset into buf. A compressed file only reads and inflates the
+    // frames the range overlaps; chunks wanted whole are inflated straight into buf. Caller holds the file lock.
+    private void readRange(FEntry target, long offset, byte[] buf, int off, int len) throws IOException {
+        if (!target.isCompressed()) {
+            transferRange(dataExtents(target), offset, buf, off, len, false);
+            return;
+        }
+        if (len == 0)
+            return;
+        ExtentList extents = dataExtents(target);
+        FrameTable frames = frameTable(target, extents);
+        byte[] frame = new byte[frames.getChunkSize()];
+        byte[] chunk = null;
+        while (len > 0) {
+            int i = frames.chunkOf(offset);
+            int within = (int) (offset - frames.getChunkStart(i));
+            int n = Math.min(len, frames.getChunkLength(i) - within);
+            if (n == frames.getChunkLength(i)) {
+                readChunk(frames, extents, i, frame, buf, off);
+            } else {
+                if (chunk == null)
+                    chunk = new byte[frames.getChunkSize()];
+                readChunk(frames, extents, i, frame, chunk, 0);
+                System.arraycopy(chunk, within, buf, off, n);
+            }
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Hands length bytes of a file starting at offset to a sink, frames is null unless the file is compressed.
+    // Frames are inflated one chunk at a time and always copied, the disk file doesn't hold the bytes the sink wants.
+    private void sendFileRange(ExtentList extents, FrameTable frames, long offset, long length, FileSink sink) throws IOException {
+        if (frames == null) {
+            sendRange(extents, offset, length, sink);
+            return;
+        }
+        byte[] frame = new byte[frames.getChunkSize()];
+        byte[] chunk = new byte[frames.getChunkSize()];
+        while (length > 0) {
+            int i = frames.chunkOf(offset);
+            int within = (int) (offset - frames.getChunkStart(i));
+            int n = (int) Math.min(length, frames.getChunkLength(i) - within);
+            readChunk(frames, extents, i, frame, chunk, 0);
+            sink.write(chunk, within, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // puts the original bytes of chunk i at dst[dstOffset], frame is scratch space of at least one chunk
+    private void readChunk(FrameTable frames, ExtentList extents, int i, byte[] frame, byte[] dst, int dstOffset) throws IOException {
+        int length = frames.getChunkLength(i);
+        if (frames.isRaw(i)) {
+            transferRange(extents, frames.getFrameOffset(i), dst, dstOffset, length, false);
+            return;
+        }
+        transferRange(extents, frames.getFrameOffset(i), frame, 0, frames.getFrameLength(i), false);
+        FrameCodec.inflate(frame, 0, frames.getFrameLength(i), dst, dstOffset, length);
+        stats.inflated(length);
+    }
+
+    // The frame table of a compressed file, read once and cached on the FEntry like its extents.
+    // Caller holds the file lock.
+    private FrameTable frameTable(FEntry target, ExtentList extents) throws IOException {
+        FrameTable frames = target.getFrames();
+        if (frames == null) {
+            byte[] fixed = new byte[FrameTable.FIXED_HEADER_BYTES];
+            transferRange(extents, 0, fixed, 0, fixed.length, false);
+            byte[] header = new byte[FrameTable.headerBytes(FrameTable.readCount(fixed))];
+            transferRange(extents, 0, header, 0, header.length, false);
+            frames = FrameTable.readHeader(header, target.getOriginalSize());
+            target.setFrames(frames);
         }
+        return frames;
+    }
+
+    // Moves len bytes between buf and the file range starting at fileOffset, one device call per extent
+    // the range crosses. The range must lie inside the extents. Large ranges are spread over the I/O threads.
+    private void transferRange(ExtentList extents, long fileOffset, byte[] buf, int off, int len, boolean write) throws IOException {
+        if (parallelIo != null && len >= config.getParallelIoMinBytes()) {
+            parallelIo.transfer(extents, fileOffset, buf, off, len, write);
+            return;
+        }
+        while (len > 0) {
+            int logicalBlock = (int) (fileOffset / blockSize);
+            int extent = extents.extentOf(logicalBlock);
+            long position = (long) (extents.getStart(extent) + (logicalBlock - extents.getLogicalStart(extent))) * blockSize
+                    + fileOffset % blockSize;
+            long extentEnd = (long) (extents.getLogicalStart(extent) + extents.getLength(extent)) * blockSize;
+            int n = (int) Math.min(len, extentEnd - fileOffset);
+            if (write)
+                device.write(position, buf, off, n);
+            else
+                device.read(position, buf, off, n);
+            fileOffset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Hands length bytes of the file starting at fileOffset to a sink. A ChannelSink gets each contiguous run
+    // as a region of the disk file when nothing newer sits in a write-back cache, other sinks get block
+    // sized chunks copied through a buffer.
+    private void sendRange(ExtentList extents, long fileOffset, long length, FileSink sink) throws IOException {
+        if (sink instanceof ChannelSink && (cache == null || config.getCacheWriteMode() == CacheWriteMode.WRITE_THROUGH)) {
+            ChannelSink channelSink = (ChannelSink) sink;
+            while (length > 0) {
+                int logicalBlock = (int) (fileOffset / blockSize);
+                int extent = extents.extentOf(logicalBlock);
+                long position = (long) (extents.getStart(extent) + (logicalBlock - extents.getLogicalStart(extent))) * blockSize
+                        + fileOffset % blockSize;
+                long extentEnd = (long) (extents.getLogicalStart(extent) + extents.getLength(extent)) * blockSize;
+                long n = Math.min(length, extentEnd - fileOffset);
+                channelSink.transfer(disk.getChannel(), position, n);
+                stats.zeroCopied(n);
+                fileOffset += n;
+                length -= n;
+            }
+            return;
+        }
+        byte[] chunk = new byte[(int) Math.min(length, (long) blockSize * STREAM_CHUNK_BLOCKS)];
+        long done = 0;
+        while (done < length) {
+            int n = (int) Math.min(chunk.length, length - done);
+            transferRange(extents, fileOffset + done, chunk, 0, n, false);
+            sink.write(chunk, 0, n);
+            done += n;
+        }
+    }
+
+    // Copies length bytes from the stream into the file starting at fileOffset. With I/O threads the chunks
+    // are big enough for transferRange to spread them out.
+    private void copyIntoRange(ExtentList extents, long fileOffset, InputStream in, long length) throws IOException {
+        int chunkBytes = blockSize * STREAM_CHUNK_BLOCKS;
+        if (parallelIo != null)
+            chunkBytes = Math.max(chunkBytes, config.getParallelIoMinBytes());
+        byte[] chunk = new byte[(int) Math.min(length, chunkBytes)];
+        long done = 0;
+        while (done < length) {
+            int n = (int) Math.min(chunk.length, length - done);
+            int read = 0;
+            while (read < n) {
+                int r = in.read(chunk, read, n - read);
+                if (r < 0)
+                    throw new EOFException("ERROR: stream ended before " + length + " bytes were written.");
+                read += r;
+            }
+            transferRange(extents, fileOffset + done, chunk, 0, n, true);
+            done += n;
+        }
+    }
+
+    private void zeroRange(ExtentList extents, long fileOffset, long length) throws IOException {
+        byte[] zeros = new byte[(int) Math.min(length, (long) blockSize * 64)];
+        long done = 0;
+        while (done < length) {
+            int n = (int) Math.min(zeros.length, length - done);
+            transferRange(extents, fileOffset + done, zeros, 0, n, true);
+            done += n;
+        }
+    }
+
+    // the whole stream in one array, for a write that has to compress it
+    private static byte[] readFully(InputStream in, long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IOException("ERROR: file too large to store compressed.");
+        byte[] data = new byte[(int) length];
+        readFully(in, data, 0, data.length);
+        return data;
+    }
+
+    private static void readFully(InputStream in, byte[] dst, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(dst, offset + read, length - read);
+            if (n < 0)
+                throw new EOFException("ERROR: stream ended before " + length + " bytes were written.");
+            read += n;
+        }
+    }
+
+    // writes length bytes of a file, one device write per extent
+    private void writeExtents(ExtentList extents, byte[] src, int length) throws IOException {
+        transferRange(extents, 0, src, 0, length, true);
+    }
+
+    // fills the extents with length bytes read from the stream
+    private void streamExtents(ExtentList extents, InputStream in, long length) throws IOException {
+        byte[] chunk = new byte[blockSize * Math.min(STREAM_CHUNK_BLOCKS, Math.max(1, extents.blockCount()))];
+        long remaining = length;
+        for (int i = 0; i < extents.size() && remaining > 0; i++) {
+            long position = (long) extents.getStart(i) * blockSize;
+            long runBytes = Math.min((long) extents.getLength(i) * blockSize, remaining);
+            while (runBytes > 0) {
+                int bytes = (int) Math.min(chunk.length, runBytes);
+                int read = 0;
+                while (read < bytes) {
+                    int n = in.read(chunk, read, bytes - read);
+                    if (n < 0)
+                        throw new EOFException("ERROR: stream ended before " + length + " bytes were written.");
+                    read += n;
+                }
+                device.write(position, chunk, 0, bytes);
+                position += bytes;
+                runBytes -= bytes;
+                remaining -= bytes;
+            }
+        }
+    }
+
+    private void writeBlock(int blockIndex, byte[] src, int offset, int length) throws IOException {
+        device.write((long) blockIndex * blockSize, src, offset, length);
+    }
 
-        return files;
+    private void readBlock(int blockIndex, byte[] dst, int offset, int length) throws IOException {
+        device.read((long) blockIndex * blockSize, dst, offset, length);
     }
 }
@@ -0,0 +1,320 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.CachedBlockDevice;
+import ca.concordia.filesystem.device.CountingBlockDevice;
+import ca.concordia.metrics.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of one FileSystemManager. Most are read from the parts that keep them (disk, journal, cache),
+// lock waits are recorded by the manager when an acquisition was contended. Exposed through JMX and STATS.
+public class FileSystemStats implements FileSystemStatsMBean {
+
+    private final FileSystemManager fs;
+    private final CountingBlockDevice disk;
+    private final MetadataJournal journal;
+    private final CachedBlockDevice cache; // null when the block cache is off
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+    private final LongAdder zeroCopyTransfers = new LongAdder();
+    private final LongAdder zeroCopyBytes = new LongAdder();
+    private final LongAdder defragFiles = new LongAdder();
+    private final LongAdder defragBlocks = new LongAdder();
+    private final LongAdder dedupHashedBlocks = new LongAdder();
+    private final LongAdder dedupHashNanos = new LongAdder();
+    private final LongAdder dedupHits = new LongAdder();
+    private final LongAdder dedupBytesSaved = new LongAdder();
+    private final LongAdder compressBytesIn = new LongAdder();
+    private final LongAdder compressBytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder inflatedFrames = new LongAdder();
+    private final LongAdder inflatedBytes = new LongAdder();
+
+    FileSystemStats(FileSystemManager fs, CountingBlockDevice disk, MetadataJournal journal, CachedBlockDevice cache) {
+        this.fs = fs;
+        this.disk = disk;
+        this.journal = journal;
+        this.cache = cache;
+    }
+
+    void lockWaited(long nanos) {
+        lockWaits.record(nanos);
+    }
+
+    // a run of the disk file went straight to a ChannelSink, these bytes don't show up in disk.bytes_read
+    void zeroCopied(long bytes) {
+        zeroCopyTransfers.increment();
+        zeroCopyBytes.add(bytes);
+    }
+
+    void defragmented(long blocks) {
+        defragBlocks.add(blocks);
+    }
+
+    void defragmentedFile() {
+        defragFiles.increment();
+    }
+
+    // a deduplicated whole-file write: blocks hashed, blocks that reused a block instead of being written
+    void deduplicated(long hashedBlocks, long hits, long bytesSaved, long hashNanos) {
+        dedupHashedBlocks.add(hashedBlocks);
+        dedupHits.add(hits);
+        dedupBytesSaved.add(bytesSaved);
+        dedupHashNanos.add(hashNanos);
+    }
+
+    // a write of a compressed file: original bytes, bytes stored (frame table included), time spent deflating
+    void compressed(long originalBytes, long storedBytes, long nanos) {
+        compressBytesIn.add(originalBytes);
+        compressBytesOut.add(storedBytes);
+        compressNanos.add(nanos);
+    }
+
+    // one frame inflated by a read of a compressed file
+    void inflated(long bytes) {
+        inflatedFrames.increment();
+        inflatedBytes.add(bytes);
+    }
+
+    // every counter by name, in a stable order
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("fs.blocks.total", getTotalBlocks());
+        stats.put("fs.blocks.free", getFreeBlocks());
+        stats.put("fs.blocks.scrub_pending", getPendingScrubBlocks());
+        stats.put("fs.blocks.read_pinned", getReadPinnedBlocks());
+        stats.put("fs.files", getFiles());
+        stats.put("fs.files.max", getMaxFiles());
+        FragmentationReport fragmentation = fs.getFragmentation();
+        stats.put("fs.frag.files", fragmentation.getFragmentedFiles());
+        stats.put("fs.frag.extents", fragmentation.getExtents());
+        stats.put("fs.frag.score", String.format("%.1f", fragmentation.getFileScore()));
+        stats.put("fs.frag.free_runs", fragmentation.getFreeRuns());
+        stats.put("fs.frag.largest_free_run", fragmentation.getLargestFreeRun());
+        stats.put("fs.frag.free_score", String.format("%.1f", fragmentation.getFreeSpaceScore()));
+        stats.put("fs.defrag.files", getDefragFiles());
+        stats.put("fs.defrag.blocks", getDefragBlocks());
+        if (fs.isDeduplicating()) {
+            stats.put("fs.dedup.hashed_blocks", getDedupHashedBlocks());
+            stats.put("fs.dedup.hash_nanos", getDedupHashNanos());
+            stats.put("fs.dedup.hits", getDedupHits());
+            stats.put("fs.dedup.bytes_saved", getDedupBytesSaved());
+            stats.put("fs.dedup.shared_references", getDedupSharedReferences());
+            stats.put("fs.dedup.indexed_blocks", getDedupIndexedBlocks());
+        }
+        stats.put("fs.compress.bytes_in", getCompressBytesIn());
+        stats.put("fs.compress.bytes_out", getCompressBytesOut());
+        stats.put("fs.compress.nanos", getCompressNanos());
+        stats.put("fs.compress.frames_inflated", getInflatedFrames());
+        stats.put("fs.compress.bytes_inflated", getInflatedBytes());
+        stats.put("fs.lock.waits", getLockWaits());
+        stats.put("fs.lock.wait_nanos", getLockWaitNanos());
+        stats.put("fs.lock.wait", getLockWaitLatency());
+        stats.put("disk.reads", getDiskReads());
+        stats.put("disk.writes", getDiskWrites());
+        stats.put("disk.bytes_read", getDiskBytesRead());
+        stats.put("disk.bytes_written", getDiskBytesWritten());
+        stats.put("disk.forces", getDiskForces());
+        stats.put("disk.zero_copy_transfers", getZeroCopyTransfers());
+        stats.put("disk.zero_copy_bytes", getZeroCopyBytes());
+        stats.put("journal.commits", getJournalCommits());
+        stats.put("journal.records", getJournalRecords());
+        if (cache != null) {
+            stats.put("cache.hits", getCacheHits());
+            stats.put("cache.misses", getCacheMisses());
+            stats.put("cache.evictions", getCacheEvictions());
+        }
+        return stats;
+    }
+
+    @Override
+    public long getTotalBlocks() {
+        return fs.getTotalBlocks();
+    }
+
+    @Override
+    public long getFreeBlocks() {
+        return fs.getFreeBlocks();
+    }
+
+    @Override
+    public int getFiles() {
+        return fs.getFileCount();
+    }
+
+    @Override
+    public int getMaxFiles() {
+        return fs.getMaxFiles();
+    }
+
+    @Override
+    public double getFragmentationScore() {
+        return fs.getFragmentation().getFileScore();
+    }
+
+    @Override
+    public double getFreeSpaceFragmentationScore() {
+        return fs.getFragmentation().getFreeSpaceScore();
+    }
+
+    @Override
+    public String getFragmentation() {
+        return fs.getFragmentation().toString();
+    }
+
+    @Override
+    public long getDefragFiles() {
+        return defragFiles.sum();
+    }
+
+    @Override
+    public long getDefragBlocks() {
+        return defragBlocks.sum();
+    }
+
+    @Override
+    public long getDedupHashedBlocks() {
+        return dedupHashedBlocks.sum();
+    }
+
+    @Override
+    public long getDedupHashNanos() {
+        return dedupHashNanos.sum();
+    }
+
+    @Override
+    public long getDedupHits() {
+        return dedupHits.sum();
+    }
+
+    @Override
+    public long getDedupBytesSaved() {
+        return dedupBytesSaved.sum();
+    }
+
+    @Override
+    public long getDedupSharedReferences() {
+        return fs.getSharedBlockReferences();
+    }
+
+    @Override
+    public int getDedupIndexedBlocks() {
+        return fs.getIndexedBlocks();
+    }
+
+    @Override
+    public long getCompressBytesIn() {
+        return compressBytesIn.sum();
+    }
+
+    @Override
+    public long getCompressBytesOut() {
+        return compressBytesOut.sum();
+    }
+
+    @Override
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    @Override
+    public long getInflatedFrames() {
+        return inflatedFrames.sum();
+    }
+
+    @Override
+    public long getInflatedBytes() {
+        return inflatedBytes.sum();
+    }
+
+    @Override
+    public long getLockWaits() {
+        return lockWaits.getCount();
+    }
+
+    @Override
+    public long getLockWaitNanos() {
+        return lockWaits.getTotalNanos();
+    }
+
+    @Override
+    public String getLockWaitLatency() {
+        return lockWaits.summary();
+    }
+
+    @Override
+    public long getDiskReads() {
+        return disk.getReads();
+    }
+
+    @Override
+    public long getDiskWrites() {
+        return disk.getWrites();
+    }
+
+    @Override
+    public long getDiskBytesRead() {
+        return disk.getBytesRead();
+    }
+
+    @Override
+    public long getDiskBytesWritten() {
+        return disk.getBytesWritten();
+    }
+
+    @Override
+    public long getDiskForces() {
+        return disk.getForces();
+    }
+
+    @Override
+    public long getZeroCopyTransfers() {
+        return zeroCopyTransfers.sum();
+    }
+
+    @Override
+    public long getZeroCopyBytes() {
+        return zeroCopyBytes.sum();
+    }
+
+    @Override
+    public long getJournalCommits() {
+        return journal.getGroupCommits();
+    }
+
+    @Override
+    public long getJournalRecords() {
+        return journal.getRecordsCommitted();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    @Override
+    public long getPendingScrubBlocks() {
+        return fs.getPendingScrubBlocks();
+    }
+
+    @Override
+    public long getReadPinnedBlocks() {
+        return fs.getReadPinnedBlocks();
+    }
+
+    @Override
+    public void resetLockWaits() {
+        lockWaits.reset();
+    }
+}
@@ -0,0 +1,89 @@
+package ca.concordia.filesystem;
+
+// JMX view of a mounted file system, registered as ca.concordia:type=FileSystem,name="<disk file>"
+public interface FileSystemStatsMBean {
+
+    long getTotalBlocks();
+
+    long getFreeBlocks();
+
+    int getFiles();
+
+    int getMaxFiles();
+
+    // 0 when every file is contiguous, 100 when no two blocks of a file are adjacent, see FragmentationReport
+    double getFragmentationScore();
+
+    double getFreeSpaceFragmentationScore();
+
+    String getFragmentation();
+
+    // files and blocks moved by the defragmenter
+    long getDefragFiles();
+
+    long getDefragBlocks();
+
+    // dedup mode: blocks hashed by whole-file writes and the time it took, blocks (and bytes) those writes
+    // didn't have to store, extra references on shared blocks right now, blocks in the fingerprint index
+    long getDedupHashedBlocks();
+
+    long getDedupHashNanos();
+
+    long getDedupHits();
+
+    long getDedupBytesSaved();
+
+    long getDedupSharedReferences();
+
+    int getDedupIndexedBlocks();
+
+    // compressed files: original and stored bytes of their writes and the time spent deflating,
+    // frames inflated by reads and the bytes they gave back
+    long getCompressBytesIn();
+
+    long getCompressBytesOut();
+
+    long getCompressNanos();
+
+    long getInflatedFrames();
+
+    long getInflatedBytes();
+
+    // lock acquisitions that had to wait, and how long they waited in total
+    long getLockWaits();
+
+    long getLockWaitNanos();
+
+    String getLockWaitLatency();
+
+    long getDiskReads();
+
+    long getDiskWrites();
+
+    long getDiskBytesRead();
+
+    long getDiskBytesWritten();
+
+    long getDiskForces();
+
+    // READ replies sent from the disk file to the socket without a copy on the heap
+    long getZeroCopyTransfers();
+
+    long getZeroCopyBytes();
+
+    long getJournalCommits();
+
+    long getJournalRecords();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    long getPendingScrubBlocks();
+
+    long getReadPinnedBlocks();
+
+    void resetLockWaits();
+}
@@ -0,0 +1,90 @@
+package ca.concordia.filesystem;
+
+import java.util.Collections;
+import java.util.List;
+
+// How scattered the files and the free space of a FileSystemManager are, see FileSystemManager.getFragmentation().
+//
+// File score: every extent past the first one of a file is one more seek to read it, a file of n blocks has at
+// most n - 1 of them. The score is the extra extents of all files as a percentage of that maximum, 0 when every
+// file is one contiguous run and 100 when no two consecutive blocks of any file are adjacent on disk.
+// Free space score: 100 minus the longest free run as a percentage of the free blocks, 0 when the free space is
+// a single run, close to 100 when a large file can only be allocated in small pieces.
+public class FragmentationReport {
+
+    private final int files;
+    private final int fragmentedFiles;
+    private final long dataBlocks;
+    private final long extents;
+    private final long extraExtents;
+    private final long possibleExtraExtents;
+    private final long freeBlocks;
+    private final int freeRuns;
+    private final int largestFreeRun;
+    private final List<String> worstFiles; // fragmented files, most extra extents first
+
+    FragmentationReport(int files, int fragmentedFiles, long dataBlocks, long extents, long extraExtents,
+                        long possibleExtraExtents, long freeBlocks, int freeRuns, int largestFreeRun, List<String> worstFiles) {
+        this.files = files;
+        this.fragmentedFiles = fragmentedFiles;
+        this.dataBlocks = dataBlocks;
+        this.extents = extents;
+        this.extraExtents = extraExtents;
+        this.possibleExtraExtents = possibleExtraExtents;
+        this.freeBlocks = freeBlocks;
+        this.freeRuns = freeRuns;
+        this.largestFreeRun = largestFreeRun;
+        this.worstFiles = Collections.unmodifiableList(worstFiles);
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    // files stored in more than one extent
+    public int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    public long getDataBlocks() {
+        return dataBlocks;
+    }
+
+    public long getExtents() {
+        return extents;
+    }
+
+    public long getExtraExtents() {
+        return extraExtents;
+    }
+
+    public double getFileScore() {
+        return possibleExtraExtents == 0 ? 0 : 100.0 * extraExtents / possibleExtraExtents;
+    }
+
+    public long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public int getFreeRuns() {
+        return freeRuns;
+    }
+
+    public int getLargestFreeRun() {
+        return largestFreeRun;
+    }
+
+    public double getFreeSpaceScore() {
+        return freeBlocks == 0 ? 0 : 100.0 - 100.0 * largestFreeRun / freeBlocks;
+    }
+
+    public List<String> getWorstFiles() {
+        return worstFiles;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("files=%d fragmented=%d extents=%d score=%.1f%% free_runs=%d largest_free_run=%d free_score=%.1f%%",
+                files, fragmentedFiles, extents, getFileScore(), freeRuns, largestFreeRun, getFreeSpaceScore());
+    }
+}
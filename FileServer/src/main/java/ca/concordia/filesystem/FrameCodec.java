@@ -0,0 +1,67 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FrameTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compression of files stored in the FrameTable layout: Deflate at its fastest level, one chunk at a time.
+// Frames keep the zlib wrapper, its checksum catches a frame that was damaged on disk.
+// Deflater and Inflater hold native memory and are slow to set up, every thread keeps one of each.
+class FrameCodec {
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    // the stored bytes of data: frame table, then the frames. Empty data is stored as nothing at all.
+    static byte[] compress(byte[] data, int chunkSize) {
+        if (data.length == 0)
+            return new byte[0];
+        int count = (int) (((long) data.length + chunkSize - 1) / chunkSize);
+        int[] lengths = new int[count];
+        byte[] frames = new byte[data.length]; // frames never outgrow their chunk, those that would are kept raw
+        int used = 0;
+        Deflater deflater = DEFLATER.get();
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkSize;
+            int n = Math.min(chunkSize, data.length - offset);
+            deflater.reset();
+            deflater.setInput(data, offset, n);
+            deflater.finish();
+            int deflated = deflater.deflate(frames, used, n - 1);
+            if (deflater.finished()) {
+                lengths[i] = deflated;
+                used += deflated;
+            } else {
+                System.arraycopy(data, offset, frames, used, n);
+                lengths[i] = -n;
+                used += n;
+            }
+        }
+        ByteBuffer stored = ByteBuffer.allocate(FrameTable.headerBytes(count) + used);
+        FrameTable.writeHeader(stored, chunkSize, lengths);
+        stored.put(frames, 0, used);
+        return stored.array();
+    }
+
+    // inflates one frame into exactly length bytes of dst
+    static void inflate(byte[] frame, int offset, int frameLength, byte[] dst, int dstOffset, int length) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(frame, offset, frameLength);
+        try {
+            int done = 0;
+            while (done < length) {
+                int n = inflater.inflate(dst, dstOffset + done, length - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("ERROR: compressed frame is shorter than its chunk.");
+                done += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("ERROR: compressed frame is corrupt.", e);
+        }
+    }
+}
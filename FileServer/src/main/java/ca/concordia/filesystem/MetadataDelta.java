@@ -0,0 +1,77 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FNode;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+// One journal record: after-images of the FEntry slots and FNodes a command changed.
+// Images are copied when added, so the record reflects the state at the time the command applied it.
+// Replaying an image twice is harmless, which is what makes checkpoint + replay safe after a crash.
+class MetadataDelta {
+
+    private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+    private int entryCount;
+    private int nodeCount;
+
+    private final int version; // FEntry format of the disk, see Superblock
+    private final int entrySize;
+    private final int nodeSize;
+
+    MetadataDelta(int version, int nodeSize) {
+        this.version = version;
+        this.entrySize = FEntry.sizeFor(version);
+        this.nodeSize = nodeSize;
+    }
+
+    void addEntry(int slot, FEntry entry) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + entrySize);
+        buffer.putInt(slot);
+        entry.writeTo(buffer, version);
+        entries.write(buffer.array(), 0, buffer.position());
+        entryCount++;
+    }
+
+    void addNode(int blockIndex, FNode node) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + nodeSize);
+        buffer.putInt(blockIndex);
+        node.writeTo(buffer);
+        nodes.write(buffer.array(), 0, buffer.position());
+        nodeCount++;
+    }
+
+    void addNodes(int[] blocks, FNode[] fnodeTable) {
+        for (int b : blocks)
+            addNode(b, fnodeTable[b]);
+    }
+
+    boolean isEmpty() {
+        return entryCount == 0 && nodeCount == 0;
+    }
+
+    byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + entries.size() + nodes.size());
+        buffer.putInt(entryCount);
+        buffer.put(entries.toByteArray());
+        buffer.putInt(nodeCount);
+        buffer.put(nodes.toByteArray());
+        return buffer.array();
+    }
+
+    // applies a record produced by toBytes() onto the in-memory tables
+    static void apply(byte[] record, int version, FEntry[] inodeTable, FNode[] fnodeTable) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        int entryCount = buffer.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            int slot = buffer.getInt();
+            inodeTable[slot] = FEntry.readFrom(buffer, version);
+        }
+        int nodeCount = buffer.getInt();
+        for (int i = 0; i < nodeCount; i++) {
+            int blockIndex = buffer.getInt();
+            fnodeTable[blockIndex].readFrom(buffer, blockIndex);
+        }
+    }
+}
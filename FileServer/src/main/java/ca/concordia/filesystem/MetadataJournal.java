@@ -0,0 +1,176 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.metrics.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only log of metadata changes, kept next to the disk file (<disk>.journal).
+// Every mutating command appends one record instead of rewriting the FEntry/FNode tables.
+// Records are framed as [int length][int crc32][payload] so a torn tail left by a crash is detected and dropped.
+//
+// Commits use group commit: callers append to an in-memory buffer and then wait in commit().
+// One caller becomes the leader, syncs the data blocks, writes every record buffered so far with one write
+// and forces the journal once, which makes the whole group durable.
+public class MetadataJournal {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final BlockDevice dataDevice; // forced before the journal so records never point at unwritten blocks
+
+    private final Object flushLock = new Object();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(); // guarded by this
+    private long appendedSeq; // guarded by this
+    private volatile long durableSeq;
+    private volatile long position; // end of the durable log
+
+    private volatile long groupCommits;
+    private volatile long recordsCommitted;
+
+    public MetadataJournal(String filename, BlockDevice dataDevice) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        this.dataDevice = dataDevice;
+        this.position = channel.size();
+    }
+
+    // buffers a record and returns its sequence number, call commit(seq) to make it durable
+    public synchronized long append(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.length);
+        header.putInt((int) crc.getValue());
+        pending.write(header.array(), 0, HEADER_SIZE);
+        pending.write(payload, 0, payload.length);
+        return ++appendedSeq;
+    }
+
+    // blocks until the record with this sequence number (and everything before it) is on disk
+    public void commit(long seq) throws IOException {
+        if (durableSeq >= seq)
+            return;
+
+        synchronized (flushLock) {
+            if (durableSeq >= seq)
+                return; // an earlier leader already committed our record in its group
+
+            byte[] batch;
+            long batchSeq;
+            synchronized (this) {
+                batch = pending.toByteArray();
+                pending.reset();
+                batchSeq = appendedSeq;
+            }
+
+            dataDevice.force();
+
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            long writePosition = position;
+            while (buffer.hasRemaining())
+                writePosition += channel.write(buffer, writePosition);
+            channel.force(false);
+
+            recordsCommitted += batchSeq - durableSeq;
+            groupCommits++;
+            position = writePosition;
+            durableSeq = batchSeq;
+        }
+    }
+
+    // commits everything appended so far
+    public void flush() throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = appendedSeq;
+        }
+        commit(seq);
+    }
+
+    // reads back every intact record, a torn or corrupt tail is cut off
+    public List<byte[]> replay() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || offset + HEADER_SIZE + length > size)
+                break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, offset + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            records.add(payload.array());
+            offset += HEADER_SIZE + length;
+        }
+
+        if (offset != size) {
+            Log.warn("Journal: dropping " + (size - offset) + " bytes of torn tail");
+            channel.truncate(offset);
+            channel.force(false);
+        }
+        position = offset;
+        return records;
+    }
+
+    // empties the log once a checkpoint made its records redundant, caller must make sure nothing is appended meanwhile
+    public void reset() throws IOException {
+        synchronized (flushLock) {
+            flush();
+            channel.truncate(0);
+            channel.force(false);
+            position = 0;
+        }
+    }
+
+    public long size() {
+        return position;
+    }
+
+    // bytes appended but not written to the journal file yet
+    public synchronized long pendingSize() {
+        return pending.size();
+    }
+
+    public long getGroupCommits() {
+        return groupCommits;
+    }
+
+    public long getRecordsCommitted() {
+        return recordsCommitted;
+    }
+
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset);
+            if (n < 0)
+                break;
+            offset += n;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.ExtentList;
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Splits a large transfer into a few pieces that run on a small pool of I/O threads at the same time,
+// so a big or fragmented file keeps several requests in flight on the device instead of one after the other.
+// Pieces follow the extents: physically contiguous runs are still moved with one device call each, and a
+// long run is cut into chunks so every thread gets a share. The caller works on the first piece itself and
+// then waits for the rest, one transfer never uses more than threads + 1 pieces.
+class ParallelIo {
+
+    // pieces smaller than this cost more to hand over than they gain
+    private static final int MIN_CHUNK_BYTES = 256 * 1024;
+
+    private final BlockDevice device;
+    private final int blockSize;
+    private final int threads;
+    private final ExecutorService pool;
+
+    ParallelIo(BlockDevice device, int blockSize, int threads) {
+        this.device = device;
+        this.blockSize = blockSize;
+        this.threads = threads;
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "fs-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Same contract as FileSystemManager.transferRange: moves len bytes between buf and the file range
+    // starting at fileOffset, which must lie inside the extents.
+    void transfer(ExtentList extents, long fileOffset, byte[] buf, int off, int len, boolean write) throws IOException {
+        int chunk = Math.max(MIN_CHUNK_BYTES, len / (threads + 1));
+        chunk = Math.max(blockSize, chunk / blockSize * blockSize);
+
+        // cut the range into device runs, then group consecutive runs into pieces of about one chunk
+        List<Piece> pieces = new ArrayList<>();
+        Piece piece = null;
+        while (len > 0) {
+            int logicalBlock = (int) (fileOffset / blockSize);
+            int extent = extents.extentOf(logicalBlock);
+            long position = (long) (extents.getStart(extent) + (logicalBlock - extents.getLogicalStart(extent))) * blockSize
+                    + fileOffset % blockSize;
+            long extentEnd = (long) (extents.getLogicalStart(extent) + extents.getLength(extent)) * blockSize;
+            int n = (int) Math.min(Math.min(len, extentEnd - fileOffset), chunk);
+            if (piece == null || piece.bytes >= chunk) {
+                piece = new Piece();
+                pieces.add(piece);
+            }
+            piece.add(position, off, n);
+            fileOffset += n;
+            off += n;
+            len -= n;
+        }
+
+        List<Future<?>> running = new ArrayList<>(pieces.size() - 1);
+        for (int i = 1; i < pieces.size(); i++) {
+            Piece p = pieces.get(i);
+            running.add(pool.submit(() -> {
+                p.run(buf, write);
+                return null;
+            }));
+        }
+        IOException failure = null;
+        try {
+            if (!pieces.isEmpty())
+                pieces.get(0).run(buf, write);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        // the other pieces still use buf, so they are waited for even when the caller is interrupted
+        boolean interrupted = false;
+        for (Future<?> future : running) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException("ERROR: parallel " + (write ? "write" : "read") + " failed.", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+    }
+
+    // lets queued pieces finish, the threads are never interrupted because that would close a FileChannel
+    void close() {
+        pool.shutdown();
+    }
+
+    // device runs moved one after the other by a single thread
+    private class Piece {
+        private long[] positions = new long[4];
+        private int[] offsets = new int[4];
+        private int[] lengths = new int[4];
+        private int count;
+        private int bytes;
+
+        void add(long position, int offset, int length) {
+            // a run that continues the previous one on the device is merged into a single call
+            if (count > 0 && positions[count - 1] + lengths[count - 1] == position
+                    && offsets[count - 1] + lengths[count - 1] == offset) {
+                lengths[count - 1] += length;
+            } else {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                positions[count] = position;
+                offsets[count] = offset;
+                lengths[count] = length;
+                count++;
+            }
+            bytes += length;
+        }
+
+        void run(byte[] buf, boolean write) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (write)
+                    device.write(positions[i], buf, offsets[i], lengths[i]);
+                else
+                    device.read(positions[i], buf, offsets[i], lengths[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// Keeps blocks away from the allocator while a read may still be sending them. A read into a FileSink copies the
+// file's block map under the file lock and does the transfer (to a socket) without it, so a write, delete or
+// defragmenter move can give the blocks up in the meantime. They must not be handed out again, or zeroed by the
+// scrubber, before every read that started earlier is done: a read pins the current epoch, blocks given up while
+// reads run are kept with the epoch they were given up in, and come back once no read pinned at or before it is left.
+class ReadPins {
+
+    // blocks given up while reads were running, scrub says whether they go to the scrubber or straight back
+    static class Deferred {
+        final int[] blocks;
+        final boolean scrub;
+        final long epoch;
+
+        Deferred(int[] blocks, boolean scrub, long epoch) {
+            this.blocks = blocks;
+            this.scrub = scrub;
+            this.epoch = epoch;
+        }
+    }
+
+    private final TreeMap<Long, Integer> running = new TreeMap<>(); // pinned epoch -> reads still running
+    private final ArrayDeque<Deferred> deferred = new ArrayDeque<>(); // in epoch order
+    private long epoch;
+    private long deferredBlocks;
+
+    // called with the file's read lock still held, so nothing the read copied can be given up before it is pinned
+    synchronized long pin() {
+        running.merge(epoch, 1, Integer::sum);
+        return epoch;
+    }
+
+    // false when no read is running and the blocks can go right away, otherwise they are kept
+    synchronized boolean defer(int[] blocks, boolean scrub) {
+        if (running.isEmpty() || blocks.length == 0)
+            return false;
+        deferred.add(new Deferred(blocks, scrub, epoch++));
+        deferredBlocks += blocks.length;
+        return true;
+    }
+
+    // ends a read and returns the blocks that were only waiting for it, oldest first
+    synchronized List<Deferred> unpin(long pinned) {
+        running.compute(pinned, (e, reads) -> reads == 1 ? null : reads - 1);
+        long oldest = running.isEmpty() ? Long.MAX_VALUE : running.firstKey();
+        List<Deferred> ready = new ArrayList<>();
+        while (!deferred.isEmpty() && deferred.peek().epoch < oldest) {
+            Deferred d = deferred.poll();
+            deferredBlocks -= d.blocks.length;
+            ready.add(d);
+        }
+        return ready;
+    }
+
+    synchronized long getDeferredBlocks() {
+        return deferredBlocks;
+    }
+}
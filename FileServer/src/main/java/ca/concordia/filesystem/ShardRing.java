@@ -0,0 +1,54 @@
+package ca.concordia.filesystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Consistent hash ring placing file names on the shards of a VolumeManager. Every shard owns VIRTUAL_NODES
+// points of a 64 bit ring and a name belongs to the shard of the first point at or after the name's hash.
+// Going from N to N+1 shards moves about 1/(N+1) of the names, taken from every old shard alike, the rest stay.
+// Hashes only depend on the UTF-8 bytes of the name, so a name lands on the same shard in every JVM.
+final class ShardRing {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final long[] points; // sorted
+    private final int[] owners; // shard of each point
+
+    ShardRing(int shards) {
+        if (shards <= 0)
+            throw new IllegalArgumentException("Shard count must be positive.");
+        long[][] ring = new long[shards * VIRTUAL_NODES][];
+        for (int shard = 0; shard < shards; shard++)
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                ring[shard * VIRTUAL_NODES + v] = new long[]{hash("shard-" + shard + "#" + v), shard};
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    int shardFor(String filename) {
+        int i = Arrays.binarySearch(points, hash(filename));
+        if (i < 0)
+            i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // FNV-1a over the UTF-8 bytes, then the MurmurHash3 finalizer to spread similar names over the whole ring
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,338 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.metrics.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The files of the server, spread over N independent FileSystemManager shards. Every shard has its own disk
+// file, journal, allocator and locks; a file lives in exactly one shard, chosen by consistent hashing of its
+// name (ShardRing), so commands on files of different shards share no lock and no journal commit.
+//
+// Shard 0 uses the disk file name as given and shard i the name with "-i" before the extension, so a disk of
+// the single volume server is shard 0 of any volume. Sizes (totalSize, FileSystemConfig.setMaxFiles) are per
+// shard. When the shard count changes, mounting moves the files whose names now hash elsewhere to their new
+// shard, and empties and removes the disk files of shards past the new count.
+public class VolumeManager {
+
+    // largest piece of a file copied in one go when a file moves to another shard
+    private static final int MOVE_CHUNK = 1024 * 1024;
+
+    // a command run on one shard
+    private interface ShardCall<T> {
+        T call(FileSystemManager shard) throws Exception;
+    }
+
+    private final FileSystemConfig config;
+    private final long shardSize;
+    private final ShardRing ring;
+    private final String[] diskFiles;
+    private final FileSystemManager[] shards; // guarded by shardLocks, remountShard swaps the manager
+    private final ReentrantReadWriteLock[] shardLocks; // read: any command on the shard, write: remounting it
+
+    public VolumeManager(String filename, long totalSize, FileSystemConfig config) {
+        this(filename, totalSize, 1, config);
+    }
+
+    public VolumeManager(String filename, long totalSize, int shardCount, FileSystemConfig config) {
+        this.config = config;
+        this.shardSize = totalSize;
+        this.ring = new ShardRing(shardCount);
+        this.diskFiles = new String[shardCount];
+        this.shards = new FileSystemManager[shardCount];
+        this.shardLocks = new ReentrantReadWriteLock[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            diskFiles[i] = shardFile(filename, i);
+            shardLocks[i] = new ReentrantReadWriteLock();
+        }
+
+        try {
+            for (int i = 0; i < shardCount; i++)
+                shards[i] = FileSystemManager.mount(diskFiles[i], shardSize, config);
+            for (int i = 0; i < shardCount; i++)
+                rebalance(shards[i], i);
+            for (int i = shardCount; new File(shardFile(filename, i)).exists(); i++)
+                retire(shardFile(filename, i));
+        } catch (Exception e) {
+            for (FileSystemManager shard : shards) {
+                try {
+                    if (shard != null)
+                        shard.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            throw new IllegalStateException("ERROR: could not mount " + filename + ": " + e.getMessage(), e);
+        }
+        if (shardCount > 1)
+            Log.info("Volume " + filename + " mounted with " + shardCount + " shards");
+    }
+
+    // disk file of shard i, see the class comment
+    static String shardFile(String filename, int shard) {
+        if (shard == 0)
+            return filename;
+        int dot = filename.lastIndexOf('.');
+        if (dot <= filename.lastIndexOf(File.separatorChar))
+            return filename + "-" + shard;
+        return filename.substring(0, dot) + "-" + shard + filename.substring(dot);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int shardFor(String filename) {
+        return ring.shardFor(filename);
+    }
+
+    // the manager of one shard, for tools and benchmarks; the server goes through the methods below
+    public FileSystemManager getShard(int shard) {
+        return shards[shard];
+    }
+
+    public void createFile(String filename) throws Exception {
+        onShard(filename, shard -> {
+            shard.createFile(filename);
+            return null;
+        });
+    }
+
+    public void deleteFile(String filename) throws Exception {
+        onShard(filename, shard -> {
+            shard.deleteFile(filename);
+            return null;
+        });
+    }
+
+    public void writeFile(String filename, byte[] contents) throws Exception {
+        onShard(filename, shard -> {
+            shard.writeFile(filename, contents);
+            return null;
+        });
+    }
+
+    public void writeFile(String filename, InputStream in, long length) throws Exception {
+        onShard(filename, shard -> {
+            shard.writeFile(filename, in, length);
+            return null;
+        });
+    }
+
+    public void writeAt(String filename, long offset, byte[] data) throws Exception {
+        onShard(filename, shard -> {
+            shard.writeAt(filename, offset, data);
+            return null;
+        });
+    }
+
+    public void writeAt(String filename, long offset, InputStream in, long length) throws Exception {
+        onShard(filename, shard -> {
+            shard.writeAt(filename, offset, in, length);
+            return null;
+        });
+    }
+
+    public void append(String filename, byte[] data) throws Exception {
+        onShard(filename, shard -> {
+            shard.append(filename, data);
+            return null;
+        });
+    }
+
+    public void append(String filename, InputStream in, long length) throws Exception {
+        onShard(filename, shard -> {
+            shard.append(filename, in, length);
+            return null;
+        });
+    }
+
+    public void truncate(String filename, long size) throws Exception {
+        onShard(filename, shard -> {
+            shard.truncate(filename, size);
+            return null;
+        });
+    }
+
+    public byte[] readFile(String filename) throws Exception {
+        return onShard(filename, shard -> shard.readFile(filename));
+    }
+
+    public byte[] readFile(String filename, long offset, int length) throws Exception {
+        return onShard(filename, shard -> shard.readFile(filename, offset, length));
+    }
+
+    public long readFile(String filename, FileSink sink) throws Exception {
+        return onShard(filename, shard -> shard.readFile(filename, sink));
+    }
+
+    public long readFile(String filename, long offset, long length, FileSink sink) throws Exception {
+        return onShard(filename, shard -> shard.readFile(filename, offset, length, sink));
+    }
+
+    public void setCompression(String filename, boolean compressed) throws Exception {
+        onShard(filename, shard -> {
+            shard.setCompression(filename, compressed);
+            return null;
+        });
+    }
+
+    public boolean isCompressed(String filename) throws Exception {
+        return onShard(filename, shard -> shard.isCompressed(filename));
+    }
+
+    public boolean exists(String filename) throws Exception {
+        return onShard(filename, shard -> shard.exists(filename));
+    }
+
+    // the files of every shard, shard by shard
+    public String[] listFiles() {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            shardLocks[i].readLock().lock();
+            try {
+                files.addAll(Arrays.asList(shards[i].listFiles()));
+            } finally {
+                shardLocks[i].readLock().unlock();
+            }
+        }
+        return files.toArray(new String[0]);
+    }
+
+    // Runs the operations of each shard as one batch of that shard, in their original order. A batch touching
+    // several shards is not atomic across them: it takes one journal commit per shard it touches.
+    public String[] executeBatch(List<BatchOperation> operations) throws Exception {
+        Map<Integer, List<Integer>> positions = new TreeMap<>(); // shard -> indexes into operations
+        for (int i = 0; i < operations.size(); i++)
+            positions.computeIfAbsent(ring.shardFor(operations.get(i).getFilename()), k -> new ArrayList<>()).add(i);
+
+        String[] errors = new String[operations.size()];
+        for (Map.Entry<Integer, List<Integer>> entry : positions.entrySet()) {
+            List<BatchOperation> part = new ArrayList<>(entry.getValue().size());
+            for (int i : entry.getValue())
+                part.add(operations.get(i));
+            String[] partErrors = call(entry.getKey(), shard -> shard.executeBatch(part));
+            for (int j = 0; j < partErrors.length; j++)
+                errors[entry.getValue().get(j)] = partErrors[j];
+        }
+        return errors;
+    }
+
+    // Counters of every shard by name. One shard reports its own snapshot; with more, numeric counters are
+    // summed and the rest (scores, latency summaries) are listed per shard as "shard<i>.<name>".
+    public Map<String, Object> getStatsSnapshot() throws Exception {
+        if (shards.length == 1)
+            return call(0, shard -> shard.getStats().snapshot());
+        Map<String, Object> merged = new LinkedHashMap<>();
+        merged.put("volume.shards", shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            Map<String, Object> snapshot = call(i, shard -> shard.getStats().snapshot());
+            for (Map.Entry<String, Object> stat : snapshot.entrySet()) {
+                if (stat.getValue() instanceof Long || stat.getValue() instanceof Integer)
+                    merged.merge(stat.getKey(), ((Number) stat.getValue()).longValue(),
+                            (a, b) -> (Long) a + (Long) b);
+                else
+                    merged.put("shard" + i + "." + stat.getKey(), stat.getValue());
+            }
+        }
+        return merged;
+    }
+
+    // Closes and mounts one shard again (journal replay, index and free list rebuild) while the other shards
+    // keep serving. Commands on the shard wait until it is back.
+    public void remountShard(int shard) throws IOException {
+        shardLocks[shard].writeLock().lock();
+        try {
+            shards[shard].close();
+            shards[shard] = FileSystemManager.mount(diskFiles[shard], shardSize, config);
+            Log.info("Remounted shard " + shard + ": " + diskFiles[shard]);
+        } finally {
+            shardLocks[shard].writeLock().unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < shards.length; i++) {
+            shardLocks[i].writeLock().lock();
+            try {
+                shards[i].close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            } finally {
+                shardLocks[i].writeLock().unlock();
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    // ---- helpers ----
+
+    private <T> T onShard(String filename, ShardCall<T> call) throws Exception {
+        return call(ring.shardFor(filename), call);
+    }
+
+    private <T> T call(int shard, ShardCall<T> call) throws Exception {
+        shardLocks[shard].readLock().lock();
+        try {
+            return call.call(shards[shard]);
+        } finally {
+            shardLocks[shard].readLock().unlock();
+        }
+    }
+
+    // moves the files of a shard whose names hash to another shard, runs while mounting
+    private void rebalance(FileSystemManager shard, int index) throws Exception {
+        for (String filename : shard.listFiles()) {
+            int home = ring.shardFor(filename);
+            if (home != index)
+                move(filename, shard, shards[home]);
+        }
+    }
+
+    // a shard past the current count: its files move to their shards, then its disk file and journal go away
+    private void retire(String diskFile) throws Exception {
+        FileSystemManager shard = FileSystemManager.mount(diskFile, shardSize, config);
+        try {
+            String[] files = shard.listFiles();
+            for (String filename : files)
+                move(filename, shard, shards[ring.shardFor(filename)]);
+            Log.info("Retired shard " + diskFile + ", moved " + files.length + " files");
+        } finally {
+            shard.close();
+        }
+        if (!new File(diskFile).delete())
+            throw new IOException("ERROR: could not remove " + diskFile);
+        new File(diskFile + ".journal").delete();
+    }
+
+    // Copies a file to its new shard and only then deletes it from the old one. A copy found on the new shard
+    // is what a move cut short by a crash left behind, the old shard still has the whole file.
+    private static void move(String filename, FileSystemManager from, FileSystemManager to) throws Exception {
+        if (to.exists(filename))
+            to.deleteFile(filename);
+        to.createFile(filename);
+        long offset = 0;
+        byte[] chunk;
+        do {
+            chunk = from.readFile(filename, offset, MOVE_CHUNK);
+            to.append(filename, chunk);
+            offset += chunk.length;
+        } while (chunk.length == MOVE_CHUNK);
+        if (from.isCompressed(filename))
+            to.setCompression(filename, true); // once at the end, every append would rewrite a compressed file
+        from.deleteFile(filename);
+    }
+}
@@ -0,0 +1,231 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Free block bitmap packed 64 blocks per long, a set bit means the block is free.
+// Free blocks are found a word at a time with Long.numberOfTrailingZeros, the free count is
+// maintained on every change, and allocation continues from where the previous one stopped
+// (next fit) so repeated allocations don't rescan the full part of the disk.
+// Not thread safe, FileSystemManager guards it with its allocator lock.
+public class BlockBitmap {
+
+    // how many free runs allocate() looks at for a contiguous fit before it settles for several runs,
+    // this bounds allocation cost on a badly fragmented disk
+    private static final int MAX_RUN_PROBES = 256;
+
+    private final long[] words;
+    private final int size;
+    private int freeCount;
+    private int hint; // where the next search starts
+
+    // every block starts free
+    public BlockBitmap(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+        for (int i = 0; i < words.length; i++)
+            words[i] = -1L;
+        if ((size & 63) != 0)
+            words[words.length - 1] = (1L << (size & 63)) - 1; // bits past the end are never free
+        this.freeCount = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int freeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) != 0;
+    }
+
+    public void setUsed(int block) {
+        long mask = 1L << block;
+        if ((words[block >>> 6] & mask) != 0) {
+            words[block >>> 6] &= ~mask;
+            freeCount--;
+        }
+    }
+
+    public void setFree(int block) {
+        long mask = 1L << block;
+        if ((words[block >>> 6] & mask) == 0) {
+            words[block >>> 6] |= mask;
+            freeCount++;
+            if (block < hint)
+                hint = block; // keeps allocations packed towards the start of the disk
+        }
+    }
+
+    // first free block at or after from, -1 if none
+    public int nextFree(int from) {
+        if (from >= size)
+            return -1;
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+    }
+
+    // first used block at or after from, size if none
+    public int nextUsed(int from) {
+        if (from >= size)
+            return size;
+        int w = from >>> 6;
+        long word = ~words[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+            if (++w == words.length)
+                return size;
+            word = ~words[w];
+        }
+    }
+
+    // Allocates count blocks and returns them in the order the file should use them.
+    // A single contiguous run is preferred so the file can be read sequentially, otherwise the
+    // free runs are taken in disk order. Returns null (allocating nothing) when there isn't enough space.
+    public int[] allocate(int count) {
+        if (count > freeCount)
+            return null;
+        int[] blocks = new int[count];
+        if (count == 0)
+            return blocks;
+
+        int start = count == 1 ? nextFreeWrapping(hint) : findRun(count, MAX_RUN_PROBES);
+        if (start >= 0) {
+            for (int i = 0; i < count; i++) {
+                blocks[i] = start + i;
+                setUsed(start + i);
+            }
+            hint = start + count;
+            return blocks;
+        }
+
+        // no run is long enough, take the runs one after the other starting at the hint
+        int taken = 0;
+        int block = nextFreeWrapping(hint);
+        while (taken < count) {
+            int runEnd = Math.min(nextUsed(block), block + count - taken);
+            for (int b = block; b < runEnd; b++) {
+                blocks[taken++] = b;
+                setUsed(b);
+            }
+            hint = runEnd;
+            if (taken < count)
+                block = nextFreeWrapping(runEnd);
+        }
+        return blocks;
+    }
+
+    // start of the first free run of at least length blocks, searching from the hint and wrapping once, -1 if none
+    public int findRun(int length) {
+        return findRun(length, Integer.MAX_VALUE);
+    }
+
+    private int findRun(int length, int maxProbes) {
+        int[] probes = {maxProbes};
+        int start = findRun(length, hint, size, probes);
+        if (start < 0 && hint > 0)
+            start = findRun(length, 0, hint, probes);
+        return start;
+    }
+
+    private int findRun(int length, int from, int to, int[] probes) {
+        int block = nextFree(from);
+        while (block >= 0 && block < to && probes[0]-- > 0) {
+            int runEnd = nextUsed(block);
+            if (runEnd - block >= length)
+                return block;
+            block = nextFree(runEnd);
+        }
+        return -1;
+    }
+
+    // Allocates count blocks in at most maxRuns runs, for the defragmenter. The lowest free run that is long
+    // enough is taken when there is one, which packs files towards the start of the disk, otherwise the
+    // longest runs. Unlike allocate() it ignores the hint. Blocks come back in disk order, null (nothing
+    // allocated) when count blocks don't fit in maxRuns runs.
+    public int[] allocateRuns(int count, int maxRuns) {
+        if (count > freeCount || maxRuns < 1)
+            return null;
+        int[] starts;
+        int[] lengths;
+        int single = findRun(count, 0, size, new int[]{Integer.MAX_VALUE});
+        if (single >= 0) {
+            starts = new int[]{single};
+            lengths = new int[]{count};
+        } else {
+            // the longest runs first, then put back in disk order
+            List<int[]> runs = new ArrayList<>();
+            int block = nextFree(0);
+            while (block >= 0) {
+                int runEnd = nextUsed(block);
+                runs.add(new int[]{block, runEnd - block});
+                block = nextFree(runEnd);
+            }
+            runs.sort((a, b) -> Integer.compare(b[1], a[1]));
+            int taken = 0;
+            int used = 0;
+            while (taken < count && used < Math.min(maxRuns, runs.size()))
+                taken += runs.get(used++)[1];
+            if (taken < count)
+                return null;
+            List<int[]> chosen = new ArrayList<>(runs.subList(0, used));
+            chosen.sort((a, b) -> Integer.compare(a[0], b[0]));
+            starts = new int[used];
+            lengths = new int[used];
+            int left = count;
+            for (int i = 0; i < used; i++) {
+                starts[i] = chosen.get(i)[0];
+                lengths[i] = Math.min(chosen.get(i)[1], left);
+                left -= lengths[i];
+            }
+        }
+        int[] blocks = new int[count];
+        int index = 0;
+        for (int i = 0; i < starts.length; i++) {
+            for (int b = starts[i]; b < starts[i] + lengths[i]; b++) {
+                blocks[index++] = b;
+                setUsed(b);
+            }
+        }
+        return blocks;
+    }
+
+    // length of the longest free run
+    public int largestFreeRun() {
+        int largest = 0;
+        int block = nextFree(0);
+        while (block >= 0) {
+            int runEnd = nextUsed(block);
+            largest = Math.max(largest, runEnd - block);
+            block = nextFree(runEnd);
+        }
+        return largest;
+    }
+
+    // number of maximal free runs, a simple measure of how fragmented free space is
+    public int freeRuns() {
+        int runs = 0;
+        int block = nextFree(0);
+        while (block >= 0) {
+            runs++;
+            block = nextFree(nextUsed(block));
+        }
+        return runs;
+    }
+
+    private int nextFreeWrapping(int from) {
+        int block = nextFree(from);
+        return block >= 0 ? block : nextFree(0);
+    }
+}
@@ -0,0 +1,7 @@
+package ca.concordia.filesystem.datastructures;
+
+// How an FEntry finds its data blocks.
+public enum BlockMapFormat {
+    CHAINED, // firstBlock is the first data block, each FNode points at the next one
+    EXTENTS  // firstBlock is an index block holding (start, length) extents, more index blocks are chained through FNode.next
+}
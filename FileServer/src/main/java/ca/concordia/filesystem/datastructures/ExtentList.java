@@ -0,0 +1,143 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Data blocks of a file as runs of consecutive blocks: extent i covers blocks start[i] .. start[i]+length[i]-1
+// and holds logical blocks logical[i] .. logical[i]+length[i]-1 of the file.
+// A contiguous run can be read or written with one I/O, and locating the block holding a given offset
+// is a binary search over the extents instead of a walk down an FNode chain.
+//
+// Index block layout (one per 'extentsPerIndexBlock' extents): [int count] then count x [int start][int length].
+public class ExtentList {
+
+    private static final ExtentList EMPTY = new ExtentList(new int[0], new int[0], 0);
+
+    private final int[] starts;
+    private final int[] lengths;
+    private final int[] logical;
+    private final int count;
+    private final int blockCount;
+
+    private ExtentList(int[] starts, int[] lengths, int count) {
+        this.starts = starts;
+        this.lengths = lengths;
+        this.count = count;
+        this.logical = new int[count];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            logical[i] = total;
+            total += lengths[i];
+        }
+        this.blockCount = total;
+    }
+
+    public static ExtentList empty() {
+        return EMPTY;
+    }
+
+    // coalesces a block list in file order into extents
+    public static ExtentList fromBlocks(int[] blocks) {
+        int[] starts = new int[blocks.length];
+        int[] lengths = new int[blocks.length];
+        int count = 0;
+        for (int block : blocks) {
+            if (count > 0 && starts[count - 1] + lengths[count - 1] == block) {
+                lengths[count - 1]++;
+            } else {
+                starts[count] = block;
+                lengths[count] = 1;
+                count++;
+            }
+        }
+        return new ExtentList(starts, lengths, count);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getStart(int extent) {
+        return starts[extent];
+    }
+
+    public int getLength(int extent) {
+        return lengths[extent];
+    }
+
+    // first logical block of the file held by this extent
+    public int getLogicalStart(int extent) {
+        return logical[extent];
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    // extent holding the given logical block, O(log n)
+    public int extentOf(int logicalBlock) {
+        if (logicalBlock < 0 || logicalBlock >= blockCount)
+            return -1;
+        int found = Arrays.binarySearch(logical, 0, count, logicalBlock);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    // physical block holding the given logical block of the file
+    public int blockAt(int logicalBlock) {
+        int extent = extentOf(logicalBlock);
+        return extent < 0 ? -1 : starts[extent] + (logicalBlock - logical[extent]);
+    }
+
+    public int[] toBlocks() {
+        int[] blocks = new int[blockCount];
+        int index = 0;
+        for (int i = 0; i < count; i++)
+            for (int j = 0; j < lengths[i]; j++)
+                blocks[index++] = starts[i] + j;
+        return blocks;
+    }
+
+    public static int extentsPerIndexBlock(int blockSize) {
+        return (blockSize - 4) / 8;
+    }
+
+    public int indexBlocksNeeded(int blockSize) {
+        int perBlock = extentsPerIndexBlock(blockSize);
+        return (count + perBlock - 1) / perBlock;
+    }
+
+    // fills the part-th index block (zero based) into a block sized buffer
+    public void writeIndexBlock(int part, byte[] block) {
+        int perBlock = extentsPerIndexBlock(block.length);
+        int first = part * perBlock;
+        int n = Math.max(0, Math.min(perBlock, count - first));
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        Arrays.fill(block, (byte) 0);
+        buffer.putInt(n);
+        for (int i = first; i < first + n; i++) {
+            buffer.putInt(starts[i]);
+            buffer.putInt(lengths[i]);
+        }
+    }
+
+    // rebuilds the list from the contents of its index blocks, in chain order
+    public static ExtentList readIndexBlocks(byte[][] indexBlocks) {
+        int total = 0;
+        for (byte[] block : indexBlocks)
+            total += ByteBuffer.wrap(block).getInt();
+
+        int[] starts = new int[total];
+        int[] lengths = new int[total];
+        int count = 0;
+        for (byte[] block : indexBlocks) {
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            int n = buffer.getInt();
+            for (int i = 0; i < n; i++) {
+                starts[count] = buffer.getInt();
+                lengths[count] = buffer.getInt();
+                count++;
+            }
+        }
+        return new ExtentList(starts, lengths, count);
+    }
+}
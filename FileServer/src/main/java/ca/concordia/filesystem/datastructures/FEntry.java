@@ -1,12 +1,20 @@
 package ca.concordia.filesystem.datastructures;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class FEntry {
 
+    public static final int NAME_BYTES = 11;
+
     private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    private long filesize;
+    private int firstBlock; // Pointers to data blocks
+    private BlockMapFormat format = BlockMapFormat.CHAINED;
+    private boolean compressed; // data blocks hold deflated frames, filesize is the stored size then
+    private long originalSize; // size before compression, what readers see of a compressed file
+    private volatile ExtentList extents; // cached contents of the index blocks of an EXTENTS file, not stored
+    private volatile FrameTable frames; // cached frame table of a compressed file, not stored
 
     public FEntry(){
         this.filename = null;
@@ -14,7 +22,7 @@ public class FEntry {
         this.firstBlock = -1;
     }
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
+    public FEntry(String filename, long filesize, int firstblock) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
@@ -36,22 +44,139 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public long getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(long filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
     }
 
-    public void setFirstBlock(short firstblock){
+    public void setFirstBlock(int firstblock){
         this.firstBlock=firstblock;
     }
 
-    public short getFirstBlock() {
+    public int getFirstBlock() {
         return firstBlock;
     }
+
+    public BlockMapFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(BlockMapFormat format) {
+        this.format = format;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    public void setOriginalSize(long originalSize) {
+        if (originalSize < 0) {
+            throw new IllegalArgumentException("Original size cannot be negative.");
+        }
+        this.originalSize = originalSize;
+    }
+
+    // bytes a reader gets back: the original size of a compressed file, otherwise the stored size
+    public long getLogicalSize() {
+        return compressed ? originalSize : filesize;
+    }
+
+    public FrameTable getFrames() {
+        return frames;
+    }
+
+    public void setFrames(FrameTable frames) {
+        this.frames = frames;
+    }
+
+    public ExtentList getExtents() {
+        return extents;
+    }
+
+    public void setExtents(ExtentList extents) {
+        this.extents = extents;
+    }
+
+    // bytes one FEntry takes on disk in the given format version (see Superblock)
+    public static int sizeFor(int version) {
+        if (version == Superblock.VERSION_1)
+            return NAME_BYTES + 2 + 2;
+        return version == Superblock.VERSION_2 ? NAME_BYTES + 8 + 4 : NAME_BYTES + 8 + 4 + 1 + 8;
+    }
+
+    // On disk an FEntry is the name zero padded to 11 bytes, then filesize and firstBlock: two shorts in
+    // version 1 (15 bytes), a long and an int in version 2 (23 bytes). Version 3 adds a flags byte (bit 0:
+    // compressed) and the original size as a long (32 bytes). A free entry has an all zero name.
+    // An EXTENTS file stores its first index block b as -(b + 2), values below -1 never occur for CHAINED
+    // files so older disks read back unchanged.
+    public void writeTo(ByteBuffer buffer, int version) {
+        byte[] name = new byte[NAME_BYTES];
+        if (filename != null) {
+            byte[] encoded = filename.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(encoded, 0, name, 0, Math.min(encoded.length, NAME_BYTES));
+        }
+        buffer.put(name);
+        int first = format == BlockMapFormat.EXTENTS ? -firstBlock - 2 : firstBlock;
+        if (version == Superblock.VERSION_1) {
+            buffer.putShort((short) filesize);
+            buffer.putShort((short) first);
+        } else {
+            buffer.putLong(filesize);
+            buffer.putInt(first);
+        }
+        if (version >= Superblock.VERSION_3) {
+            buffer.put((byte) (compressed ? 1 : 0));
+            buffer.putLong(originalSize);
+        }
+    }
+
+    public static FEntry readFrom(ByteBuffer buffer, int version) {
+        byte[] name = new byte[NAME_BYTES];
+        buffer.get(name);
+        long size;
+        int first;
+        if (version == Superblock.VERSION_1) {
+            size = buffer.getShort();
+            first = buffer.getShort();
+        } else {
+            size = buffer.getLong();
+            first = buffer.getInt();
+        }
+        boolean compressed = false;
+        long originalSize = 0;
+        if (version >= Superblock.VERSION_3) {
+            compressed = (buffer.get() & 1) != 0;
+            originalSize = buffer.getLong();
+        }
+
+        int length = 0;
+        while (length < NAME_BYTES && name[length] != 0)
+            length++;
+        if (length == 0)
+            return new FEntry();
+        FEntry entry;
+        if (first < -1) {
+            entry = new FEntry(new String(name, 0, length, StandardCharsets.UTF_8), size, -first - 2);
+            entry.setFormat(BlockMapFormat.EXTENTS);
+        } else {
+            entry = new FEntry(new String(name, 0, length, StandardCharsets.UTF_8), size, first);
+        }
+        entry.setCompressed(compressed);
+        entry.setOriginalSize(originalSize);
+        return entry;
+    }
 }
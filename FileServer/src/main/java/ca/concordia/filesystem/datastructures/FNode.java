@@ -1,7 +1,12 @@
 package ca.concordia.filesystem.datastructures;
 
+import java.nio.ByteBuffer;
+
 public class FNode {
 
+    // 'next' of a free block whose old contents still have to be zeroed by the scrubber
+    public static final int SCRUB_PENDING = Integer.MIN_VALUE;
+
     private int blockIndex;
     private int next;
 
@@ -18,7 +23,38 @@ public class FNode {
         this.next = next;
     }
 
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
     public void setBlockIndex(int blockIndex) {
         this.blockIndex = blockIndex;
     }
+
+    // a block is in use when its index is positive (block 0 is never a data block)
+    public boolean isUsed() {
+        return blockIndex > 0;
+    }
+
+    // free, but not handed to the allocator until the scrubber has zeroed it
+    public boolean isScrubPending() {
+        return !isUsed() && next == SCRUB_PENDING;
+    }
+
+    // On disk an FNode is a single int: 0 when the block is free, otherwise the next block of the chain (-1 at the end).
+    // Block 0 is metadata so 0 can never be a real "next" value. A free block waiting to be scrubbed is SCRUB_PENDING.
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(isUsed() || next == SCRUB_PENDING ? next : 0);
+    }
+
+    public void readFrom(ByteBuffer buffer, int index) {
+        int value = buffer.getInt();
+        if (value == 0 || value == SCRUB_PENDING) {
+            blockIndex = -index;
+            next = value == 0 ? -1 : SCRUB_PENDING;
+        } else {
+            blockIndex = index;
+            next = value;
+        }
+    }
 }
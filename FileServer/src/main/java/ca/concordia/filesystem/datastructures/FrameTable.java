@@ -0,0 +1,91 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+
+// Where the frames of a compressed file are. The original bytes are cut into chunks of chunkSize bytes (the
+// last one shorter) and each chunk is deflated on its own into a frame, so reading a range only inflates the
+// frames the range overlaps.
+//
+// Stored layout: [int chunkSize][int count] then count x [int frame length], then the frames back to back.
+// A negative length -n is a chunk kept as it is (n bytes) because deflating didn't make it smaller.
+public class FrameTable {
+
+    public static final int FIXED_HEADER_BYTES = 8;
+
+    private final int chunkSize;
+    private final long originalSize;
+    private final long[] offsets; // stored offset of every frame, then the end of the last one
+    private final boolean[] raw;
+
+    private FrameTable(int chunkSize, long originalSize, long[] offsets, boolean[] raw) {
+        this.chunkSize = chunkSize;
+        this.originalSize = originalSize;
+        this.offsets = offsets;
+        this.raw = raw;
+    }
+
+    public static int headerBytes(int count) {
+        return FIXED_HEADER_BYTES + count * Integer.BYTES;
+    }
+
+    // frame count from the first FIXED_HEADER_BYTES stored bytes, to know how much of the header to read
+    public static int readCount(byte[] fixedHeader) {
+        return ByteBuffer.wrap(fixedHeader).getInt(Integer.BYTES);
+    }
+
+    // lengths as stored, negative for chunks kept as they are
+    public static void writeHeader(ByteBuffer buffer, int chunkSize, int[] lengths) {
+        buffer.putInt(chunkSize);
+        buffer.putInt(lengths.length);
+        for (int length : lengths)
+            buffer.putInt(length);
+    }
+
+    public static FrameTable readHeader(byte[] header, long originalSize) {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        int chunkSize = buffer.getInt();
+        int count = buffer.getInt();
+        long[] offsets = new long[count + 1];
+        boolean[] raw = new boolean[count];
+        offsets[0] = headerBytes(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            raw[i] = length < 0;
+            offsets[i + 1] = offsets[i] + Math.abs(length);
+        }
+        return new FrameTable(chunkSize, originalSize, offsets, raw);
+    }
+
+    public int size() {
+        return raw.length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // chunk holding the given original offset
+    public int chunkOf(long offset) {
+        return (int) (offset / chunkSize);
+    }
+
+    public long getChunkStart(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public int getChunkLength(int chunk) {
+        return (int) Math.min(chunkSize, originalSize - getChunkStart(chunk));
+    }
+
+    public long getFrameOffset(int chunk) {
+        return offsets[chunk];
+    }
+
+    public int getFrameLength(int chunk) {
+        return (int) (offsets[chunk + 1] - offsets[chunk]);
+    }
+
+    public boolean isRaw(int chunk) {
+        return raw[chunk];
+    }
+}
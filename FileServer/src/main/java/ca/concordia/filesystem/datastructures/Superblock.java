@@ -0,0 +1,88 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+
+// First bytes of the disk, records the geometry the disk was formatted with so it can be mounted again
+// without passing the same parameters. The FEntry table follows it, then one FNode per data block.
+//
+// Versions:
+//  1 - "CAFS" blockSize maxBlocks maxFiles (16 bytes), FEntry sizes and block pointers are shorts
+//  2 - "CAFV" version blockSize maxBlocks maxFiles (20 bytes), 64-bit sizes and 32-bit block pointers
+//  3 - same superblock as 2, FEntry records add the compression flag and the original file size
+public class Superblock {
+
+    public static final int MAGIC = 0x43414653; // "CAFS", version 1 has no version field
+    public static final int MAGIC_VERSIONED = 0x43414656; // "CAFV", followed by the version
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int VERSION_3 = 3;
+    public static final int CURRENT_VERSION = VERSION_3;
+    public static final int MAX_SIZE = 20; // bytes to read to recognise any version
+
+    private final int version;
+    private final int blockSize;
+    private final int maxBlocks;
+    private final int maxFiles;
+
+    public Superblock(int version, int blockSize, int maxBlocks, int maxFiles) {
+        this.version = version;
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+        this.maxFiles = maxFiles;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public int size() {
+        return version == VERSION_1 ? 16 : 20;
+    }
+
+    // Smallest number of leading blocks that holds the superblock, the FEntry table and the FNodes
+    // of the remaining (data) blocks. Metadata blocks themselves don't get an FNode.
+    public int metadataBlocks(int nodeSize) {
+        long fixed = size() + (long) maxFiles * FEntry.sizeFor(version);
+        int blocks = 1;
+        while (fixed + (long) (maxBlocks - blocks) * nodeSize > (long) blocks * blockSize)
+            blocks++;
+        return blocks;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        if (version == VERSION_1) {
+            buffer.putInt(MAGIC);
+        } else {
+            buffer.putInt(MAGIC_VERSIONED);
+            buffer.putInt(version);
+        }
+        buffer.putInt(blockSize);
+        buffer.putInt(maxBlocks);
+        buffer.putInt(maxFiles);
+    }
+
+    // returns null when the buffer doesn't start with a superblock (disk formatted before superblocks existed)
+    public static Superblock readFrom(ByteBuffer buffer) {
+        int magic = buffer.getInt();
+        if (magic == MAGIC)
+            return new Superblock(VERSION_1, buffer.getInt(), buffer.getInt(), buffer.getInt());
+        if (magic != MAGIC_VERSIONED)
+            return null;
+        int version = buffer.getInt();
+        if (version < VERSION_2 || version > CURRENT_VERSION)
+            throw new IllegalArgumentException("ERROR: disk format version " + version + " is not supported");
+        return new Superblock(version, buffer.getInt(), buffer.getInt(), buffer.getInt());
+    }
+}
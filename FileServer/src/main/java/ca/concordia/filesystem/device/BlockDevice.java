@@ -0,0 +1,34 @@
+package ca.concordia.filesystem.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+// Byte addressed storage behind FileSystemManager. Positions are absolute offsets in the disk file,
+// callers compute them as blockIndex * blockSize. All methods are safe to call from many threads at once
+// as long as two threads never write the same range concurrently (the file locks take care of that).
+public interface BlockDevice extends Closeable {
+
+    void read(long position, byte[] dst, int offset, int length) throws IOException;
+
+    void write(long position, byte[] src, int offset, int length) throws IOException;
+
+    // size of the device in bytes
+    long size();
+
+    // pushes every write done so far to stable storage
+    void force() throws IOException;
+
+    // channel of the underlying file, for callers that need to hand it to the OS directly
+    FileChannel getChannel();
+
+    static BlockDevice open(DeviceType type, FileChannel channel) throws IOException {
+        switch (type) {
+            case MAPPED:
+                return new MappedBlockDevice(channel);
+            case FILE_CHANNEL:
+            default:
+                return new FileChannelBlockDevice(channel);
+        }
+    }
+}
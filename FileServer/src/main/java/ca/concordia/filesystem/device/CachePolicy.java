@@ -0,0 +1,7 @@
+package ca.concordia.filesystem.device;
+
+// Which cached block makes room when the block cache is full
+public enum CachePolicy {
+    LRU,  // least recently used, exact but every hit relinks the block
+    CLOCK // second chance, a hit only sets a reference bit
+}
@@ -0,0 +1,7 @@
+package ca.concordia.filesystem.device;
+
+// When writes that go through the block cache reach the disk file
+public enum CacheWriteMode {
+    WRITE_THROUGH, // every write goes to the disk right away, the cache only keeps a copy
+    WRITE_BACK     // writes stay dirty in the cache until evicted or forced (sync policy / journal commit)
+}
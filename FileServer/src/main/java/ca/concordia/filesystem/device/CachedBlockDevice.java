@@ -0,0 +1,326 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Bounded block cache in front of another BlockDevice.
+// Cached blocks live in one pooled byte[] arena (a slot per block) so the cache allocates nothing once it is full.
+// Eviction is LRU or CLOCK, writes are write-through or write-back (see CachePolicy and CacheWriteMode).
+//
+// Every write goes through here, so cached copies are updated in place and never go stale. A read miss
+// reads from the disk outside the cache lock, and only caches what it read if no write touched those
+// blocks meanwhile (tracked with striped write counters), so a slow miss can't put old data back.
+// force() writes dirty blocks back before forcing the disk, which keeps journal commits correct under write-back.
+public class CachedBlockDevice implements BlockDevice {
+
+    private static final int MAX_MISS_RUN = 64; // blocks read from the disk by one miss
+    private static final int WRITE_STRIPES = 256;
+
+    private final BlockDevice delegate;
+    private final int blockSize;
+    private final int capacity;
+    private final CachePolicy policy;
+    private final CacheWriteMode writeMode;
+
+    private final byte[] arena;
+    private final long[] slotBlock; // block cached in each slot, -1 if empty
+    private final boolean[] dirty;
+    private final boolean[] referenced; // CLOCK
+    private final int[] prev;           // LRU list, most recent at head
+    private final int[] next;
+    private int head = -1;
+    private int tail = -1;
+    private int hand;                   // CLOCK
+    private final int[] freeSlots;
+    private int freeSlotCount;
+    private final Map<Long, Integer> index = new HashMap<>();
+    private final long[] writeCounts = new long[WRITE_STRIPES];
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writebacks;
+
+    public CachedBlockDevice(BlockDevice delegate, int blockSize, int capacity, CachePolicy policy, CacheWriteMode writeMode) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Cache capacity must be positive.");
+        if ((long) capacity * blockSize > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Cache must be smaller than 2GB.");
+        this.delegate = delegate;
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.writeMode = writeMode;
+        this.arena = new byte[capacity * blockSize];
+        this.slotBlock = new long[capacity];
+        this.dirty = new boolean[capacity];
+        this.referenced = new boolean[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slotBlock[i] = -1;
+            freeSlots[i] = capacity - 1 - i;
+        }
+        this.freeSlotCount = capacity;
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        while (length > 0) {
+            long block = position / blockSize;
+            int inBlock = (int) (position % blockSize);
+            int missBlocks;
+            long[] seen;
+            synchronized (this) {
+                Integer slot = index.get(block);
+                if (slot != null) {
+                    int n = Math.min(blockSize - inBlock, length);
+                    System.arraycopy(arena, slot * blockSize + inBlock, dst, offset, n);
+                    touch(slot);
+                    hits++;
+                    position += n;
+                    offset += n;
+                    length -= n;
+                    continue;
+                }
+                // read every uncached block the request still covers with one disk call
+                long lastBlock = (position + length - 1) / blockSize;
+                missBlocks = 1;
+                while (missBlocks < MAX_MISS_RUN && block + missBlocks <= lastBlock && !index.containsKey(block + missBlocks))
+                    missBlocks++;
+                misses += missBlocks;
+                seen = new long[missBlocks];
+                for (int i = 0; i < missBlocks; i++)
+                    seen[i] = writeCounts[stripe(block + i)];
+            }
+
+            byte[] run = new byte[missBlocks * blockSize];
+            delegate.read(block * blockSize, run, 0, run.length);
+            int n = Math.min(run.length - inBlock, length);
+            System.arraycopy(run, inBlock, dst, offset, n);
+
+            synchronized (this) {
+                for (int i = 0; i < missBlocks; i++) {
+                    if (writeCounts[stripe(block + i)] == seen[i] && !index.containsKey(block + i))
+                        insert(block + i, run, i * blockSize, false);
+                }
+            }
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        if (writeMode == CacheWriteMode.WRITE_THROUGH)
+            delegate.write(position, src, offset, length);
+
+        synchronized (this) {
+            while (length > 0) {
+                long block = position / blockSize;
+                int inBlock = (int) (position % blockSize);
+                int n = Math.min(blockSize - inBlock, length);
+                writeCounts[stripe(block)]++;
+
+                boolean writeBack = writeMode == CacheWriteMode.WRITE_BACK;
+                Integer slot = index.get(block);
+                if (slot != null) {
+                    System.arraycopy(src, offset, arena, slot * blockSize + inBlock, n);
+                    dirty[slot] |= writeBack;
+                    touch(slot);
+                } else if (n == blockSize) {
+                    insert(block, src, offset, writeBack); // write allocate, written files are usually read next
+                } else if (writeBack) {
+                    delegate.write(position, src, offset, n); // partial block we don't hold, nothing to merge it with
+                }
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+
+    // drops the blocks in this range from the cache (writing them back first if dirty), used for freed blocks
+    public synchronized void invalidate(long position, long length) throws IOException {
+        long first = position / blockSize;
+        long last = (position + length - 1) / blockSize;
+        for (long block = first; block <= last; block++) {
+            Integer slot = index.get(block);
+            if (slot == null)
+                continue;
+            writeCounts[stripe(block)]++;
+            if (dirty[slot])
+                writeBack(slot);
+            remove(slot);
+            freeSlots[freeSlotCount++] = slot;
+        }
+    }
+
+    @Override
+    public long size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void force() throws IOException {
+        flushDirty();
+        delegate.force();
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return delegate.getChannel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushDirty();
+        delegate.close();
+    }
+
+    // writes every dirty block back in disk order, adjacent blocks with one call
+    public synchronized void flushDirty() throws IOException {
+        long[] blocks = new long[capacity];
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++)
+            if (dirty[slot])
+                blocks[count++] = slotBlock[slot];
+        if (count == 0)
+            return;
+        Arrays.sort(blocks, 0, count);
+
+        byte[] run = new byte[Math.min(count, MAX_MISS_RUN) * blockSize];
+        int i = 0;
+        while (i < count) {
+            int length = 1;
+            while (i + length < count && length < MAX_MISS_RUN && blocks[i + length] == blocks[i] + length)
+                length++;
+            for (int j = 0; j < length; j++) {
+                int slot = index.get(blocks[i + j]);
+                System.arraycopy(arena, slot * blockSize, run, j * blockSize, blockSize);
+                dirty[slot] = false;
+            }
+            delegate.write(blocks[i] * blockSize, run, 0, length * blockSize);
+            writebacks += length;
+            i += length;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public CachePolicy getPolicy() {
+        return policy;
+    }
+
+    public CacheWriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public synchronized int getCachedBlocks() {
+        return index.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // dirty blocks written to the disk, by eviction, invalidation or force
+    public synchronized long getWritebacks() {
+        return writebacks;
+    }
+
+    // caller holds the lock and checked the block isn't cached yet
+    private void insert(long block, byte[] src, int offset, boolean isDirty) throws IOException {
+        int slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : evict();
+        System.arraycopy(src, offset, arena, slot * blockSize, blockSize);
+        slotBlock[slot] = block;
+        dirty[slot] = isDirty;
+        referenced[slot] = false;
+        index.put(block, slot);
+        if (policy == CachePolicy.LRU)
+            linkFirst(slot);
+    }
+
+    private int evict() throws IOException {
+        int slot;
+        if (policy == CachePolicy.LRU) {
+            slot = tail;
+        } else {
+            while (referenced[hand]) {
+                referenced[hand] = false; // second chance
+                hand = (hand + 1) % capacity;
+            }
+            slot = hand;
+            hand = (hand + 1) % capacity;
+        }
+        if (dirty[slot])
+            writeBack(slot);
+        remove(slot);
+        evictions++;
+        return slot;
+    }
+
+    private void writeBack(int slot) throws IOException {
+        delegate.write(slotBlock[slot] * blockSize, arena, slot * blockSize, blockSize);
+        dirty[slot] = false;
+        writebacks++;
+    }
+
+    private void remove(int slot) {
+        index.remove(slotBlock[slot]);
+        slotBlock[slot] = -1;
+        dirty[slot] = false;
+        referenced[slot] = false;
+        if (policy == CachePolicy.LRU)
+            unlink(slot);
+    }
+
+    private void touch(int slot) {
+        if (policy == CachePolicy.CLOCK) {
+            referenced[slot] = true;
+        } else if (head != slot) {
+            unlink(slot);
+            linkFirst(slot);
+        }
+    }
+
+    private void linkFirst(int slot) {
+        prev[slot] = -1;
+        next[slot] = head;
+        if (head != -1)
+            prev[head] = slot;
+        head = slot;
+        if (tail == -1)
+            tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] != -1)
+            next[prev[slot]] = next[slot];
+        else
+            head = next[slot];
+        if (next[slot] != -1)
+            prev[next[slot]] = prev[slot];
+        else
+            tail = prev[slot];
+    }
+
+    private static int stripe(long block) {
+        return (int) (block % WRITE_STRIPES);
+    }
+}
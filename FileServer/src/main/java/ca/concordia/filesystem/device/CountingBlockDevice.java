@@ -0,0 +1,76 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts the I/O that reaches the disk file. FileSystemManager puts it right above the real device,
+// below the block cache, so cache hits don't show up as disk reads.
+public class CountingBlockDevice implements BlockDevice {
+
+    private final BlockDevice delegate;
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+
+    public CountingBlockDevice(BlockDevice delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        delegate.read(position, dst, offset, length);
+        reads.increment();
+        bytesRead.add(length);
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        delegate.write(position, src, offset, length);
+        writes.increment();
+        bytesWritten.add(length);
+    }
+
+    @Override
+    public long size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void force() throws IOException {
+        delegate.force();
+        forces.increment();
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return delegate.getChannel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getForces() {
+        return forces.sum();
+    }
+}
@@ -0,0 +1,6 @@
+package ca.concordia.filesystem.device;
+
+public enum DeviceType {
+    FILE_CHANNEL, // positional read/write syscalls on the RandomAccessFile channel, the fallback mode
+    MAPPED        // the disk file is memory mapped, block I/O is a memory copy
+}
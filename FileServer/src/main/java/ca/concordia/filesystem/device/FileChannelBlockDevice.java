@@ -0,0 +1,56 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// One positional read or write call per request, no shared seek pointer.
+public class FileChannelBlockDevice implements BlockDevice {
+
+    private final FileChannel channel;
+    private final long size;
+
+    public FileChannelBlockDevice(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new EOFException("ERROR: read past the end of the disk at " + position);
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(src, offset, length);
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
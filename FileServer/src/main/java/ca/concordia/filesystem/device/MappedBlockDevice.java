@@ -0,0 +1,86 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Maps the whole disk file into memory so block reads and writes are plain memory copies.
+// A single mapping is limited to 2 GB, so large disks are mapped as several segments.
+// Only absolute get/put are used, which never move the buffer position, so threads can share the mappings.
+public class MappedBlockDevice implements BlockDevice {
+
+    private static final int SEGMENT_SHIFT = 30; // 1 GB segments
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    public MappedBlockDevice(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+
+        int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(length, segment.capacity() - index);
+            segment.get(index, dst, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(length, segment.capacity() - index);
+            segment.put(index, src, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void force() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close(); // the mappings themselves are released when the buffers are garbage collected
+    }
+
+    private void checkBounds(long position, int length) throws EOFException {
+        if (position < 0 || position + length > size)
+            throw new EOFException("ERROR: access past the end of the disk at " + position);
+    }
+}
@@ -0,0 +1,8 @@
+package ca.concordia.filesystem.device;
+
+// When the disk and the metadata journal are forced to stable storage.
+public enum SyncPolicy {
+    PER_OP,   // every mutating command is durable before it returns (group committed)
+    PERIODIC, // commands return right away, a background thread forces every sync interval
+    ON_CLOSE  // nothing is forced until checkpoint() or close()
+}
@@ -0,0 +1,30 @@
+package ca.concordia.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+// Adds every byte written to a shared counter (bytes sent by the server)
+public class CountingOutputStream extends FilterOutputStream {
+
+    private final LongAdder counter;
+
+    public CountingOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.increment();
+    }
+
+    // FilterOutputStream would write the array one byte at a time
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        counter.add(len);
+    }
+}
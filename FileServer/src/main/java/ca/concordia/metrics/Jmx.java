@@ -0,0 +1,38 @@
+package ca.concordia.metrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// Registers the server's MBeans with the platform MBean server, where jconsole/VisualVM find them under "ca.concordia".
+// Monitoring is optional, so failures are logged and otherwise ignored.
+public final class Jmx {
+
+    private Jmx() {
+    }
+
+    // returns the name it was registered under, null if registration failed
+    public static ObjectName register(String name, Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName); // left behind by an instance that wasn't closed
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (Exception e) {
+            Log.warn("Could not register MBean " + name + ": " + e);
+            return null;
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            // already gone
+        }
+    }
+}
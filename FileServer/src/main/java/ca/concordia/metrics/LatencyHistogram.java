@@ -0,0 +1,108 @@
+package ca.concordia.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock free latency histogram in the style of HdrHistogram: values (nanoseconds) are counted in
+// log-linear buckets, 64 linear sub-buckets below 64 and then 32 per power of two, so any value is
+// within about 3% of its bucket bound whatever its magnitude, and recording is a couple of shifts
+// and one atomic increment. Percentiles are read from a snapshot of the counts while recording goes on.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;      // 64
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >>> 1;   // 32
+    private static final int BUCKETS = HALF_SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1); // up to Long.MAX_VALUE
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        if (nanos > max.get())
+            max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getTotalNanos() {
+        return sum.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // smallest recorded bucket bound that percent of the values are at or below, 0 when empty
+    public long getPercentileNanos(double percent) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // "count=12 mean=3.1us p50=2.9us p90=4.0us p99=8.2us p99.9=15.1us max=16.0us"
+    public String summary() {
+        return "count=" + getCount()
+                + " mean=" + micros(getMeanNanos())
+                + " p50=" + micros(getPercentileNanos(50))
+                + " p90=" + micros(getPercentileNanos(90))
+                + " p99=" + micros(getPercentileNanos(99))
+                + " p99.9=" + micros(getPercentileNanos(99.9))
+                + " max=" + micros(getMaxNanos());
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+
+    // values below SUB_BUCKETS get a bucket each, above that a bucket covers 1/32 of its power of two
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return HALF_SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
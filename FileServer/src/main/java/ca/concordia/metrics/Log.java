@@ -0,0 +1,162 @@
+package ca.concordia.metrics;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Level gated asynchronous logger used instead of System.out.println on the server's hot paths.
+// Callers only pay for a level check and a queue offer, the console is written by one background thread
+// ("log-writer") that prints whatever piled up with one write. When the queue is full messages are
+// dropped and counted rather than making a client thread wait for the console.
+// Build expensive messages only after isEnabled(), the level check alone is a volatile read.
+public final class Log {
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+
+    private static volatile LogLevel level = initialLevel();
+
+    private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong unwritten = new AtomicLong(); // queued and not printed yet, for flush()
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final class Entry {
+        final LogLevel level;
+        final String message;
+        final Throwable error;
+
+        Entry(LogLevel level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    // -Dfileserver.log=DEBUG, INFO unless set
+    private static LogLevel initialLevel() {
+        try {
+            return LogLevel.valueOf(System.getProperty("fileserver.log", "INFO").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return LogLevel.INFO;
+        }
+    }
+
+    public static void setLevel(LogLevel newLevel) {
+        level = newLevel;
+    }
+
+    public static LogLevel getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(LogLevel messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != LogLevel.OFF;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(LogLevel.DEBUG);
+    }
+
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(LogLevel.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(LogLevel.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable error) {
+        log(LogLevel.WARN, message, error);
+    }
+
+    public static void error(String message) {
+        log(LogLevel.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(LogLevel.ERROR, message, error);
+    }
+
+    // messages lost because the queue was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // waits (at most a second) until everything logged so far is printed, used at shutdown
+    public static void flush() {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (unwritten.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void log(LogLevel messageLevel, String message, Throwable error) {
+        if (!isEnabled(messageLevel))
+            return;
+        unwritten.incrementAndGet();
+        if (!queue.offer(new Entry(messageLevel, message, error))) {
+            unwritten.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (Entry entry : batch) {
+                StringBuilder target = entry.level.compareTo(LogLevel.WARN) >= 0 ? err : out;
+                if (target == err)
+                    target.append(entry.level).append(": ");
+                target.append(entry.message).append(System.lineSeparator());
+                if (entry.error != null) {
+                    StringWriter trace = new StringWriter();
+                    entry.error.printStackTrace(new PrintWriter(trace));
+                    target.append(trace);
+                }
+            }
+            // looked up every time so a redirected System.out/err is honoured
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+            }
+            if (err.length() > 0) {
+                System.err.print(err);
+                System.err.flush();
+            }
+            unwritten.addAndGet(-batch.size());
+            batch.clear();
+            out.setLength(0);
+            err.setLength(0);
+        }
+    }
+}
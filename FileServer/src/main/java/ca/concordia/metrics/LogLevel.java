@@ -0,0 +1,10 @@
+package ca.concordia.metrics;
+
+// Messages below the configured level are dropped before they are even queued
+public enum LogLevel {
+    DEBUG, // every command received, every file written
+    INFO,  // startup, mounting, upgrades
+    WARN,
+    ERROR,
+    OFF
+}
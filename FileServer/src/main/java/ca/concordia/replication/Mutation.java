@@ -0,0 +1,180 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.BatchOperation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// One change applied by the primary, as it goes into the replication log and over the wire.
+// Encoded as [byte type][UTF filename] followed by what the type needs:
+//   WRITE, APPEND [int length][data]      WRITE_AT [long offset][int length][data]
+//   TRUNCATE      [long size]             COMPRESS [boolean]
+//   BATCH (no filename) [int count] then count x [byte BatchOperation type][UTF filename][int length, -1 for none][data]
+// A batch only holds the operations that succeeded on the primary.
+final class Mutation {
+
+    static final byte CREATE = 1;
+    static final byte DELETE = 2;
+    static final byte WRITE = 3;
+    static final byte WRITE_AT = 4;
+    static final byte APPEND = 5;
+    static final byte TRUNCATE = 6;
+    static final byte COMPRESS = 7;
+    static final byte BATCH = 8;
+
+    final byte type;
+    final String filename; // null for BATCH
+    final long offset; // WRITE_AT offset, TRUNCATE size
+    final byte[] data;
+    final boolean compressed;
+    final List<BatchOperation> operations; // BATCH only
+
+    private Mutation(byte type, String filename, long offset, byte[] data, boolean compressed, List<BatchOperation> operations) {
+        this.type = type;
+        this.filename = filename;
+        this.offset = offset;
+        this.data = data;
+        this.compressed = compressed;
+        this.operations = operations;
+    }
+
+    static Mutation create(String filename) {
+        return new Mutation(CREATE, filename, 0, null, false, null);
+    }
+
+    static Mutation delete(String filename) {
+        return new Mutation(DELETE, filename, 0, null, false, null);
+    }
+
+    static Mutation write(String filename, byte[] data) {
+        return new Mutation(WRITE, filename, 0, data, false, null);
+    }
+
+    static Mutation writeAt(String filename, long offset, byte[] data) {
+        return new Mutation(WRITE_AT, filename, offset, data, false, null);
+    }
+
+    static Mutation append(String filename, byte[] data) {
+        return new Mutation(APPEND, filename, 0, data, false, null);
+    }
+
+    static Mutation truncate(String filename, long size) {
+        return new Mutation(TRUNCATE, filename, size, null, false, null);
+    }
+
+    static Mutation compress(String filename, boolean compressed) {
+        return new Mutation(COMPRESS, filename, 0, null, compressed, null);
+    }
+
+    static Mutation batch(List<BatchOperation> operations) {
+        return new Mutation(BATCH, null, 0, null, false, operations);
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (data == null ? 0 : data.length));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            if (type == BATCH) {
+                out.writeInt(operations.size());
+                for (BatchOperation op : operations) {
+                    out.writeByte(op.getType().ordinal());
+                    out.writeUTF(op.getFilename());
+                    writeData(out, op.getData());
+                }
+                return bytes.toByteArray();
+            }
+            out.writeUTF(filename);
+            switch (type) {
+                case WRITE:
+                case APPEND:
+                    writeData(out, data);
+                    break;
+                case WRITE_AT:
+                    out.writeLong(offset);
+                    writeData(out, data);
+                    break;
+                case TRUNCATE:
+                    out.writeLong(offset);
+                    break;
+                case COMPRESS:
+                    out.writeBoolean(compressed);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a ByteArrayOutputStream doesn't fail
+        }
+        return bytes.toByteArray();
+    }
+
+    static Mutation decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        if (type == BATCH) {
+            int count = in.readInt();
+            List<BatchOperation> operations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                BatchOperation.Type opType = BatchOperation.Type.values()[in.readByte()];
+                String filename = in.readUTF();
+                byte[] data = readData(in);
+                switch (opType) {
+                    case CREATE:
+                        operations.add(BatchOperation.create(filename));
+                        break;
+                    case WRITE:
+                        operations.add(BatchOperation.write(filename, data));
+                        break;
+                    case DELETE:
+                        operations.add(BatchOperation.delete(filename));
+                        break;
+                }
+            }
+            return batch(operations);
+        }
+        String filename = in.readUTF();
+        switch (type) {
+            case CREATE:
+                return create(filename);
+            case DELETE:
+                return delete(filename);
+            case WRITE:
+                return write(filename, readData(in));
+            case APPEND:
+                return append(filename, readData(in));
+            case WRITE_AT:
+                long offset = in.readLong();
+                return writeAt(filename, offset, readData(in));
+            case TRUNCATE:
+                return truncate(filename, in.readLong());
+            case COMPRESS:
+                return compress(filename, in.readBoolean());
+            default:
+                throw new IOException("Unknown mutation type " + type);
+        }
+    }
+
+    private static void writeData(DataOutputStream out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readData(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,258 @@
+package ca.concordia.replication;
+
+import ca.concordia.metrics.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// The replica's side of replication: one thread connects to the primary, loads snapshots and applies the
+// mutations it streams, in order, acknowledging what it applied. It reconnects whenever the connection drops.
+//
+// The position (primary epoch, last applied mutation) is written to stateFile on a clean close and removed
+// again on start, so after a crash the replica can't know what it applied last and asks for a snapshot.
+final class ReplicaClient {
+
+    enum State { DISCONNECTED, SNAPSHOT, STREAMING }
+
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long PINNED_WAIT_MILLIS = 10000; // longest wait for reads to give their blocks back
+    private static final long PINNED_RETRY_MILLIS = 10;
+
+    private final ReplicatedVolume volume;
+    private final ReplicationConfig config;
+    private final String stateFile;
+    private final Map<String, Long> captured = new HashMap<>(); // file -> log position of its snapshot copy
+    private long capturedUntil; // highest position in captured, the map is cleared once applied passes it
+    private final LongAdder entriesApplied = new LongAdder();
+    private final LongAdder snapshotsLoaded = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile State state = State.DISCONNECTED;
+    private volatile long epoch; // 0 until a snapshot of the current primary is loaded
+    private volatile long applied;
+    private volatile long primarySeq;
+    private volatile long appliedTimestamp; // when the primary applied the last mutation applied here
+    private volatile Socket socket;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    ReplicaClient(ReplicatedVolume volume, ReplicationConfig config, String stateFile) throws IOException {
+        this.volume = volume;
+        this.config = config;
+        this.stateFile = stateFile;
+        File file = new File(stateFile);
+        if (file.exists()) {
+            try (RandomAccessFile state = new RandomAccessFile(file, "r")) {
+                epoch = state.readLong();
+                applied = state.readLong();
+            } catch (IOException e) {
+                epoch = 0; // unreadable, start from a snapshot
+            }
+            if (!file.delete())
+                throw new IOException("ERROR: could not remove " + stateFile);
+        }
+    }
+
+    void start() {
+        thread = new Thread(this::run, "replication-replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                follow();
+            } catch (Exception e) {
+                if (!stopped)
+                    Log.warn("Lost the primary at " + config.getPrimaryHost() + ":" + config.getPrimaryPort()
+                            + ": " + e.getMessage());
+            } finally {
+                state = State.DISCONNECTED;
+            }
+            if (stopped)
+                return;
+            reconnects.increment();
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow() throws Exception {
+        try (Socket s = new Socket(config.getPrimaryHost(), config.getPrimaryPort())) {
+            socket = s;
+            if (stopped)
+                return;
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeInt(ReplicationProtocol.MAGIC);
+            out.writeLong(epoch);
+            out.writeLong(applied);
+            out.flush();
+
+            long snapshotStart = 0;
+            long snapshotEpoch = 0;
+            while (!stopped) {
+                byte type = in.readByte();
+                switch (type) {
+                    case ReplicationProtocol.STREAM:
+                        in.readLong();
+                        state = State.STREAMING;
+                        Log.info("Following the primary from mutation " + applied);
+                        break;
+                    case ReplicationProtocol.SNAPSHOT_BEGIN:
+                        snapshotEpoch = in.readLong();
+                        snapshotStart = in.readLong();
+                        epoch = 0; // a snapshot cut short leaves nothing to resume from
+                        state = State.SNAPSHOT;
+                        captured.clear();
+                        capturedUntil = 0;
+                        volume.dropAllFiles();
+                        break;
+                    case ReplicationProtocol.SNAPSHOT_FILE:
+                        loadFile(in);
+                        break;
+                    case ReplicationProtocol.SNAPSHOT_GONE:
+                        capture(in.readUTF(), in.readLong());
+                        break;
+                    case ReplicationProtocol.SNAPSHOT_END:
+                        epoch = snapshotEpoch;
+                        applied = snapshotStart;
+                        primarySeq = Math.max(primarySeq, snapshotStart);
+                        appliedTimestamp = System.currentTimeMillis();
+                        state = State.STREAMING;
+                        snapshotsLoaded.increment();
+                        Log.info("Loaded a snapshot of the primary at mutation " + applied);
+                        ack(out);
+                        break;
+                    case ReplicationProtocol.ENTRY:
+                        applyEntry(in);
+                        if (in.available() == 0)
+                            ack(out); // one acknowledgement for everything that arrived together
+                        break;
+                    case ReplicationProtocol.HEARTBEAT:
+                        primarySeq = Math.max(primarySeq, in.readLong());
+                        in.readLong();
+                        ack(out);
+                        break;
+                    default:
+                        throw new IOException("unexpected message " + type);
+                }
+            }
+        } finally {
+            socket = null;
+        }
+    }
+
+    private void loadFile(DataInputStream in) throws Exception {
+        String filename = in.readUTF();
+        long seq = in.readLong();
+        boolean compressed = in.readBoolean();
+        volume.createFromSnapshot(filename);
+        for (int length = in.readInt(); length > 0; length = in.readInt()) {
+            byte[] chunk = new byte[length];
+            in.readFully(chunk);
+            volume.appendFromSnapshot(filename, chunk);
+        }
+        if (compressed)
+            volume.compressFromSnapshot(filename);
+        capture(filename, seq);
+    }
+
+    private void capture(String filename, long seq) {
+        captured.put(filename, seq);
+        capturedUntil = Math.max(capturedUntil, seq);
+    }
+
+    private void applyEntry(DataInputStream in) throws Exception {
+        long seq = in.readLong();
+        long timestamp = in.readLong();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        if (seq != applied + 1)
+            throw new IOException("mutation " + seq + " arrived after " + applied);
+        Mutation mutation = Mutation.decode(body);
+        long waitedUntil = System.currentTimeMillis() + PINNED_WAIT_MILLIS;
+        while (true) {
+            try {
+                volume.apply(mutation, filename -> captured.getOrDefault(filename, 0L) >= seq);
+                break;
+            } catch (Exception e) {
+                // Reads served here may pin blocks the primary already had back. A single mutation that fails
+                // changes nothing, so it is tried again once they are done; a batch may have applied a part.
+                if (mutation.type != Mutation.BATCH && volume.getReadPinnedBlocks() > 0
+                        && System.currentTimeMillis() < waitedUntil && !stopped) {
+                    Thread.sleep(PINNED_RETRY_MILLIS);
+                    continue;
+                }
+                epoch = 0; // the files no longer match the primary's, start over from a snapshot
+                throw new IOException("mutation " + seq + " failed: " + e.getMessage(), e);
+            }
+        }
+        applied = seq;
+        appliedTimestamp = timestamp;
+        primarySeq = Math.max(primarySeq, seq);
+        entriesApplied.increment();
+        if (applied >= capturedUntil)
+            captured.clear();
+    }
+
+    private void ack(DataOutputStream out) throws IOException {
+        out.writeByte(ReplicationProtocol.ACK);
+        out.writeLong(applied);
+        out.flush();
+    }
+
+    void addStats(Map<String, Object> stats) {
+        long lagEntries = Math.max(0, primarySeq - applied);
+        stats.put("replication.role", "REPLICA");
+        stats.put("replication.primary", config.getPrimaryHost() + ":" + config.getPrimaryPort());
+        stats.put("replication.state", state.toString());
+        stats.put("replication.applied", applied);
+        stats.put("replication.primary_seq", primarySeq);
+        stats.put("replication.lag_entries", lagEntries);
+        // how old the primary's copy of the last applied mutation is, while more are pending
+        stats.put("replication.lag_ms", lagEntries == 0 ? 0 : Math.max(0, System.currentTimeMillis() - appliedTimestamp));
+        stats.put("replication.entries_applied", entriesApplied.sum());
+        stats.put("replication.snapshots_loaded", snapshotsLoaded.sum());
+        stats.put("replication.reconnects", reconnects.sum());
+    }
+
+    // Stops following. Not by interrupting the thread, that would close the shard's FileChannel mid write.
+    void close() throws IOException {
+        stopped = true;
+        Socket s = socket;
+        if (s != null)
+            s.close();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // keeps the position for the next start once the files are closed, unless no snapshot was loaded yet
+    void saveState() throws IOException {
+        if (epoch == 0)
+            return;
+        try (RandomAccessFile state = new RandomAccessFile(stateFile, "rw")) {
+            state.setLength(0);
+            state.writeLong(epoch);
+            state.writeLong(applied);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package ca.concordia.replication;
+
+import ca.concordia.metrics.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+// One connected replica, on the primary. A sender thread brings the replica up to date (from the log when it
+// still has everything the replica misses, otherwise with a snapshot) and then streams new log entries; a
+// second thread reads the replica's acknowledgements. Either side failing closes the connection, the replica
+// reconnects and says where it stands.
+// Snapshot files are sent under their replication lock: writes to files of the same stripe wait for the copy.
+final class ReplicaLink {
+
+    enum State { HANDSHAKE, SNAPSHOT, STREAMING, CLOSED }
+
+    private static final int MAX_BATCH = 256; // log entries sent per flush
+
+    private final Socket socket;
+    private final ReplicatedVolume volume;
+    private final ReplicationLog log;
+    private final ReplicationServer server;
+    private final String name;
+    private volatile State state = State.HANDSHAKE;
+    private volatile long acked;
+
+    ReplicaLink(Socket socket, ReplicatedVolume volume, ReplicationLog log, ReplicationServer server) {
+        this.socket = socket;
+        this.volume = volume;
+        this.log = log;
+        this.server = server;
+        this.name = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
+
+    void start() {
+        Thread sender = new Thread(this::send, "replication-send-" + name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    boolean isStreaming() {
+        return state == State.STREAMING;
+    }
+
+    long getAcked() {
+        return acked;
+    }
+
+    long getLagEntries() {
+        return Math.max(0, log.getLastSeq() - acked);
+    }
+
+    // how long the oldest mutation the replica hasn't acknowledged has been waiting
+    long getLagMillis() {
+        if (acked >= log.getLastSeq())
+            return 0;
+        long since = log.timestampOf(acked + 1);
+        if (since < 0)
+            since = log.firstTimestamp(); // already dropped, the replica is at least that far behind
+        return since < 0 ? 0 : Math.max(0, System.currentTimeMillis() - since);
+    }
+
+    void close() {
+        state = State.CLOSED;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private void send() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            if (in.readInt() != ReplicationProtocol.MAGIC)
+                throw new IOException("not a replica");
+            long epoch = in.readLong();
+            long applied = in.readLong();
+
+            Thread ackReader = new Thread(() -> readAcks(in), "replication-acks-" + name);
+            ackReader.setDaemon(true);
+            ackReader.start();
+
+            long next; // last entry the replica has or is about to get
+            if (epoch == volume.getEpoch() && log.canResumeAfter(applied)) {
+                out.writeByte(ReplicationProtocol.STREAM);
+                out.writeLong(volume.getEpoch());
+                out.flush();
+                acked = applied;
+                next = applied;
+                state = State.STREAMING;
+                Log.info("Replica " + name + " resumes after mutation " + applied);
+            } else {
+                next = sendSnapshot(out);
+            }
+
+            while (state != State.CLOSED) {
+                List<ReplicationLog.Entry> entries = log.readAfter(next, MAX_BATCH, ReplicationProtocol.HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    Log.warn("Replica " + name + " fell behind the replication log, sending a snapshot");
+                    next = sendSnapshot(out);
+                    continue;
+                }
+                if (entries.isEmpty()) {
+                    out.writeByte(ReplicationProtocol.HEARTBEAT);
+                    out.writeLong(log.getLastSeq());
+                    out.writeLong(System.currentTimeMillis());
+                }
+                for (ReplicationLog.Entry entry : entries) {
+                    out.writeByte(ReplicationProtocol.ENTRY);
+                    out.writeLong(entry.seq);
+                    out.writeLong(entry.timestamp);
+                    out.writeInt(entry.body.length);
+                    out.write(entry.body);
+                    next = entry.seq;
+                }
+                out.flush();
+            }
+        } catch (Exception e) {
+            if (state != State.CLOSED)
+                Log.info("Replica " + name + " disconnected: " + e.getMessage());
+        } finally {
+            close();
+            server.removed(this);
+        }
+    }
+
+    // every file of the volume, then the position the replica continues from
+    private long sendSnapshot(DataOutputStream out) throws Exception {
+        state = State.SNAPSHOT;
+        long start = log.getLastSeq();
+        out.writeByte(ReplicationProtocol.SNAPSHOT_BEGIN);
+        out.writeLong(volume.getEpoch());
+        out.writeLong(start);
+        String[] files = volume.listFiles();
+        for (String filename : files)
+            volume.sendFile(filename, out);
+        out.writeByte(ReplicationProtocol.SNAPSHOT_END);
+        out.flush();
+        server.snapshotSent();
+        state = State.STREAMING;
+        Log.info("Sent a snapshot of " + files.length + " files to replica " + name + " at mutation " + start);
+        return start;
+    }
+
+    private void readAcks(DataInputStream in) {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                if (type != ReplicationProtocol.ACK)
+                    throw new IOException("unexpected message " + type);
+                acked = Math.max(acked, in.readLong());
+                server.acked();
+            }
+        } catch (IOException e) {
+            // the sender notices the closed socket
+        } finally {
+            close();
+        }
+    }
+}
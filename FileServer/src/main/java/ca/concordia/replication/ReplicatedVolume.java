@@ -0,0 +1,425 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.BatchOperation;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.VolumeManager;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// A VolumeManager that takes part in replication, see ReplicationConfig.
+//
+// On the primary every mutation that succeeds is added to the ReplicationLog under the same lock it was applied
+// under, one volume wide order lock, so the log has the mutations in exactly the order the primary applied them.
+// Keeping only the mutations of each file in order isn't enough: the file table and the blocks are shared, so
+// deleting one file can be what lets another be created, or shrinking one file what lets another grow, and a
+// replica applying those the other way round would run out of room. Replicas apply the log one entry at a time
+// anyway. Stream writes up to STREAM_CHUNK are read into memory first, the log needs their bytes; longer ones
+// are applied and logged a chunk at a time, with the file's replication lock held throughout so no other
+// mutation of the file comes in between, and the order lock only while a chunk is applied. Readers on the
+// primary can see such a write half done. With AckMode.SYNC the call then waits for the replicas before it
+// returns, outside of every lock.
+//
+// On a replica every mutating call is refused; ReplicaClient applies what the primary sends instead.
+public class ReplicatedVolume extends VolumeManager {
+
+    // stripes of the replication locks, taken before the order lock and any lock of the shards
+    private static final int LOCK_STRIPES = 256;
+
+    // stream writes beyond this are replicated in chunks of this size
+    private static final int STREAM_CHUNK = 1024 * 1024;
+
+    // a mutation of the underlying volume
+    private interface VolumeCall {
+        void run() throws Exception;
+    }
+
+    // applies one chunk of a stream write at position (from the start of the stream), returns its mutation
+    private interface ChunkCall {
+        Mutation apply(byte[] chunk, long position) throws Exception;
+    }
+
+    // applies a mutation of the underlying volume and returns it, for the log
+    private interface OrderedCall {
+        Mutation apply() throws Exception;
+    }
+
+    private final ReplicationConfig replication;
+    private final long epoch; // random per primary start, 0 on a replica
+    private final ReplicationLog log; // primary only
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final ReentrantLock order = new ReentrantLock(); // primary, held from applying a mutation to logging it
+    private final String stateFile; // replica only, where the replication position is kept across clean restarts
+    private ReplicationServer server; // primary, once started
+    private ReplicaClient client; // replica, once started
+
+    public ReplicatedVolume(String filename, long totalSize, int shards, FileSystemConfig config,
+                            ReplicationConfig replication) {
+        super(filename, totalSize, shards, config);
+        if (replication.getRole() == ReplicationConfig.Role.NONE)
+            throw new IllegalArgumentException("A replicated volume needs the PRIMARY or REPLICA role.");
+        this.replication = replication;
+        boolean primary = replication.getRole() == ReplicationConfig.Role.PRIMARY;
+        this.epoch = primary ? ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE) : 0;
+        this.log = primary ? new ReplicationLog(replication.getLogBytes()) : null;
+        this.stateFile = filename + ".replica";
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+    }
+
+    // opens the replication port (primary) or starts following the primary (replica)
+    public void start() throws IOException {
+        if (log != null) {
+            server = new ReplicationServer(this, log, replication);
+            server.start();
+        } else {
+            client = new ReplicaClient(this, replication, stateFile);
+            client.start();
+        }
+    }
+
+    public boolean isPrimary() {
+        return log != null;
+    }
+
+    // where replicas connect to this primary, -1 until start()
+    public int getReplicationPort() {
+        return server == null ? -1 : server.getPort();
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public void createFile(String filename) throws Exception {
+        replicate(Mutation.create(filename), () -> super.createFile(filename));
+    }
+
+    @Override
+    public void deleteFile(String filename) throws Exception {
+        replicate(Mutation.delete(filename), () -> super.deleteFile(filename));
+    }
+
+    @Override
+    public void writeFile(String filename, byte[] contents) throws Exception {
+        replicate(Mutation.write(filename, contents), () -> super.writeFile(filename, contents));
+    }
+
+    @Override
+    public void writeFile(String filename, InputStream in, long length) throws Exception {
+        checkWritable();
+        if (length <= STREAM_CHUNK) {
+            writeFile(filename, readFully(in, length));
+            return;
+        }
+        replicateChunks(filename, in, length, (chunk, position) -> {
+            if (position == 0) {
+                super.writeFile(filename, chunk);
+                return Mutation.write(filename, chunk);
+            }
+            super.append(filename, chunk);
+            return Mutation.append(filename, chunk);
+        });
+    }
+
+    @Override
+    public void writeAt(String filename, long offset, byte[] data) throws Exception {
+        replicate(Mutation.writeAt(filename, offset, data), () -> super.writeAt(filename, offset, data));
+    }
+
+    @Override
+    public void writeAt(String filename, long offset, InputStream in, long length) throws Exception {
+        checkWritable();
+        if (length <= STREAM_CHUNK) {
+            writeAt(filename, offset, readFully(in, length));
+            return;
+        }
+        replicateChunks(filename, in, length, (chunk, position) -> {
+            super.writeAt(filename, offset + position, chunk);
+            return Mutation.writeAt(filename, offset + position, chunk);
+        });
+    }
+
+    @Override
+    public void append(String filename, byte[] data) throws Exception {
+        replicate(Mutation.append(filename, data), () -> super.append(filename, data));
+    }
+
+    @Override
+    public void append(String filename, InputStream in, long length) throws Exception {
+        checkWritable();
+        if (length <= STREAM_CHUNK) {
+            append(filename, readFully(in, length));
+            return;
+        }
+        replicateChunks(filename, in, length, (chunk, position) -> {
+            super.append(filename, chunk);
+            return Mutation.append(filename, chunk);
+        });
+    }
+
+    @Override
+    public void truncate(String filename, long size) throws Exception {
+        replicate(Mutation.truncate(filename, size), () -> super.truncate(filename, size));
+    }
+
+    @Override
+    public void setCompression(String filename, boolean compressed) throws Exception {
+        replicate(Mutation.compress(filename, compressed), () -> super.setCompression(filename, compressed));
+    }
+
+    // Only the operations that succeeded are replicated, as one log entry
+    @Override
+    public String[] executeBatch(List<BatchOperation> operations) throws Exception {
+        checkWritable();
+        TreeSet<Integer> locked = new TreeSet<>(); // in index order, like the stripe locks of the shards
+        for (BatchOperation op : operations)
+            locked.add(stripeOf(op.getFilename()));
+        for (int stripe : locked)
+            stripes[stripe].lock();
+        String[] errors;
+        long seq = 0;
+        order.lock();
+        try {
+            errors = super.executeBatch(operations);
+            List<BatchOperation> applied = new ArrayList<>(operations.size());
+            for (int i = 0; i < operations.size(); i++)
+                if (errors[i] == null)
+                    applied.add(operations.get(i));
+            if (!applied.isEmpty())
+                seq = log.append(Mutation.batch(applied).encode());
+        } finally {
+            order.unlock();
+            for (int stripe : locked)
+                stripes[stripe].unlock();
+        }
+        if (seq > 0)
+            awaitReplicas(seq);
+        return errors;
+    }
+
+    @Override
+    public Map<String, Object> getStatsSnapshot() throws Exception {
+        Map<String, Object> stats = super.getStatsSnapshot();
+        if (server != null)
+            server.addStats(stats);
+        if (client != null)
+            client.addStats(stats);
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null)
+            server.close();
+        if (client != null)
+            client.close(); // the applier stops before the shards close
+        super.close();
+        if (client != null)
+            client.saveState();
+    }
+
+    // ---- primary ----
+
+    private void replicate(Mutation mutation, VolumeCall call) throws Exception {
+        checkWritable();
+        long seq;
+        ReentrantLock stripe = stripes[stripeOf(mutation.filename)];
+        stripe.lock();
+        try {
+            seq = applyInOrder(() -> {
+                call.run();
+                return mutation;
+            });
+        } finally {
+            stripe.unlock();
+        }
+        awaitReplicas(seq);
+    }
+
+    // A long stream write, one log entry per chunk so the primary never holds more than a chunk of it. Each chunk
+    // is read before the order lock is taken, so a slow stream only holds up mutations of its own stripe. Ranged
+    // writes rewrite a compressed file whole, so a compressed file takes the chunks uncompressed and is
+    // compressed again once at the end. A stream that fails part way leaves the chunks before it applied,
+    // on the replicas as well.
+    private void replicateChunks(String filename, InputStream in, long length, ChunkCall call) throws Exception {
+        long seq = 0;
+        ReentrantLock stripe = stripes[stripeOf(filename)];
+        stripe.lock();
+        try {
+            boolean compressed = isCompressed(filename);
+            if (compressed)
+                seq = applyInOrder(() -> {
+                    super.setCompression(filename, false);
+                    return Mutation.compress(filename, false);
+                });
+            try {
+                for (long position = 0; position < length; ) {
+                    byte[] chunk = readFully(in, Math.min(STREAM_CHUNK, length - position));
+                    long at = position;
+                    seq = applyInOrder(() -> call.apply(chunk, at));
+                    position += chunk.length;
+                }
+            } finally {
+                if (compressed)
+                    seq = applyInOrder(() -> {
+                        super.setCompression(filename, true);
+                        return Mutation.compress(filename, true);
+                    });
+            }
+        } finally {
+            stripe.unlock();
+        }
+        if (seq > 0)
+            awaitReplicas(seq);
+    }
+
+    // returns the mutation's position in the log
+    private long applyInOrder(OrderedCall call) throws Exception {
+        order.lock();
+        try {
+            return log.append(call.apply().encode());
+        } finally {
+            order.unlock();
+        }
+    }
+
+    private void awaitReplicas(long seq) throws InterruptedException {
+        if (replication.getAckMode() == ReplicationConfig.AckMode.SYNC && server != null)
+            server.awaitReplicas(seq);
+    }
+
+    // Sends one file of a snapshot, holding its replication lock so none of its mutations is logged meanwhile.
+    // The copy is tagged with the last log position, entries of the file up to there are part of it.
+    void sendFile(String filename, DataOutputStream out) throws Exception {
+        ReentrantLock stripe = stripes[stripeOf(filename)];
+        stripe.lock();
+        try {
+            long seq = log.getLastSeq();
+            if (!exists(filename)) {
+                out.writeByte(ReplicationProtocol.SNAPSHOT_GONE);
+                out.writeUTF(filename);
+                out.writeLong(seq);
+                return;
+            }
+            out.writeByte(ReplicationProtocol.SNAPSHOT_FILE);
+            out.writeUTF(filename);
+            out.writeLong(seq);
+            out.writeBoolean(isCompressed(filename));
+            long offset = 0;
+            byte[] chunk;
+            do {
+                chunk = readFile(filename, offset, ReplicationProtocol.SNAPSHOT_CHUNK);
+                if (chunk.length > 0) {
+                    out.writeInt(chunk.length);
+                    out.write(chunk);
+                }
+                offset += chunk.length;
+            } while (chunk.length == ReplicationProtocol.SNAPSHOT_CHUNK);
+            out.writeInt(0);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // ---- replica ----
+
+    // Runs a mutation received from the primary. skip names the files whose snapshot copy already has it.
+    void apply(Mutation mutation, Predicate<String> skip) throws Exception {
+        if (mutation.type == Mutation.BATCH) {
+            List<BatchOperation> operations = new ArrayList<>(mutation.operations.size());
+            for (BatchOperation op : mutation.operations)
+                if (!skip.test(op.getFilename()))
+                    operations.add(op);
+            String[] errors = super.executeBatch(operations);
+            for (String error : errors)
+                if (error != null)
+                    throw new Exception(error);
+            return;
+        }
+        if (skip.test(mutation.filename))
+            return;
+        switch (mutation.type) {
+            case Mutation.CREATE:
+                super.createFile(mutation.filename);
+                break;
+            case Mutation.DELETE:
+                super.deleteFile(mutation.filename);
+                break;
+            case Mutation.WRITE:
+                super.writeFile(mutation.filename, mutation.data);
+                break;
+            case Mutation.WRITE_AT:
+                super.writeAt(mutation.filename, mutation.offset, mutation.data);
+                break;
+            case Mutation.APPEND:
+                super.append(mutation.filename, mutation.data);
+                break;
+            case Mutation.TRUNCATE:
+                super.truncate(mutation.filename, mutation.offset);
+                break;
+            case Mutation.COMPRESS:
+                super.setCompression(mutation.filename, mutation.compressed);
+                break;
+            default:
+                throw new Exception("ERROR: unknown mutation type " + mutation.type);
+        }
+    }
+
+    // Blocks that reads running here still keep from the allocator (see ReadPins). The primary may have had them
+    // back already, so a mutation that runs out of room while there are any may work once the reads are done.
+    long getReadPinnedBlocks() {
+        long blocks = 0;
+        for (int shard = 0; shard < getShardCount(); shard++)
+            blocks += getShard(shard).getReadPinnedBlocks();
+        return blocks;
+    }
+
+    // a snapshot starts over from no files at all
+    void dropAllFiles() throws Exception {
+        for (String filename : listFiles())
+            super.deleteFile(filename);
+    }
+
+    void createFromSnapshot(String filename) throws Exception {
+        super.createFile(filename);
+    }
+
+    void appendFromSnapshot(String filename, byte[] data) throws Exception {
+        super.append(filename, data);
+    }
+
+    void compressFromSnapshot(String filename) throws Exception {
+        super.setCompression(filename, true); // after the last chunk, each append would rewrite a compressed file
+    }
+
+    // ---- helpers ----
+
+    private void checkWritable() throws Exception {
+        if (log == null)
+            throw new Exception("ERROR: read-only replica, send writes to the primary at "
+                    + replication.getPrimaryHost() + ":" + replication.getPrimaryPort() + ".");
+    }
+
+    private static int stripeOf(String filename) {
+        return Math.floorMod(filename.hashCode(), LOCK_STRIPES);
+    }
+
+    private static byte[] readFully(InputStream in, long length) throws Exception {
+        if (length > Integer.MAX_VALUE - 8)
+            throw new Exception("ERROR: file too large to replicate.");
+        byte[] data = in.readNBytes((int) length);
+        if (data.length < length)
+            throw new Exception("ERROR: stream ended before " + length + " bytes were written.");
+        return data;
+    }
+}
@@ -0,0 +1,94 @@
+package ca.concordia.replication;
+
+// Replication settings of a FileServer. A PRIMARY accepts writes and streams every applied mutation to the
+// replicas that connect to its replication port; a REPLICA follows the primary at primaryHost:primaryPort,
+// serves reads locally and refuses writes. NONE (the default) is the standalone server.
+public class ReplicationConfig {
+
+    public enum Role { NONE, PRIMARY, REPLICA }
+
+    // ASYNC: a write returns once the primary applied it. SYNC: it also waits until syncReplicas replicas
+    // applied it, for at most syncTimeoutMillis, then returns anyway (and counts a sync timeout).
+    public enum AckMode { ASYNC, SYNC }
+
+    private Role role = Role.NONE;
+    private int replicationPort = 12346; // PRIMARY: where replicas connect
+    private String primaryHost = "localhost"; // REPLICA: the primary to follow
+    private int primaryPort = 12346;
+    private AckMode ackMode = AckMode.ASYNC;
+    private int syncReplicas = 1;
+    private long syncTimeoutMillis = 1000;
+    private long logBytes = 64L * 1024 * 1024; // mutations kept for replicas that fall behind
+
+    public Role getRole() {
+        return role;
+    }
+
+    public void setRole(Role role) {
+        this.role = role;
+    }
+
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    public void setReplicationPort(int replicationPort) {
+        this.replicationPort = replicationPort;
+    }
+
+    public String getPrimaryHost() {
+        return primaryHost;
+    }
+
+    public int getPrimaryPort() {
+        return primaryPort;
+    }
+
+    // host:port of the primary's replication port
+    public void setPrimary(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("Primary must be given as host:port.");
+        this.primaryHost = address.substring(0, colon);
+        this.primaryPort = Integer.parseInt(address.substring(colon + 1));
+    }
+
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    public void setAckMode(AckMode ackMode) {
+        this.ackMode = ackMode;
+    }
+
+    public int getSyncReplicas() {
+        return syncReplicas;
+    }
+
+    public void setSyncReplicas(int syncReplicas) {
+        if (syncReplicas <= 0)
+            throw new IllegalArgumentException("Sync replicas must be positive.");
+        this.syncReplicas = syncReplicas;
+    }
+
+    public long getSyncTimeoutMillis() {
+        return syncTimeoutMillis;
+    }
+
+    public void setSyncTimeoutMillis(long syncTimeoutMillis) {
+        if (syncTimeoutMillis <= 0)
+            throw new IllegalArgumentException("Sync timeout must be positive.");
+        this.syncTimeoutMillis = syncTimeoutMillis;
+    }
+
+    public long getLogBytes() {
+        return logBytes;
+    }
+
+    // A replica further behind than this many bytes of mutations gets a new snapshot instead of the log
+    public void setLogBytes(long logBytes) {
+        if (logBytes <= 0)
+            throw new IllegalArgumentException("Replication log size must be positive.");
+        this.logBytes = logBytes;
+    }
+}
@@ -0,0 +1,98 @@
+package ca.concordia.replication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The recent mutations of the primary, in memory, numbered from 1. Entries are dropped oldest first once
+// they take more than maxBytes; a replica that still needs a dropped entry is sent a snapshot instead.
+// The log starts empty every time the primary starts, its epoch tells replicas that older numbers are void.
+final class ReplicationLog {
+
+    static final class Entry {
+        final long seq;
+        final long timestamp; // when the primary applied it, System.currentTimeMillis()
+        final byte[] body; // Mutation.encode()
+
+        Entry(long seq, long timestamp, byte[] body) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.body = body;
+        }
+    }
+
+    private final long maxBytes;
+    private final List<Entry> entries = new ArrayList<>();
+    private int head; // entries before head are dropped, compacted away now and then
+    private long bytes;
+    private long lastSeq;
+
+    ReplicationLog(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized long append(byte[] body) {
+        Entry entry = new Entry(++lastSeq, System.currentTimeMillis(), body);
+        entries.add(entry);
+        bytes += body.length;
+        while (bytes > maxBytes && entries.size() - head > 1)
+            bytes -= entries.get(head++).body.length;
+        if (head > 1024 && head > entries.size() / 2) {
+            entries.subList(0, head).clear();
+            head = 0;
+        }
+        notifyAll();
+        return entry.seq;
+    }
+
+    synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    synchronized int size() {
+        return entries.size() - head;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    // Up to max entries following seq, waiting up to waitMillis for one to arrive. Empty when nothing came,
+    // null when the entry right after seq was already dropped.
+    synchronized List<Entry> readAfter(long seq, int max, long waitMillis) throws InterruptedException {
+        if (lastSeq <= seq)
+            wait(waitMillis);
+        if (lastSeq <= seq)
+            return Collections.emptyList();
+        int first = indexOf(seq + 1);
+        if (first < 0)
+            return null;
+        int end = Math.min(entries.size(), first + max);
+        return new ArrayList<>(entries.subList(first, end));
+    }
+
+    // true when every entry after seq is still in the log
+    synchronized boolean canResumeAfter(long seq) {
+        return seq == lastSeq || indexOf(seq + 1) >= 0;
+    }
+
+    // when the primary applied entry seq, -1 when it isn't in the log (anymore)
+    synchronized long timestampOf(long seq) {
+        int i = indexOf(seq);
+        return i < 0 ? -1 : entries.get(i).timestamp;
+    }
+
+    synchronized long firstTimestamp() {
+        return head < entries.size() ? entries.get(head).timestamp : -1;
+    }
+
+    // entries are consecutive, so the position follows from the sequence number
+    private int indexOf(long seq) {
+        if (head >= entries.size() || seq > lastSeq)
+            return -1;
+        long firstSeq = entries.get(head).seq;
+        if (seq < firstSeq)
+            return -1;
+        return head + (int) (seq - firstSeq);
+    }
+}
@@ -0,0 +1,39 @@
+package ca.concordia.replication;
+
+// Wire protocol between a primary and a replica, over one TCP connection to the primary's replication port.
+//
+// Replica -> primary:
+//   HELLO     [int MAGIC][long epoch][long applied]   first thing sent, epoch 0 asks for a snapshot
+//   ACK       [byte ACK][long seq]                    every mutation up to seq is applied
+// Primary -> replica:
+//   STREAM    [byte][long epoch]                      the log still has what follows applied, it comes next
+//   SNAPSHOT_BEGIN [byte][long epoch][long seq]       the replica drops its files, the snapshot starts at seq
+//   SNAPSHOT_FILE  [byte][UTF name][long seq][boolean compressed] then chunks [int length][data], length 0 ends
+//   SNAPSHOT_GONE  [byte][UTF name][long seq]         the file was deleted while the snapshot was taken
+//   SNAPSHOT_END   [byte]
+//   ENTRY     [byte][long seq][long timestamp][int length][Mutation]
+//   HEARTBEAT [byte][long last seq][long timestamp]   sent when no mutation came for HEARTBEAT_MILLIS
+//
+// A snapshot is taken while writes go on. Each file is copied under its replication lock and tagged with the
+// log position at that moment; the replica then replays the log from the snapshot's start but skips the
+// entries of a file up to the position its copy was taken at, those are already in the copy.
+final class ReplicationProtocol {
+
+    static final int MAGIC = 0x43415250; // "CARP"
+
+    static final byte ACK = 1;
+
+    static final byte STREAM = 1;
+    static final byte SNAPSHOT_BEGIN = 2;
+    static final byte SNAPSHOT_FILE = 3;
+    static final byte SNAPSHOT_GONE = 4;
+    static final byte SNAPSHOT_END = 5;
+    static final byte ENTRY = 6;
+    static final byte HEARTBEAT = 7;
+
+    static final long HEARTBEAT_MILLIS = 1000;
+    static final int SNAPSHOT_CHUNK = 1024 * 1024;
+
+    private ReplicationProtocol() {
+    }
+}
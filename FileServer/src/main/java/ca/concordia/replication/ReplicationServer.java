@@ -0,0 +1,155 @@
+package ca.concordia.replication;
+
+import ca.concordia.metrics.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// The primary's side of replication: accepts replicas on the replication port, runs one ReplicaLink per replica
+// and lets SYNC writes wait for their acknowledgements.
+final class ReplicationServer {
+
+    private final ReplicatedVolume volume;
+    private final ReplicationLog log;
+    private final ReplicationConfig config;
+    private final ServerSocket serverSocket;
+    private final List<ReplicaLink> links = new CopyOnWriteArrayList<>();
+    private final Object acks = new Object(); // notified whenever a replica acknowledges
+    private final LongAdder syncWaits = new LongAdder();
+    private final LongAdder syncTimeouts = new LongAdder();
+    private final LongAdder syncWaitNanos = new LongAdder();
+    private final LongAdder snapshotsSent = new LongAdder();
+    private Thread acceptThread;
+    private volatile boolean stopped;
+
+    ReplicationServer(ReplicatedVolume volume, ReplicationLog log, ReplicationConfig config) throws IOException {
+        this.volume = volume;
+        this.log = log;
+        this.config = config;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(config.getReplicationPort()));
+    }
+
+    void start() {
+        acceptThread = new Thread(this::acceptLoop, "replication-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.info("Replication primary listening on port " + getPort() + " ("
+                + config.getAckMode() + " acknowledgement)");
+    }
+
+    // the configured port, or the one picked when that was 0
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!stopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true); // acknowledgements hold up SYNC writes
+                ReplicaLink link = new ReplicaLink(socket, volume, log, this);
+                links.add(link);
+                link.start();
+            } catch (IOException e) {
+                if (!stopped)
+                    Log.error("Replication port stopped accepting", e);
+                return;
+            }
+        }
+    }
+
+    void removed(ReplicaLink link) {
+        links.remove(link);
+        acked(); // a SYNC write waiting for this replica may be done now
+    }
+
+    void acked() {
+        synchronized (acks) {
+            acks.notifyAll();
+        }
+    }
+
+    void snapshotSent() {
+        snapshotsSent.increment();
+    }
+
+    // Waits until config.getSyncReplicas() streaming replicas (or all of them, when fewer are connected) have
+    // applied seq. Gives up after the sync timeout: the write is already applied on the primary and stays.
+    void awaitReplicas(long seq) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(config.getSyncTimeoutMillis());
+        syncWaits.increment();
+        try {
+            synchronized (acks) {
+                while (true) {
+                    int streaming = 0;
+                    int done = 0;
+                    for (ReplicaLink link : links) {
+                        if (!link.isStreaming())
+                            continue;
+                        streaming++;
+                        if (link.getAcked() >= seq)
+                            done++;
+                    }
+                    if (done >= Math.min(config.getSyncReplicas(), streaming))
+                        return;
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        syncTimeouts.increment();
+                        return;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(acks, left);
+                }
+            }
+        } finally {
+            syncWaitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    void addStats(Map<String, Object> stats) {
+        stats.put("replication.role", "PRIMARY");
+        stats.put("replication.ack_mode", config.getAckMode().toString());
+        stats.put("replication.seq", log.getLastSeq());
+        stats.put("replication.log_entries", log.size());
+        stats.put("replication.log_bytes", log.getBytes());
+        stats.put("replication.replicas", links.size());
+        stats.put("replication.snapshots_sent", snapshotsSent.sum());
+        stats.put("replication.sync_waits", syncWaits.sum());
+        stats.put("replication.sync_timeouts", syncTimeouts.sum());
+        stats.put("replication.sync_wait_nanos", syncWaitNanos.sum());
+        for (ReplicaLink link : links) {
+            String prefix = "replication.replica." + link.getName() + ".";
+            stats.put(prefix + "state", link.getState().toString());
+            stats.put(prefix + "acked", link.getAcked());
+            stats.put(prefix + "lag_entries", link.getLagEntries());
+            stats.put(prefix + "lag_ms", link.getLagMillis());
+        }
+    }
+
+    void close() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (ReplicaLink link : links)
+            link.close();
+        if (acceptThread != null) {
+            try {
+                acceptThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package ca.concordia.server;
+import ca.concordia.filesystem.ChannelSink;
+import ca.concordia.filesystem.FileSink;
+import ca.concordia.filesystem.VolumeManager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Binary framing a client can switch to by sending the text line "BINARY".
+//
+// Request:  [byte opcode][int requestId][unsigned short nameLength][name, UTF-8][long payloadLength][payload]
+// Response: [byte status][int requestId][long payloadLength][payload]
+//
+// Ranged operations carry their numbers at the front of the payload:
+//   WRITE_AT   [long offset][data]           APPEND     [data]
+//   TRUNCATE   [long size]                   READ_RANGE [long offset][long length]
+//
+// WRITE payloads are streamed from the socket into the file's blocks and READ replies are streamed
+// from the blocks to the socket in block sized chunks, or with FileChannel.transferTo when the socket has a
+// channel, so content can hold any bytes (newlines included) and is never turned into a String. LIST answers with the names separated by '\n', errors carry their
+// message as payload. Every frame is answered, in order, with the request id echoed back.
+// NioServer runs frames through serve() one at a time, staged in memory, see there.
+public class BinaryProtocolHandler {
+
+    public static final byte OP_CREATE = 1;
+    public static final byte OP_WRITE = 2;
+    public static final byte OP_READ = 3;
+    public static final byte OP_DELETE = 4;
+    public static final byte OP_LIST = 5;
+    public static final byte OP_QUIT = 6;
+    public static final byte OP_WRITE_AT = 7;
+    public static final byte OP_APPEND = 8;
+    public static final byte OP_TRUNCATE = 9;
+    public static final byte OP_READ_RANGE = 10;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // latency histogram names, indexed by opcode. Frames stream their payload, so the time includes the transfer
+    private static final String[] OP_METRICS = {"BIN_UNKNOWN", "BIN_CREATE", "BIN_WRITE", "BIN_READ", "BIN_DELETE",
+            "BIN_LIST", "BIN_QUIT", "BIN_WRITE_AT", "BIN_APPEND", "BIN_TRUNCATE", "BIN_READ_RANGE"};
+
+    private final VolumeManager fsManager;
+    private final ServerMetrics metrics;
+
+    public BinaryProtocolHandler(VolumeManager fsManager, ServerMetrics metrics) {
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+    }
+
+    // serves frames until the client sends QUIT or closes the connection
+    public void serve(InputStream input, OutputStream output) throws IOException {
+        serve(input, output, null);
+    }
+
+    // channel is the socket under output, READ content goes to it without a heap copy, null to always use output
+    public void serve(InputStream input, OutputStream output, WritableByteChannel channel) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+
+        while (true) {
+            int opcode = in.read();
+            if (opcode < 0)
+                return;
+            int requestId = in.readInt();
+            byte[] nameBytes = new byte[in.readUnsignedShort()];
+            in.readFully(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            long payloadLength = in.readLong();
+            if (payloadLength < 0)
+                throw new IOException("Negative payload length in frame " + requestId);
+            BoundedInputStream payload = new BoundedInputStream(in, payloadLength);
+            long start = System.nanoTime();
+
+            try {
+                switch (opcode) {
+                    case OP_CREATE:
+                        fsManager.createFile(name);
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        break;
+                    case OP_WRITE:
+                        fsManager.writeFile(name, payload, payloadLength);
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        break;
+                    case OP_READ:
+                        streamRead(out, channel, requestId, name, -1, -1);
+                        break;
+                    case OP_WRITE_AT:
+                        long offset = readNumber(payload);
+                        fsManager.writeAt(name, offset, payload, payloadLength - 8);
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        break;
+                    case OP_APPEND:
+                        fsManager.append(name, payload, payloadLength);
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        break;
+                    case OP_TRUNCATE:
+                        fsManager.truncate(name, readNumber(payload));
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        break;
+                    case OP_READ_RANGE:
+                        long rangeOffset = readNumber(payload);
+                        long rangeLength = readNumber(payload);
+                        streamRead(out, channel, requestId, name, rangeOffset, rangeLength);
+                        break;
+                    case OP_DELETE:
+                        fsManager.deleteFile(name);
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        break;
+                    case OP_LIST:
+                        writeFrame(out, STATUS_OK, requestId,
+                                String.join("\n", fsManager.listFiles()).getBytes(StandardCharsets.UTF_8));
+                        break;
+                    case OP_QUIT:
+                        writeFrame(out, STATUS_OK, requestId, EMPTY);
+                        out.flush();
+                        return;
+                    default:
+                        writeError(out, requestId, "ERROR: Unknown opcode " + opcode + ".");
+                        break;
+                }
+            } catch (StreamBrokenException e) {
+                throw e.getCause(); // part of a READ reply is already out, the connection can't be resynchronised
+            } catch (Exception e) {
+                writeError(out, requestId, e.getMessage() == null ? "Internal server error" : e.getMessage());
+            }
+
+            payload.skipRemaining(); // a failed WRITE leaves payload bytes that belong to this frame
+            out.flush();
+            metrics.recordCommand(OP_METRICS[opcode < OP_METRICS.length ? opcode : 0], System.nanoTime() - start);
+        }
+    }
+
+    // 8 byte number at the front of a payload
+    private static long readNumber(BoundedInputStream payload) throws Exception {
+        try {
+            return new DataInputStream(payload).readLong();
+        } catch (EOFException e) {
+            throw new Exception("ERROR: Payload too short.");
+        }
+    }
+
+    // whole file when offset is -1, otherwise the given range
+    private void streamRead(DataOutputStream out, WritableByteChannel channel, int requestId, String name, long offset, long length) throws Exception {
+        boolean[] started = {false};
+        try {
+            readInto(out, channel, requestId, name, offset, length, started);
+        } catch (StreamBrokenException e) {
+            throw e;
+        } catch (Exception e) {
+            if (started[0]) // the OK header is out, an error frame can't follow it any more
+                throw new StreamBrokenException(new IOException(e));
+            throw e;
+        }
+    }
+
+    private void readInto(DataOutputStream out, WritableByteChannel channel, int requestId, String name, long offset, long length,
+                          boolean[] started) throws Exception {
+        FileSink sink = channel != null ? new ChannelFrameSink(out, channel, requestId, started) : new FrameSink(out, requestId, started);
+        if (offset < 0)
+            fsManager.readFile(name, sink);
+        else
+            fsManager.readFile(name, offset, length, sink);
+    }
+
+    // a whole error reply, for a frame that is refused before it reaches serve()
+    static byte[] errorFrame(int requestId, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4 + 8 + text.length);
+        frame.put(STATUS_ERROR).putInt(requestId).putLong(text.length).put(text);
+        return frame.array();
+    }
+
+    private static void writeError(DataOutputStream out, int requestId, String message) throws IOException {
+        writeFrame(out, STATUS_ERROR, requestId, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeFrame(DataOutputStream out, byte status, int requestId, byte[] payload) throws IOException {
+        out.writeByte(status);
+        out.writeInt(requestId);
+        out.writeLong(payload.length);
+        out.write(payload);
+    }
+
+    // writes a READ reply: the OK header once the size is known, then the content
+    private static class FrameSink implements FileSink {
+        final DataOutputStream out;
+        final int requestId;
+        final boolean[] started;
+
+        FrameSink(DataOutputStream out, int requestId, boolean[] started) {
+            this.out = out;
+            this.requestId = requestId;
+            this.started = started;
+        }
+
+        @Override
+        public void begin(long size) throws IOException {
+            started[0] = true;
+            out.writeByte(STATUS_OK);
+            out.writeInt(requestId);
+            out.writeLong(size);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            try {
+                out.write(data, offset, length);
+            } catch (IOException e) {
+                throw new StreamBrokenException(e);
+            }
+        }
+    }
+
+    // takes the content as regions of the disk file and sends them to the socket without a heap copy
+    private class ChannelFrameSink extends FrameSink implements ChannelSink {
+        private final WritableByteChannel channel;
+
+        ChannelFrameSink(DataOutputStream out, WritableByteChannel channel, int requestId, boolean[] started) {
+            super(out, requestId, started);
+            this.channel = channel;
+        }
+
+        @Override
+        public void transfer(FileChannel disk, long position, long count) {
+            try {
+                out.flush(); // the frame header goes out before the content
+                metrics.bytesOut().add(RawReadCommand.transferFully(disk, position, count, channel));
+            } catch (IOException e) {
+                throw new StreamBrokenException(e);
+            }
+        }
+    }
+
+    // signals that the socket failed in the middle of a READ reply
+    private static class StreamBrokenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StreamBrokenException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    // the payload of one frame, reading past it is reported as end of stream
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long n = in.skip(remaining);
+                if (n <= 0) {
+                    if (in.read() < 0)
+                        throw new IOException("Connection closed inside a frame payload");
+                    n = 1;
+                }
+                remaining -= n;
+            }
+        }
+    }
+}
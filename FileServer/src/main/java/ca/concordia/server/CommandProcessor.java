@@ -0,0 +1,312 @@
+package ca.concordia.server;
+import ca.concordia.filesystem.BatchOperation;
+import ca.concordia.filesystem.VolumeManager;
+import ca.concordia.metrics.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Executes one text protocol command line and builds the full reply, terminator included.
+// Shared by the blocking client handlers and the NIO event loop so every execution model
+// answers exactly the same way.
+//
+// Pipelining: a line may start with a tag, "#<id> CMD ...". Every line of its reply is then prefixed with
+// the same "#<id> " so the client can match replies that come back out of order.
+// Batching: MULTI starts a batch, CREATE/WRITE/DELETE are queued (reply QUEUED) until EXEC runs them all
+// with one lock acquisition and one journal commit, DISCARD drops them.
+// One processor per connection, the batch state belongs to that connection.
+// Every executed command is timed into the server's per-command latency histograms, STATS prints them.
+public class CommandProcessor {
+
+    private static final String NL = System.lineSeparator();
+    public static final String END = "<END>";
+
+    private final VolumeManager fsManager;
+    private final ServerMetrics metrics;
+    private List<BatchOperation> batch; // non-null between MULTI and EXEC/DISCARD
+
+    public CommandProcessor(VolumeManager fsManager, ServerMetrics metrics) {
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+    }
+
+    // true when the line asks the server to close the connection after the reply
+    public static boolean isQuit(String line) {
+        String[] parts = line.split(" ");
+        return parts[0].equalsIgnoreCase("QUIT");
+    }
+
+    // true for "#<id> ..." lines, these may be executed concurrently with each other
+    public static boolean isTagged(String line) {
+        return line.startsWith("#") && line.indexOf(' ') > 1;
+    }
+
+    // true between MULTI and EXEC/DISCARD
+    public boolean inBatch() {
+        return batch != null;
+    }
+
+    // Executes a tagged line. Doesn't touch the batch state, so it is safe to call from several threads at once.
+    public String executeTagged(String line) {
+        int space = line.indexOf(' ');
+        String tag = line.substring(0, space + 1);
+        String command = line.substring(space + 1);
+        String reply;
+        if (isBatchCommand(command.split(" ")[0].toUpperCase()))
+            reply = "ERROR: " + command.split(" ")[0].toUpperCase() + " cannot be tagged." + NL + END + NL;
+        else
+            reply = run(command);
+
+        StringBuilder tagged = new StringBuilder();
+        for (String replyLine : reply.split(NL))
+            tagged.append(tag).append(replyLine).append(NL);
+        return tagged.toString();
+    }
+
+    public String execute(String line) {
+        if (isTagged(line))
+            return executeTagged(line);
+
+        String command = line.split(" ")[0].toUpperCase();
+        if (isBatchCommand(command))
+            return batchCommand(command);
+        if (batch != null && !isQuit(line))
+            return queue(line);
+        return run(line);
+    }
+
+    private static boolean isBatchCommand(String command) {
+        return command.equals("MULTI") || command.equals("EXEC") || command.equals("DISCARD");
+    }
+
+    private String batchCommand(String command) {
+        StringBuilder reply = new StringBuilder();
+        switch (command) {
+            case "MULTI":
+                if (batch != null) {
+                    reply.append("ERROR: MULTI calls can not be nested.").append(NL);
+                } else {
+                    batch = new ArrayList<>();
+                    reply.append("SUCCESS: Batch started.").append(NL);
+                }
+                break;
+            case "DISCARD":
+                if (batch == null) {
+                    reply.append("ERROR: DISCARD without MULTI.").append(NL);
+                } else {
+                    batch = null;
+                    reply.append("SUCCESS: Batch discarded.").append(NL);
+                }
+                break;
+            case "EXEC":
+                if (batch == null) {
+                    reply.append("ERROR: EXEC without MULTI.").append(NL);
+                    break;
+                }
+                List<BatchOperation> operations = batch;
+                batch = null;
+                long start = System.nanoTime();
+                try {
+                    String[] errors = fsManager.executeBatch(operations);
+                    for (int i = 0; i < operations.size(); i++) {
+                        BatchOperation op = operations.get(i);
+                        if (errors[i] != null) {
+                            reply.append("ERROR: ").append(errors[i]).append(NL);
+                        } else {
+                            String done = op.getType() == BatchOperation.Type.CREATE ? "created"
+                                    : op.getType() == BatchOperation.Type.WRITE ? "written" : "deleted";
+                            reply.append("SUCCESS: File '").append(op.getFilename()).append("' ").append(done).append(".").append(NL);
+                        }
+                    }
+                } catch (Exception e) {
+                    reply.setLength(0);
+                    String msg = e.getMessage() == null ? "Internal server error" : e.getMessage();
+                    reply.append("ERROR: ").append(msg).append(NL);
+                    logFailure("EXEC", e);
+                }
+                metrics.recordCommand("EXEC", System.nanoTime() - start);
+                break;
+        }
+        reply.append(END).append(NL);
+        return reply.toString();
+    }
+
+    // inside MULTI only the mutating commands are accepted, they run at EXEC
+    private String queue(String line) {
+        String[] parts = line.split(" ");
+        String command = parts[0].toUpperCase();
+        String reply;
+        if (parts.length < 2 && (command.equals("CREATE") || command.equals("WRITE") || command.equals("DELETE"))) {
+            reply = "ERROR: Missing file name.";
+        } else {
+            switch (command) {
+                case "CREATE":
+                    batch.add(BatchOperation.create(parts[1]));
+                    reply = "QUEUED";
+                    break;
+                case "DELETE":
+                    batch.add(BatchOperation.delete(parts[1]));
+                    reply = "QUEUED";
+                    break;
+                case "WRITE":
+                    if (parts.length < 3) {
+                        reply = "ERROR: Missing file data.";
+                        break;
+                    }
+                    String fileData = String.join(" ", java.util.Arrays.copyOfRange(parts, 2, parts.length));
+                    batch.add(BatchOperation.write(parts[1], fileData.getBytes()));
+                    reply = "QUEUED";
+                    break;
+                default:
+                    reply = "ERROR: Only CREATE, WRITE and DELETE can be used inside MULTI.";
+                    break;
+            }
+        }
+        return reply + NL + END + NL;
+    }
+
+    static long parseNumber(String value) throws Exception {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new Exception("ERROR: '" + value + "' is not a number.");
+        }
+    }
+
+    private String run(String line) {
+        long start = System.nanoTime();
+        StringBuilder reply = new StringBuilder();
+        String[] parts = line.split(" ");
+        String command = parts[0].toUpperCase();
+        String metric = command;
+
+        try {
+            switch (command) {
+                case "CREATE":
+                    fsManager.createFile(parts[1]);
+                    reply.append("SUCCESS: File '").append(parts[1]).append("' created.").append(NL);
+                    break;
+
+                case "DELETE":
+                    fsManager.deleteFile(parts[1]);
+                    reply.append("SUCCESS: File '").append(parts[1]).append("' deleted.").append(NL);
+                    break;
+                case "WRITE":
+                    if (parts.length < 3) {
+                        reply.append("ERROR: Missing file data.").append(NL);
+                        break;
+                    }
+                    String fileData = String.join(" ", java.util.Arrays.copyOfRange(parts, 2, parts.length));
+                    fsManager.writeFile(parts[1], fileData.getBytes());
+                    reply.append("SUCCESS: File '").append(parts[1]).append("' written.").append(NL);
+                    break;
+
+                case "WRITEAT":
+                    if (parts.length < 4) {
+                        reply.append("ERROR: Usage: WRITEAT <filename> <offset> <data>").append(NL);
+                        break;
+                    }
+                    String rangeData = String.join(" ", java.util.Arrays.copyOfRange(parts, 3, parts.length));
+                    fsManager.writeAt(parts[1], parseNumber(parts[2]), rangeData.getBytes());
+                    reply.append("SUCCESS: File '").append(parts[1]).append("' written at offset ").append(parts[2]).append(".").append(NL);
+                    break;
+
+                case "APPEND":
+                    if (parts.length < 3) {
+                        reply.append("ERROR: Missing file data.").append(NL);
+                        break;
+                    }
+                    String appendData = String.join(" ", java.util.Arrays.copyOfRange(parts, 2, parts.length));
+                    fsManager.append(parts[1], appendData.getBytes());
+                    reply.append("SUCCESS: File '").append(parts[1]).append("' appended.").append(NL);
+                    break;
+
+                case "TRUNCATE":
+                    if (parts.length < 3) {
+                        reply.append("ERROR: Usage: TRUNCATE <filename> <size>").append(NL);
+                        break;
+                    }
+                    fsManager.truncate(parts[1], parseNumber(parts[2]));
+                    reply.append("SUCCESS: File '").append(parts[1]).append("' truncated to ").append(parts[2]).append(" bytes.").append(NL);
+                    break;
+
+                case "COMPRESS":
+                    if (parts.length < 3) {
+                        reply.append("ERROR: Usage: COMPRESS <filename> ON|OFF").append(NL);
+                        break;
+                    }
+                    boolean compress = parts[2].equalsIgnoreCase("ON");
+                    fsManager.setCompression(parts[1], compress);
+                    reply.append("SUCCESS: File '").append(parts[1])
+                            .append(compress ? "' compressed." : "' stored uncompressed.").append(NL);
+                    break;
+
+                case "READ":
+                    if (parts.length != 2 && parts.length != 4) { // an offset without a length is a mistake, not a whole read
+                        reply.append("ERROR: Usage: READ <filename> [<offset> <length>]").append(NL);
+                        break;
+                    }
+                    byte[] content;
+                    if (parts.length == 4)
+                        content = fsManager.readFile(parts[1], parseNumber(parts[2]), (int) Math.min(Integer.MAX_VALUE, parseNumber(parts[3])));
+                    else
+                        content = fsManager.readFile(parts[1]);
+                    reply.append("CONTENT: ").append(new String(content)).append(NL);
+                    break;
+
+                case "LIST":
+                    String[] files = fsManager.listFiles();
+                    if (files.length == 0) {
+                        reply.append("No files found.").append(NL);
+                    } else {
+                        String joined = String.join(", ", files);
+                        reply.append("Files: ").append(joined).append(NL);
+                    }
+                    break;
+
+                case "STATS":
+                    // "STAT <name> <value>" lines, server counters first, then the file system's
+                    appendStats(reply, metrics.snapshot());
+                    appendStats(reply, fsManager.getStatsSnapshot());
+                    break;
+
+                case "READRAW":
+                    // reaches here only tagged or from a handler without a raw reply path, see RawReadCommand
+                    reply.append("ERROR: READRAW cannot be tagged.").append(NL);
+                    break;
+
+                case "QUIT":
+                    reply.append("SUCCESS: Disconnecting.").append(NL);
+                    break;
+                default:
+                    metric = "UNKNOWN";
+                    reply.append("ERROR: Unknown command.").append(NL);
+                    break;
+            }
+        } catch (Exception e) {
+            // Ensure client always receives an error response and the terminator
+            reply.setLength(0);
+            String msg = e.getMessage() == null ? "Internal server error" : e.getMessage();
+            reply.append("ERROR: ").append(msg).append(NL);
+            logFailure(command, e);
+        }
+        reply.append(END).append(NL);
+        metrics.recordCommand(metric, System.nanoTime() - start);
+        return reply.toString();
+    }
+
+    private static void appendStats(StringBuilder reply, Map<String, Object> stats) {
+        for (Map.Entry<String, Object> stat : stats.entrySet())
+            reply.append("STAT ").append(stat.getKey()).append(' ').append(stat.getValue()).append(NL);
+    }
+
+    // Failed commands are mostly client mistakes (missing file, bad offset) and only logged at debug.
+    // An exception without a message is a server bug and gets its stack trace.
+    static void logFailure(String command, Exception e) {
+        if (e.getMessage() == null)
+            Log.error(command + " failed", e);
+        else if (Log.isDebugEnabled())
+            Log.debug(command + " failed: " + e.getMessage());
+    }
+}
@@ -0,0 +1,8 @@
+package ca.concordia.server;
+
+// How FileServer runs its client connections.
+public enum ExecutionModel {
+    THREAD_PER_CONNECTION, // one platform thread per socket, the original model
+    VIRTUAL_THREADS,       // one virtual thread per socket, cheap to park while the client is idle
+    NIO                    // one selector thread for all sockets, commands run on a bounded worker pool
+}
@@ -1,39 +1,195 @@
 package ca.concordia.server;
-import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.VolumeManager;
+import ca.concordia.metrics.Jmx;
+import ca.concordia.metrics.Log;
+import ca.concordia.replication.ReplicatedVolume;
+import ca.concordia.replication.ReplicationConfig;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class FileServer {
 
-    private FileSystemManager fsManager;
+    private VolumeManager fsManager;
+    private ReplicatedVolume replicated; // same object as fsManager on a primary or replica, otherwise null
     private int port;
-    public FileServer(int port, String fileSystemName, int totalSize){
-        // Initialize the FileSystemManager
-        FileSystemManager fsManager = new FileSystemManager(fileSystemName,
-                10*128 );
-        this.fsManager = fsManager;
+
+    private ExecutionModel executionModel = ExecutionModel.THREAD_PER_CONNECTION;
+    private int maxConnections = 10_000;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2; // NIO workers, or the pool running tagged requests
+
+    // set by stop(), which can be called from another thread while start() is running
+    private volatile boolean stopped;
+    private volatile ServerSocket serverSocket;
+    private volatile NioServer nioServer;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private ObjectName mbeanName;
+
+    public FileServer(int port, String fileSystemName, long totalSize){
+        this(port, fileSystemName, totalSize, new FileSystemConfig());
+    }
+
+    public FileServer(int port, String fileSystemName, long totalSize, FileSystemConfig config){
+        this(port, fileSystemName, totalSize, 1, config);
+    }
+
+    // shards > 1 spreads the files over that many disk files, see VolumeManager. totalSize is per shard.
+    public FileServer(int port, String fileSystemName, long totalSize, int shards, FileSystemConfig config){
+        this(port, fileSystemName, totalSize, shards, config, new ReplicationConfig());
+    }
+
+    // a primary streams every write to its replicas, a replica follows its primary and only serves reads
+    public FileServer(int port, String fileSystemName, long totalSize, int shards, FileSystemConfig config,
+                      ReplicationConfig replication){
+        if (replication.getRole() == ReplicationConfig.Role.NONE) {
+            this.fsManager = new VolumeManager(fileSystemName, totalSize, shards, config);
+        } else {
+            this.replicated = new ReplicatedVolume(fileSystemName, totalSize, shards, config, replication);
+            this.fsManager = replicated;
+        }
         this.port = port;
     }
 
+    public void setExecutionModel(ExecutionModel executionModel) {
+        this.executionModel = executionModel;
+    }
+
+    // connections above the limit are not accepted until another client leaves, they wait in the listen backlog
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("Max connections must be positive.");
+        this.maxConnections = maxConnections;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0)
+            throw new IllegalArgumentException("Worker threads must be positive.");
+        this.workerThreads = workerThreads;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public VolumeManager getFileSystem() {
+        return fsManager;
+    }
+
     public void start(){
-        try (ServerSocket serverSocket = new ServerSocket(12345)) {
-            System.out.println("Server started. Listening on port 12345...");
+        if (replicated != null) {
+            try {
+                replicated.start();
+            } catch (IOException e) {
+                Log.error("Could not start replication", e);
+                return;
+            }
+        }
+        mbeanName = Jmx.register("ca.concordia:type=Server,port=" + port, metrics);
+        if (executionModel == ExecutionModel.NIO) {
+            try {
+                nioServer = new NioServer(port, fsManager, metrics, maxConnections, workerThreads);
+                if (!stopped)
+                    nioServer.start();
+            } catch (Exception e) {
+                Log.error("Could not start server on port " + port, e);
+            }
+            return;
+        }
+
+        ExecutorService virtualThreads = executionModel == ExecutionModel.VIRTUAL_THREADS ? newVirtualThreadExecutor() : null;
+        // tagged (pipelined) requests of a connection run here, concurrently with each other
+        ExecutorService requestExecutor = virtualThreads != null ? virtualThreads : Executors.newFixedThreadPool(workerThreads);
+        // the replies to them are written by a task of each connection, so the workers never block on a socket
+        ExecutorService replyExecutor = virtualThreads != null ? virtualThreads : Executors.newCachedThreadPool();
+        Semaphore connectionPermits = new Semaphore(maxConnections);
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Handling client: " + clientSocket);
+        // opened as a channel so accepted sockets have a SocketChannel, READRAW and binary reads send file content with transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            ServerSocket serverSocket = serverChannel.socket();
+            this.serverSocket = serverSocket;
+            Log.info("Server started. Listening on port " + port + "...");
 
-                MultipleClientManager Client = new MultipleClientManager(clientSocket,fsManager);
-                Thread thread = new Thread(Client);
-                thread.start();
+            while (!stopped) {
+                connectionPermits.acquire(); // at the limit we stop accepting, new clients wait in the backlog
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                if (Log.isDebugEnabled())
+                    Log.debug("Handling client: " + clientSocket);
+                clientSocket.setTcpNoDelay(true); // pipelined replies are flushed one by one, Nagle would delay all but the first
+                clients.add(clientSocket);
+
+                MultipleClientManager Client = new MultipleClientManager(clientSocket,fsManager,metrics,requestExecutor,replyExecutor);
+                Runnable task = () -> {
+                    try {
+                        Client.run();
+                    } finally {
+                        clients.remove(clientSocket);
+                        connectionPermits.release();
+                    }
+                };
+                if (virtualThreads != null) {
+                    virtualThreads.execute(task);
+                } else {
+                    Thread thread = new Thread(task);
+                    thread.start();
+                }
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Could not start server on port " + port);
+            if (!stopped)
+                Log.error("Could not start server on port " + port, e);
+        } finally {
+            requestExecutor.shutdown();
+            replyExecutor.shutdown();
+        }
+    }
+
+    // Stops accepting, disconnects every client and closes the file system so another server can be
+    // started on the same disk files in this JVM. Used by tests and benchmarks running a server in-process.
+    public void stop() throws IOException {
+        stopped = true;
+        ServerSocket socket = serverSocket;
+        if (socket != null)
+            socket.close();
+        NioServer nio = nioServer;
+        if (nio != null)
+            nio.stop();
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        Jmx.unregister(mbeanName);
+        fsManager.close();
+    }
+
+    // Virtual threads are final from Java 21 but a preview API for the Java 19 we compile against,
+    // so the executor is looked up reflectively and we fall back to a cached pool where they are unavailable.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            Log.warn("Virtual threads are not available on this JVM, using a cached thread pool instead");
+            return Executors.newCachedThreadPool();
         }
     }
 
@@ -1,108 +1,135 @@
 package ca.concordia.server;
-import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.VolumeManager;
+import ca.concordia.metrics.CountingInputStream;
+import ca.concordia.metrics.CountingOutputStream;
+import ca.concordia.metrics.Log;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 
 public class MultipleClientManager implements Runnable{
 
     private Socket clientSocket;
-    private FileSystemManager fsManager;
+    private VolumeManager fsManager;
+    private CommandProcessor processor;
+    private RawReadCommand rawRead;
+    private ServerMetrics metrics;
+    private ExecutorService requestExecutor; // runs tagged requests, null runs them inline
+    private ExecutorService replyExecutor; // runs this connection's reply writer, once it sends a tagged request
 
-    public MultipleClientManager(Socket clientSocket, FileSystemManager fsManager){
+    // how many tagged requests of one connection may be in flight (run or waiting to be written) before we stop reading
+    private static final int MAX_IN_FLIGHT = 64;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    // Replies of tagged requests, in the order they were done. The workers of the shared pool only queue them,
+    // the connection's own writer does the blocking socket writes: a client that stops reading holds up its
+    // writer and, once MAX_IN_FLIGHT replies wait, its own reading, but never a worker. Replies are never empty,
+    // an empty string stops the writer.
+    private final LinkedBlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private boolean writerStarted;
+
+    public MultipleClientManager(Socket clientSocket, VolumeManager fsManager, ServerMetrics metrics){
+        this(clientSocket, fsManager, metrics, null, null);
+    }
+
+    // replyExecutor must not be bounded: each connection that sends tagged requests keeps one of its threads
+    public MultipleClientManager(Socket clientSocket, VolumeManager fsManager, ServerMetrics metrics,
+                                 ExecutorService requestExecutor, ExecutorService replyExecutor){
         this.clientSocket=clientSocket;
         this.fsManager=fsManager;
+        this.metrics=metrics;
+        this.processor=new CommandProcessor(fsManager, metrics);
+        this.rawRead=new RawReadCommand(fsManager, metrics);
+        this.requestExecutor=requestExecutor;
+        this.replyExecutor=replyExecutor;
     }
 
     @Override
     public void run(){
+        metrics.connectionOpened();
         try (
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
+                // lines are read straight off the byte stream (no Reader read-ahead) so the same stream
+                // can carry binary frames after the client switches with BINARY
+                InputStream input = new BufferedInputStream(new CountingInputStream(clientSocket.getInputStream(), metrics.bytesIn()));
+                OutputStream output = new CountingOutputStream(clientSocket.getOutputStream(), metrics.bytesOut());
+                PrintWriter writer = new PrintWriter(output, false)
         ) {
             String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println("Received from client: " + line);
-                String[] parts = line.split(" ");
-                String command = parts[0].toUpperCase();
-
-                try {
-                    switch (command) {
-                        case "CREATE":
-                            fsManager.createFile(parts[1]);
-                            writer.println("SUCCESS: File '" + parts[1] + "' created.");
-                            writer.println("<END>");
-                            writer.flush();
-                            break;
-
-                        case "DELETE":
-                            fsManager.deleteFile(parts[1]);
-                            writer.println("SUCCESS: File '" + parts[1] + "' deleted.");
-                            writer.println("<END>");
-                            writer.flush();
-                            break;
-                        case "WRITE":
-                            if (parts.length < 3) {
-                                writer.println("ERROR: Missing file data.");
-                                writer.println("<END>");
-                                writer.flush();
-                                break;
-                            }
-                            String fileData = String.join(" ", java.util.Arrays.copyOfRange(parts, 2, parts.length));
-                            fsManager.writeFile(parts[1], fileData.getBytes());
-                            writer.println("SUCCESS: File '" + parts[1] + "' written.");
-                            writer.println("<END>");
-                            writer.flush();
-                            break;
-
-                        case "READ":
-                            byte[] content = fsManager.readFile(parts[1]);
-                            writer.println("CONTENT: " + new String(content));
-                            writer.println("<END>");
-                            writer.flush();
-                            break;
-
-                        case "LIST":
-                            String[] files = fsManager.listFiles();
-                            if (files.length == 0) {
-                                writer.println("No files found.");
-                            } else {
-                                String joined = String.join(", ", files);
-                                writer.println("Files: " + joined);
-                            }
-                            writer.println("<END>");
-                            writer.flush();
-                            break;
-
-
-
-                        case "QUIT":
-                            writer.println("SUCCESS: Disconnecting.");
-                            writer.println("<END>");
-                            writer.flush();
-                            return;
-                        default:
-                            writer.println("ERROR: Unknown command.");
-                            writer.println("<END>");
-                            writer.flush();
-                            break;
+            while ((line = readLine(input)) != null) {
+                if (Log.isDebugEnabled())
+                    Log.debug("Received from client: " + line);
+
+                if (CommandProcessor.isTagged(line) && requestExecutor != null) {
+                    // pipelined request: answered whenever it is done, the tag tells the client which reply it is
+                    inFlight.acquire();
+                    if (!writerStarted) {
+                        writerStarted = true;
+                        replyExecutor.execute(() -> writeReplies(writer));
                     }
-                } catch (Exception e) {
-                    // Ensure client always receives an error response and the terminator
-                    String msg = e.getMessage() == null ? "Internal server error" : e.getMessage();
-                    writer.println("ERROR: " + msg);
-                    writer.println("<END>");
+                    String request = line;
+                    requestExecutor.execute(() -> {
+                        try {
+                            replies.add(processor.executeTagged(request));
+                        } catch (RuntimeException e) {
+                            inFlight.release();
+                            throw e;
+                        }
+                    });
+                    continue;
+                }
+
+                if (line.trim().equalsIgnoreCase("BINARY")) {
+                    awaitInFlight();
+                    writer.println("SUCCESS: Switching to binary protocol.");
+                    writer.println(CommandProcessor.END);
                     writer.flush();
-                    e.printStackTrace();
+                    new BinaryProtocolHandler(fsManager, metrics).serve(input, output, clientSocket.getChannel());
+                    return;
+                }
+
+                if (RawReadCommand.isRawRead(line) && !processor.inBatch()) {
+                    // the content goes to the socket directly, straight from the disk file when the socket has a channel
+                    awaitInFlight();
+                    synchronized (writer) {
+                        writer.flush();
+                        rawRead.execute(line, output, clientSocket.getChannel());
+                    }
+                    continue;
                 }
+
+                if (CommandProcessor.isQuit(line))
+                    awaitInFlight(); // pending tagged replies go out before the goodbye
+
+                String reply = processor.execute(line);
+                synchronized (writer) {
+                    writer.print(reply);
+                    // replies to a burst of pipelined lines go out together, flushed once the burst is consumed
+                    if (input.available() == 0)
+                        writer.flush();
+                }
+
+                if (CommandProcessor.isQuit(line))
+                    return;
             }
+            awaitInFlight();
         } catch (Exception e) {
-            e.printStackTrace();
+            if (!clientSocket.isClosed()) // closed by FileServer.stop()
+                Log.warn("Connection " + clientSocket.getRemoteSocketAddress() + " failed", e);
 
         } finally {
+            if (writerStarted)
+                replies.add("");
+            metrics.connectionClosed();
             try {
                 clientSocket.close();
             } catch (Exception e) {
@@ -110,4 +137,44 @@ public class MultipleClientManager implements Runnable{
             }
         }
     }
+
+    // the connection's reply writer, flushes once no other reply is waiting
+    private void writeReplies(PrintWriter writer) {
+        try {
+            while (true) {
+                String reply = replies.take();
+                if (reply.isEmpty())
+                    return;
+                synchronized (writer) {
+                    writer.print(reply);
+                    if (replies.isEmpty())
+                        writer.flush();
+                }
+                inFlight.release();
+            }
+        } catch (InterruptedException e) {
+            // the server is shutting down
+        }
+    }
+
+    // waits for every tagged request of this connection to send its reply
+    private void awaitInFlight() throws InterruptedException {
+        inFlight.acquire(MAX_IN_FLIGHT);
+        inFlight.release(MAX_IN_FLIGHT);
+    }
+
+    // same line rules as BufferedReader.readLine for "\n" and "\r\n" terminated lines, null at end of stream
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n')
+            line.write(b);
+        if (b == -1 && line.size() == 0)
+            return null;
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r')
+            length--;
+        return new String(bytes, 0, length, Charset.defaultCharset());
+    }
 }
@@ -0,0 +1,388 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.VolumeManager;
+import ca.concordia.metrics.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Selector based event loop for ExecutionModel.NIO. One thread owns every socket and only does
+// non-blocking reads and writes, file system calls run on a bounded worker pool.
+//
+// Backpressure:
+//  - each connection has at most one command on the worker pool, the rest of its lines wait in its own queue
+//    (pipelined lines, tagged or not, are therefore answered in the order they were sent),
+//  - a connection stops being read once it has too many queued lines or too many unsent reply bytes,
+//  - the server stops accepting once maxConnections sockets are open, new clients wait in the listen backlog.
+//
+// After the line BINARY the connection carries BinaryProtocolHandler frames. The selector thread can't block,
+// so each frame is collected whole before a worker runs it and its reply is staged in memory, like READRAW:
+// payloads above MAX_BINARY_PAYLOAD are refused (the blocking models stream them without a limit). A frame's
+// buffer grows as its bytes arrive, so a header alone doesn't reserve the whole payload. Text lines above
+// MAX_LINE_BYTES are refused the same way, the rest of the line is dropped.
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_QUEUED_LINES = 64;
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+    private static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024; // lines and frames waiting for the worker pool
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+    private static final int MAX_BINARY_PAYLOAD = 64 * 1024 * 1024;
+    private static final int FRAME_PREFIX = 1 + 4 + 2; // opcode, request id, name length
+    private static final Charset CHARSET = Charset.defaultCharset(); // same as the blocking handlers
+
+    private final int port;
+    private final VolumeManager fsManager;
+    private final ServerMetrics metrics;
+    private final int maxConnections;
+    private final ThreadPoolExecutor workers;
+
+    // work the workers hand back to the selector thread, which is the only one touching channels and keys
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private SelectionKey acceptKey;
+    private int connections;
+    private volatile boolean stopped;
+
+    public NioServer(int port, VolumeManager fsManager, ServerMetrics metrics, int maxConnections, int workerThreads) {
+        this.port = port;
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+        this.maxConnections = maxConnections;
+        // one in-flight command per connection, so the queue can never overflow
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxConnections)));
+    }
+
+    // runs the event loop on the calling thread
+    public void start() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Server started (NIO). Listening on port " + port + "...");
+
+            while (!stopped) {
+                selector.select();
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() instanceof Connection)
+                    ((Connection) key.attachment()).close();
+            workers.shutdown();
+            selector.close();
+        }
+    }
+
+    // makes start() close every connection and return, callable from any thread
+    public void stop() {
+        stopped = true;
+        Selector current = selector;
+        if (current != null)
+            current.wakeup();
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // replies are small, Nagle would hold each one back until the last was acked
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        metrics.connectionOpened();
+        if (Log.isDebugEnabled())
+            Log.debug("Handling client: " + channel.getRemoteAddress());
+
+        if (++connections >= maxConnections)
+            acceptKey.interestOps(0); // at the limit, leave new clients in the backlog
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final CommandProcessor processor = new CommandProcessor(fsManager, metrics); // holds this connection's MULTI batch
+        private final RawReadCommand rawRead = new RawReadCommand(fsManager, metrics);
+        private final BinaryProtocolHandler binaryHandler = new BinaryProtocolHandler(fsManager, metrics);
+
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        // lines (String), after BINARY whole frames (byte[]) and replies ready without a worker (ByteBuffer)
+        private final ArrayDeque<Object> requests = new ArrayDeque<>();
+        private long queuedBytes; // of the lines and frames in requests
+        private boolean skippingLine; // the rest of a line that was too long
+        private boolean binary;
+        private final byte[] frameHeader = new byte[FRAME_PREFIX + 0xFFFF + 8]; // up to the payload length
+        private int headerFilled;
+        private int headerNeeded = FRAME_PREFIX;
+        private byte[] frame; // the frame being received, once its payload length is known, grown as it arrives
+        private int frameLength; // of the whole frame
+        private int frameFilled;
+        private long skipping; // payload bytes of a refused frame still to drop
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private long pendingOutput;
+        private boolean busy; // a command of this connection is on the worker pool
+        private boolean closing; // QUIT was answered, close once the reply is sent
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            metrics.bytesIn().add(n);
+            in.flip();
+            while (in.hasRemaining() && !binary) {
+                byte b = in.get();
+                if (b == '\n' && skippingLine) {
+                    skippingLine = false;
+                } else if (b == '\n') {
+                    byte[] bytes = partialLine.toByteArray();
+                    int length = bytes.length;
+                    if (length > 0 && bytes[length - 1] == '\r')
+                        length--;
+                    String line = new String(bytes, 0, length, CHARSET);
+                    requests.add(line);
+                    queuedBytes += line.length();
+                    partialLine.reset();
+                    if (line.trim().equalsIgnoreCase("BINARY"))
+                        binary = true; // whatever follows is frames, even in this same read
+                } else if (skippingLine) {
+                    continue;
+                } else if (partialLine.size() == MAX_LINE_BYTES) {
+                    partialLine.reset();
+                    skippingLine = true;
+                    requests.add(ByteBuffer.wrap(("ERROR: Lines above " + MAX_LINE_BYTES + " bytes are refused, "
+                            + "send large data with BINARY." + System.lineSeparator() + CommandProcessor.END
+                            + System.lineSeparator()).getBytes(CHARSET)));
+                } else {
+                    partialLine.write(b);
+                }
+            }
+            if (binary && !readFrames())
+                return;
+            in.clear();
+            dispatch();
+        }
+
+        // Cuts the bytes in the read buffer into frames. False when the connection had to be closed.
+        boolean readFrames() {
+            while (in.hasRemaining() || (frame != null && frameFilled == frameLength)) {
+                if (skipping > 0) {
+                    int n = (int) Math.min(skipping, in.remaining());
+                    in.position(in.position() + n);
+                    skipping -= n;
+                    continue;
+                }
+                if (frame == null) {
+                    int n = Math.min(headerNeeded - headerFilled, in.remaining());
+                    in.get(frameHeader, headerFilled, n);
+                    headerFilled += n;
+                    if (headerFilled < headerNeeded)
+                        break;
+                    if (headerNeeded == FRAME_PREFIX) {
+                        headerNeeded += (((frameHeader[5] & 0xFF) << 8) | (frameHeader[6] & 0xFF)) + 8;
+                        continue;
+                    }
+                    long payload = ByteBuffer.wrap(frameHeader, headerNeeded - 8, 8).getLong();
+                    if (payload < 0) {
+                        close(); // the blocking handler gives up on the connection as well
+                        return false;
+                    }
+                    if (payload > MAX_BINARY_PAYLOAD) {
+                        int requestId = ByteBuffer.wrap(frameHeader, 1, 4).getInt();
+                        requests.add(ByteBuffer.wrap(BinaryProtocolHandler.errorFrame(requestId, "ERROR: Payloads above "
+                                + MAX_BINARY_PAYLOAD + " bytes need a server with blocking connections.")));
+                        skipping = payload;
+                        headerFilled = 0;
+                        headerNeeded = FRAME_PREFIX;
+                        continue;
+                    }
+                    frameLength = headerNeeded + (int) payload;
+                    frame = Arrays.copyOf(frameHeader, Math.min(frameLength, headerNeeded + READ_BUFFER_SIZE));
+                    frameFilled = headerNeeded;
+                }
+                int n = Math.min(frameLength - frameFilled, in.remaining());
+                if (frameFilled + n > frame.length) // doubles, so a frame is copied about twice in all
+                    frame = Arrays.copyOf(frame, (int) Math.min(frameLength, Math.max(frameFilled + n, 2L * frame.length)));
+                in.get(frame, frameFilled, n);
+                frameFilled += n;
+                if (frameFilled == frameLength) {
+                    requests.add(frame);
+                    queuedBytes += frame.length;
+                    frame = null;
+                    headerFilled = 0;
+                    headerNeeded = FRAME_PREFIX;
+                }
+            }
+            return true;
+        }
+
+        // one frame through the binary handler, null when its reply broke off part way (the READ failed)
+        byte[] executeFrame(byte[] request) {
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            try {
+                binaryHandler.serve(new ByteArrayInputStream(request), reply);
+            } catch (IOException e) {
+                return null;
+            }
+            return reply.toByteArray();
+        }
+
+        // hands the next queued request to the worker pool, one at a time so replies keep their order
+        void dispatch() {
+            if (!busy && !closing && !requests.isEmpty()) {
+                busy = true;
+                Object request = requests.poll();
+                if (request instanceof ByteBuffer) {
+                    complete(false, ((ByteBuffer) request).array());
+                    return;
+                }
+                if (request instanceof byte[]) {
+                    byte[] frame = (byte[]) request;
+                    queuedBytes -= frame.length;
+                    workers.execute(() -> {
+                        byte[] reply = executeFrame(frame);
+                        selectorTasks.add(() -> complete(frame[0] == BinaryProtocolHandler.OP_QUIT, reply));
+                        selector.wakeup();
+                    });
+                    updateInterest();
+                    return;
+                }
+                String line = (String) request;
+                queuedBytes -= line.length();
+                workers.execute(() -> {
+                    if (Log.isDebugEnabled())
+                        Log.debug("Received from client: " + line);
+                    byte[] reply;
+                    if (line.trim().equalsIgnoreCase("BINARY"))
+                        reply = ("SUCCESS: Switching to binary protocol." + System.lineSeparator()
+                                + CommandProcessor.END + System.lineSeparator()).getBytes(CHARSET);
+                    else if (RawReadCommand.isRawRead(line) && !processor.inBatch())
+                        reply = rawRead.execute(line); // raw bytes, but staged in memory: the selector can't block in transferTo
+                    else
+                        reply = processor.execute(line).getBytes(CHARSET);
+                    selectorTasks.add(() -> complete(CommandProcessor.isQuit(line), reply));
+                    selector.wakeup();
+                });
+            }
+            updateInterest();
+        }
+
+        // reply is null when it can't be sent whole, the connection ends then
+        void complete(boolean quit, byte[] reply) {
+            busy = false;
+            if (closed)
+                return;
+            if (reply == null) {
+                close();
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(reply);
+            out.add(buffer);
+            pendingOutput += buffer.remaining();
+            if (quit)
+                closing = true;
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        void write() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer head = out.peek();
+                int n = channel.write(head);
+                pendingOutput -= n;
+                metrics.bytesOut().add(n);
+                if (head.hasRemaining())
+                    break; // socket buffer full, wait for OP_WRITE
+                out.poll();
+            }
+            if (out.isEmpty() && closing) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        void updateInterest() {
+            if (closed || !key.isValid())
+                return;
+            int ops = 0;
+            if (!closing && requests.size() < MAX_QUEUED_LINES && queuedBytes < MAX_QUEUED_BYTES
+                    && pendingOutput < MAX_PENDING_OUTPUT)
+                ops |= SelectionKey.OP_READ;
+            if (!out.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            metrics.connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            if (connections-- >= maxConnections && acceptKey.isValid())
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+}
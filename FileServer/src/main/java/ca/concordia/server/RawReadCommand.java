@@ -0,0 +1,129 @@
+package ca.concordia.server;
+import ca.concordia.filesystem.ChannelSink;
+import ca.concordia.filesystem.FileSink;
+import ca.concordia.filesystem.VolumeManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+// READRAW <filename> [<offset> <length>], the raw-bytes reply mode of the text protocol.
+// The reply is the line "RAW: <n>", exactly n bytes of content as stored (no String, no charset, newlines
+// allowed), then the usual <END> line. Errors are the usual "ERROR: ..." line and <END>.
+// On a blocking connection whose socket has a channel, each run of contiguous blocks goes from the disk file
+// to the socket with FileChannel.transferTo (sendfile on Linux) and is never copied into the heap; the NIO
+// server builds the reply in memory instead. It can't be tagged or used inside MULTI since the content can't
+// carry a tag on every line.
+public class RawReadCommand {
+
+    private static final String NL = System.lineSeparator();
+    private static final Charset CHARSET = Charset.defaultCharset(); // same as the PrintWriter of the text replies
+
+    private final VolumeManager fsManager;
+    private final ServerMetrics metrics;
+
+    public RawReadCommand(VolumeManager fsManager, ServerMetrics metrics) {
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+    }
+
+    public static boolean isRawRead(String line) {
+        return line.split(" ")[0].equalsIgnoreCase("READRAW");
+    }
+
+    // Writes the whole reply to out, the content through channel when it isn't null. Anything buffered in
+    // front of out must be flushed before. An IOException means the reply was cut short and the
+    // connection has to be closed.
+    public void execute(String line, OutputStream out, WritableByteChannel channel) throws IOException {
+        long start = System.nanoTime();
+        String[] parts = line.split(" ");
+        boolean[] started = {false};
+        try {
+            if (parts.length != 2 && parts.length != 4) {
+                out.write(("ERROR: Usage: READRAW <filename> [<offset> <length>]" + NL).getBytes(CHARSET));
+            } else {
+                FileSink sink = channel != null ? new SocketSink(out, channel, started) : new StreamSink(out, started);
+                if (parts.length == 4)
+                    fsManager.readFile(parts[1], CommandProcessor.parseNumber(parts[2]), CommandProcessor.parseNumber(parts[3]), sink);
+                else
+                    fsManager.readFile(parts[1], sink);
+                out.write(NL.getBytes(CHARSET));
+            }
+        } catch (IOException e) {
+            if (started[0])
+                throw e;
+            writeError(out, e);
+        } catch (Exception e) {
+            if (started[0])
+                throw new IOException(e);
+            writeError(out, e);
+        }
+        out.write((CommandProcessor.END + NL).getBytes(CHARSET));
+        out.flush();
+        metrics.recordCommand("READRAW", System.nanoTime() - start);
+    }
+
+    // the whole reply as bytes, for the NIO server
+    public byte[] execute(String line) {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        try {
+            execute(line, reply, null);
+        } catch (IOException e) {
+            // only the file system can fail here and it fails before the header, a memory stream doesn't
+        }
+        return reply.toByteArray();
+    }
+
+    // sends count bytes of the disk file starting at position to the socket, sendfile where the OS has it
+    static long transferFully(FileChannel disk, long position, long count, WritableByteChannel channel) throws IOException {
+        long done = 0;
+        while (done < count)
+            done += disk.transferTo(position + done, count - done, channel);
+        return done;
+    }
+
+    private static void writeError(OutputStream out, Exception e) throws IOException {
+        String message = e.getMessage() == null ? "Internal server error" : e.getMessage();
+        out.write(("ERROR: " + message + NL).getBytes(CHARSET));
+        CommandProcessor.logFailure("READRAW", e);
+    }
+
+    private static class StreamSink implements FileSink {
+        final OutputStream out;
+        final boolean[] started;
+
+        StreamSink(OutputStream out, boolean[] started) {
+            this.out = out;
+            this.started = started;
+        }
+
+        @Override
+        public void begin(long size) throws IOException {
+            started[0] = true;
+            out.write(("RAW: " + size + NL).getBytes(CHARSET));
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+        }
+    }
+
+    private class SocketSink extends StreamSink implements ChannelSink {
+        private final WritableByteChannel channel;
+
+        SocketSink(OutputStream out, WritableByteChannel channel, boolean[] started) {
+            super(out, started);
+            this.channel = channel;
+        }
+
+        @Override
+        public void transfer(FileChannel disk, long position, long count) throws IOException {
+            out.flush(); // the header goes out before the content
+            metrics.bytesOut().add(transferFully(disk, position, count, channel));
+        }
+    }
+}
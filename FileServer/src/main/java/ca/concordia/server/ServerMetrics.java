@@ -0,0 +1,105 @@
+package ca.concordia.server;
+
+import ca.concordia.metrics.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of one FileServer, shared by every connection whatever the execution model.
+// Command latency is measured from the parsed line to the built reply (network time excluded),
+// with a histogram per command name. Exposed through JMX and the STATS command.
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // keyed by known command names only (unknown ones are counted as UNKNOWN), so clients can't grow it
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public LongAdder bytesIn() {
+        return bytesIn;
+    }
+
+    public LongAdder bytesOut() {
+        return bytesOut;
+    }
+
+    public void recordCommand(String command, long nanos) {
+        latencies.computeIfAbsent(command, c -> new LatencyHistogram()).record(nanos);
+    }
+
+    public LatencyHistogram getLatency(String command) {
+        return latencies.get(command);
+    }
+
+    // every counter by name, in a stable order
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("server.connections.active", getActiveConnections());
+        stats.put("server.connections.accepted", getAcceptedConnections());
+        stats.put("server.bytes_in", getBytesIn());
+        stats.put("server.bytes_out", getBytesOut());
+        stats.put("server.commands", getCommands());
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet())
+            stats.put("cmd." + entry.getKey(), entry.getValue().summary());
+        return stats;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getCommands() {
+        long commands = 0;
+        for (LatencyHistogram histogram : latencies.values())
+            commands += histogram.getCount();
+        return commands;
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(latencies);
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet())
+            lines[i++] = entry.getKey() + " " + entry.getValue().summary();
+        return lines;
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : latencies.values())
+            histogram.reset();
+    }
+}
@@ -0,0 +1,20 @@
+package ca.concordia.server;
+
+// JMX view of a running server, registered as ca.concordia:type=Server,port=<port>
+public interface ServerMetricsMBean {
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getCommands();
+
+    // one line per command: "READ count=.. mean=.. p50=.. p90=.. p99=.. p99.9=.. max=.."
+    String[] getCommandLatencies();
+
+    void resetLatencies();
+}
@@ -0,0 +1,203 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FrameTable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Compressed files: the frame layout FrameCodec writes and FrameTable reads back, and ranged reads and writes of
+// compressed files, whose ranges start and end inside chunks and cross their edges.
+class FileSystemManagerCompressionTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int CHUNK = 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void framesRoundTripAndIncompressibleChunksStayRaw() throws Exception {
+        // chunk 0 compresses, chunk 1 is noise, chunk 2 is a short tail that compresses
+        byte[] data = new byte[2 * CHUNK + 300];
+        fill(data, 0, CHUNK);
+        byte[] noise = new byte[CHUNK];
+        new Random(7).nextBytes(noise);
+        System.arraycopy(noise, 0, data, CHUNK, CHUNK);
+        fill(data, 2 * CHUNK, 300);
+
+        byte[] stored = FrameCodec.compress(data, CHUNK);
+        FrameTable table = table(stored, data.length);
+        assertEquals(3, table.size());
+        assertEquals(CHUNK, table.getChunkSize());
+        assertFalse(table.isRaw(0));
+        assertTrue(table.isRaw(1), "noise doesn't deflate");
+        assertEquals(CHUNK, table.getFrameLength(1));
+        assertFalse(table.isRaw(2));
+        assertEquals(FrameTable.headerBytes(3), table.getFrameOffset(0));
+        assertEquals(stored.length, table.getFrameOffset(2) + table.getFrameLength(2), "frames end the stored bytes");
+
+        assertEquals(0, table.chunkOf(CHUNK - 1));
+        assertEquals(1, table.chunkOf(CHUNK));
+        assertEquals(2 * CHUNK, table.getChunkStart(2));
+        assertEquals(300, table.getChunkLength(2), "the last chunk is short");
+
+        byte[] back = new byte[data.length];
+        for (int chunk = 0; chunk < table.size(); chunk++) {
+            int offset = (int) table.getFrameOffset(chunk);
+            int start = (int) table.getChunkStart(chunk);
+            if (table.isRaw(chunk))
+                System.arraycopy(stored, offset, back, start, table.getChunkLength(chunk));
+            else
+                FrameCodec.inflate(stored, offset, table.getFrameLength(chunk), back, start, table.getChunkLength(chunk));
+        }
+        assertArrayEquals(data, back);
+    }
+
+    @Test
+    void aDamagedFrameIsAnError() {
+        byte[] data = new byte[CHUNK];
+        fill(data, 0, CHUNK);
+        byte[] stored = FrameCodec.compress(data, CHUNK);
+        FrameTable table = table(stored, data.length);
+        int offset = (int) table.getFrameOffset(0);
+        int length = table.getFrameLength(0);
+
+        byte[] cut = new byte[CHUNK];
+        IOException e = assertThrows(IOException.class,
+                () -> FrameCodec.inflate(stored, offset, length / 2, cut, 0, CHUNK));
+        assertEquals("ERROR: compressed frame is shorter than its chunk.", e.getMessage());
+
+        stored[offset + length - 1] ^= 0x55; // the zlib checksum
+        e = assertThrows(IOException.class, () -> FrameCodec.inflate(stored, offset, length, cut, 0, CHUNK));
+        assertEquals("ERROR: compressed frame is corrupt.", e.getMessage());
+    }
+
+    @Test
+    void emptyDataIsStoredAsNothing() {
+        assertEquals(0, FrameCodec.compress(new byte[0], CHUNK).length);
+    }
+
+    @Test
+    void rangedReadsCrossChunkEdges() throws Exception {
+        FileSystemManager fs = mount("reads");
+        byte[] data = new byte[3 * CHUNK + 500];
+        fill(data, 0, data.length);
+        fs.createFile("f");
+        fs.writeFile("f", data);
+        long plain = fs.getFreeBlocks();
+        fs.setCompression("f", true);
+        assertTrue(fs.isCompressed("f"));
+        assertTrue(fs.getFreeBlocks() > plain, "compressing gave no blocks back");
+
+        int[][] ranges = {{0, 1}, {CHUNK - 1, 2}, {CHUNK - 10, CHUNK + 20}, {500, 3 * CHUNK}, {3 * CHUNK, 500},
+                {data.length - 1, 10}, {data.length, 5}, {2 * CHUNK, CHUNK}, {7, 0}};
+        for (int[] range : ranges) {
+            byte[] expected = Arrays.copyOfRange(data, range[0], Math.min(data.length, range[0] + range[1]));
+            String name = range[0] + "+" + range[1];
+            assertArrayEquals(expected, fs.readFile("f", range[0], range[1]), name);
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            assertEquals(expected.length, fs.readFile("f", range[0], range[1], sink(sent)), name);
+            assertArrayEquals(expected, sent.toByteArray(), name + " through a sink");
+        }
+        assertArrayEquals(data, fs.readFile("f"));
+        fs.close();
+    }
+
+    @Test
+    void rangedWritesKeepTheFileCompressed() throws Exception {
+        String disk = dir.resolve("writes.dat").toString();
+        FileSystemManager fs = mount(disk);
+        byte[] data = new byte[2 * CHUNK + 100];
+        fill(data, 0, data.length);
+        fs.createFile("f");
+        fs.writeFile("f", data);
+        fs.setCompression("f", true);
+        long empty = fs.getFreeBlocks();
+
+        byte[] patch = new byte[50];
+        Arrays.fill(patch, (byte) 'p');
+        fs.writeAt("f", CHUNK - 25, patch); // across the edge of chunks 0 and 1
+        System.arraycopy(patch, 0, data, CHUNK - 25, patch.length);
+        assertArrayEquals(data, fs.readFile("f"), "after writeAt");
+
+        byte[] more = new byte[CHUNK];
+        fill(more, 0, more.length);
+        fs.append("f", more);
+        data = concat(data, more);
+        assertArrayEquals(data, fs.readFile("f"), "after append");
+        assertArrayEquals(Arrays.copyOfRange(data, 2 * CHUNK, 2 * CHUNK + 300), fs.readFile("f", 2 * CHUNK, 300));
+
+        fs.writeAt("f", data.length + 10, patch); // past the end, the gap reads as zeros
+        data = concat(concat(data, new byte[10]), patch);
+        assertArrayEquals(data, fs.readFile("f"), "after a write past the end");
+
+        fs.truncate("f", CHUNK + 7);
+        data = Arrays.copyOf(data, CHUNK + 7);
+        assertArrayEquals(data, fs.readFile("f"), "after shrinking");
+        fs.truncate("f", CHUNK + 400);
+        data = Arrays.copyOf(data, CHUNK + 400);
+        assertArrayEquals(data, fs.readFile("f"), "growing fills with zeros");
+        assertTrue(fs.isCompressed("f"));
+        fs.close();
+
+        fs = mount(disk);
+        assertArrayEquals(data, fs.readFile("f"), "after the remount");
+        assertTrue(fs.isCompressed("f"));
+        fs.setCompression("f", false);
+        assertArrayEquals(data, fs.readFile("f"), "decompressed");
+        fs.deleteFile("f");
+        assertTrue(fs.getFreeBlocks() > empty, "deleting gave the blocks back");
+        fs.close();
+    }
+
+    private FileSystemManager mount(String name) {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(8);
+        config.setCompressionChunkSize(CHUNK);
+        config.setScrubFreedBlocks(false);
+        String disk = name.endsWith(".dat") ? name : dir.resolve(name + ".dat").toString();
+        return FileSystemManager.mount(disk, BLOCK_SIZE * 512L, config);
+    }
+
+    private static FrameTable table(byte[] stored, long originalSize) {
+        int count = FrameTable.readCount(Arrays.copyOf(stored, FrameTable.FIXED_HEADER_BYTES));
+        return FrameTable.readHeader(Arrays.copyOf(stored, FrameTable.headerBytes(count)), originalSize);
+    }
+
+    private static FileSink sink(ByteArrayOutputStream out) {
+        return new FileSink() {
+            @Override
+            public void begin(long size) {
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                out.write(data, offset, length);
+            }
+        };
+    }
+
+    // text-like bytes that deflate well but differ at every offset
+    private static void fill(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            data[i] = (byte) ('a' + (i / 7) % 26);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+}
@@ -0,0 +1,381 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Stress test of the file and namespace locks: THREADS threads create, write, read and delete their own files
+// and write and read files they all share, then the contents and the free block count must survive a remount.
+// A client streaming a write, or taking a read, slowly must not hold a lock meanwhile.
+// How reads scale with the number of clients is measured by FileSystemReadBenchmark (-t N) in the benchmarks module.
+class FileSystemManagerConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 2500; // per thread
+    private static final int PRIVATE_FILES = 4; // per thread
+    private static final int SHARED_FILES = 8;
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCKS = 4096;
+
+    @TempDir
+    Path dir;
+
+    private static FileSystemConfig config() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(THREADS * PRIVATE_FILES + SHARED_FILES + 8);
+        config.setScrubFreedBlocks(false); // freed blocks count as free right away, the counts below stay exact
+        return config;
+    }
+
+    @Test
+    void concurrentMutationsKeepEveryFileConsistent() throws Exception {
+        String disk = dir.resolve("stress.dat").toString();
+        FileSystemManager fs = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config());
+        long freeWhenEmpty = fs.getFreeBlocks();
+        for (int i = 0; i < SHARED_FILES; i++) {
+            fs.createFile(sharedName(i));
+            fs.writeFile(sharedName(i), content(THREADS, i, 100));
+        }
+
+        // what each thread last committed to its own files, null for a file that doesn't exist
+        byte[][][] expected = new byte[THREADS][PRIVATE_FILES][];
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int writer = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    run(fs, writer, expected[writer]);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }, "stress-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        if (!failures.isEmpty())
+            throw new AssertionError(failures.size() + " threads failed", failures.peek());
+
+        verify(fs, expected);
+        long free = fs.getFreeBlocks();
+        fs.close();
+
+        FileSystemManager remounted = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config());
+        verify(remounted, expected);
+        assertEquals(free, remounted.getFreeBlocks(), "free blocks after remount");
+        for (String name : remounted.listFiles())
+            remounted.deleteFile(name);
+        assertEquals(freeWhenEmpty, remounted.getFreeBlocks(), "blocks leaked");
+        remounted.close();
+    }
+
+    @Test
+    void aStalledStreamHoldsNoLock() throws Exception {
+        FileSystemManager fs = FileSystemManager.mount(dir.resolve("stall.dat").toString(), (long) BLOCK_SIZE * BLOCKS, config());
+        fs.createFile("slow");
+        fs.createFile("ranged");
+        fs.writeFile("ranged", content(0, 0, 1000));
+        long free = fs.getFreeBlocks();
+
+        // a whole-file write and a ranged write (large enough to be staged on disk) both stall halfway
+        StallingStream whole = new StallingStream(3000, 3000);
+        StallingStream ranged = new StallingStream(100 * 1000, 100 * 1000);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread wholeWriter = new Thread(() -> {
+            try {
+                fs.writeFile("slow", whole, whole.length);
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        Thread rangedWriter = new Thread(() -> {
+            try {
+                fs.writeAt("ranged", 500, ranged, ranged.length);
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        wholeWriter.start();
+        rangedWriter.start();
+        try {
+            assertTrue(whole.halfway.await(10, TimeUnit.SECONDS));
+            assertTrue(ranged.halfway.await(10, TimeUnit.SECONDS));
+
+            // the same files (so the same lock stripes) and a checkpoint go ahead while the payloads are pending
+            ExecutorService other = Executors.newSingleThreadExecutor();
+            try {
+                other.submit(() -> {
+                    fs.writeFile("slow", content(1, 1, 200));
+                    fs.append("ranged", new byte[10]);
+                    fs.checkpoint();
+                    return null;
+                }).get(10, TimeUnit.SECONDS);
+            } finally {
+                other.shutdownNow();
+            }
+            assertArrayEquals(content(1, 1, 200), fs.readFile("slow"));
+        } finally {
+            whole.resume.countDown();
+            ranged.resume.countDown();
+        }
+        wholeWriter.join();
+        rangedWriter.join();
+        if (!failures.isEmpty())
+            throw new AssertionError("stream write failed", failures.peek());
+
+        assertArrayEquals(whole.expected(), fs.readFile("slow"));
+        byte[] rangedContent = fs.readFile("ranged");
+        assertEquals(500 + ranged.length, rangedContent.length);
+        assertArrayEquals(ranged.expected(), Arrays.copyOfRange(rangedContent, 500, rangedContent.length));
+        assertArrayEquals(Arrays.copyOf(content(0, 0, 1000), 500), Arrays.copyOf(rangedContent, 500));
+        assertEquals(free - (whole.length + BLOCK_SIZE - 1) / BLOCK_SIZE
+                - (500 + ranged.length + BLOCK_SIZE - 1) / BLOCK_SIZE + (1012 + BLOCK_SIZE - 1) / BLOCK_SIZE,
+                fs.getFreeBlocks(), "staged blocks leaked");
+        fs.close();
+    }
+
+    @Test
+    void aBrokenStreamGivesItsBlocksBack() throws Exception {
+        FileSystemManager fs = FileSystemManager.mount(dir.resolve("broken.dat").toString(), (long) BLOCK_SIZE * BLOCKS, config());
+        fs.createFile("f");
+        byte[] before = content(2, 2, 700);
+        fs.writeFile("f", before);
+        long free = fs.getFreeBlocks();
+
+        StallingStream whole = new StallingStream(5000, 2000);
+        whole.resume.countDown();
+        assertThrows(Exception.class, () -> fs.writeFile("f", whole, whole.length));
+        StallingStream ranged = new StallingStream(100 * 1000, 70 * 1000);
+        ranged.resume.countDown();
+        assertThrows(Exception.class, () -> fs.append("f", ranged, ranged.length));
+
+        assertArrayEquals(before, fs.readFile("f"));
+        assertEquals(free, fs.getFreeBlocks());
+        fs.close();
+    }
+
+    @Test
+    void aStalledReaderHoldsNoLockAndKeepsItsBlocks() throws Exception {
+        FileSystemManager fs = FileSystemManager.mount(dir.resolve("reader.dat").toString(), (long) BLOCK_SIZE * BLOCKS, config());
+        fs.createFile("f");
+        byte[] original = content(3, 3, 5000);
+        fs.writeFile("f", original);
+        long free = fs.getFreeBlocks();
+
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        FileSink sink = new FileSink() {
+            @Override
+            public void begin(long size) {
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                received.write(data, offset, length);
+                stalled.countDown(); // a client that stops reading after the first chunk
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread reader = new Thread(() -> {
+            try {
+                fs.readFile("f", sink);
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        reader.start();
+        try {
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+            // the file is replaced and deleted, and the space it had is written over by another file
+            ExecutorService other = Executors.newSingleThreadExecutor();
+            try {
+                other.submit(() -> {
+                    fs.writeFile("f", content(4, 4, 100));
+                    fs.deleteFile("f");
+                    fs.createFile("g");
+                    fs.writeFile("g", content(5, 5, 100));
+                    fs.checkpoint();
+                    return null;
+                }).get(10, TimeUnit.SECONDS);
+            } finally {
+                other.shutdownNow();
+            }
+            // everything given up after the read started waits for it, the 100 byte version's block too
+            assertEquals((original.length + BLOCK_SIZE - 1) / BLOCK_SIZE + 1, fs.getReadPinnedBlocks());
+        } finally {
+            resume.countDown();
+        }
+        reader.join();
+        if (!failures.isEmpty())
+            throw new AssertionError("read failed", failures.peek());
+
+        assertArrayEquals(original, received.toByteArray(), "the read sends the blocks it started with");
+        assertEquals(0, fs.getReadPinnedBlocks());
+        assertEquals(free + (original.length + BLOCK_SIZE - 1) / BLOCK_SIZE - (112 + BLOCK_SIZE - 1) / BLOCK_SIZE,
+                fs.getFreeBlocks());
+        fs.close();
+    }
+
+    // length bytes of a pattern, of which only the first available arrive. Stops halfway until resumed.
+    private static class StallingStream extends InputStream {
+        final long length;
+        final long available;
+        final CountDownLatch halfway = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        long position;
+
+        StallingStream(long length, long available) {
+            this.length = length;
+            this.available = available;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (position == length / 2) {
+                halfway.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (position >= available)
+                return -1;
+            long end = position < length / 2 ? length / 2 : available;
+            int n = (int) Math.min(count, end - position);
+            for (int i = 0; i < n; i++)
+                buffer[offset + i] = at(position + i);
+            position += n;
+            return n;
+        }
+
+        byte[] expected() {
+            byte[] data = new byte[(int) length];
+            for (int i = 0; i < data.length; i++)
+                data[i] = at(i);
+            return data;
+        }
+
+        private static byte at(long i) {
+            return (byte) (i * 13 + (i >> 8));
+        }
+    }
+
+    private static void run(FileSystemManager fs, int writer, byte[][] expected) throws Exception {
+        Random random = new Random(writer);
+        for (int op = 0; op < OPERATIONS; op++) {
+            if (random.nextInt(4) == 0) {
+                String name = sharedName(random.nextInt(SHARED_FILES));
+                if (random.nextBoolean())
+                    fs.writeFile(name, content(writer, op, random.nextInt(1500)));
+                else
+                    checkWellFormed(name, fs.readFile(name));
+                continue;
+            }
+            int slot = random.nextInt(PRIVATE_FILES);
+            String name = privateName(writer, slot);
+            if (expected[slot] == null) {
+                fs.createFile(name);
+                expected[slot] = new byte[0];
+                continue;
+            }
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    byte[] data = content(writer, op, random.nextInt(2000));
+                    fs.writeFile(name, data);
+                    expected[slot] = data;
+                    break;
+                case 2:
+                    assertArrayEquals(expected[slot], fs.readFile(name), name);
+                    break;
+                default:
+                    fs.deleteFile(name);
+                    expected[slot] = null;
+                    assertFalse(fs.exists(name), name + " still exists");
+                    break;
+            }
+        }
+    }
+
+    private static void verify(FileSystemManager fs, byte[][][] expected) throws Exception {
+        Set<String> names = new HashSet<>(Arrays.asList(fs.listFiles()));
+        for (int t = 0; t < THREADS; t++) {
+            for (int slot = 0; slot < PRIVATE_FILES; slot++) {
+                String name = privateName(t, slot);
+                assertEquals(expected[t][slot] != null, names.contains(name), name + " listed");
+                if (expected[t][slot] != null)
+                    assertArrayEquals(expected[t][slot], fs.readFile(name), name);
+            }
+        }
+        for (int i = 0; i < SHARED_FILES; i++)
+            checkWellFormed(sharedName(i), fs.readFile(sharedName(i)));
+    }
+
+    private static String privateName(int writer, int slot) {
+        return "p" + writer + "_" + slot;
+    }
+
+    private static String sharedName(int index) {
+        return "shared" + index;
+    }
+
+    // [writer][seq][length] then a pattern that follows from them, so a torn or mixed write can't pass
+    private static byte[] content(int writer, int seq, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + size);
+        buffer.putInt(writer).putInt(seq).putInt(size);
+        for (int i = 0; i < size; i++)
+            buffer.put((byte) (writer * 31 + seq * 17 + i));
+        return buffer.array();
+    }
+
+    private static void checkWellFormed(String name, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        assertTrue(data.length >= 12, name + " too short");
+        int writer = buffer.getInt();
+        int seq = buffer.getInt();
+        assertEquals(data.length - 12, buffer.getInt(), name + " length");
+        assertArrayEquals(content(writer, seq, data.length - 12), data, name + " content");
+    }
+}
@@ -0,0 +1,164 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Block reference counts of dedup mode. A block is only freed by the last file (or position of a file) giving it
+// up, so every scenario ends by deleting everything and checking that exactly the blocks of an empty disk are free.
+// getSharedBlockReferences counts the references beyond the first of each block.
+class FileSystemManagerDedupTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final long DISK = BLOCK_SIZE * 512L;
+
+    @TempDir
+    Path dir;
+
+    private static FileSystemConfig config() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(16);
+        config.setDedup(true);
+        config.setScrubFreedBlocks(false);
+        return config;
+    }
+
+    @Test
+    void overwritesAndDeletesDropTheirReferences() throws Exception {
+        FileSystemManager fs = FileSystemManager.mount(disk("refs"), DISK, config());
+        long empty = fs.getFreeBlocks();
+        fs.createFile("a");
+        fs.createFile("b");
+
+        byte[] a = blocks(tail(10), 1, 1, 1, 2);
+        fs.writeFile("a", a);
+        assertEquals(2, fs.getSharedBlockReferences(), "three positions of a share one block");
+        byte[] b = blocks(null, 1, 2, 3);
+        fs.writeFile("b", b);
+        assertEquals(4, fs.getSharedBlockReferences(), "b reuses two of a's blocks");
+
+        byte[] a2 = blocks(null, 4, 5);
+        fs.writeFile("a", a2);
+        assertEquals(0, fs.getSharedBlockReferences(), "a gave up all of its references");
+        assertArrayEquals(b, fs.readFile("b"), "b keeps the blocks a gave up");
+
+        byte[] b2 = blocks(null, 4);
+        fs.writeFile("b", b2);
+        assertEquals(1, fs.getSharedBlockReferences(), "b reuses a's new block");
+        assertArrayEquals(a2, fs.readFile("a"));
+
+        fs.deleteFile("a");
+        assertEquals(0, fs.getSharedBlockReferences());
+        assertArrayEquals(b2, fs.readFile("b"), "the shared block outlives a");
+        fs.deleteFile("b");
+        assertEquals(empty, fs.getFreeBlocks(), "blocks leaked");
+        fs.close();
+    }
+
+    @Test
+    void aRangedWriteCopiesASharedBlockFirst() throws Exception {
+        FileSystemManager fs = FileSystemManager.mount(disk("cow"), DISK, config());
+        long empty = fs.getFreeBlocks();
+        fs.createFile("a");
+        fs.createFile("b");
+        byte[] content = blocks(null, 6, 7);
+        fs.writeFile("a", content);
+        fs.writeFile("b", content);
+        assertEquals(2, fs.getSharedBlockReferences());
+
+        fs.writeAt("b", 5, new byte[]{'x', 'y'});
+        assertArrayEquals(content, fs.readFile("a"), "a doesn't see b's change");
+        byte[] changed = content.clone();
+        changed[5] = 'x';
+        changed[6] = 'y';
+        assertArrayEquals(changed, fs.readFile("b"));
+        assertEquals(1, fs.getSharedBlockReferences(), "only the second block is still shared");
+
+        fs.truncate("b", 0);
+        assertEquals(0, fs.getSharedBlockReferences());
+        fs.append("b", blocks(null, 7));
+        assertArrayEquals(content, fs.readFile("a"));
+
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        assertEquals(empty, fs.getFreeBlocks(), "blocks leaked");
+        fs.close();
+    }
+
+    @Test
+    void defragmentationLeavesSharedBlocksAloneAndCountsSurviveARemount() throws Exception {
+        String disk = disk("defrag");
+        FileSystemManager fs = FileSystemManager.mount(disk, DISK, config());
+        long empty = fs.getFreeBlocks();
+        fs.createFile("f");
+        fs.createFile("g");
+        fs.createFile("h");
+        fs.writeFile("f", blocks(null, 10, 11));
+        fs.writeFile("g", blocks(null, 12));
+        fs.append("f", blocks(null, 13)); // lands behind g: f has two extents now
+        byte[] f = blocks(null, 10, 11, 13);
+        fs.writeFile("h", blocks(null, 10));
+        assertEquals(1, fs.getSharedBlockReferences());
+
+        assertFalse(fs.defragmentFile("f"), "moving f would give it a private copy of h's block");
+        assertArrayEquals(f, fs.readFile("f"));
+
+        fs.close();
+        fs = FileSystemManager.mount(disk, DISK, config());
+        assertEquals(1, fs.getSharedBlockReferences(), "counted again from the block maps");
+        assertEquals(empty, fs.getFreeBlocks() + usedBy(fs, "f", "g", "h"));
+
+        fs.deleteFile("h");
+        assertEquals(0, fs.getSharedBlockReferences());
+        assertTrue(fs.defragmentFile("f"));
+        assertArrayEquals(f, fs.readFile("f"), "after the move");
+        fs.createFile("k");
+        fs.writeFile("k", f);
+        fs.deleteFile("f");
+        assertArrayEquals(f, fs.readFile("k"), "k never points at blocks the move gave up");
+
+        fs.deleteFile("g");
+        fs.deleteFile("k");
+        assertEquals(0, fs.getSharedBlockReferences());
+        assertEquals(empty, fs.getFreeBlocks(), "blocks leaked");
+        fs.close();
+    }
+
+    private String disk(String name) {
+        return dir.resolve(name + ".dat").toString();
+    }
+
+    // blocks the files take up: their data blocks plus one index block each (dedup files use extent maps), shared
+    // data blocks counted once
+    private static long usedBy(FileSystemManager fs, String... names) throws Exception {
+        long blocks = 0;
+        for (String name : names)
+            blocks += (fs.readFile(name).length + BLOCK_SIZE - 1) / BLOCK_SIZE + 1;
+        return blocks - fs.getSharedBlockReferences();
+    }
+
+    // full blocks filled with the given values, then the tail if there is one
+    private static byte[] blocks(byte[] tail, int... values) {
+        byte[] data = new byte[values.length * BLOCK_SIZE + (tail == null ? 0 : tail.length)];
+        for (int i = 0; i < values.length; i++)
+            for (int k = 0; k < BLOCK_SIZE; k++)
+                data[i * BLOCK_SIZE + k] = (byte) (values[i] * 37 + k % 5);
+        if (tail != null)
+            System.arraycopy(tail, 0, data, values.length * BLOCK_SIZE, tail.length);
+        return data;
+    }
+
+    private static byte[] tail(int length) {
+        byte[] tail = new byte[length];
+        for (int i = 0; i < length; i++)
+            tail[i] = (byte) (200 + i);
+        return tail;
+    }
+}
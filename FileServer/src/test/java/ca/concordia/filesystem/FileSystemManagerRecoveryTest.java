@@ -0,0 +1,191 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Crash safety of the metadata journal. A crash is a copy of the disk file and its journal taken while the
+// manager is still mounted (no close, so no checkpoint): mounting the copy has to rebuild the last committed
+// state from the checkpointed tables plus the journal, and drop a torn or corrupt tail.
+class FileSystemManagerRecoveryTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCKS = 1024;
+
+    @TempDir
+    Path dir;
+
+    private static FileSystemConfig config() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(64);
+        config.setScrubFreedBlocks(false); // freed blocks are free right away, so the counts below are exact
+        return config;
+    }
+
+    @Test
+    void replaysTheJournalAfterACrash() throws Exception {
+        String disk = disk("live");
+        FileSystemManager fs = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config());
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.createFile("c");
+        fs.writeFile("a", pattern(1, 1000));
+        fs.writeFile("b", pattern(2, 300));
+        fs.deleteFile("c");
+        fs.writeAt("a", 900, pattern(3, 200));
+        fs.append("b", pattern(4, 50));
+        fs.truncate("a", 700);
+        fs.createFile("d");
+        assertTrue(Files.size(Path.of(disk + ".journal")) > 0, "the changes are only in the journal");
+
+        String copy = crash(disk, "copy");
+        FileSystemManager recovered = FileSystemManager.mount(copy, (long) BLOCK_SIZE * BLOCKS, config());
+        assertEquals(Set.of("a", "b", "d"), names(recovered));
+        assertArrayEquals(fs.readFile("a"), recovered.readFile("a"));
+        assertArrayEquals(fs.readFile("b"), recovered.readFile("b"));
+        assertEquals(0, recovered.readFile("d").length);
+        assertEquals(fs.getFreeBlocks(), recovered.getFreeBlocks(), "free blocks");
+        assertEquals(0, Files.size(Path.of(copy + ".journal")), "the replayed tail is checkpointed");
+
+        recovered.close();
+        recovered = FileSystemManager.mount(copy, (long) BLOCK_SIZE * BLOCKS, config());
+        assertArrayEquals(fs.readFile("a"), recovered.readFile("a"), "after the checkpoint");
+        recovered.close();
+        fs.close();
+    }
+
+    @Test
+    void dropsATornTail() throws Exception {
+        String disk = disk("torn");
+        FileSystemManager fs = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config());
+        fs.createFile("kept");
+        fs.writeFile("kept", pattern(5, 500));
+        long free = fs.getFreeBlocks();
+        long intact = Files.size(Path.of(disk + ".journal"));
+        fs.createFile("torn");
+        fs.writeFile("torn", pattern(6, 400)); // two more records, the crash cuts into them
+        long end = Files.size(Path.of(disk + ".journal"));
+
+        for (long cut : new long[]{intact + 1, intact + 8, intact + 9, end - 1}) {
+            String copy = crash(disk, "cut" + cut);
+            try (RandomAccessFile journal = new RandomAccessFile(copy + ".journal", "rw")) {
+                journal.setLength(cut);
+            }
+            FileSystemManager recovered = FileSystemManager.mount(copy, (long) BLOCK_SIZE * BLOCKS, config());
+            Set<String> names = names(recovered);
+            assertTrue(names.contains("kept"), "cut at " + cut);
+            assertArrayEquals(pattern(5, 500), recovered.readFile("kept"), "cut at " + cut);
+            if (cut < end - 1) {
+                assertFalse(names.contains("torn"), "cut at " + cut);
+                assertEquals(free, recovered.getFreeBlocks(), "cut at " + cut);
+            } else {
+                // only the write record is torn: the file exists and is still empty, its blocks are free
+                assertEquals(0, recovered.readFile("torn").length);
+                assertEquals(free, recovered.getFreeBlocks(), "cut at " + cut);
+            }
+            recovered.close();
+        }
+        fs.close();
+    }
+
+    @Test
+    void dropsACorruptRecordAndEverythingAfterIt() throws Exception {
+        String disk = disk("crc");
+        FileSystemManager fs = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config());
+        fs.createFile("good");
+        fs.writeFile("good", pattern(7, 256));
+        long free = fs.getFreeBlocks();
+        long intact = Files.size(Path.of(disk + ".journal"));
+        fs.writeFile("good", pattern(8, 900));
+        fs.createFile("later");
+
+        String copy = crash(disk, "copy");
+        try (RandomAccessFile journal = new RandomAccessFile(copy + ".journal", "rw")) {
+            long at = intact + 8 + 3; // inside the payload of the overwrite's record, past its header
+            journal.seek(at);
+            int b = journal.read();
+            journal.seek(at);
+            journal.write(b ^ 0x5A);
+        }
+        FileSystemManager recovered = FileSystemManager.mount(copy, (long) BLOCK_SIZE * BLOCKS, config());
+        assertEquals(Set.of("good"), names(recovered), "the record after the corrupt one is dropped too");
+        assertArrayEquals(pattern(7, 256), recovered.readFile("good"), "the overwrite is undone");
+        assertEquals(free, recovered.getFreeBlocks(), "blocks of the lost overwrite are free");
+        recovered.close();
+        fs.close();
+    }
+
+    @Test
+    void checkpointsKeepTheJournalShort() throws Exception {
+        String disk = disk("compact");
+        FileSystemConfig config = config(); // PER_OP: every record is in the journal file when the call returns
+        FileSystemManager fs = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config);
+        Path journal = Path.of(disk + ".journal");
+        long largest = 0;
+        int compactions = 0;
+        for (int i = 0; i < 3000; i++) {
+            String name = "f" + (i % 16);
+            if (i < 16)
+                fs.createFile(name);
+            long before = Files.size(journal);
+            fs.writeFile(name, pattern(i, 1 + i % 700));
+            long after = Files.size(journal);
+            if (after < before)
+                compactions++;
+            largest = Math.max(largest, after);
+        }
+        // the journal is compacted once it passes 64KB, it never grows much past that
+        assertTrue(compactions > 0, "no checkpoint in 3000 writes");
+        assertTrue(largest <= 64 * 1024 + 4096, "journal grew to " + largest + " bytes");
+
+        fs.checkpoint();
+        assertEquals(0, Files.size(journal), "a checkpoint empties the journal");
+        fs.writeFile("f0", pattern(-1, 333));
+        fs.close();
+        assertEquals(0, Files.size(journal), "close checkpoints");
+
+        FileSystemManager remounted = FileSystemManager.mount(disk, (long) BLOCK_SIZE * BLOCKS, config);
+        assertArrayEquals(pattern(-1, 333), remounted.readFile("f0"));
+        for (int f = 1; f < 16; f++) {
+            int last = 2999 - (2999 - f) % 16; // the last i with i % 16 == f
+            assertArrayEquals(pattern(last, 1 + last % 700), remounted.readFile("f" + f), "f" + f);
+        }
+        remounted.close();
+    }
+
+    private String disk(String name) {
+        return dir.resolve(name + ".dat").toString();
+    }
+
+    // what a crash right now leaves behind: the disk file and the journal as they are, no checkpoint
+    private String crash(String disk, String name) throws Exception {
+        String copy = disk(name);
+        Files.copy(Path.of(disk), Path.of(copy), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(Path.of(disk + ".journal"), Path.of(copy + ".journal"), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    private static Set<String> names(FileSystemManager fs) {
+        return new HashSet<>(Arrays.asList(fs.listFiles()));
+    }
+
+    private static byte[] pattern(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (seed * 31 + i * 7);
+        return data;
+    }
+}
@@ -0,0 +1,218 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.Superblock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Disks written by older versions mount and move to the current format without losing a byte. The fixtures are
+// laid out by hand, byte by byte as the old versions wrote them (see Superblock and FEntry), not with the current
+// serialization code, so a change to that code can't quietly change what an old disk is read as.
+class FileSystemManagerUpgradeTest {
+
+    private static final int BLOCK_SIZE = 128;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void upgradesADiskFromBeforeTheSuperblock() throws Exception {
+        // 10 blocks of 128 bytes, 5 FEntries of 15 bytes at offset 0, then an FNode for every block.
+        // Block 1 is free, which is where the wider version 3 metadata grows into.
+        byte[] old = pattern(1, 200);
+        ByteBuffer image = ByteBuffer.allocate(10 * BLOCK_SIZE);
+        putShortEntry(image, "old", old.length, 2);
+        putShortEntry(image, "empty", 0, -1);
+        image.position(5 * 15);
+        putNodes(image, 0, 0, 3, -1, 0, 0, 0, 0, 0, 0);
+        putData(image, 2, old, 0, BLOCK_SIZE);
+        putData(image, 3, old, BLOCK_SIZE, old.length - BLOCK_SIZE);
+        String disk = write("legacy.dat", image);
+
+        FileSystemManager fs = mount(disk);
+        assertEquals(Set.of("old", "empty"), names(fs));
+        assertArrayEquals(old, fs.readFile("old"));
+        assertEquals(0, fs.readFile("empty").length);
+        assertEquals(5, fs.getMaxFiles());
+        checkUsable(fs, "old", old);
+        fs.close();
+        assertEquals(Superblock.VERSION_3, versionOf(disk));
+
+        fs = mount(disk);
+        assertArrayEquals(old, fs.readFile("old"), "after the remount");
+        fs.close();
+    }
+
+    @Test
+    void keepsALegacyDiskWhoseNextBlockIsInUse() throws Exception {
+        // same geometry, but the file starts in block 1: the disk gets a version 1 superblock and stays there
+        // until the block is free
+        byte[] old = pattern(2, 150);
+        ByteBuffer image = ByteBuffer.allocate(10 * BLOCK_SIZE);
+        putShortEntry(image, "pinned", old.length, 1);
+        image.position(5 * 15);
+        putNodes(image, 0, 5, 0, 0, 0, -1, 0, 0, 0, 0);
+        putData(image, 1, old, 0, BLOCK_SIZE);
+        putData(image, 5, old, BLOCK_SIZE, old.length - BLOCK_SIZE);
+        String disk = write("pinned.dat", image);
+
+        FileSystemManager fs = mount(disk);
+        assertArrayEquals(old, fs.readFile("pinned"));
+        Exception e = assertThrows(Exception.class, () -> fs.setCompression("pinned", true));
+        assertEquals("ERROR: the disk format is too old for compression.", e.getMessage());
+        fs.writeFile("pinned", pattern(3, 600));
+        fs.close();
+        assertEquals(Superblock.VERSION_1, versionOf(disk));
+
+        FileSystemManager remounted = mount(disk); // the rewrite moved the file off block 1
+        assertArrayEquals(pattern(3, 600), remounted.readFile("pinned"));
+        remounted.close();
+        assertEquals(Superblock.VERSION_3, versionOf(disk));
+    }
+
+    @Test
+    void upgradesAVersion1Disk() throws Exception {
+        // "CAFS" blockSize maxBlocks maxFiles, 4 FEntries of 15 bytes, FNodes of blocks 2..31
+        byte[] a = pattern(4, 300);
+        byte[] b = pattern(5, 20);
+        ByteBuffer image = ByteBuffer.allocate(32 * BLOCK_SIZE);
+        image.putInt(Superblock.MAGIC).putInt(BLOCK_SIZE).putInt(32).putInt(4);
+        putShortEntry(image, "a", a.length, 10);
+        image.position(image.position() + 15); // a free entry between two files
+        putShortEntry(image, "b", b.length, 4);
+        image.position(16 + 4 * 15);
+        int[] nodes = new int[32];
+        nodes[10] = 11;
+        nodes[11] = 20;
+        nodes[20] = -1;
+        nodes[4] = -1;
+        putNodes(image, Arrays.copyOfRange(nodes, 2, 32));
+        putData(image, 10, a, 0, BLOCK_SIZE);
+        putData(image, 11, a, BLOCK_SIZE, BLOCK_SIZE);
+        putData(image, 20, a, 2 * BLOCK_SIZE, a.length - 2 * BLOCK_SIZE);
+        putData(image, 4, b, 0, b.length);
+        String disk = write("v1.dat", image);
+
+        FileSystemManager fs = mount(disk);
+        assertEquals(Set.of("a", "b"), names(fs));
+        assertArrayEquals(a, fs.readFile("a"));
+        assertArrayEquals(b, fs.readFile("b"));
+        checkUsable(fs, "a", a);
+        fs.close();
+        assertEquals(Superblock.VERSION_3, versionOf(disk));
+
+        fs = mount(disk);
+        assertArrayEquals(b, fs.readFile("b"), "after the remount");
+        fs.close();
+    }
+
+    @Test
+    void upgradesAVersion2Disk() throws Exception {
+        // "CAFV" 2 blockSize maxBlocks maxFiles, 8 FEntries of 23 bytes (long size, int first block), FNodes of
+        // blocks 4..63. Version 3 needs 5 metadata blocks, block 4 is free.
+        byte[] big = pattern(6, 1000);
+        ByteBuffer image = ByteBuffer.allocate(64 * BLOCK_SIZE);
+        image.putInt(Superblock.MAGIC_VERSIONED).putInt(Superblock.VERSION_2).putInt(BLOCK_SIZE).putInt(64).putInt(8);
+        putLongEntry(image, "big", big.length, 40);
+        putLongEntry(image, "none", 0, -1);
+        image.position(20 + 8 * 23);
+        int[] nodes = new int[64];
+        int[] chain = {40, 41, 42, 9, 10, 11, 12, 63};
+        for (int i = 0; i < chain.length; i++)
+            nodes[chain[i]] = i + 1 < chain.length ? chain[i + 1] : -1;
+        putNodes(image, Arrays.copyOfRange(nodes, 4, 64));
+        for (int i = 0; i < chain.length; i++)
+            putData(image, chain[i], big, i * BLOCK_SIZE, Math.min(BLOCK_SIZE, big.length - i * BLOCK_SIZE));
+        String disk = write("v2.dat", image);
+
+        FileSystemManager fs = mount(disk);
+        long free = fs.getFreeBlocks();
+        assertEquals(Set.of("big", "none"), names(fs));
+        assertArrayEquals(big, fs.readFile("big"));
+        assertEquals(64 - 5 - chain.length, free, "the file keeps its blocks, one more block went to metadata");
+        checkUsable(fs, "big", big);
+        fs.close();
+        assertEquals(Superblock.VERSION_3, versionOf(disk));
+
+        fs = mount(disk);
+        assertArrayEquals(big, fs.readFile("big"), "after the remount");
+        fs.close();
+    }
+
+    // an upgraded disk compresses files (version 3 only) and takes new ones
+    private static void checkUsable(FileSystemManager fs, String name, byte[] content) throws Exception {
+        fs.setCompression(name, true);
+        assertArrayEquals(content, fs.readFile(name), "compressed");
+        fs.createFile("new");
+        fs.writeFile("new", pattern(9, 100));
+        assertArrayEquals(pattern(9, 100), fs.readFile("new"));
+        fs.deleteFile("new");
+    }
+
+    private String write(String name, ByteBuffer image) throws Exception {
+        Path disk = dir.resolve(name);
+        Files.write(disk, image.array());
+        return disk.toString();
+    }
+
+    private static FileSystemManager mount(String disk) {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setScrubFreedBlocks(false);
+        return FileSystemManager.mount(disk, 1024 * 1024, config); // the size only matters for new disks
+    }
+
+    private static int versionOf(String disk) throws Exception {
+        byte[] header = new byte[Superblock.MAX_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(disk, "r")) {
+            file.readFully(header);
+        }
+        return Superblock.readFrom(ByteBuffer.wrap(header)).getVersion();
+    }
+
+    // FEntry of version 1 and of disks without a superblock: 11 byte name, short size, short first block
+    private static void putShortEntry(ByteBuffer image, String name, int size, int first) {
+        image.put(Arrays.copyOf(name.getBytes(StandardCharsets.UTF_8), 11));
+        image.putShort((short) size);
+        image.putShort((short) first);
+    }
+
+    // FEntry of version 2: 11 byte name, long size, int first block
+    private static void putLongEntry(ByteBuffer image, String name, long size, int first) {
+        image.put(Arrays.copyOf(name.getBytes(StandardCharsets.UTF_8), 11));
+        image.putLong(size);
+        image.putInt(first);
+    }
+
+    // FNodes: 0 for a free block, otherwise the next block of the chain, -1 at its end
+    private static void putNodes(ByteBuffer image, int... nodes) {
+        for (int node : nodes)
+            image.putInt(node);
+    }
+
+    private static void putData(ByteBuffer image, int block, byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, image.array(), block * BLOCK_SIZE, length);
+    }
+
+    private static Set<String> names(FileSystemManager fs) {
+        return new HashSet<>(Arrays.asList(fs.listFiles()));
+    }
+
+    private static byte[] pattern(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (seed * 71 + i * 3 + (i >> 7));
+        return data;
+    }
+}
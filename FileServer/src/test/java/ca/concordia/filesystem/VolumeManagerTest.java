@@ -0,0 +1,131 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Shard placement and what mounting does when the shard count changes, and mounts that fail.
+class VolumeManagerTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final long SHARD_SIZE = BLOCK_SIZE * 2048L;
+    private static final int FILES = 60;
+
+    @TempDir
+    Path dir;
+
+    private static FileSystemConfig config() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(FILES);
+        return config;
+    }
+
+    @Test
+    void addingAShardOnlyMovesNamesToIt() {
+        ShardRing three = new ShardRing(3);
+        ShardRing four = new ShardRing(4);
+        int moved = 0;
+        int names = 20000;
+        for (int i = 0; i < names; i++) {
+            String name = "file" + i;
+            if (three.shardFor(name) != four.shardFor(name)) {
+                assertEquals(3, four.shardFor(name), name + " moved between old shards");
+                moved++;
+            }
+        }
+        // about a quarter of the names go to the new shard
+        assertTrue(moved > names / 6 && moved < names / 3, moved + " names moved");
+    }
+
+    @Test
+    void mountingWithMoreOrFewerShardsMovesTheFiles() throws Exception {
+        String disk = dir.resolve("volume.dat").toString();
+        VolumeManager volume = new VolumeManager(disk, SHARD_SIZE, 2, config());
+        for (int i = 0; i < FILES; i++) {
+            volume.createFile("f" + i);
+            volume.writeFile("f" + i, content(i));
+        }
+        volume.close();
+
+        volume = new VolumeManager(disk, SHARD_SIZE, 3, config());
+        checkFiles(volume);
+        assertTrue(volume.getShard(2).getFileCount() > 0, "nothing moved to the new shard");
+        volume.close();
+        checkPlacement(disk, 3);
+
+        volume = new VolumeManager(disk, SHARD_SIZE, 1, config());
+        checkFiles(volume);
+        volume.close();
+        assertFalse(Files.exists(Path.of(VolumeManager.shardFile(disk, 1))), "retired shard left behind");
+        assertFalse(Files.exists(Path.of(VolumeManager.shardFile(disk, 2))), "retired shard left behind");
+        assertFalse(Files.exists(Path.of(VolumeManager.shardFile(disk, 2) + ".journal")));
+    }
+
+    @Test
+    void aFailedMountReleasesTheDiskFile() throws Exception {
+        String disk = dir.resolve("broken.dat").toString();
+        Path journal = Path.of(disk + ".journal");
+        Files.createDirectory(journal); // the journal can't be opened
+
+        assertThrows(UncheckedIOException.class, () -> FileSystemManager.mount(disk, SHARD_SIZE, config()));
+        Files.delete(journal);
+        FileSystemManager fs = FileSystemManager.mount(disk, SHARD_SIZE, config()); // not "already mounted"
+        assertEquals(FILES, fs.getMaxFiles(), "formatted, not taken for a legacy disk");
+        assertEquals(SHARD_SIZE / BLOCK_SIZE, fs.getTotalBlocks());
+        fs.createFile("a");
+        fs.close();
+    }
+
+    @Test
+    void aVolumeWithAShardThatCantMountFails() throws Exception {
+        String disk = dir.resolve("shards.dat").toString();
+        Path journal = Path.of(VolumeManager.shardFile(disk, 1) + ".journal");
+        Files.createDirectory(journal);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> new VolumeManager(disk, SHARD_SIZE, 2, config()));
+        assertTrue(e.getMessage().startsWith("ERROR: could not mount"), e.getMessage());
+        Files.delete(journal);
+        VolumeManager volume = new VolumeManager(disk, SHARD_SIZE, 2, config()); // shard 0 was closed again
+        assertEquals(2, volume.getShardCount());
+        volume.close();
+    }
+
+    private static void checkFiles(VolumeManager volume) throws Exception {
+        assertEquals(FILES, volume.listFiles().length);
+        for (int i = 0; i < FILES; i++)
+            assertArrayEquals(content(i), volume.readFile("f" + i), "f" + i);
+    }
+
+    // every shard holds exactly the files whose names hash to it
+    private static void checkPlacement(String disk, int shards) throws Exception {
+        ShardRing ring = new ShardRing(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            FileSystemManager fs = FileSystemManager.mount(VolumeManager.shardFile(disk, shard), SHARD_SIZE, config());
+            Set<String> names = new HashSet<>(Arrays.asList(fs.listFiles()));
+            fs.close();
+            for (int i = 0; i < FILES; i++)
+                assertEquals(ring.shardFor("f" + i) == shard, names.contains("f" + i), "f" + i + " on shard " + shard);
+        }
+    }
+
+    private static byte[] content(int i) {
+        byte[] data = new byte[100 + i * 37];
+        for (int k = 0; k < data.length; k++)
+            data[k] = (byte) (i + k * 11);
+        return data;
+    }
+}
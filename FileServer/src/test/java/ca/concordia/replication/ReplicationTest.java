@@ -0,0 +1,256 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A primary and replicas in one JVM, on localhost with the primary's replication port picked by the system.
+// Replicas are started and stopped to make them catch up from the log or from a snapshot.
+class ReplicationTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final long DISK = BLOCK_SIZE * 1024L;
+    private static final long WAIT_MILLIS = 15000;
+
+    @TempDir
+    Path dir;
+
+    private final List<ReplicatedVolume> open = new ArrayList<>();
+
+    @AfterEach
+    void closeAll() throws Exception {
+        for (int i = open.size() - 1; i >= 0; i--)
+            open.get(i).close();
+    }
+
+    @Test
+    void aSyncWriteIsOnTheReplicaWhenItReturns() throws Exception {
+        ReplicationConfig sync = primaryConfig(0);
+        sync.setAckMode(ReplicationConfig.AckMode.SYNC);
+        sync.setSyncTimeoutMillis(WAIT_MILLIS);
+        ReplicatedVolume primary = start("primary", 32, sync);
+        ReplicatedVolume replica = start("replica", 32, replicaConfig(primary));
+        awaitStreaming(replica);
+
+        for (int i = 0; i < 20; i++) {
+            primary.createFile("f" + i);
+            primary.writeFile("f" + i, content(i));
+            assertArrayEquals(content(i), replica.readFile("f" + i), "f" + i + " right after the write");
+        }
+        primary.deleteFile("f3");
+        assertFalse(replica.exists("f3"));
+        assertEquals(0L, stat(primary, "replication.sync_timeouts"));
+        String acked = stats(primary).keySet().stream()
+                .filter(key -> key.startsWith("replication.replica.") && key.endsWith(".acked"))
+                .findFirst().orElseThrow();
+        assertEquals(stat(primary, "replication.seq"), stat(primary, acked), "the replica acknowledged all of it");
+    }
+
+    @Test
+    void aReplicaCatchesUpFromASnapshotThenFromTheLog() throws Exception {
+        ReplicatedVolume primary = start("primary", 8, primaryConfig(0));
+        write(primary, 0, 5);
+        ReplicatedVolume replica = start("replica", 8, replicaConfig(primary));
+        awaitCaughtUp(primary, replica);
+        assertEquals(1L, stat(replica, "replication.snapshots_loaded"), "files from before it started");
+        checkSame(primary, replica);
+
+        replica.close();
+        open.remove(replica);
+        write(primary, 5, 3);
+        primary.setCompression("f1", true);
+        primary.append("f1", content(9));
+        primary.truncate("f2", 10);
+
+        replica = start("replica", 8, replicaConfig(primary)); // its position was saved on close
+        awaitCaughtUp(primary, replica);
+        assertEquals(0L, stat(replica, "replication.snapshots_loaded"), "the log still had what it missed");
+        assertTrue(stat(replica, "replication.entries_applied") > 0);
+        checkSame(primary, replica);
+        assertTrue(replica.isCompressed("f1"));
+    }
+
+    @Test
+    void aReplicaTooFarBehindForTheLogGetsASnapshot() throws Exception {
+        ReplicationConfig small = primaryConfig(0);
+        small.setLogBytes(1024);
+        ReplicatedVolume primary = start("primary", 8, small);
+        ReplicatedVolume replica = start("replica", 8, replicaConfig(primary));
+        awaitCaughtUp(primary, replica);
+        replica.close();
+        open.remove(replica);
+
+        write(primary, 0, 2);
+        primary.writeFile("f0", new byte[4096]); // the log drops the mutations before this one
+        replica = start("replica", 8, replicaConfig(primary));
+        awaitCaughtUp(primary, replica);
+        assertEquals(1L, stat(replica, "replication.snapshots_loaded"));
+        checkSame(primary, replica);
+    }
+
+    @Test
+    void aReplicaReconnectsToARestartedPrimary() throws Exception {
+        ReplicatedVolume primary = start("primary", 8, primaryConfig(0));
+        int port = primary.getReplicationPort();
+        ReplicatedVolume replica = start("replica", 8, replicaConfig(primary));
+        write(primary, 0, 3);
+        awaitCaughtUp(primary, replica);
+
+        primary.close();
+        open.remove(primary);
+        await(() -> !"STREAMING".equals(stats(replica).get("replication.state")), "the replica noticed");
+        assertArrayEquals(content(1), replica.readFile("f1"), "the replica keeps serving reads");
+
+        primary = start("primary", 8, primaryConfig(port)); // a new epoch, the old positions are void
+        primary.deleteFile("f0");
+        write(primary, 3, 2);
+        awaitCaughtUp(primary, replica);
+        assertTrue(stat(replica, "replication.reconnects") > 0);
+        assertEquals(2L, stat(replica, "replication.snapshots_loaded"));
+        checkSame(primary, replica);
+    }
+
+    @Test
+    void aReplicaRefusesWrites() throws Exception {
+        ReplicatedVolume primary = start("primary", 8, primaryConfig(0));
+        ReplicatedVolume replica = start("replica", 8, replicaConfig(primary));
+        Exception e = assertThrows(Exception.class, () -> replica.createFile("x"));
+        assertTrue(e.getMessage().startsWith("ERROR: read-only replica"), e.getMessage());
+        assertFalse(primary.exists("x"));
+    }
+
+    // Files come and go on a full file table, so creates only work thanks to deletes of other files. The replica
+    // applies them in the primary's order and never runs out of room, so it never needs another snapshot.
+    @Test
+    void mutationsCompetingForRoomApplyInTheSameOrder() throws Exception {
+        ReplicatedVolume primary = start("primary", 4, primaryConfig(0));
+        ReplicatedVolume replica = start("replica", 4, replicaConfig(primary));
+        primary.createFile("keep");
+        awaitCaughtUp(primary, replica);
+
+        AtomicInteger created = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String name = "t" + t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 3000; i++) {
+                    try {
+                        primary.createFile(name);
+                    } catch (Exception full) {
+                        continue;
+                    }
+                    created.incrementAndGet();
+                    try {
+                        primary.writeFile(name, content(i));
+                        primary.deleteFile(name);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(created.get() > 0);
+        awaitCaughtUp(primary, replica);
+        assertEquals(1L, stat(replica, "replication.snapshots_loaded"), "a mutation failed on the replica");
+        checkSame(primary, replica);
+    }
+
+    private ReplicatedVolume start(String name, int maxFiles, ReplicationConfig replication) throws Exception {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(maxFiles);
+        ReplicatedVolume volume = new ReplicatedVolume(dir.resolve(name + ".dat").toString(), DISK, 1, config,
+                replication);
+        open.add(volume);
+        volume.start();
+        return volume;
+    }
+
+    private static ReplicationConfig primaryConfig(int port) {
+        ReplicationConfig config = new ReplicationConfig();
+        config.setRole(ReplicationConfig.Role.PRIMARY);
+        config.setReplicationPort(port);
+        return config;
+    }
+
+    private static ReplicationConfig replicaConfig(ReplicatedVolume primary) {
+        ReplicationConfig config = new ReplicationConfig();
+        config.setRole(ReplicationConfig.Role.REPLICA);
+        config.setPrimary("localhost:" + primary.getReplicationPort());
+        return config;
+    }
+
+    private static void write(ReplicatedVolume primary, int from, int count) throws Exception {
+        for (int i = from; i < from + count; i++) {
+            primary.createFile("f" + i);
+            primary.writeFile("f" + i, content(i));
+        }
+    }
+
+    private static void checkSame(ReplicatedVolume primary, ReplicatedVolume replica) throws Exception {
+        String[] names = primary.listFiles();
+        Arrays.sort(names);
+        String[] replicated = replica.listFiles();
+        Arrays.sort(replicated);
+        assertArrayEquals(names, replicated);
+        for (String name : names)
+            assertArrayEquals(primary.readFile(name), replica.readFile(name), name);
+    }
+
+    private static void awaitStreaming(ReplicatedVolume replica) throws Exception {
+        await(() -> "STREAMING".equals(stats(replica).get("replication.state")), "the replica streams");
+    }
+
+    private static void awaitCaughtUp(ReplicatedVolume primary, ReplicatedVolume replica) throws Exception {
+        awaitStreaming(replica);
+        await(() -> stat(replica, "replication.applied") == stat(primary, "replication.seq"),
+                "the replica applied everything");
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out waiting until " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    private static long stat(ReplicatedVolume volume, String name) {
+        Object value = stats(volume).get(name);
+        assertTrue(value instanceof Number, name + " = " + value);
+        return ((Number) value).longValue();
+    }
+
+    private static Map<String, Object> stats(ReplicatedVolume volume) {
+        try {
+            return volume.getStatsSnapshot();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] content(int i) {
+        return ("content of file " + i + " ").repeat(1 + i % 7).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.VolumeManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Text protocol replies of the ranged commands (READ with a range, WRITEAT, APPEND, TRUNCATE) at their edges.
+// Errors thrown by the file system already start with "ERROR:" and get the reply's own prefix on top, as always.
+class CommandProcessorTest {
+
+    private static final String NL = System.lineSeparator();
+
+    @TempDir
+    Path dir;
+
+    private VolumeManager volume;
+    private CommandProcessor processor;
+
+    @BeforeEach
+    void mount() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(128);
+        config.setMaxFiles(8);
+        volume = new VolumeManager(dir.resolve("disk.dat").toString(), 128 * 256, config);
+        processor = new CommandProcessor(volume, new ServerMetrics());
+        assertEquals("SUCCESS: File 'f' created.", reply("CREATE f"));
+        assertEquals("SUCCESS: File 'f' written.", reply("WRITE f 0123456789"));
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        volume.close();
+    }
+
+    @Test
+    void readWithAnOffsetButNoLengthIsAnError() {
+        assertEquals("ERROR: Usage: READ <filename> [<offset> <length>]", reply("READ f 3"));
+        assertEquals("ERROR: Usage: READ <filename> [<offset> <length>]", reply("READ f 3 2 1"));
+        assertEquals("CONTENT: 0123456789", reply("READ f"));
+        assertEquals("CONTENT: 34", reply("READ f 3 2"));
+    }
+
+    @Test
+    void readRangesAtTheEdges() {
+        assertEquals("CONTENT: ", reply("READ f 4 0"), "zero length");
+        assertEquals("CONTENT: ", reply("READ f 10 5"), "offset at the end");
+        assertEquals("CONTENT: 789", reply("READ f 7 100"), "cut at the end");
+        assertEquals("ERROR: ERROR: offset is past the end of the file.", reply("READ f 11 1"));
+        assertEquals("ERROR: ERROR: offset and length cannot be negative.", reply("READ f -1 2"));
+        assertEquals("ERROR: ERROR: 'x' is not a number.", reply("READ f x 2"));
+        assertEquals("ERROR: ERROR: File not found.", reply("READ g 0 1"));
+    }
+
+    @Test
+    void writeAtOverwritesAndGrows() {
+        assertEquals("SUCCESS: File 'f' written at offset 2.", reply("WRITEAT f 2 ab"));
+        assertEquals("CONTENT: 01ab456789", reply("READ f"));
+        assertEquals("SUCCESS: File 'f' written at offset 8.", reply("WRITEAT f 8 XYZ"));
+        assertEquals("CONTENT: 01ab4567XYZ", reply("READ f"));
+        assertEquals("SUCCESS: File 'f' written at offset 13.", reply("WRITEAT f 13 end"));
+        assertEquals("CONTENT: 01ab4567XYZ\0\0end", reply("READ f"), "the gap reads as zeros");
+        assertEquals("ERROR: ERROR: offset cannot be negative.", reply("WRITEAT f -1 x"));
+        assertEquals("ERROR: Usage: WRITEAT <filename> <offset> <data>", reply("WRITEAT f 1"));
+    }
+
+    @Test
+    void appendAddsAtTheEnd() {
+        assertEquals("SUCCESS: File 'f' appended.", reply("APPEND f ab cd"));
+        assertEquals("CONTENT: 0123456789ab cd", reply("READ f"));
+        assertEquals("CONTENT: cd", reply("READ f 13 2"));
+        assertEquals("ERROR: Missing file data.", reply("APPEND f"));
+        assertEquals("ERROR: ERROR: File not found.", reply("APPEND g x"));
+    }
+
+    @Test
+    void truncateShrinksAndGrows() {
+        assertEquals("SUCCESS: File 'f' truncated to 4 bytes.", reply("TRUNCATE f 4"));
+        assertEquals("CONTENT: 0123", reply("READ f"));
+        assertEquals("SUCCESS: File 'f' truncated to 7 bytes.", reply("TRUNCATE f 7"));
+        assertEquals("CONTENT: 0123\0\0\0", reply("READ f"), "growing fills with zeros, not the old bytes");
+        assertEquals("SUCCESS: File 'f' truncated to 300 bytes.", reply("TRUNCATE f 300"));
+        assertEquals("CONTENT: \0\0", reply("READ f 298 5"));
+        assertEquals("SUCCESS: File 'f' truncated to 0 bytes.", reply("TRUNCATE f 0"));
+        assertEquals("CONTENT: ", reply("READ f"));
+        assertEquals("ERROR: ERROR: size cannot be negative.", reply("TRUNCATE f -3"));
+        assertEquals("ERROR: Usage: TRUNCATE <filename> <size>", reply("TRUNCATE f"));
+    }
+
+    @Test
+    void readRawTakesTheSameArguments() {
+        RawReadCommand raw = new RawReadCommand(volume, new ServerMetrics());
+        assertEquals("ERROR: Usage: READRAW <filename> [<offset> <length>]" + NL + CommandProcessor.END + NL,
+                new String(raw.execute("READRAW f 3"), StandardCharsets.UTF_8));
+        String range = new String(raw.execute("READRAW f 3 2"), StandardCharsets.UTF_8);
+        assertTrue(range.contains("34" + NL + CommandProcessor.END + NL), range);
+    }
+
+    // the single reply line of a command, after checking the terminator
+    private String reply(String line) {
+        String reply = processor.execute(line);
+        String end = NL + CommandProcessor.END + NL;
+        assertTrue(reply.endsWith(end), reply);
+        return reply.substring(0, reply.length() - end.length());
+    }
+}
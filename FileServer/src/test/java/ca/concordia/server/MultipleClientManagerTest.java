@@ -0,0 +1,118 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Tagged requests of the blocking execution models: run on the shared worker pool, answered by each
+// connection's own writer.
+class MultipleClientManagerTest {
+
+    private static final int CONTENT_BYTES = 512 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private FileServer server;
+    private Thread serverThread;
+    private int port;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        FileSystemConfig config = new FileSystemConfig();
+        config.setMaxFiles(8);
+        server = new FileServer(port, dir.resolve("disk.dat").toString(), 8L * 1024 * 1024, config);
+        server.setWorkerThreads(2);
+        serverThread = new Thread(server::start, "file-server");
+        serverThread.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+        serverThread.join();
+    }
+
+    @Test
+    void aClientThatStopsReadingHoldsUpNoOtherClient() throws Exception {
+        try (Socket stalled = connect(); Socket other = connect()) {
+            OutputStream out = stalled.getOutputStream();
+            out.write(("CREATE big\nWRITE big " + "x".repeat(CONTENT_BYTES) + "\n").getBytes(StandardCharsets.UTF_8));
+            // far more reply bytes than the socket buffers hold, and never read
+            for (int i = 0; i < 64; i++)
+                out.write(("#" + i + " READ big\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(500); // the workers are done with them by now, the writer is stuck
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream request = other.getOutputStream();
+            request.write("#a CREATE small\n".getBytes(StandardCharsets.UTF_8));
+            request.flush();
+            assertEquals("#a SUCCESS: File 'small' created.", in.readLine());
+            assertEquals("#a " + CommandProcessor.END, in.readLine());
+        }
+    }
+
+    @Test
+    void taggedRepliesAllArrive() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 200; i++) // more than may be in flight, reading stops and starts again
+                requests.append('#').append(i).append(" CREATE f").append(i % 3 == 0 ? "" : i).append('\n');
+            requests.append("QUIT\n");
+            out.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            boolean[] answered = new boolean[200];
+            String line;
+            int ends = 0;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith("#"))
+                    continue; // the goodbye
+                int space = line.indexOf(' ');
+                int tag = Integer.parseInt(line.substring(1, space));
+                if (line.endsWith(CommandProcessor.END)) {
+                    assertTrue(answered[tag], "end before the reply of #" + tag);
+                    ends++;
+                } else {
+                    answered[tag] = true;
+                }
+            }
+            assertEquals(200, ends, "every tagged request answered before the goodbye");
+        }
+    }
+
+    private Socket connect() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(10000);
+                return socket;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The NIO event loop cutting its input into lines and frames: lines that are too long, and frames whose bytes
+// arrive in many pieces.
+class NioServerTest {
+
+    @TempDir
+    Path dir;
+
+    private FileServer server;
+    private Thread serverThread;
+    private int port;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        FileSystemConfig config = new FileSystemConfig();
+        config.setMaxFiles(8);
+        server = new FileServer(port, dir.resolve("disk.dat").toString(), 16L * 1024 * 1024, config);
+        server.setExecutionModel(ExecutionModel.NIO);
+        server.setWorkerThreads(2);
+        serverThread = new Thread(server::start, "nio-server");
+        serverThread.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+        serverThread.join();
+    }
+
+    @Test
+    void aTooLongLineIsRefusedAndTheNextOneRuns() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write("CREATE a\n".getBytes(StandardCharsets.UTF_8));
+            out.write(("WRITE a " + "x".repeat(3 * 1024 * 1024) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write("CREATE b\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            assertEquals("SUCCESS: File 'a' created.", reply(in));
+            assertEquals("ERROR: Lines above 1048576 bytes are refused, send large data with BINARY.", reply(in));
+            assertEquals("SUCCESS: File 'b' created.", reply(in), "the rest of the long line was dropped");
+        }
+        assertEquals(0, server.getFileSystem().readFile("a").length);
+    }
+
+    @Test
+    void aFrameSentInPiecesArrivesWhole() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i * 31 + (i >> 12));
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("SUCCESS: Switching to binary protocol.", readLine(in));
+            assertEquals(CommandProcessor.END, readLine(in));
+
+            frameHeader(out, BinaryProtocolHandler.OP_CREATE, 1, "big", 0);
+            frameHeader(out, BinaryProtocolHandler.OP_WRITE, 2, "big", content.length);
+            out.flush();
+            for (int offset = 0; offset < content.length; offset += 100_000) {
+                out.write(content, offset, Math.min(100_000, content.length - offset));
+                out.flush();
+            }
+            assertEquals(0, replyPayload(in, 1).length);
+            assertEquals(0, replyPayload(in, 2).length);
+
+            frameHeader(out, BinaryProtocolHandler.OP_READ, 3, "big", 0);
+            out.flush();
+            assertArrayEquals(content, replyPayload(in, 3));
+        }
+    }
+
+    @Test
+    void aHeaderWithoutItsPayloadDoesNotStopOthers() throws Exception {
+        try (Socket idle = connect()) {
+            DataOutputStream out = new DataOutputStream(idle.getOutputStream());
+            out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+            frameHeader(out, BinaryProtocolHandler.OP_WRITE, 1, "never", 60L * 1024 * 1024); // and nothing more
+            out.flush();
+
+            try (Socket other = connect()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream(), StandardCharsets.UTF_8));
+                other.getOutputStream().write("CREATE c\n".getBytes(StandardCharsets.UTF_8));
+                assertEquals("SUCCESS: File 'c' created.", reply(in));
+            }
+        }
+    }
+
+    private Socket connect() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(30000);
+                return socket;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // the single line of a text reply, after checking its terminator
+    private static String reply(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        assertEquals(CommandProcessor.END, in.readLine(), line);
+        return line;
+    }
+
+    private static void frameHeader(DataOutputStream out, byte opcode, int requestId, String name, long payload)
+            throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(opcode);
+        out.writeInt(requestId);
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeLong(payload);
+    }
+
+    private static byte[] replyPayload(DataInputStream in, int requestId) throws IOException {
+        byte status = in.readByte();
+        assertEquals(requestId, in.readInt());
+        byte[] payload = new byte[(int) in.readLong()];
+        in.readFully(payload);
+        assertEquals(BinaryProtocolHandler.STATUS_OK, status, new String(payload, StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    // a text line read off the raw stream, before it carries frames
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n' && b != -1)
+            line.append((char) b);
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+            line.setLength(line.length() - 1);
+        return line.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package ca.concordia.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+
+// Runs the suites once per thread count and writes one JSON result file per run, so results can be
+// compared across thread counts and commits.
+//   java -cp target/benchmarks.jar ca.concordia.benchmarks.BenchmarkRunner [--threads=1,4,16] [--include=regex]
+//        [--results=target/jmh] [--quick=true]
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        String threads = "1,4,16";
+        String include = "ca\\.concordia\\.benchmarks\\..*";
+        String results = "target/jmh";
+        boolean quick = false;
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "threads":
+                    threads = value;
+                    break;
+                case "include":
+                    include = value;
+                    break;
+                case "results":
+                    results = value;
+                    break;
+                case "quick":
+                    quick = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    System.err.println("Unknown option --" + name);
+            }
+        }
+
+        new File(results).mkdirs();
+        for (String count : threads.split(",")) {
+            int threadCount = Integer.parseInt(count.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threadCount)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(results, "results-t" + threadCount + ".json").getPath());
+            if (quick) {
+                // one short iteration each, to check the suites run rather than to measure
+                options.warmupIterations(1).warmupTime(TimeValue.milliseconds(200))
+                        .measurementIterations(1).measurementTime(TimeValue.milliseconds(200));
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
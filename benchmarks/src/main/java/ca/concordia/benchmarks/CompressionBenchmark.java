@@ -0,0 +1,122 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.SyncPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost and gain of compressed files (COMPRESS <file> ON). TEXT is log lines of JSON, the kind of content
+// compression is for; RANDOM doesn't deflate at all, so compressed=true only pays for trying and its chunks
+// are stored as they are. readRange reads one block at a random offset, a compressed file inflates the chunk
+// holding it. The effective capacity (original bytes per stored byte) is printed once per trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int FILE_COUNT = 8;
+
+    public enum Content { TEXT, RANDOM }
+
+    @Param({"1048576"})
+    public int fileSize;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    @Param({"TEXT", "RANDOM"})
+    public Content content;
+
+    private String disk;
+    private FileSystemManager fs;
+    private byte[] contents;
+    private Random random;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Disks.quietLogging();
+        FileSystemConfig config = Disks.config(FILE_COUNT);
+        config.setBlockMapFormat(BlockMapFormat.EXTENTS);
+        config.setSyncPolicy(SyncPolicy.ON_CLOSE); // measures the writes, not fsync
+        config.setScrubFreedBlocks(false); // rewrites would otherwise race the scrubber for free blocks
+        disk = Disks.newDiskFile("compressbench");
+        fs = FileSystemManager.mount(disk, Disks.diskSize(FILE_COUNT, fileSize), config);
+        contents = content == Content.TEXT ? logLines(fileSize) : randomBytes(fileSize);
+        long free = fs.getFreeBlocks();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            fs.createFile(Disks.fileName(i));
+            fs.setCompression(Disks.fileName(i), compressed);
+            fs.writeFile(Disks.fileName(i), contents);
+        }
+        long stored = (free - fs.getFreeBlocks()) * Disks.BLOCK_SIZE;
+        System.out.printf("%ncompressed=%s content=%s: %d bytes stored in %d, effective capacity %.2fx%n",
+                compressed, content, (long) FILE_COUNT * fileSize, stored, (double) FILE_COUNT * fileSize / stored);
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        Disks.deleteDisk(disk);
+    }
+
+    @Benchmark
+    public void writeFile() throws Exception {
+        fs.writeFile(Disks.fileName(next++ % FILE_COUNT), contents);
+    }
+
+    @Benchmark
+    public byte[] readFile() throws Exception {
+        return fs.readFile(Disks.fileName(next++ % FILE_COUNT));
+    }
+
+    @Benchmark
+    public byte[] readRange() throws Exception {
+        long offset = random.nextInt(fileSize - Disks.BLOCK_SIZE);
+        return fs.readFile(Disks.fileName(next++ % FILE_COUNT), offset, Disks.BLOCK_SIZE);
+    }
+
+    private static byte[] logLines(int size) {
+        StringBuilder text = new StringBuilder(size + 128);
+        Random random = new Random(7);
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "DEBUG"};
+        for (long i = 0; text.length() < size; i++) {
+            text.append("{\"ts\":").append(1_700_000_000_000L + i * 13)
+                    .append(",\"level\":\"").append(levels[random.nextInt(levels.length)])
+                    .append("\",\"client\":\"10.0.").append(random.nextInt(4)).append('.').append(random.nextInt(256))
+                    .append("\",\"cmd\":\"READ f").append(random.nextInt(1000))
+                    .append("\",\"micros\":").append(random.nextInt(5000)).append("}\n");
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[size];
+        System.arraycopy(bytes, 0, data, 0, size);
+        return data;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(11).nextBytes(data);
+        return data;
+    }
+}
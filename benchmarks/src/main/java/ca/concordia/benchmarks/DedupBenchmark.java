@@ -0,0 +1,101 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.SyncPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+// Cost of dedup mode on whole-file writes. UNIQUE content never matches a block on disk, so dedup=true pays
+// for hashing and the index without saving anything; DUPLICATE content is the same on every write, so after
+// the first one only the index block is written. hashBlock is the SHA-256 of one block alone.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DedupBenchmark {
+
+    private static final int FILE_COUNT = 16;
+
+    public enum Content { UNIQUE, DUPLICATE }
+
+    @Param({"128", "4096"})
+    public int blockSize;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    @Param({"false", "true"})
+    public boolean dedup;
+
+    @Param({"UNIQUE", "DUPLICATE"})
+    public Content content;
+
+    private String disk;
+    private FileSystemManager fs;
+    private byte[] contents;
+    private byte[] block;
+    private MessageDigest sha256;
+    private long sequence;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Disks.quietLogging();
+        FileSystemConfig config = Disks.config(FILE_COUNT);
+        config.setBlockSize(blockSize);
+        config.setBlockMapFormat(BlockMapFormat.EXTENTS); // the format dedup writes, so both sides map blocks alike
+        config.setSyncPolicy(SyncPolicy.ON_CLOSE); // measures the writes, not fsync
+        config.setScrubFreedBlocks(false); // rewrites would otherwise race the scrubber for free blocks
+        config.setDedup(dedup);
+        long blocksPerFile = (fileSize + blockSize - 1) / blockSize;
+        disk = Disks.newDiskFile("dedupbench");
+        fs = FileSystemManager.mount(disk, (FILE_COUNT * blocksPerFile * 3 + 1024) * blockSize, config);
+        for (int i = 0; i < FILE_COUNT; i++)
+            fs.createFile(Disks.fileName(i));
+        contents = Disks.content(fileSize, 3);
+        block = Disks.content(blockSize, 5);
+        sha256 = MessageDigest.getInstance("SHA-256");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        Disks.deleteDisk(disk);
+    }
+
+    @Benchmark
+    public void writeFile() throws Exception {
+        if (content == Content.UNIQUE) {
+            // a sequence number in every block keeps it different from anything written before
+            ByteBuffer stamp = ByteBuffer.wrap(contents);
+            for (int offset = 0; offset + Long.BYTES <= fileSize; offset += blockSize)
+                stamp.putLong(offset, sequence++);
+        }
+        fs.writeFile(Disks.fileName(next++ % FILE_COUNT), contents);
+    }
+
+    @Benchmark
+    public byte[] hashBlock() {
+        sha256.update(block);
+        return sha256.digest();
+    }
+}
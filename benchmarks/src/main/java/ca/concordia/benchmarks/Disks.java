@@ -0,0 +1,77 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.LogLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Shared setup of the benchmarks: scratch disk files and file systems filled with test files
+final class Disks {
+
+    static final int BLOCK_SIZE = 4096;
+
+    private Disks() {
+    }
+
+    // a fresh disk file name in the temp directory, nothing is created yet
+    static String newDiskFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".dat");
+        if (!file.delete())
+            throw new IOException("Could not remove " + file);
+        return file.getPath();
+    }
+
+    // removes a disk file and the journal next to it
+    static void deleteDisk(String disk) {
+        new File(disk).delete();
+        new File(disk + ".journal").delete();
+    }
+
+    // debug logging (every command) would be part of what is measured, only warnings and errors are kept
+    static void quietLogging() {
+        Log.setLevel(LogLevel.WARN);
+    }
+
+    static String fileName(int i) {
+        return String.format("f%05d", i);
+    }
+
+    static byte[] content(int size, int seed) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) ('a' + seed % 26));
+        return data;
+    }
+
+    // disk big enough for the files twice over (rewrites allocate before they free) plus metadata
+    static long diskSize(int fileCount, int fileSize) {
+        long blocksPerFile = (fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return (fileCount * blocksPerFile * 2 + 256) * BLOCK_SIZE;
+    }
+
+    // creates fileCount files of fileSize bytes named fileName(i)
+    static void populate(FileSystemManager fs, int fileCount, int fileSize, Fragmentation fragmentation) throws Exception {
+        for (int i = 0; i < fileCount; i++)
+            fs.createFile(fileName(i));
+        if (fragmentation == Fragmentation.NONE) {
+            for (int i = 0; i < fileCount; i++)
+                fs.writeFile(fileName(i), content(fileSize, i));
+            return;
+        }
+        for (int offset = 0; offset < fileSize; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, fileSize - offset);
+            for (int i = 0; i < fileCount; i++)
+                fs.append(fileName(i), content(length, i));
+        }
+    }
+
+    static FileSystemConfig config(int maxFiles) {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setBlockSize(BLOCK_SIZE);
+        config.setMaxFiles(maxFiles);
+        return config;
+    }
+}
@@ -0,0 +1,87 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.SyncPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Reads against one shared FileSystemManager. Run with -t N to see how reads of different files scale
+// across threads. The cacheBlocks=0 runs are the uncached path, the others read through a block cache
+// that is warm after the warmup iterations (it holds all files in the smaller setups, part of them in the larger).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemReadBenchmark {
+
+    @Param({"16", "256"})
+    public int fileCount;
+
+    @Param({"4096", "262144"})
+    public int fileSize;
+
+    @Param({"NONE", "HIGH"})
+    public Fragmentation fragmentation;
+
+    @Param({"CHAINED", "EXTENTS"})
+    public BlockMapFormat blockMap;
+
+    @Param({"0", "8192"})
+    public int cacheBlocks;
+
+    private String disk;
+    private FileSystemManager fs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Disks.quietLogging();
+        FileSystemConfig config = Disks.config(fileCount);
+        config.setBlockMapFormat(blockMap);
+        config.setSyncPolicy(SyncPolicy.ON_CLOSE); // reads don't sync, and it keeps the setup fast
+        config.setCacheBlocks(cacheBlocks);
+        disk = Disks.newDiskFile("readbench");
+        fs = FileSystemManager.mount(disk, Disks.diskSize(fileCount, fileSize), config);
+        Disks.populate(fs, fileCount, fileSize, fragmentation);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        Disks.deleteDisk(disk);
+    }
+
+    @Benchmark
+    public byte[] readFile() throws Exception {
+        return fs.readFile(Disks.fileName(ThreadLocalRandom.current().nextInt(fileCount)));
+    }
+
+    // 512 bytes from the middle of a file, the block map has to be walked to the offset
+    @Benchmark
+    public byte[] readRange() throws Exception {
+        int length = Math.min(512, fileSize);
+        return fs.readFile(Disks.fileName(ThreadLocalRandom.current().nextInt(fileCount)), (fileSize - length) / 2, length);
+    }
+
+    @Benchmark
+    public String[] listFiles() {
+        return fs.listFiles();
+    }
+}
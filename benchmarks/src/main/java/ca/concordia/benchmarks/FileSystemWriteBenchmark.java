@@ -0,0 +1,106 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.SyncPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Writes, ranged writes and create/delete against one shared FileSystemManager, run with -t N for
+// concurrent writers. The disk starts with fileCount files laid out as the fragmentation parameter says.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemWriteBenchmark {
+
+    private static final int MAX_THREADS = 64; // threads running createWriteDelete, each needs a file slot
+
+    @Param({"64"})
+    public int fileCount;
+
+    @Param({"4096", "262144"})
+    public int fileSize;
+
+    @Param({"NONE", "HIGH"})
+    public Fragmentation fragmentation;
+
+    @Param({"CHAINED", "EXTENTS"})
+    public BlockMapFormat blockMap;
+
+    @Param({"PER_OP", "ON_CLOSE"})
+    public SyncPolicy sync;
+
+    private String disk;
+    private FileSystemManager fs;
+    private byte[] contents;
+    private byte[] patch;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    // each thread creates and deletes its own file so threads don't collide on names
+    @State(Scope.Thread)
+    public static class ThreadName {
+        String name;
+
+        @Setup(Level.Trial)
+        public void setUp(FileSystemWriteBenchmark benchmark) {
+            name = String.format("t%05d", benchmark.threads.getAndIncrement());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Disks.quietLogging();
+        FileSystemConfig config = Disks.config(fileCount + MAX_THREADS);
+        config.setBlockMapFormat(blockMap);
+        config.setSyncPolicy(sync);
+        disk = Disks.newDiskFile("writebench");
+        fs = FileSystemManager.mount(disk, Disks.diskSize(fileCount + MAX_THREADS, fileSize), config);
+        Disks.populate(fs, fileCount, fileSize, fragmentation);
+        contents = Disks.content(fileSize, 7);
+        patch = Disks.content(Math.min(512, fileSize), 11);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        Disks.deleteDisk(disk);
+    }
+
+    // replaces a whole file with new contents of the same size
+    @Benchmark
+    public void writeFile() throws Exception {
+        fs.writeFile(Disks.fileName(ThreadLocalRandom.current().nextInt(fileCount)), contents);
+    }
+
+    // overwrites 512 bytes in the middle of a file
+    @Benchmark
+    public void writeAt() throws Exception {
+        fs.writeAt(Disks.fileName(ThreadLocalRandom.current().nextInt(fileCount)), (fileSize - patch.length) / 2, patch);
+    }
+
+    @Benchmark
+    public void createWriteDelete(ThreadName thread) throws Exception {
+        fs.createFile(thread.name);
+        fs.writeFile(thread.name, contents);
+        fs.deleteFile(thread.name);
+    }
+}
@@ -0,0 +1,7 @@
+package ca.concordia.benchmarks;
+
+// How the test files are laid out on the disk
+public enum Fragmentation {
+    NONE, // every file written in one go, so its blocks are contiguous
+    HIGH  // the files grow one block at a time in turn, so no two neighbouring blocks belong to the same file
+}
@@ -0,0 +1,238 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.metrics.LatencyHistogram;
+import ca.concordia.server.CommandProcessor;
+import ca.concordia.server.ExecutionModel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Many mostly idle connections, per execution model: the server runs in its own JVM, this one opens 1k, 5k and
+// 10k connections that never send anything, and at each step reports the server's resident memory (RSS) and
+// thread count, the memory each idle connection costs next to none, and the p50/p99 latency of a few active
+// clients doing READs meanwhile. Not a JMH suite: what is measured is another process.
+//   java -cp target/benchmarks.jar ca.concordia.benchmarks.IdleConnectionBenchmark [--connections=1000,5000,10000]
+//        [--models=THREAD_PER_CONNECTION,VIRTUAL_THREADS,NIO] [--active=16] [--seconds=3] [--server-heap=1g]
+// Needs a file descriptor limit (ulimit -n) above the largest connection count, in both processes. Linux only.
+public class IdleConnectionBenchmark {
+
+    private String connections = "1000,5000,10000";
+    private String models = "THREAD_PER_CONNECTION,VIRTUAL_THREADS,NIO";
+    private int active = 16;
+    private int seconds = 3;
+    private String serverHeap = "1g";
+
+    public static void main(String[] args) throws Exception {
+        IdleConnectionBenchmark benchmark = new IdleConnectionBenchmark();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "connections":
+                    benchmark.connections = value;
+                    break;
+                case "models":
+                    benchmark.models = value;
+                    break;
+                case "active":
+                    benchmark.active = Integer.parseInt(value);
+                    break;
+                case "seconds":
+                    benchmark.seconds = Integer.parseInt(value);
+                    break;
+                case "server-heap":
+                    benchmark.serverHeap = value;
+                    break;
+                default:
+                    System.err.println("Unknown option --" + name);
+            }
+        }
+        System.out.printf("%-22s %6s %8s %8s %8s %10s %9s %9s %9s%n", "model", "idle", "rss MB", "threads",
+                "KB/conn", "conns/GB", "p50 us", "p99 us", "ops/s");
+        for (String model : benchmark.models.split(","))
+            benchmark.run(ExecutionModel.valueOf(model.trim().toUpperCase()));
+    }
+
+    private void run(ExecutionModel model) throws Exception {
+        String[] steps = connections.split(",");
+        int most = Integer.parseInt(steps[steps.length - 1].trim());
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String disk = Disks.newDiskFile("idlebench");
+        File log = File.createTempFile("idlebench", ".log");
+        Process server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx" + serverHeap, "-cp", System.getProperty("java.class.path"), "ca.concordia.Main",
+                "--port=" + port, "--disk=" + disk, "--size=" + (16L << 20), "--max-files=" + (active + 8),
+                "--execution=" + model, "--max-connections=" + (most + active + 8), "--log-level=warn")
+                .redirectErrorStream(true).redirectOutput(log).start();
+        List<Socket> idle = new ArrayList<>();
+        List<Client> clients = new ArrayList<>();
+        try {
+            awaitListening(port, server, log);
+            for (int i = 0; i < active; i++)
+                clients.add(new Client(port, Disks.fileName(i)));
+            measure(clients, 1); // warms the server up before the baseline
+            long baseline = report(model, 0, server, clients, 0, port);
+            for (String step : steps) {
+                int count = Integer.parseInt(step.trim());
+                while (idle.size() < count) {
+                    Socket socket = new Socket("localhost", port);
+                    idle.add(socket);
+                }
+                report(model, count, server, clients, baseline, port);
+            }
+        } finally {
+            for (Socket socket : idle)
+                socket.close();
+            for (Client client : clients)
+                client.socket.close();
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+            Disks.deleteDisk(disk);
+            log.delete();
+        }
+    }
+
+    // one result line, returns the RSS in bytes
+    private long report(ExecutionModel model, int idle, Process server, List<Client> clients, long baseline, int port)
+            throws Exception {
+        awaitConnections(clients.get(0), idle + clients.size());
+        LatencyHistogram latency = new LatencyHistogram();
+        long ops = measure(clients, seconds, latency);
+        long rss = status(server, "VmRSS:") * 1024;
+        long threads = status(server, "Threads:");
+        double perConnection = idle == 0 ? 0 : (double) (rss - baseline) / idle;
+        System.out.printf("%-22s %6d %8.1f %8d %8s %10s %9.1f %9.1f %9.0f%n", model, idle, rss / 1048576.0, threads,
+                idle == 0 ? "-" : String.format("%.1f", perConnection / 1024),
+                idle == 0 || perConnection <= 0 ? "-" : String.format("%.0f", (1L << 30) / perConnection),
+                latency.getPercentileNanos(50) / 1000.0, latency.getPercentileNanos(99) / 1000.0,
+                ops / (double) seconds);
+        return rss;
+    }
+
+    private long measure(List<Client> clients, int duration) throws Exception {
+        return measure(clients, duration, new LatencyHistogram());
+    }
+
+    // every active client READs its file in a loop for duration seconds
+    private long measure(List<Client> clients, int duration, LatencyHistogram latency) throws Exception {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        LongAdder ops = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (Client client : clients) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        client.call("READ " + client.name);
+                        latency.record(System.nanoTime() - start);
+                        ops.increment();
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (!failures.isEmpty())
+            throw failures.get(0);
+        return ops.sum();
+    }
+
+    // the server counts a connection once its handler runs, idle ones included
+    private static void awaitConnections(Client client, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (true) {
+            long connected = 0;
+            for (String line : client.call("STATS"))
+                if (line.startsWith("STAT server.connections.active "))
+                    connected = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            if (connected >= expected)
+                return;
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("Server has " + connected + " of " + expected + " connections");
+            Thread.sleep(100);
+        }
+    }
+
+    // a value of /proc/<pid>/status, in kB for the memory lines
+    private static long status(Process process, String key) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(process.pid()), "status")))
+            if (line.startsWith(key))
+                return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+        throw new IOException(key + " missing from /proc/" + process.pid() + "/status");
+    }
+
+    private static void awaitListening(int port, Process server, File log) throws Exception {
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (true) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline)
+                    throw new IOException("Server did not start on port " + port + ": "
+                            + String.join("\n", Files.readAllLines(log.toPath())), e);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // an active text protocol client with its own file
+    private static class Client {
+        final Socket socket;
+        final BufferedReader in;
+        final OutputStream out;
+        final String name;
+
+        Client(int port, String name) throws IOException {
+            this.socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = socket.getOutputStream();
+            this.name = name;
+            call("CREATE " + name);
+            call("WRITE " + name + " " + "x".repeat(64));
+        }
+
+        // the reply lines up to END
+        List<String> call(String command) throws IOException {
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.endsWith(CommandProcessor.END))
+                lines.add(line);
+            if (line == null)
+                throw new IOException("Connection closed by the server");
+            if (!lines.isEmpty() && lines.get(0).startsWith("ERROR"))
+                throw new IOException(command.split(" ")[0] + " failed: " + lines.get(0));
+            return lines;
+        }
+    }
+}
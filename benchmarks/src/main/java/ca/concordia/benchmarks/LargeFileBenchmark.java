@@ -0,0 +1,101 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.datastructures.BlockMapFormat;
+import ca.concordia.filesystem.device.SyncPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Whole-file reads and rewrites of 1MB to 100MB files, ioThreads=0 is the one-call-per-extent loop on the
+// caller thread, the others split each transfer over the I/O threads. The megabytes counter is the data
+// moved, so its score is MB/s. The block cache is off so every call reaches the disk file (or the page cache).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LargeFileBenchmark {
+
+    private static final int FILE_COUNT = 2;
+
+    @Param({"1048576", "10485760", "104857600"})
+    public int fileSize;
+
+    @Param({"0", "4"})
+    public int ioThreads;
+
+    @Param({"NONE", "HIGH"})
+    public Fragmentation fragmentation;
+
+    private String disk;
+    private FileSystemManager fs;
+    private byte[] contents;
+
+    // bytes moved by one thread, reported per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public long bytes;
+
+        public double megabytes() {
+            return bytes / (1024.0 * 1024.0);
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Disks.quietLogging();
+        FileSystemConfig config = Disks.config(FILE_COUNT);
+        config.setBlockMapFormat(BlockMapFormat.EXTENTS);
+        config.setSyncPolicy(SyncPolicy.ON_CLOSE); // measures the transfers, not fsync
+        config.setCacheBlocks(0);
+        config.setScrubFreedBlocks(false); // rewrites would otherwise race the scrubber for free blocks
+        config.setIoThreads(ioThreads);
+        disk = Disks.newDiskFile("largebench");
+        fs = FileSystemManager.mount(disk, Disks.diskSize(FILE_COUNT, fileSize), config);
+        Disks.populate(fs, FILE_COUNT, fileSize, fragmentation);
+        contents = Disks.content(fileSize, 7);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fs.close();
+        Disks.deleteDisk(disk);
+    }
+
+    @Benchmark
+    public byte[] readFile(Transferred transferred) throws Exception {
+        byte[] data = fs.readFile(Disks.fileName(ThreadLocalRandom.current().nextInt(FILE_COUNT)));
+        transferred.bytes += data.length;
+        return data;
+    }
+
+    // overwrites the file in place, so a fragmented file keeps its layout
+    @Benchmark
+    public void writeAt(Transferred transferred) throws Exception {
+        fs.writeAt(Disks.fileName(ThreadLocalRandom.current().nextInt(FILE_COUNT)), 0, contents);
+        transferred.bytes += contents.length;
+    }
+}
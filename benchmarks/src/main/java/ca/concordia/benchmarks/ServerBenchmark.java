@@ -0,0 +1,171 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.server.CommandProcessor;
+import ca.concordia.server.ExecutionModel;
+import ca.concordia.server.FileServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// End to end: a FileServer on loopback and one text protocol client connection per benchmark thread,
+// so -t N means N concurrent clients. Sample time mode records every call, the JSON results carry
+// the latency percentiles next to the throughput, for each execution model.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+    private static final int MAX_CLIENTS = 256;
+    private static final int PIPELINE_DEPTH = 16;
+
+    @Param({"THREAD_PER_CONNECTION", "VIRTUAL_THREADS", "NIO"})
+    public ExecutionModel executionModel;
+
+    @Param({"64", "4096"})
+    public int fileSize;
+
+    private String disk;
+    private FileServer server;
+    private int port;
+    private final AtomicInteger clients = new AtomicInteger();
+
+    // one connection per benchmark thread, with its own file
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private BufferedReader in;
+        private OutputStream out;
+        private String name;
+        private String writeCommand;
+
+        @Setup(Level.Trial)
+        public void connect(ServerBenchmark benchmark) throws IOException {
+            socket = new Socket("localhost", benchmark.port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+            name = String.format("c%05d", benchmark.clients.getAndIncrement());
+            writeCommand = "WRITE " + name + " " + "x".repeat(benchmark.fileSize);
+            call("CREATE " + name);
+            call(writeCommand);
+        }
+
+        // Only closes the socket: JMH may stop the server (benchmark scope) before every thread tore down its client
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            socket.close();
+        }
+
+        String call(String command) throws IOException {
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null || reply.startsWith("ERROR"))
+                throw new IOException(command.split(" ")[0] + " failed: " + reply);
+            skipToEnd();
+            return reply;
+        }
+
+        // every reply ends with an END line
+        void skipToEnd() throws IOException {
+            String line;
+            while ((line = in.readLine()) != null && !line.endsWith(CommandProcessor.END)) {
+            }
+            if (line == null)
+                throw new IOException("Connection closed by the server");
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        Disks.quietLogging();
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        disk = Disks.newDiskFile("serverbench");
+        FileSystemConfig config = Disks.config(MAX_CLIENTS);
+        server = new FileServer(port, disk, Disks.diskSize(MAX_CLIENTS, fileSize), config);
+        server.setExecutionModel(executionModel);
+        Thread thread = new Thread(server::start, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        awaitListening();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.stop();
+        Disks.deleteDisk(disk);
+    }
+
+    @Benchmark
+    public String read(Client client) throws IOException {
+        return client.call("READ " + client.name);
+    }
+
+    @Benchmark
+    public String write(Client client) throws IOException {
+        return client.call(client.writeCommand);
+    }
+
+    @Benchmark
+    public String list(Client client) throws IOException {
+        return client.call("LIST");
+    }
+
+    // PIPELINE_DEPTH tagged reads sent at once, then all replies collected
+    @Benchmark
+    public String pipelinedReads(Client client) throws IOException {
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < PIPELINE_DEPTH; i++)
+            requests.append('#').append(i).append(" READ ").append(client.name).append('\n');
+        client.out.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+        client.out.flush();
+        String reply = null;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            reply = client.in.readLine();
+            if (reply == null || reply.contains("ERROR"))
+                throw new IOException("Pipelined READ failed: " + reply);
+            client.skipToEnd();
+        }
+        return reply;
+    }
+
+    private void awaitListening() throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("Server did not start on port " + port, e);
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.VolumeManager;
+import ca.concordia.filesystem.device.SyncPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Whole-file writes from several threads into one volume of 1 or 4 shards (--shards=N). Every shard has its
+// own journal and allocator, so with durable writes (PER_OP) the journal forces of different shards overlap
+// instead of queueing behind one group commit. Run it with -t to change the thread count.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class VolumeBenchmark {
+
+    private static final int FILE_COUNT = 64;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    @Param({"PER_OP", "ON_CLOSE"})
+    public SyncPolicy syncPolicy;
+
+    private String disk;
+    private VolumeManager volume;
+    private byte[] contents;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Disks.quietLogging();
+        FileSystemConfig config = Disks.config(FILE_COUNT); // per shard, every file fits in any shard
+        config.setSyncPolicy(syncPolicy);
+        config.setScrubFreedBlocks(false); // rewrites would otherwise race the scrubber for free blocks
+        disk = Disks.newDiskFile("volumebench");
+        volume = new VolumeManager(disk, Disks.diskSize(FILE_COUNT, fileSize), shards, config);
+        for (int i = 0; i < FILE_COUNT; i++)
+            volume.createFile(Disks.fileName(i));
+        contents = Disks.content(fileSize, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        volume.close();
+        for (int i = 0; i < shards; i++) {
+            String shardDisk = i == 0 ? disk : disk.replace(".dat", "-" + i + ".dat");
+            Disks.deleteDisk(shardDisk);
+        }
+    }
+
+    @Benchmark
+    public void writeFile() throws Exception {
+        volume.writeFile(Disks.fileName(next.getAndIncrement() % FILE_COUNT), contents);
+    }
+
+    @Benchmark
+    public byte[] readFile() throws Exception {
+        return volume.readFile(Disks.fileName(next.getAndIncrement() % FILE_COUNT));
+    }
+}